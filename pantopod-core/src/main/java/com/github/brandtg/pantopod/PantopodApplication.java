@@ -15,26 +15,62 @@
  */
 package com.github.brandtg.pantopod;
 
-import com.github.brandtg.pantopod.consumer.PantopodEventHandler;
+import com.github.brandtg.pantopod.api.CrawlEventCodecs;
 import io.dropwizard.Application;
 import io.dropwizard.client.HttpClientBuilder;
 import io.dropwizard.jdbi.DBIFactory;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import com.github.brandtg.pantopod.tor.SocksConnectionSocketFactory;
+import com.github.brandtg.pantopod.tor.SocksDnsResolver;
+import com.github.brandtg.pantopod.tor.SocksSslConnectionSocketFactory;
 import com.github.brandtg.pantopod.tor.TorProxyManager;
+import com.github.brandtg.pantopod.tor.TorProxyPool;
 import com.github.brandtg.pantopod.cluster.PantopodClusterConnection;
+import com.github.brandtg.pantopod.consumer.ByteBudget;
 import com.github.brandtg.pantopod.consumer.PantopodKafkaConsumerManager;
+import com.github.brandtg.pantopod.consumer.ResourceScheduler;
+import com.github.brandtg.pantopod.crawler.AsyncCrawlFetcher;
+import com.github.brandtg.pantopod.crawler.BodyCodec;
+import com.github.brandtg.pantopod.crawler.BodyCompressor;
+import com.github.brandtg.pantopod.crawler.BodyDictionaryStore;
+import com.github.brandtg.pantopod.crawler.CrawlerTrapDetector;
+import com.github.brandtg.pantopod.crawler.CrawlingEventHandler;
+import com.github.brandtg.pantopod.crawler.DbiBatchWriter;
 import com.github.brandtg.pantopod.crawler.DbiBasedCrawlingEventHandler;
+import com.github.brandtg.pantopod.crawler.DbiBodyDictionaryStore;
+import com.github.brandtg.pantopod.crawler.FetchPolicy;
 import com.github.brandtg.pantopod.crawler.FileBasedCrawlingEventHandler;
+import com.github.brandtg.pantopod.crawler.FileBodyDictionaryStore;
+import com.github.brandtg.pantopod.crawler.LinkExtractors;
+import com.github.brandtg.pantopod.crawler.PipelineStage;
+import com.github.brandtg.pantopod.crawler.PolitenessController;
+import com.github.brandtg.pantopod.crawler.RetryScheduler;
+import com.github.brandtg.pantopod.crawler.RevisitScheduler;
+import com.github.brandtg.pantopod.crawler.SeenUrlFilterManager;
+import com.github.brandtg.pantopod.crawler.SegmentCrawlingEventHandler;
+import com.github.brandtg.pantopod.crawler.SegmentStore;
+import com.github.brandtg.pantopod.crawler.UrlCanonicalizer;
 import org.apache.helix.api.id.ClusterId;
 import org.apache.helix.api.id.ParticipantId;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.ssl.SSLContexts;
 import org.skife.jdbi.v2.DBI;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
 
 public class PantopodApplication extends Application<PantopodConfiguration> {
 
@@ -56,34 +92,223 @@ public class PantopodApplication extends Application<PantopodConfiguration> {
   public void run(final PantopodConfiguration config, final Environment environment) {
     // Tor watchdog scheduler
     ScheduledExecutorService torWatchdogScheduler = environment.lifecycle()
-        .scheduledExecutorService("tor-watchdog", true).build();
+        .scheduledExecutorService("tor-watchdog", true).threads(config.getTorPoolSize() + 1).build();
 
     // Tor
+    TorProxyPool torProxyPool = null;
     if (config.isUseTor()) {
-      TorProxyManager proxyManager = new TorProxyManager(
-          config.getTorRootDir(),
-          config.getSocksPort(),
-          config.getControlPort(),
-          config.getTorExecutable(),
+      List<TorProxyManager> proxyManagers = new ArrayList<>();
+      for (int i = 0; i < config.getTorPoolSize(); i++) {
+        proxyManagers.add(new TorProxyManager(
+            config.getTorRootDir(),
+            config.getSocksPort() + i,
+            config.getControlPort() + i,
+            config.getTorExecutable(),
+            torWatchdogScheduler,
+            config.getWatchdogDelayMillis(),
+            false,
+            config.getTorBootstrapTimeoutMillis(),
+            config.getTorCircuitCheckIntervalMillis(),
+            config.getTorCircuitMaxLatencyMillis(),
+            config.getTorCircuitMaxErrorRate(),
+            config.getTorCircuitMinSamples()));
+      }
+      torProxyPool = new TorProxyPool(
+          proxyManagers,
+          TorProxyPool.Affinity.valueOf(config.getTorPoolAffinity().toUpperCase()),
+          TorProxyPool.Strategy.valueOf(config.getTorPoolStrategy().toUpperCase()),
+          config.getTorMaxConnectFailures(),
           torWatchdogScheduler,
-          config.getWatchdogDelayMillis());
-      environment.lifecycle().manage(proxyManager);
+          environment.metrics());
+      environment.lifecycle().manage(torProxyPool);
     }
 
-    // Kafka executors
-    ExecutorService kafkaExecutors = environment.lifecycle().executorService("kafka-executors").build();
+    // Kafka executors (each consumer holds one to dispatch, and the node's reader one to fetch, for as long as they
+    // run)
+    ExecutorService kafkaExecutors = environment.lifecycle().executorService("kafka-executors")
+        .minThreads(0)
+        .maxThreads(Integer.MAX_VALUE)
+        .workQueue(new SynchronousQueue<Runnable>())
+        .build();
 
     // Kafka event handler
-    final HttpClient httpClient = new HttpClientBuilder(environment)
-        .using(config.getHttpClient())
-        .build("crawler-client");
-    PantopodEventHandler eventHandler;
+    HttpClientBuilder httpClientBuilder = new HttpClientBuilder(environment)
+        .using(config.getHttpClient());
+    if (torProxyPool != null) {
+      httpClientBuilder
+          .using(RegistryBuilder.<ConnectionSocketFactory>create()
+              .register("http", new SocksConnectionSocketFactory(torProxyPool))
+              .register("https", new SocksSslConnectionSocketFactory(
+                  SSLContexts.createDefault(),
+                  SSLConnectionSocketFactory.getDefaultHostnameVerifier(),
+                  torProxyPool))
+              .build())
+          .using(new SocksDnsResolver());
+    }
+    final HttpClient httpClient = httpClientBuilder.build("crawler-client");
+    CrawlingEventHandler eventHandler;
+    BodyDictionaryStore bodyDictionaryStore = null;
     if ("database".equalsIgnoreCase(config.getHandlerType())) {
       DBIFactory factory = new DBIFactory();
       DBI jdbi = factory.build(environment, config.getDataSourceFactory(), "pantopod-database");
-      eventHandler = new DbiBasedCrawlingEventHandler(httpClient, jdbi);
+      DbiBatchWriter batchWriter = null;
+      if (config.isDatabaseWriteBehind()) {
+        batchWriter = new DbiBatchWriter(
+            jdbi,
+            config.getDatabaseBatchRows(),
+            config.getDatabaseBatchBytes(),
+            config.getDatabaseFlushIntervalMillis(),
+            environment.lifecycle().scheduledExecutorService("database-flush").build());
+        environment.lifecycle().manage(batchWriter);
+      }
+      eventHandler = new DbiBasedCrawlingEventHandler(httpClient, jdbi, batchWriter, config.isContentDedupe());
+      if (config.getBodyDictionarySamples() > 0) {
+        bodyDictionaryStore = new DbiBodyDictionaryStore(jdbi);
+      }
+    } else if ("segment".equalsIgnoreCase(config.getHandlerType())) {
+      SegmentStore segmentStore = new SegmentStore(
+          new File(config.getOutputDir()),
+          config.getSegmentMaxBytes(),
+          config.getSegmentIndexSlots());
+      environment.lifecycle().manage(segmentStore);
+      eventHandler = new SegmentCrawlingEventHandler(httpClient, segmentStore);
     } else {
-      eventHandler = new FileBasedCrawlingEventHandler(httpClient, new File(config.getOutputDir()));
+      eventHandler = new FileBasedCrawlingEventHandler(
+          httpClient, new File(config.getOutputDir()), config.isContentDedupe());
+    }
+    eventHandler.setDefaultLinkExtractor(LinkExtractors.forName(config.getDefaultLinkExtractor()));
+    eventHandler.setDefaultRecrawlIntervalMillis(config.getRecrawlIntervalMillis());
+    eventHandler.setDefaultMaxDepth(config.getMaxDepth());
+    eventHandler.setDefaultFetchPolicy(new FetchPolicy(
+        config.getMaxBodyBytes(), config.getAllowedContentTypes(), config.getHeadProbeExtensions()));
+
+    // Memory for response bodies
+    ByteBudget byteBudget = null;
+    if (config.getByteBudgetBytes() > 0) {
+      byteBudget = new ByteBudget(config.getByteBudgetBytes(), environment.metrics());
+      eventHandler.setByteBudget(byteBudget);
+    }
+
+    // Retries
+    RetryScheduler retryScheduler = null;
+    if (config.getRetryMaxAttempts() > 1) {
+      retryScheduler = new RetryScheduler(
+          config.getRetryMaxAttempts(),
+          config.getRetryBaseDelayMillis(),
+          config.getRetryMaxDelayMillis(),
+          environment.lifecycle().scheduledExecutorService("retry-scheduler").build(),
+          environment.metrics());
+      eventHandler.setRetryScheduler(retryScheduler);
+    }
+
+    // URL canonicalization and crawler traps
+    eventHandler.setUrlCanonicalizer(new UrlCanonicalizer(
+        config.isUrlStripFragments(),
+        config.isUrlSortQueryParams(),
+        config.isUrlNormalizePaths(),
+        config.getUrlDropParams(),
+        environment.metrics()));
+    eventHandler.setTrapDetector(new CrawlerTrapDetector(
+        config.getTrapMaxUrlLength(),
+        config.getTrapMaxSegmentRepeats(),
+        config.getTrapMaxPagesPerPattern(),
+        config.getTrapMaxPatterns(),
+        environment.metrics()));
+
+    // Body compression
+    if (config.getBodyDictionarySamples() > 0 && bodyDictionaryStore == null) {
+      bodyDictionaryStore = new FileBodyDictionaryStore(new File(config.getOutputDir(), ".dict"));
+    }
+    eventHandler.setBodyCompressor(new BodyCompressor(
+        BodyCodec.forName(config.getBodyCodec()),
+        bodyDictionaryStore,
+        config.getBodyDictionarySamples(),
+        config.getBodyDictionaryBytes()));
+
+    // Politeness
+    if (config.isPoliteness()) {
+      eventHandler.setPolitenessController(new PolitenessController(
+          config.getPolitenessInitialLimit(),
+          config.getPolitenessMaxLimit(),
+          config.getPolitenessMinDelayMillis(),
+          config.getPolitenessMaxDelayMillis(),
+          config.getPolitenessLatencyTolerance(),
+          environment.lifecycle().scheduledExecutorService("politeness").build(),
+          environment.metrics()), config.getPolitenessMaxThrottledAttempts());
+    }
+
+    // Seen URL filter
+    if (config.isSeenUrlFilter()) {
+      SeenUrlFilterManager seenUrlFilters = new SeenUrlFilterManager(
+          config.getSeenUrlFilterExpectedUrls(),
+          config.getSeenUrlFilterFpp(),
+          config.getSeenUrlFilterMaxUrls(),
+          config.getSeenUrlFilterDir() == null ? null : new File(config.getSeenUrlFilterDir()),
+          environment.metrics());
+      environment.lifecycle().manage(seenUrlFilters);
+      eventHandler.setSeenUrlFilters(seenUrlFilters);
+    }
+
+    // Revisits
+    RevisitScheduler revisitScheduler = null;
+    if (config.isRevisit()) {
+      revisitScheduler = new RevisitScheduler(
+          config.getRevisitMinIntervalMillis(),
+          config.getRevisitMaxIntervalMillis(),
+          config.getRevisitInitialIntervalMillis(),
+          config.getRevisitBudgetPerHour(),
+          config.getRevisitTickMillis(),
+          config.getRevisitMaxUrls(),
+          config.getRevisitDir() == null ? null : new File(config.getRevisitDir()),
+          environment.lifecycle().scheduledExecutorService("revisit-scheduler").build(),
+          environment.metrics());
+      environment.lifecycle().manage(revisitScheduler);
+      eventHandler.setRevisitScheduler(revisitScheduler);
+    }
+
+    // Async fetching
+    if (config.isAsyncFetch()) {
+      if (config.isUseTor()) {
+        // Its non-blocking connections are not made by TorProxyPool, so this would not go through tor
+        throw new IllegalStateException("asyncFetch is not supported with useTor");
+      }
+      int timeoutMillis = (int) config.getHttpClient().getTimeout().toMilliseconds();
+      int connectionTimeoutMillis = (int) config.getHttpClient().getConnectionTimeout().toMilliseconds();
+      AsyncCrawlFetcher asyncFetcher = new AsyncCrawlFetcher(
+          HttpAsyncClients.custom()
+              .setMaxConnTotal(config.getAsyncMaxInFlight())
+              .setMaxConnPerRoute(config.getAsyncMaxInFlightPerAuthority())
+              .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                  .setIoThreadCount(config.getAsyncIoThreads())
+                  .setConnectTimeout(connectionTimeoutMillis)
+                  .setSoTimeout(timeoutMillis)
+                  .build())
+              .setDefaultRequestConfig(RequestConfig.custom()
+                  .setConnectTimeout(connectionTimeoutMillis)
+                  .setSocketTimeout(timeoutMillis)
+                  .build())
+              .build(),
+          config.getAsyncMaxInFlight(),
+          config.getAsyncMaxInFlightPerAuthority());
+      asyncFetcher.setByteBudget(byteBudget);
+      environment.lifecycle().manage(asyncFetcher);
+      ExecutorService callbackExecutor = environment.lifecycle()
+          .executorService("crawler-callbacks-%d")
+          .minThreads(config.getAsyncCallbackThreads())
+          .maxThreads(config.getAsyncCallbackThreads())
+          .build();
+      eventHandler.setAsyncFetcher(asyncFetcher, callbackExecutor);
+    }
+
+    // Pipeline (stops after the consumers, and persist after parse, so the pages they fetched are stored)
+    if (config.isPipeline()) {
+      PipelineStage parseStage = new PipelineStage(
+          "parse", config.getPipelineParseThreads(), config.getPipelineQueueCapacity(), environment.metrics());
+      PipelineStage persistStage = new PipelineStage(
+          "persist", config.getPipelinePersistThreads(), config.getPipelineQueueCapacity(), environment.metrics());
+      environment.lifecycle().manage(persistStage);
+      environment.lifecycle().manage(parseStage);
+      eventHandler.setPipeline(parseStage, persistStage);
     }
 
     // Kafka
@@ -91,13 +316,42 @@ public class PantopodApplication extends Application<PantopodConfiguration> {
     if ("RANDOM".equals(groupId)) {
       groupId = UUID.randomUUID().toString();
     }
+    Properties producerConfig = new Properties();
+    producerConfig.put("compression.type", config.getKafkaProducerCompression());
+    producerConfig.put("linger.ms", String.valueOf(config.getKafkaProducerLingerMillis()));
+    producerConfig.put("batch.size", String.valueOf(config.getKafkaProducerBatchBytes()));
+    producerConfig.put("buffer.memory", String.valueOf(config.getKafkaProducerBufferBytes()));
+    // Workers shared by resources by weight; with asyncFetch, they only start fetches, and pages in flight are shared
+    ResourceScheduler scheduler = new ResourceScheduler(
+        config.getSchedulerThreads(),
+        config.isAsyncFetch() ? config.getAsyncMaxInFlight() : config.getSchedulerThreads(),
+        environment.metrics());
     PantopodKafkaConsumerManager consumerManager = new PantopodKafkaConsumerManager(
         config.getZkConnectString(),
         config.getKafkaBrokerList(),
         groupId,
         kafkaExecutors,
-        eventHandler);
+        eventHandler,
+        config.getDefaultConcurrency(),
+        scheduler,
+        config.getDefaultPriorityLanes(),
+        config.getDefaultKafkaPartitions(),
+        config.getKafkaReplicationFactor(),
+        config.getKafkaCommitIntervalMillis(),
+        config.isAsyncFetch(),
+        producerConfig,
+        CrawlEventCodecs.forFormat(config.getCrawlEventFormat()),
+        environment.metrics());
+    consumerManager.setByteBudget(byteBudget);
     environment.lifecycle().manage(consumerManager);
+    if (revisitScheduler != null) {
+      revisitScheduler.setSink(consumerManager);
+    }
+    if (retryScheduler != null) {
+      // Stops before the consumers, to send pending retries while they can
+      retryScheduler.setSink(consumerManager);
+      environment.lifecycle().manage(retryScheduler);
+    }
 
     // Helix
     PantopodClusterConnection clusterConnection = new PantopodClusterConnection(
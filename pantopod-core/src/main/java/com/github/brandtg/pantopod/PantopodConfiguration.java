@@ -15,6 +15,8 @@
  */
 package com.github.brandtg.pantopod;
 
+import com.github.brandtg.pantopod.crawler.FetchPolicy;
+import com.github.brandtg.pantopod.crawler.UrlCanonicalizer;
 import io.dropwizard.Configuration;
 import io.dropwizard.client.HttpClientConfiguration;
 import io.dropwizard.db.DataSourceFactory;
@@ -23,6 +25,8 @@ import org.codehaus.jackson.annotate.JsonProperty;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 public class PantopodConfiguration extends Configuration {
   // Tor
@@ -30,8 +34,17 @@ public class PantopodConfiguration extends Configuration {
   private String torRootDir = System.getProperty("java.io.tmpdir") + File.separator + "pantopod-tor";
   private int socksPort = 8050;
   private int controlPort = 8118;
-  private long watchdogDelayMillis = -1; // disabled
+  private long watchdogDelayMillis = -1; // maximum circuit age, disabled
   private String torExecutable = "tor";
+  private int torPoolSize = 1; // instance i uses socksPort + i and controlPort + i
+  private String torPoolAffinity = "request"; // request, authority
+  private String torPoolStrategy = "round_robin"; // round_robin, least_loaded
+  private int torMaxConnectFailures = 3; // failures to reach an instance in a row, before it is restarted
+  private long torBootstrapTimeoutMillis = 120000;
+  private long torCircuitCheckIntervalMillis = 5000;
+  private long torCircuitMaxLatencyMillis = 5000; // mean connect latency, before new circuits are used
+  private double torCircuitMaxErrorRate = 0.25; // failed connects, before new circuits are used
+  private int torCircuitMinSamples = 10; // connects, before latency / error rate are considered
 
   // Common
   private String zkConnectString;
@@ -43,15 +56,122 @@ public class PantopodConfiguration extends Configuration {
   // Kafka
   private String kafkaBrokerList;
   private String kafkaGroupId;
+  private long kafkaCommitIntervalMillis = 1000;
+  private String kafkaProducerCompression = "snappy"; // none, gzip, snappy, lz4
+  private long kafkaProducerLingerMillis = 50;
+  private int kafkaProducerBatchBytes = 64 * 1024;
+  private long kafkaProducerBufferBytes = 32 * 1024 * 1024;
+  private String crawlEventFormat = "json"; // json, binary (either is read)
+
+  // Events handled in parallel by each consumer, unless the resource config sets "concurrency"
+  private int defaultConcurrency = 1;
+
+  // Worker threads per node, shared by resources by their "weight" and capped by "maxThreads" (with asyncFetch, the
+  // workers start fetches, and the pages in flight, up to asyncMaxInFlight, are shared instead)
+  private int schedulerThreads = 64;
+
+  // Link extractor for pages, unless the resource config sets "linkExtractor"
+  private String defaultLinkExtractor = "jsoup"; // jsoup, streaming
+
+  // Async fetching (non-blocking HTTP client, a few I/O threads)
+  private boolean asyncFetch;
+  private int asyncMaxInFlight = 1024;
+  private int asyncMaxInFlightPerAuthority = 64;
+  private int asyncIoThreads = Runtime.getRuntime().availableProcessors();
+  private int asyncCallbackThreads = 8;
+
+  // Pipeline (pages parsed and stored on their own thread pools, so fetch threads only fetch)
+  private boolean pipeline;
+  private int pipelineParseThreads = Runtime.getRuntime().availableProcessors();
+  private int pipelinePersistThreads = 4;
+  private int pipelineQueueCapacity = 64; // pages waiting per stage before the previous stage waits
+
+  // Politeness (per-authority concurrency and request spacing, adapted to latency and 429 / 503 responses)
+  private boolean politeness;
+  private int politenessInitialLimit = 2;
+  private int politenessMaxLimit = 32;
+  private long politenessMinDelayMillis = 0;
+  private long politenessMaxDelayMillis = 60000;
+  private double politenessLatencyTolerance = 3.0;
+  private int politenessMaxThrottledAttempts = 10; // fetches of a throttled page without retries, then an error
+
+  // Seen URL filter (skips storage checks for links that were already enqueued by this node)
+  private boolean seenUrlFilter;
+  private long seenUrlFilterExpectedUrls = 1000000;
+  private double seenUrlFilterFpp = 0.001;
+  private long seenUrlFilterMaxUrls = 100000000;
+  private String seenUrlFilterDir; // not persisted if null
 
   // Output directory
   private String outputDir;
 
-  // File, Dbi
+  // File, Dbi, Segment
   private String handlerType;
 
+  // Segment store (in outputDir)
+  private long segmentMaxBytes = 1024 * 1024 * 1024;
+  private int segmentIndexSlots = 1 << 20; // doubles as needed
+
+  private boolean contentDedupe = false; // store byte-identical pages once (file and database handlers)
+
+  private int maxDepth = -1; // links deeper than this are not followed, -1 for no limit
+
+  // Retries of transient failures (1 to mark them as errors right away)
+  private int retryMaxAttempts = 5;
+  private long retryBaseDelayMillis = 10000;
+  private long retryMaxDelayMillis = 60 * 60 * 1000;
+
+  private long byteBudgetBytes = 256 * 1024 * 1024; // response bodies in memory at once per node, 0 for no budget
+
+  // Fetch policy (per resource, unless configured on the resource)
+  private long maxBodyBytes = 10 * 1024 * 1024; // 0 for no limit
+  private List<String> allowedContentTypes = new ArrayList<>(FetchPolicy.DEFAULT_ALLOWED_CONTENT_TYPES); // "type/*" ok
+  private List<String> headProbeExtensions = new ArrayList<>(FetchPolicy.DEFAULT_PROBE_EXTENSIONS); // HEAD these first
+
+  // URL canonicalization
+  private boolean urlStripFragments = true;
+  private boolean urlSortQueryParams = true;
+  private boolean urlNormalizePaths = true;
+  private List<String> urlDropParams = new ArrayList<>(UrlCanonicalizer.DEFAULT_DROP_PARAMS); // "name*" for prefixes
+
+  // Crawler traps (0 for no limit)
+  private int trapMaxUrlLength = 2048;
+  private int trapMaxSegmentRepeats = 2;
+  private int trapMaxPagesPerPattern = 0;
+  private int trapMaxPatterns = 100000;
+
+  private int defaultPriorityLanes = 1; // lanes per resource, 1 for a plain FIFO topic
+
+  // Topics are created with this many partitions, among which URLs are sharded by fingerprint
+  private int defaultKafkaPartitions = 16;
+  private int kafkaReplicationFactor = 1;
+
+  private long recrawlIntervalMillis = 0; // fetch stored pages again (conditionally) once this old, 0 for never
+
+  // Revisit stored pages as often as they are seen to change
+  private boolean revisit = false;
+  private int revisitBudgetPerHour = 1000; // per resource, unless configured on the resource
+  private long revisitMinIntervalMillis = 60 * 60 * 1000;
+  private long revisitMaxIntervalMillis = 30L * 24 * 60 * 60 * 1000;
+  private long revisitInitialIntervalMillis = 24 * 60 * 60 * 1000;
+  private long revisitTickMillis = 10000;
+  private int revisitMaxUrls = 100000; // pages tracked per owned Kafka partition
+  private String revisitDir; // schedules are kept in memory only if null
+
+  private String bodyCodec = "none"; // none, gzip, deflate, lz4, snappy
+
+  private int bodyDictionarySamples = 0; // pages per authority to train a deflate dictionary with (0 for none)
+
+  private int bodyDictionaryBytes = 32 * 1024; // at most 32KB
+
   private DataSourceFactory database = new DataSourceFactory();
 
+  // Database write-behind (batches rows instead of one statement per row)
+  private boolean databaseWriteBehind;
+  private int databaseBatchRows = 500;
+  private long databaseBatchBytes = 64 * 1024 * 1024;
+  private long databaseFlushIntervalMillis = 1000;
+
   @Valid
   @NotNull
   private HttpClientConfiguration httpClient = new HttpClientConfiguration();
@@ -74,6 +194,38 @@ public class PantopodConfiguration extends Configuration {
     this.database = database;
   }
 
+  public boolean isDatabaseWriteBehind() {
+    return databaseWriteBehind;
+  }
+
+  public void setDatabaseWriteBehind(boolean databaseWriteBehind) {
+    this.databaseWriteBehind = databaseWriteBehind;
+  }
+
+  public int getDatabaseBatchRows() {
+    return databaseBatchRows;
+  }
+
+  public void setDatabaseBatchRows(int databaseBatchRows) {
+    this.databaseBatchRows = databaseBatchRows;
+  }
+
+  public long getDatabaseBatchBytes() {
+    return databaseBatchBytes;
+  }
+
+  public void setDatabaseBatchBytes(long databaseBatchBytes) {
+    this.databaseBatchBytes = databaseBatchBytes;
+  }
+
+  public long getDatabaseFlushIntervalMillis() {
+    return databaseFlushIntervalMillis;
+  }
+
+  public void setDatabaseFlushIntervalMillis(long databaseFlushIntervalMillis) {
+    this.databaseFlushIntervalMillis = databaseFlushIntervalMillis;
+  }
+
   public long getWatchdogDelayMillis() {
     return watchdogDelayMillis;
   }
@@ -82,6 +234,78 @@ public class PantopodConfiguration extends Configuration {
     this.watchdogDelayMillis = watchdogDelayMillis;
   }
 
+  public int getTorPoolSize() {
+    return torPoolSize;
+  }
+
+  public void setTorPoolSize(int torPoolSize) {
+    this.torPoolSize = torPoolSize;
+  }
+
+  public String getTorPoolAffinity() {
+    return torPoolAffinity;
+  }
+
+  public void setTorPoolAffinity(String torPoolAffinity) {
+    this.torPoolAffinity = torPoolAffinity;
+  }
+
+  public String getTorPoolStrategy() {
+    return torPoolStrategy;
+  }
+
+  public void setTorPoolStrategy(String torPoolStrategy) {
+    this.torPoolStrategy = torPoolStrategy;
+  }
+
+  public int getTorMaxConnectFailures() {
+    return torMaxConnectFailures;
+  }
+
+  public void setTorMaxConnectFailures(int torMaxConnectFailures) {
+    this.torMaxConnectFailures = torMaxConnectFailures;
+  }
+
+  public long getTorBootstrapTimeoutMillis() {
+    return torBootstrapTimeoutMillis;
+  }
+
+  public void setTorBootstrapTimeoutMillis(long torBootstrapTimeoutMillis) {
+    this.torBootstrapTimeoutMillis = torBootstrapTimeoutMillis;
+  }
+
+  public long getTorCircuitCheckIntervalMillis() {
+    return torCircuitCheckIntervalMillis;
+  }
+
+  public void setTorCircuitCheckIntervalMillis(long torCircuitCheckIntervalMillis) {
+    this.torCircuitCheckIntervalMillis = torCircuitCheckIntervalMillis;
+  }
+
+  public long getTorCircuitMaxLatencyMillis() {
+    return torCircuitMaxLatencyMillis;
+  }
+
+  public void setTorCircuitMaxLatencyMillis(long torCircuitMaxLatencyMillis) {
+    this.torCircuitMaxLatencyMillis = torCircuitMaxLatencyMillis;
+  }
+
+  public double getTorCircuitMaxErrorRate() {
+    return torCircuitMaxErrorRate;
+  }
+
+  public void setTorCircuitMaxErrorRate(double torCircuitMaxErrorRate) {
+    this.torCircuitMaxErrorRate = torCircuitMaxErrorRate;
+  }
+
+  public int getTorCircuitMinSamples() {
+    return torCircuitMinSamples;
+  }
+
+  public void setTorCircuitMinSamples(int torCircuitMinSamples) {
+    this.torCircuitMinSamples = torCircuitMinSamples;
+  }
+
   public String getHandlerType() {
     return handlerType;
   }
@@ -90,6 +314,279 @@ public class PantopodConfiguration extends Configuration {
     this.handlerType = handlerType;
   }
 
+  public long getSegmentMaxBytes() {
+    return segmentMaxBytes;
+  }
+
+  public void setSegmentMaxBytes(long segmentMaxBytes) {
+    this.segmentMaxBytes = segmentMaxBytes;
+  }
+
+  public int getSegmentIndexSlots() {
+    return segmentIndexSlots;
+  }
+
+  public void setSegmentIndexSlots(int segmentIndexSlots) {
+    this.segmentIndexSlots = segmentIndexSlots;
+  }
+
+  public boolean isContentDedupe() {
+    return contentDedupe;
+  }
+
+  public void setContentDedupe(boolean contentDedupe) {
+    this.contentDedupe = contentDedupe;
+  }
+
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  public void setMaxDepth(int maxDepth) {
+    this.maxDepth = maxDepth;
+  }
+
+  public int getRetryMaxAttempts() {
+    return retryMaxAttempts;
+  }
+
+  public void setRetryMaxAttempts(int retryMaxAttempts) {
+    this.retryMaxAttempts = retryMaxAttempts;
+  }
+
+  public long getRetryBaseDelayMillis() {
+    return retryBaseDelayMillis;
+  }
+
+  public void setRetryBaseDelayMillis(long retryBaseDelayMillis) {
+    this.retryBaseDelayMillis = retryBaseDelayMillis;
+  }
+
+  public long getRetryMaxDelayMillis() {
+    return retryMaxDelayMillis;
+  }
+
+  public void setRetryMaxDelayMillis(long retryMaxDelayMillis) {
+    this.retryMaxDelayMillis = retryMaxDelayMillis;
+  }
+
+  public boolean isUrlStripFragments() {
+    return urlStripFragments;
+  }
+
+  public void setUrlStripFragments(boolean urlStripFragments) {
+    this.urlStripFragments = urlStripFragments;
+  }
+
+  public boolean isUrlSortQueryParams() {
+    return urlSortQueryParams;
+  }
+
+  public void setUrlSortQueryParams(boolean urlSortQueryParams) {
+    this.urlSortQueryParams = urlSortQueryParams;
+  }
+
+  public boolean isUrlNormalizePaths() {
+    return urlNormalizePaths;
+  }
+
+  public void setUrlNormalizePaths(boolean urlNormalizePaths) {
+    this.urlNormalizePaths = urlNormalizePaths;
+  }
+
+  public List<String> getUrlDropParams() {
+    return urlDropParams;
+  }
+
+  public void setUrlDropParams(List<String> urlDropParams) {
+    this.urlDropParams = urlDropParams;
+  }
+
+  public int getTrapMaxUrlLength() {
+    return trapMaxUrlLength;
+  }
+
+  public void setTrapMaxUrlLength(int trapMaxUrlLength) {
+    this.trapMaxUrlLength = trapMaxUrlLength;
+  }
+
+  public int getTrapMaxSegmentRepeats() {
+    return trapMaxSegmentRepeats;
+  }
+
+  public void setTrapMaxSegmentRepeats(int trapMaxSegmentRepeats) {
+    this.trapMaxSegmentRepeats = trapMaxSegmentRepeats;
+  }
+
+  public int getTrapMaxPagesPerPattern() {
+    return trapMaxPagesPerPattern;
+  }
+
+  public void setTrapMaxPagesPerPattern(int trapMaxPagesPerPattern) {
+    this.trapMaxPagesPerPattern = trapMaxPagesPerPattern;
+  }
+
+  public int getTrapMaxPatterns() {
+    return trapMaxPatterns;
+  }
+
+  public void setTrapMaxPatterns(int trapMaxPatterns) {
+    this.trapMaxPatterns = trapMaxPatterns;
+  }
+
+  public long getByteBudgetBytes() {
+    return byteBudgetBytes;
+  }
+
+  public void setByteBudgetBytes(long byteBudgetBytes) {
+    this.byteBudgetBytes = byteBudgetBytes;
+  }
+
+  public long getMaxBodyBytes() {
+    return maxBodyBytes;
+  }
+
+  public void setMaxBodyBytes(long maxBodyBytes) {
+    this.maxBodyBytes = maxBodyBytes;
+  }
+
+  public List<String> getAllowedContentTypes() {
+    return allowedContentTypes;
+  }
+
+  public void setAllowedContentTypes(List<String> allowedContentTypes) {
+    this.allowedContentTypes = allowedContentTypes;
+  }
+
+  public List<String> getHeadProbeExtensions() {
+    return headProbeExtensions;
+  }
+
+  public void setHeadProbeExtensions(List<String> headProbeExtensions) {
+    this.headProbeExtensions = headProbeExtensions;
+  }
+
+  public int getDefaultKafkaPartitions() {
+    return defaultKafkaPartitions;
+  }
+
+  public void setDefaultKafkaPartitions(int defaultKafkaPartitions) {
+    this.defaultKafkaPartitions = defaultKafkaPartitions;
+  }
+
+  public int getKafkaReplicationFactor() {
+    return kafkaReplicationFactor;
+  }
+
+  public void setKafkaReplicationFactor(int kafkaReplicationFactor) {
+    this.kafkaReplicationFactor = kafkaReplicationFactor;
+  }
+
+  public int getDefaultPriorityLanes() {
+    return defaultPriorityLanes;
+  }
+
+  public void setDefaultPriorityLanes(int defaultPriorityLanes) {
+    this.defaultPriorityLanes = defaultPriorityLanes;
+  }
+
+  public long getRecrawlIntervalMillis() {
+    return recrawlIntervalMillis;
+  }
+
+  public void setRecrawlIntervalMillis(long recrawlIntervalMillis) {
+    this.recrawlIntervalMillis = recrawlIntervalMillis;
+  }
+
+  public boolean isRevisit() {
+    return revisit;
+  }
+
+  public void setRevisit(boolean revisit) {
+    this.revisit = revisit;
+  }
+
+  public int getRevisitBudgetPerHour() {
+    return revisitBudgetPerHour;
+  }
+
+  public void setRevisitBudgetPerHour(int revisitBudgetPerHour) {
+    this.revisitBudgetPerHour = revisitBudgetPerHour;
+  }
+
+  public long getRevisitMinIntervalMillis() {
+    return revisitMinIntervalMillis;
+  }
+
+  public void setRevisitMinIntervalMillis(long revisitMinIntervalMillis) {
+    this.revisitMinIntervalMillis = revisitMinIntervalMillis;
+  }
+
+  public long getRevisitMaxIntervalMillis() {
+    return revisitMaxIntervalMillis;
+  }
+
+  public void setRevisitMaxIntervalMillis(long revisitMaxIntervalMillis) {
+    this.revisitMaxIntervalMillis = revisitMaxIntervalMillis;
+  }
+
+  public long getRevisitInitialIntervalMillis() {
+    return revisitInitialIntervalMillis;
+  }
+
+  public void setRevisitInitialIntervalMillis(long revisitInitialIntervalMillis) {
+    this.revisitInitialIntervalMillis = revisitInitialIntervalMillis;
+  }
+
+  public long getRevisitTickMillis() {
+    return revisitTickMillis;
+  }
+
+  public void setRevisitTickMillis(long revisitTickMillis) {
+    this.revisitTickMillis = revisitTickMillis;
+  }
+
+  public int getRevisitMaxUrls() {
+    return revisitMaxUrls;
+  }
+
+  public void setRevisitMaxUrls(int revisitMaxUrls) {
+    this.revisitMaxUrls = revisitMaxUrls;
+  }
+
+
+  public String getRevisitDir() {
+    return revisitDir;
+  }
+
+  public void setRevisitDir(String revisitDir) {
+    this.revisitDir = revisitDir;
+  }
+
+  public String getBodyCodec() {
+    return bodyCodec;
+  }
+
+  public void setBodyCodec(String bodyCodec) {
+    this.bodyCodec = bodyCodec;
+  }
+
+  public int getBodyDictionarySamples() {
+    return bodyDictionarySamples;
+  }
+
+  public void setBodyDictionarySamples(int bodyDictionarySamples) {
+    this.bodyDictionarySamples = bodyDictionarySamples;
+  }
+
+  public int getBodyDictionaryBytes() {
+    return bodyDictionaryBytes;
+  }
+
+  public void setBodyDictionaryBytes(int bodyDictionaryBytes) {
+    this.bodyDictionaryBytes = bodyDictionaryBytes;
+  }
+
   public String getOutputDir() {
     return outputDir;
   }
@@ -114,6 +611,246 @@ public class PantopodConfiguration extends Configuration {
     this.kafkaGroupId = kafkaGroupId;
   }
 
+  public long getKafkaCommitIntervalMillis() {
+    return kafkaCommitIntervalMillis;
+  }
+
+  public void setKafkaCommitIntervalMillis(long kafkaCommitIntervalMillis) {
+    this.kafkaCommitIntervalMillis = kafkaCommitIntervalMillis;
+  }
+
+  public String getKafkaProducerCompression() {
+    return kafkaProducerCompression;
+  }
+
+  public void setKafkaProducerCompression(String kafkaProducerCompression) {
+    this.kafkaProducerCompression = kafkaProducerCompression;
+  }
+
+  public long getKafkaProducerLingerMillis() {
+    return kafkaProducerLingerMillis;
+  }
+
+  public void setKafkaProducerLingerMillis(long kafkaProducerLingerMillis) {
+    this.kafkaProducerLingerMillis = kafkaProducerLingerMillis;
+  }
+
+  public int getKafkaProducerBatchBytes() {
+    return kafkaProducerBatchBytes;
+  }
+
+  public void setKafkaProducerBatchBytes(int kafkaProducerBatchBytes) {
+    this.kafkaProducerBatchBytes = kafkaProducerBatchBytes;
+  }
+
+  public long getKafkaProducerBufferBytes() {
+    return kafkaProducerBufferBytes;
+  }
+
+  public void setKafkaProducerBufferBytes(long kafkaProducerBufferBytes) {
+    this.kafkaProducerBufferBytes = kafkaProducerBufferBytes;
+  }
+
+  public String getCrawlEventFormat() {
+    return crawlEventFormat;
+  }
+
+  public void setCrawlEventFormat(String crawlEventFormat) {
+    this.crawlEventFormat = crawlEventFormat;
+  }
+
+  public String getDefaultLinkExtractor() {
+    return defaultLinkExtractor;
+  }
+
+  public void setDefaultLinkExtractor(String defaultLinkExtractor) {
+    this.defaultLinkExtractor = defaultLinkExtractor;
+  }
+
+  public int getDefaultConcurrency() {
+    return defaultConcurrency;
+  }
+
+  public void setDefaultConcurrency(int defaultConcurrency) {
+    this.defaultConcurrency = defaultConcurrency;
+  }
+
+  public int getSchedulerThreads() {
+    return schedulerThreads;
+  }
+
+  public void setSchedulerThreads(int schedulerThreads) {
+    this.schedulerThreads = schedulerThreads;
+  }
+
+  public boolean isAsyncFetch() {
+    return asyncFetch;
+  }
+
+  public void setAsyncFetch(boolean asyncFetch) {
+    this.asyncFetch = asyncFetch;
+  }
+
+  public int getAsyncMaxInFlight() {
+    return asyncMaxInFlight;
+  }
+
+  public void setAsyncMaxInFlight(int asyncMaxInFlight) {
+    this.asyncMaxInFlight = asyncMaxInFlight;
+  }
+
+  public int getAsyncMaxInFlightPerAuthority() {
+    return asyncMaxInFlightPerAuthority;
+  }
+
+  public void setAsyncMaxInFlightPerAuthority(int asyncMaxInFlightPerAuthority) {
+    this.asyncMaxInFlightPerAuthority = asyncMaxInFlightPerAuthority;
+  }
+
+  public int getAsyncIoThreads() {
+    return asyncIoThreads;
+  }
+
+  public void setAsyncIoThreads(int asyncIoThreads) {
+    this.asyncIoThreads = asyncIoThreads;
+  }
+
+  public int getAsyncCallbackThreads() {
+    return asyncCallbackThreads;
+  }
+
+  public void setAsyncCallbackThreads(int asyncCallbackThreads) {
+    this.asyncCallbackThreads = asyncCallbackThreads;
+  }
+
+  public boolean isPipeline() {
+    return pipeline;
+  }
+
+  public void setPipeline(boolean pipeline) {
+    this.pipeline = pipeline;
+  }
+
+  public int getPipelineParseThreads() {
+    return pipelineParseThreads;
+  }
+
+  public void setPipelineParseThreads(int pipelineParseThreads) {
+    this.pipelineParseThreads = pipelineParseThreads;
+  }
+
+  public int getPipelinePersistThreads() {
+    return pipelinePersistThreads;
+  }
+
+  public void setPipelinePersistThreads(int pipelinePersistThreads) {
+    this.pipelinePersistThreads = pipelinePersistThreads;
+  }
+
+  public int getPipelineQueueCapacity() {
+    return pipelineQueueCapacity;
+  }
+
+  public void setPipelineQueueCapacity(int pipelineQueueCapacity) {
+    this.pipelineQueueCapacity = pipelineQueueCapacity;
+  }
+
+  public boolean isPoliteness() {
+    return politeness;
+  }
+
+  public void setPoliteness(boolean politeness) {
+    this.politeness = politeness;
+  }
+
+  public int getPolitenessInitialLimit() {
+    return politenessInitialLimit;
+  }
+
+  public void setPolitenessInitialLimit(int politenessInitialLimit) {
+    this.politenessInitialLimit = politenessInitialLimit;
+  }
+
+  public int getPolitenessMaxLimit() {
+    return politenessMaxLimit;
+  }
+
+  public void setPolitenessMaxLimit(int politenessMaxLimit) {
+    this.politenessMaxLimit = politenessMaxLimit;
+  }
+
+  public long getPolitenessMinDelayMillis() {
+    return politenessMinDelayMillis;
+  }
+
+  public void setPolitenessMinDelayMillis(long politenessMinDelayMillis) {
+    this.politenessMinDelayMillis = politenessMinDelayMillis;
+  }
+
+  public long getPolitenessMaxDelayMillis() {
+    return politenessMaxDelayMillis;
+  }
+
+  public void setPolitenessMaxDelayMillis(long politenessMaxDelayMillis) {
+    this.politenessMaxDelayMillis = politenessMaxDelayMillis;
+  }
+
+  public double getPolitenessLatencyTolerance() {
+    return politenessLatencyTolerance;
+  }
+
+  public void setPolitenessLatencyTolerance(double politenessLatencyTolerance) {
+    this.politenessLatencyTolerance = politenessLatencyTolerance;
+  }
+
+  public int getPolitenessMaxThrottledAttempts() {
+    return politenessMaxThrottledAttempts;
+  }
+
+  public void setPolitenessMaxThrottledAttempts(int politenessMaxThrottledAttempts) {
+    this.politenessMaxThrottledAttempts = politenessMaxThrottledAttempts;
+  }
+
+  public boolean isSeenUrlFilter() {
+    return seenUrlFilter;
+  }
+
+  public void setSeenUrlFilter(boolean seenUrlFilter) {
+    this.seenUrlFilter = seenUrlFilter;
+  }
+
+  public long getSeenUrlFilterExpectedUrls() {
+    return seenUrlFilterExpectedUrls;
+  }
+
+  public void setSeenUrlFilterExpectedUrls(long seenUrlFilterExpectedUrls) {
+    this.seenUrlFilterExpectedUrls = seenUrlFilterExpectedUrls;
+  }
+
+  public double getSeenUrlFilterFpp() {
+    return seenUrlFilterFpp;
+  }
+
+  public void setSeenUrlFilterFpp(double seenUrlFilterFpp) {
+    this.seenUrlFilterFpp = seenUrlFilterFpp;
+  }
+
+  public long getSeenUrlFilterMaxUrls() {
+    return seenUrlFilterMaxUrls;
+  }
+
+  public void setSeenUrlFilterMaxUrls(long seenUrlFilterMaxUrls) {
+    this.seenUrlFilterMaxUrls = seenUrlFilterMaxUrls;
+  }
+
+  public String getSeenUrlFilterDir() {
+    return seenUrlFilterDir;
+  }
+
+  public void setSeenUrlFilterDir(String seenUrlFilterDir) {
+    this.seenUrlFilterDir = seenUrlFilterDir;
+  }
+
   public boolean isUseTor() {
     return useTor;
   }
@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.api;
+
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * A compact, versioned binary encoding.
+ *
+ * <pre>
+ *   magic (1 byte) | version (1 byte) | flags (1 byte) | depth (varint)
+ *   url:       length (varint), UTF-8 bytes
+ *   parentUrl: bytes shared with url (varint), length of the rest (varint), UTF-8 bytes of the rest
+ *   chroot:    1 + offset into url (varint) then length (varint), or 0 then length (varint), UTF-8 bytes
+ *   attempt:   varint
+ * </pre>
+ *
+ * <p>
+ *   Fields whose flag is not set are null (attempt 0), and are omitted. The revisit flag has no field. Flags that are
+ *   not known are ignored, so new fields go last. A parent URL usually shares its scheme, authority and chroot with
+ *   the URL, and the chroot is usually part of the URL, so most of both is not repeated.
+ * </p>
+ */
+public class BinaryCrawlEventCodec implements CrawlEventCodec {
+  /** Never the first byte of a JSON message */
+  public static final byte MAGIC = (byte) 0xCE;
+  public static final byte VERSION = 1;
+
+  private static final int HAS_URL = 1;
+  private static final int HAS_PARENT_URL = 1 << 1;
+  private static final int HAS_CHROOT = 1 << 2;
+  private static final int REVISIT = 1 << 3;
+  private static final int HAS_ATTEMPT = 1 << 4;
+
+  @Override
+  public byte[] encode(CrawlEvent event) throws IOException {
+    byte[] url = toBytes(event.getUrl());
+    byte[] parentUrl = toBytes(event.getParentUrl());
+    byte[] chroot = toBytes(event.getChroot());
+
+    int flags = (url == null ? 0 : HAS_URL)
+        | (parentUrl == null ? 0 : HAS_PARENT_URL)
+        | (chroot == null ? 0 : HAS_CHROOT)
+        | (event.isRevisit() ? REVISIT : 0)
+        | (event.getAttempt() == 0 ? 0 : HAS_ATTEMPT);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(
+        16 + length(url) + length(parentUrl) + length(chroot));
+    out.write(MAGIC);
+    out.write(VERSION);
+    out.write(flags);
+    writeVarint(out, event.getDepth());
+
+    if (url != null) {
+      writeVarint(out, url.length);
+      out.write(url);
+    }
+
+    if (parentUrl != null) {
+      int shared = sharedPrefix(url, parentUrl);
+      writeVarint(out, shared);
+      writeVarint(out, parentUrl.length - shared);
+      out.write(parentUrl, shared, parentUrl.length - shared);
+    }
+
+    if (chroot != null) {
+      int offset = indexOf(url, chroot);
+      if (offset >= 0) {
+        writeVarint(out, offset + 1);
+        writeVarint(out, chroot.length);
+      } else {
+        writeVarint(out, 0);
+        writeVarint(out, chroot.length);
+        out.write(chroot);
+      }
+    }
+
+    if (event.getAttempt() != 0) {
+      writeVarint(out, event.getAttempt());
+    }
+
+    return out.toByteArray();
+  }
+
+  @Override
+  public CrawlEvent decode(byte[] bytes) throws IOException {
+    Reader in = new Reader(bytes);
+    if (in.readByte() != MAGIC) {
+      throw new IOException("Not a binary crawl event");
+    }
+    int version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported crawl event version " + version);
+    }
+    int flags = in.readByte();
+
+    CrawlEvent event = new CrawlEvent();
+    event.setDepth(in.readVarint());
+    event.setRevisit((flags & REVISIT) != 0);
+
+    byte[] url = null;
+    if ((flags & HAS_URL) != 0) {
+      url = in.readBytes(in.readVarint());
+      event.setUrl(new String(url, Charsets.UTF_8));
+    }
+
+    if ((flags & HAS_PARENT_URL) != 0) {
+      int shared = in.readVarint();
+      int restLength = in.readVarint();
+      if (shared > length(url)) {
+        throw new IOException("Invalid parent URL prefix " + shared);
+      }
+      byte[] parentUrl = new byte[shared + restLength];
+      if (shared > 0) {
+        System.arraycopy(url, 0, parentUrl, 0, shared);
+      }
+      in.readBytes(parentUrl, shared, restLength);
+      event.setParentUrl(new String(parentUrl, Charsets.UTF_8));
+    }
+
+    if ((flags & HAS_CHROOT) != 0) {
+      int offset = in.readVarint() - 1;
+      int length = in.readVarint();
+      if (offset >= 0) {
+        if (offset + length > length(url)) {
+          throw new IOException("Invalid chroot reference " + offset + "+" + length);
+        }
+        event.setChroot(new String(url, offset, length, Charsets.UTF_8));
+      } else {
+        event.setChroot(new String(in.readBytes(length), Charsets.UTF_8));
+      }
+    }
+
+    if ((flags & HAS_ATTEMPT) != 0) {
+      event.setAttempt(in.readVarint());
+    }
+
+    return event;
+  }
+
+  private static byte[] toBytes(String value) {
+    return value == null ? null : value.getBytes(Charsets.UTF_8);
+  }
+
+  private static int length(byte[] bytes) {
+    return bytes == null ? 0 : bytes.length;
+  }
+
+  private static int sharedPrefix(byte[] a, byte[] b) {
+    if (a == null || b == null) {
+      return 0;
+    }
+    int i = 0;
+    int max = Math.min(a.length, b.length);
+    while (i < max && a[i] == b[i]) {
+      i++;
+    }
+    return i;
+  }
+
+  private static int indexOf(byte[] bytes, byte[] target) {
+    if (bytes == null || target.length == 0) {
+      return -1;
+    }
+    outer:
+    for (int i = 0; i <= bytes.length - target.length; i++) {
+      for (int j = 0; j < target.length; j++) {
+        if (bytes[i + j] != target[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) throws IOException {
+    if (value < 0) {
+      throw new IOException("Cannot encode negative value " + value);
+    }
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static class Reader {
+    private final byte[] bytes;
+    private int position;
+
+    Reader(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    byte readByte() throws IOException {
+      if (position >= bytes.length) {
+        throw new IOException("Truncated crawl event");
+      }
+      return bytes[position++];
+    }
+
+    int readVarint() throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        byte b = readByte();
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint");
+    }
+
+    byte[] readBytes(int length) throws IOException {
+      byte[] result = new byte[length];
+      readBytes(result, 0, length);
+      return result;
+    }
+
+    void readBytes(byte[] dst, int offset, int length) throws IOException {
+      if (length < 0 || position + length > bytes.length) {
+        throw new IOException("Truncated crawl event");
+      }
+      System.arraycopy(bytes, position, dst, offset, length);
+      position += length;
+    }
+  }
+}
@@ -15,6 +15,7 @@
  */
 package com.github.brandtg.pantopod.api;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.google.common.base.MoreObjects;
 
 import java.util.Objects;
@@ -24,6 +25,11 @@ public class CrawlEvent {
   private String parentUrl;
   private int depth;
   private String chroot;
+  // Omitted from JSON unless set, so nodes that do not know it can still read events
+  @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+  private boolean revisit;
+  @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+  private int attempt;
 
   public CrawlEvent() {}
 
@@ -32,6 +38,8 @@ public class CrawlEvent {
     this.parentUrl = other.getParentUrl();
     this.depth = other.getDepth();
     this.chroot = other.getChroot();
+    this.revisit = other.isRevisit();
+    this.attempt = other.getAttempt();
   }
 
   public String getChroot() {
@@ -66,6 +74,28 @@ public class CrawlEvent {
     this.depth = depth;
   }
 
+  /**
+   * Returns true if this is a scheduled visit of a stored page, to fetch it again if it changed.
+   */
+  public boolean isRevisit() {
+    return revisit;
+  }
+
+  public void setRevisit(boolean revisit) {
+    this.revisit = revisit;
+  }
+
+  /**
+   * Returns how many times fetching this page already failed transiently (0 for the first attempt).
+   */
+  public int getAttempt() {
+    return attempt;
+  }
+
+  public void setAttempt(int attempt) {
+    this.attempt = attempt;
+  }
+
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
@@ -73,6 +103,8 @@ public class CrawlEvent {
         .add("parentUrl", parentUrl)
         .add("depth", depth)
         .add("chroot", chroot)
+        .add("revisit", revisit)
+        .add("attempt", attempt)
         .toString();
   }
 
@@ -85,11 +117,13 @@ public class CrawlEvent {
     return Objects.equals(url, e.getUrl())
         && Objects.equals(parentUrl, e.getParentUrl())
         && Objects.equals(depth, e.getDepth())
-        && Objects.equals(chroot, e.getChroot());
+        && Objects.equals(chroot, e.getChroot())
+        && revisit == e.isRevisit()
+        && attempt == e.getAttempt();
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(url, parentUrl, depth, chroot);
+    return Objects.hash(url, parentUrl, depth, chroot, revisit, attempt);
   }
 }
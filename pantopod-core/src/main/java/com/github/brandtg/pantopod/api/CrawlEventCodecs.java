@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.api;
+
+import java.io.IOException;
+
+/**
+ * Creates {@link CrawlEventCodec}s by format name.
+ */
+public final class CrawlEventCodecs {
+  public static final String JSON = "json";
+  public static final String BINARY = "binary";
+
+  private CrawlEventCodecs() {}
+
+  /**
+   * Returns a codec that encodes with format, and decodes either format.
+   *
+   * <p>
+   *   So a cluster can move from one format to the other by restarting nodes one at a time.
+   * </p>
+   */
+  public static CrawlEventCodec forFormat(String format) {
+    if (JSON.equalsIgnoreCase(format)) {
+      return new DetectingCrawlEventCodec(new JsonCrawlEventCodec());
+    } else if (BINARY.equalsIgnoreCase(format)) {
+      return new DetectingCrawlEventCodec(new BinaryCrawlEventCodec());
+    }
+    throw new IllegalArgumentException("Unknown crawl event format " + format);
+  }
+
+  private static class DetectingCrawlEventCodec implements CrawlEventCodec {
+    private final CrawlEventCodec encoder;
+    private final JsonCrawlEventCodec jsonCodec = new JsonCrawlEventCodec();
+    private final BinaryCrawlEventCodec binaryCodec = new BinaryCrawlEventCodec();
+
+    DetectingCrawlEventCodec(CrawlEventCodec encoder) {
+      this.encoder = encoder;
+    }
+
+    @Override
+    public byte[] encode(CrawlEvent event) throws IOException {
+      return encoder.encode(event);
+    }
+
+    @Override
+    public CrawlEvent decode(byte[] bytes) throws IOException {
+      if (bytes.length > 0 && bytes[0] == BinaryCrawlEventCodec.MAGIC) {
+        return binaryCodec.decode(bytes);
+      }
+      return jsonCodec.decode(bytes);
+    }
+  }
+}
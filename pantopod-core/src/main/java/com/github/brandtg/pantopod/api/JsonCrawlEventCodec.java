@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * The original JSON encoding.
+ */
+public class JsonCrawlEventCodec implements CrawlEventCodec {
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  @Override
+  public byte[] encode(CrawlEvent event) throws IOException {
+    return OBJECT_MAPPER.writeValueAsBytes(event);
+  }
+
+  @Override
+  public CrawlEvent decode(byte[] bytes) throws IOException {
+    return OBJECT_MAPPER.readValue(bytes, CrawlEvent.class);
+  }
+}
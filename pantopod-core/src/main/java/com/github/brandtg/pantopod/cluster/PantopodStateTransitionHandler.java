@@ -16,6 +16,8 @@
 package com.github.brandtg.pantopod.cluster;
 
 import com.github.brandtg.pantopod.consumer.PantopodKafkaConsumerManager;
+import com.github.brandtg.pantopod.consumer.PantopodResourceConfig;
+import com.github.brandtg.pantopod.consumer.UrlPartitioner;
 import org.apache.helix.NotificationContext;
 import org.apache.helix.api.TransitionHandler;
 import org.apache.helix.model.HelixConfigScope;
@@ -24,15 +26,10 @@ import org.apache.helix.model.builder.HelixConfigScopeBuilder;
 import org.apache.helix.participant.statemachine.StateModelInfo;
 import org.apache.helix.participant.statemachine.Transition;
 
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.Map;
 
 @StateModelInfo(states = "{'OFFLINE','ONLINE'}", initialState = "OFFLINE")
 public class PantopodStateTransitionHandler extends TransitionHandler {
-  private static final String CHROOT = "chroot";
-  private static final String START_PAGE = "startPage";
-
   private final PantopodKafkaConsumerManager consumerManager;
 
   public PantopodStateTransitionHandler(PantopodKafkaConsumerManager consumerManager) {
@@ -49,17 +46,24 @@ public class PantopodStateTransitionHandler extends TransitionHandler {
                 .forCluster(context.getManager().getClusterName())
                 .forResource(message.getResourceName())
                 .build(),
-            Arrays.asList(CHROOT, START_PAGE));
+            PantopodResourceConfig.KEYS);
+
+    int numPartitions = context
+        .getManager()
+        .getClusterManagmentTool()
+        .getResourceIdealState(context.getManager().getClusterName(), message.getResourceName())
+        .getNumPartitions();
 
     consumerManager.start(
         message.getResourceName(),
-        resourceConfig.get(CHROOT),
-        resourceConfig.get(START_PAGE));
+        UrlPartitioner.getHelixPartition(message.getPartitionName()),
+        numPartitions,
+        PantopodResourceConfig.fromMap(resourceConfig));
   }
 
   @Transition(from = "ONLINE", to = "OFFLINE")
   public void onBecomeOfflineFromOnline(Message message, NotificationContext context) throws Exception {
-    consumerManager.stop(message.getResourceName());
+    consumerManager.stop(message.getResourceName(), UrlPartitioner.getHelixPartition(message.getPartitionName()));
   }
 
   @Transition(from = "ERROR", to = "OFFLINE")
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * A node-wide budget of memory for response bodies, which fetches reserve before reading them.
+ *
+ * <p>
+ *   {@link #reserve(long)} waits until the bytes fit (or nothing else is reserved, so a body larger than the budget
+ *   still gets read), and {@link #reserveNow(long)} never waits, for I/O threads. Either may push usage over the
+ *   budget, in which case {@link PantopodKafkaConsumer} stops consuming events until it drops below again.
+ * </p>
+ */
+public class ByteBudget {
+  private final long maxBytes;
+  private final Timer reserveWait;
+  private final Timer consumeWait;
+
+  private long usedBytes; // guarded by this
+
+  public ByteBudget(long maxBytes, MetricRegistry metricRegistry) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Budget must be positive: " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+    this.reserveWait = metricRegistry.timer(MetricRegistry.name(ByteBudget.class, "reserve-wait"));
+    this.consumeWait = metricRegistry.timer(MetricRegistry.name(ByteBudget.class, "consume-wait"));
+    metricRegistry.register(MetricRegistry.name(ByteBudget.class, "used-bytes"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return getUsedBytes();
+      }
+    });
+    metricRegistry.register(MetricRegistry.name(ByteBudget.class, "max-bytes"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return ByteBudget.this.maxBytes;
+      }
+    });
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * Reserves bytes, waiting until they fit in the budget or nothing else is reserved.
+   */
+  public Reservation reserve(long bytes) throws InterruptedException {
+    Timer.Context waitTime = null;
+    try {
+      synchronized (this) {
+        while (usedBytes > 0 && usedBytes + bytes > maxBytes) {
+          if (waitTime == null) {
+            waitTime = reserveWait.time();
+          }
+          wait();
+        }
+        usedBytes += bytes;
+      }
+    } finally {
+      if (waitTime != null) {
+        waitTime.stop();
+      }
+    }
+    return new Reservation(bytes);
+  }
+
+  /**
+   * Reserves bytes right away, even if that exceeds the budget.
+   */
+  public Reservation reserveNow(long bytes) {
+    add(bytes);
+    return new Reservation(bytes);
+  }
+
+  /**
+   * Waits up to timeoutMillis for usage to drop below the budget, and returns whether it did.
+   */
+  public boolean awaitAvailable(long timeoutMillis) throws InterruptedException {
+    Timer.Context waitTime = null;
+    try {
+      synchronized (this) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (usedBytes >= maxBytes) {
+          long remainingMillis = deadline - System.currentTimeMillis();
+          if (remainingMillis <= 0) {
+            return false;
+          }
+          if (waitTime == null) {
+            waitTime = consumeWait.time();
+          }
+          wait(remainingMillis);
+        }
+        return true;
+      }
+    } finally {
+      if (waitTime != null) {
+        waitTime.stop();
+      }
+    }
+  }
+
+  private synchronized void add(long bytes) {
+    usedBytes += bytes;
+    if (bytes < 0) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Bytes reserved for one body, which may grow as it is read, and are given back once by {@link #release()}.
+   */
+  public class Reservation {
+    private long bytes;
+    private boolean released;
+
+    private Reservation(long bytes) {
+      this.bytes = bytes;
+    }
+
+    public synchronized long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Reserves more right away (see {@link #reserveNow(long)}) if the body turned out to be larger than totalBytes.
+     */
+    public synchronized void growTo(long totalBytes) {
+      if (!released && totalBytes > bytes) {
+        add(totalBytes - bytes);
+        bytes = totalBytes;
+      }
+    }
+
+    public synchronized void release() {
+      if (!released) {
+        released = true;
+        add(-bytes);
+      }
+    }
+  }
+}
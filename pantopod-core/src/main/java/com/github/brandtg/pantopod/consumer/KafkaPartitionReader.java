@@ -0,0 +1,506 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.dropwizard.lifecycle.Managed;
+import kafka.api.FetchRequestBuilder;
+import kafka.api.PartitionOffsetRequestInfo;
+import kafka.cluster.Broker;
+import kafka.common.ErrorMapping;
+import kafka.common.TopicAndPartition;
+import kafka.javaapi.FetchResponse;
+import kafka.javaapi.OffsetRequest;
+import kafka.javaapi.OffsetResponse;
+import kafka.javaapi.PartitionMetadata;
+import kafka.javaapi.TopicMetadata;
+import kafka.javaapi.TopicMetadataRequest;
+import kafka.javaapi.consumer.SimpleConsumer;
+import kafka.javaapi.message.ByteBufferMessageSet;
+import kafka.message.MessageAndOffset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads the Kafka partitions assigned to this node, for all resources, without a consumer group, so no other
+ * consumer's arrival or departure moves them.
+ *
+ * <p>
+ *   One thread fetches every assigned partition, with one request per leader, and hands each message to the
+ *   {@link Listener} of its topic. Topics whose listener has no capacity are left out of requests until it does, and
+ *   nothing is fetched while the {@link ByteBudget} is exhausted. Each partition starts at the given offset, or the
+ *   earliest one if there is none or it is out of range. Offsets are not committed here, see {@link ZkOffsetStore}.
+ * </p>
+ */
+public class KafkaPartitionReader implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaPartitionReader.class);
+  private static final int SO_TIMEOUT_MILLIS = 30000;
+  private static final int BUFFER_BYTES = 64 * 1024;
+  private static final int MIN_FETCH_BYTES = 64 * 1024;
+  private static final int MAX_FETCH_BYTES = 16 * 1024 * 1024;
+  private static final int MAX_WAIT_MILLIS = 100;
+  private static final long IDLE_WAIT_MILLIS = 10;
+  private static final long ERROR_BACKOFF_MILLIS = 1000;
+
+  private final List<String> brokers;
+  private final String clientId;
+  private final ExecutorService executorService;
+  private final Set<Assignment> assignments; // guarded by this
+  private final Map<TopicAndPartition, Broker> leaders;
+  private final Map<Broker, SimpleConsumer> consumers;
+  private final Map<TopicAndPartition, Integer> fetchBytes;
+  private final AtomicBoolean isRunning;
+  private final Timer fetchLatency;
+
+  private ByteBudget byteBudget;
+  private long lastLeaderLookupTime;
+  private CountDownLatch fetcherDone;
+
+  public KafkaPartitionReader(String kafkaBrokerList,
+                              String clientId,
+                              ExecutorService executorService,
+                              MetricRegistry metricRegistry) {
+    this.brokers = parseBrokers(kafkaBrokerList);
+    this.clientId = clientId;
+    this.executorService = executorService;
+    this.assignments = new LinkedHashSet<>();
+    this.leaders = new HashMap<>();
+    this.consumers = new HashMap<>();
+    this.fetchBytes = new HashMap<>();
+    this.isRunning = new AtomicBoolean(false);
+    this.fetchLatency = metricRegistry.timer(MetricRegistry.name(KafkaPartitionReader.class, "fetch-latency"));
+    String assignedPartitions = MetricRegistry.name(KafkaPartitionReader.class, "assigned-partitions");
+    metricRegistry.register(assignedPartitions, new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        synchronized (KafkaPartitionReader.this) {
+          int numPartitions = 0;
+          for (Assignment assignment : assignments) {
+            numPartitions += assignment.partitions.size();
+          }
+          return numPartitions;
+        }
+      }
+    });
+  }
+
+  /**
+   * Stops fetching while byteBudget is exhausted. Must be called before {@link #start()}.
+   */
+  public void setByteBudget(ByteBudget byteBudget) {
+    this.byteBudget = byteBudget;
+  }
+
+  /**
+   * Starts reading partitions of topic, which no other assignment may hold.
+   *
+   * @param startOffsets
+   *  The offset to start each partition at, if it has one
+   * @return
+   *  The assignment, to pass to {@link #unassign(Assignment)}
+   */
+  public synchronized Assignment assign(String topic,
+                                        List<Integer> partitions,
+                                        Map<Integer, Long> startOffsets,
+                                        Listener listener) {
+    Assignment assignment = new Assignment(topic, partitions, startOffsets, listener);
+    assignments.add(assignment);
+    notifyAll();
+    return assignment;
+  }
+
+  /**
+   * Stops reading the partitions of assignment. Its listener gets no more records once this returns.
+   */
+  public synchronized void unassign(Assignment assignment) {
+    assignments.remove(assignment);
+  }
+
+  @Override
+  public void start() throws Exception {
+    if (!isRunning.getAndSet(true)) {
+      fetcherDone = new CountDownLatch(1);
+      executorService.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (isRunning.get()) {
+              try {
+                fetch();
+              } catch (RuntimeException e) {
+                LOG.error("Exception fetching", e);
+                Thread.sleep(ERROR_BACKOFF_MILLIS);
+              }
+            }
+          } catch (InterruptedException e) {
+            LOG.info("Interrupted while fetching");
+          } finally {
+            fetcherDone.countDown();
+          }
+        }
+      });
+    }
+  }
+
+  @Override
+  public void stop() throws Exception {
+    if (isRunning.getAndSet(false)) {
+      synchronized (this) {
+        notifyAll();
+      }
+      if (!fetcherDone.await(SO_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        LOG.warn("Timed out waiting for fetch to complete");
+      }
+      for (SimpleConsumer consumer : consumers.values()) {
+        consumer.close();
+      }
+      consumers.clear();
+    }
+  }
+
+  /**
+   * Fetches once from each leader of the partitions whose listener has capacity, and hands out what it got.
+   */
+  private void fetch() throws InterruptedException {
+    if (byteBudget != null && !byteBudget.awaitAvailable(MAX_WAIT_MILLIS)) {
+      return;
+    }
+
+    List<Assignment> fetchable = new ArrayList<>();
+    synchronized (this) {
+      for (Assignment assignment : assignments) {
+        if (!assignment.partitions.isEmpty() && assignment.listener.hasCapacity()) {
+          fetchable.add(assignment);
+        }
+      }
+      if (fetchable.isEmpty()) {
+        wait(IDLE_WAIT_MILLIS);
+        return;
+      }
+    }
+
+    // One request per leader, for all its partitions
+    findLeaders(fetchable);
+    Map<Broker, List<Assignment>> assignmentsByLeader = new LinkedHashMap<>();
+    for (Assignment assignment : fetchable) {
+      for (int partition : assignment.partitions) {
+        Broker leader = leaders.get(new TopicAndPartition(assignment.topic, partition));
+        if (leader != null) {
+          List<Assignment> leaderAssignments = assignmentsByLeader.get(leader);
+          if (leaderAssignments == null) {
+            leaderAssignments = new ArrayList<>();
+            assignmentsByLeader.put(leader, leaderAssignments);
+          }
+          if (!leaderAssignments.contains(assignment)) {
+            leaderAssignments.add(assignment);
+          }
+        }
+      }
+    }
+    if (assignmentsByLeader.isEmpty()) {
+      synchronized (this) {
+        wait(IDLE_WAIT_MILLIS);
+      }
+      return;
+    }
+
+    for (Map.Entry<Broker, List<Assignment>> entry : assignmentsByLeader.entrySet()) {
+      fetch(entry.getKey(), entry.getValue(), MAX_WAIT_MILLIS / assignmentsByLeader.size());
+    }
+  }
+
+  private void fetch(Broker leader, List<Assignment> leaderAssignments, int maxWaitMillis) {
+    SimpleConsumer consumer = getConsumer(leader);
+    List<TopicAndPartition> requested = new ArrayList<>();
+    FetchResponse response;
+    Timer.Context timer = fetchLatency.time();
+    try {
+      FetchRequestBuilder request = new FetchRequestBuilder()
+          .clientId(clientId)
+          .maxWait(maxWaitMillis)
+          .minBytes(1);
+      for (Assignment assignment : leaderAssignments) {
+        for (int partition : assignment.partitions) {
+          TopicAndPartition topicAndPartition = new TopicAndPartition(assignment.topic, partition);
+          if (leader.equals(leaders.get(topicAndPartition))) {
+            request.addFetch(
+                assignment.topic,
+                partition,
+                getFetchOffset(consumer, assignment, partition),
+                getFetchBytes(topicAndPartition));
+            requested.add(topicAndPartition);
+          }
+        }
+      }
+      response = consumer.fetch(request.build());
+    } catch (Exception e) {
+      LOG.warn("Could not fetch {} from {}", requested, leader, e);
+      closeConsumer(leader);
+      return;
+    } finally {
+      timer.stop();
+    }
+
+    for (Assignment assignment : leaderAssignments) {
+      for (int partition : assignment.partitions) {
+        TopicAndPartition topicAndPartition = new TopicAndPartition(assignment.topic, partition);
+        if (requested.contains(topicAndPartition)) {
+          handleResponse(consumer, leader, assignment, partition, response);
+        }
+      }
+    }
+  }
+
+  private void handleResponse(SimpleConsumer consumer,
+                              Broker leader,
+                              Assignment assignment,
+                              int partition,
+                              FetchResponse response) {
+    TopicAndPartition topicAndPartition = new TopicAndPartition(assignment.topic, partition);
+    short errorCode = response.errorCode(assignment.topic, partition);
+    if (errorCode == ErrorMapping.OffsetOutOfRangeCode()) {
+      long earliest = getEarliestOffset(consumer, topicAndPartition);
+      LOG.warn("Offset {} of {} out of range, resetting to {}",
+          assignment.fetchOffsets.get(partition), topicAndPartition, earliest);
+      assignment.fetchOffsets.put(partition, earliest);
+      return;
+    } else if (errorCode != ErrorMapping.NoError()) {
+      LOG.warn("Error {} fetching {} from {}, looking up its leader again", errorCode, topicAndPartition, leader);
+      leaders.remove(topicAndPartition);
+      return;
+    }
+
+    ByteBufferMessageSet messageSet = response.messageSet(assignment.topic, partition);
+    if (messageSet.validBytes() == 0 && messageSet.sizeInBytes() > 0) {
+      // The next message is larger than what was fetched
+      int size = Math.min(getFetchBytes(topicAndPartition) * 2, MAX_FETCH_BYTES);
+      LOG.warn("Message at {} of {} is too large, fetching up to {} bytes",
+          assignment.fetchOffsets.get(partition), topicAndPartition, size);
+      fetchBytes.put(topicAndPartition, size);
+      return;
+    }
+
+    List<Record> records = new ArrayList<>();
+    long fetchOffset = assignment.fetchOffsets.get(partition);
+    for (MessageAndOffset messageAndOffset : messageSet) {
+      // Compressed message sets may start before the requested offset
+      if (messageAndOffset.offset() < fetchOffset) {
+        continue;
+      }
+      ByteBuffer payload = messageAndOffset.message().payload();
+      byte[] message = new byte[payload.remaining()];
+      payload.get(message);
+      records.add(new Record(partition, messageAndOffset.offset(), messageAndOffset.nextOffset(), message));
+      fetchOffset = messageAndOffset.nextOffset();
+    }
+
+    synchronized (this) {
+      // The partition may have been unassigned meanwhile, and its next owner reads these again
+      if (assignments.contains(assignment)) {
+        for (Record record : records) {
+          assignment.listener.onRecord(record);
+        }
+        assignment.fetchOffsets.put(partition, fetchOffset);
+      }
+    }
+  }
+
+  /**
+   * Looks up the leaders of the partitions of assignments that have none, at most once per backoff.
+   */
+  private void findLeaders(List<Assignment> fetchable) {
+    Set<String> topics = new HashSet<>();
+    for (Assignment assignment : fetchable) {
+      for (int partition : assignment.partitions) {
+        if (!leaders.containsKey(new TopicAndPartition(assignment.topic, partition))) {
+          topics.add(assignment.topic);
+        }
+      }
+    }
+    if (topics.isEmpty() || System.currentTimeMillis() - lastLeaderLookupTime < ERROR_BACKOFF_MILLIS) {
+      return;
+    }
+    lastLeaderLookupTime = System.currentTimeMillis();
+
+    for (String broker : brokers) {
+      SimpleConsumer consumer = null;
+      try {
+        consumer = newConsumer(broker, clientId);
+        for (TopicMetadata topicMetadata : consumer.send(new TopicMetadataRequest(new ArrayList<>(topics)))
+            .topicsMetadata()) {
+          for (PartitionMetadata partitionMetadata : topicMetadata.partitionsMetadata()) {
+            if (partitionMetadata.leader() != null) {
+              leaders.put(
+                  new TopicAndPartition(topicMetadata.topic(), partitionMetadata.partitionId()),
+                  partitionMetadata.leader());
+            }
+          }
+        }
+        return;
+      } catch (Exception e) {
+        LOG.warn("Could not get metadata of {} from {}", topics, broker, e);
+      } finally {
+        if (consumer != null) {
+          consumer.close();
+        }
+      }
+    }
+  }
+
+  private long getFetchOffset(SimpleConsumer consumer, Assignment assignment, int partition) {
+    Long offset = assignment.fetchOffsets.get(partition);
+    if (offset == null) {
+      offset = getEarliestOffset(consumer, new TopicAndPartition(assignment.topic, partition));
+      assignment.fetchOffsets.put(partition, offset);
+    }
+    return offset;
+  }
+
+  private int getFetchBytes(TopicAndPartition topicAndPartition) {
+    Integer size = fetchBytes.get(topicAndPartition);
+    return size == null ? MIN_FETCH_BYTES : size;
+  }
+
+  private long getEarliestOffset(SimpleConsumer consumer, TopicAndPartition topicAndPartition) {
+    OffsetRequest request = new OffsetRequest(
+        Collections.singletonMap(topicAndPartition,
+            new PartitionOffsetRequestInfo(kafka.api.OffsetRequest.EarliestTime(), 1)),
+        kafka.api.OffsetRequest.CurrentVersion(),
+        clientId);
+    OffsetResponse response = consumer.getOffsetsBefore(request);
+    if (response.hasError()) {
+      throw new IllegalStateException("Could not get earliest offset of " + topicAndPartition + ": "
+          + response.errorCode(topicAndPartition.topic(), topicAndPartition.partition()));
+    }
+    return response.offsets(topicAndPartition.topic(), topicAndPartition.partition())[0];
+  }
+
+  private SimpleConsumer getConsumer(Broker leader) {
+    SimpleConsumer consumer = consumers.get(leader);
+    if (consumer == null) {
+      consumer = newConsumer(leader.host() + ":" + leader.port(), clientId);
+      consumers.put(leader, consumer);
+    }
+    return consumer;
+  }
+
+  private static SimpleConsumer newConsumer(String broker, String clientId) {
+    int colon = broker.lastIndexOf(':');
+    return new SimpleConsumer(
+        broker.substring(0, colon),
+        Integer.parseInt(broker.substring(colon + 1)),
+        SO_TIMEOUT_MILLIS,
+        BUFFER_BYTES,
+        clientId);
+  }
+
+  private void closeConsumer(Broker leader) {
+    SimpleConsumer consumer = consumers.remove(leader);
+    if (consumer != null) {
+      consumer.close();
+    }
+    leaders.values().removeAll(Collections.singleton(leader));
+  }
+
+  private static List<String> parseBrokers(String kafkaBrokerList) {
+    List<String> brokers = new ArrayList<>();
+    for (String broker : kafkaBrokerList.split(",")) {
+      if (!broker.trim().isEmpty()) {
+        brokers.add(broker.trim());
+      }
+    }
+    return brokers;
+  }
+
+  /**
+   * Takes the records of one topic. Called by the fetch thread, so must not block.
+   */
+  public interface Listener {
+    /**
+     * Returns whether this can take more records. If not, the topic is not fetched until it can.
+     */
+    boolean hasCapacity();
+
+    void onRecord(Record record);
+  }
+
+  /**
+   * Partitions of one topic, read for one listener.
+   */
+  public static class Assignment {
+    private final String topic;
+    private final List<Integer> partitions;
+    private final Map<Integer, Long> fetchOffsets; // only used by the fetch thread
+    private final Listener listener;
+
+    Assignment(String topic, List<Integer> partitions, Map<Integer, Long> startOffsets, Listener listener) {
+      this.topic = topic;
+      this.partitions = Collections.unmodifiableList(new ArrayList<>(partitions));
+      this.fetchOffsets = new HashMap<>(startOffsets);
+      this.listener = listener;
+    }
+  }
+
+  /**
+   * A message, its offset, and the offset to commit once it has been handled.
+   */
+  public static class Record {
+    private final int partition;
+    private final long offset;
+    private final long nextOffset;
+    private final byte[] message;
+
+    Record(int partition, long offset, long nextOffset, byte[] message) {
+      this.partition = partition;
+      this.offset = offset;
+      this.nextOffset = nextOffset;
+      this.message = message;
+    }
+
+    public int getPartition() {
+      return partition;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public long getNextOffset() {
+      return nextOffset;
+    }
+
+    public byte[] getMessage() {
+      return message;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Tracks the events of a consumer that were dispatched but not completed, per lane and partition, so offsets can be
+ * committed up to the first event that is still in flight, without waiting for the others.
+ */
+class OffsetTracker {
+  private final List<Map<Integer, TreeSet<Long>>> pendingOffsets;
+  private final List<Map<Integer, Long>> nextOffsets;
+  private int numPending;
+
+  OffsetTracker(int numLanes) {
+    this.pendingOffsets = new ArrayList<>();
+    this.nextOffsets = new ArrayList<>();
+    for (int i = 0; i < numLanes; i++) {
+      pendingOffsets.add(new HashMap<Integer, TreeSet<Long>>());
+      nextOffsets.add(new HashMap<Integer, Long>());
+    }
+  }
+
+  synchronized void dispatched(int lane, KafkaPartitionReader.Record record) {
+    TreeSet<Long> pending = pendingOffsets.get(lane).get(record.getPartition());
+    if (pending == null) {
+      pending = new TreeSet<>();
+      pendingOffsets.get(lane).put(record.getPartition(), pending);
+    }
+    pending.add(record.getOffset());
+    nextOffsets.get(lane).put(record.getPartition(), record.getNextOffset());
+    numPending++;
+  }
+
+  synchronized void completed(int lane, KafkaPartitionReader.Record record) {
+    if (pendingOffsets.get(lane).get(record.getPartition()).remove(record.getOffset())) {
+      if (--numPending == 0) {
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns the offsets of lane to commit, per partition: the first still in flight, or the next after the last
+   * dispatched if none is.
+   */
+  synchronized Map<Integer, Long> getCommitOffsets(int lane) {
+    Map<Integer, Long> offsets = new HashMap<>();
+    for (Map.Entry<Integer, Long> entry : nextOffsets.get(lane).entrySet()) {
+      TreeSet<Long> pending = pendingOffsets.get(lane).get(entry.getKey());
+      offsets.put(entry.getKey(), pending.isEmpty() ? entry.getValue() : pending.first());
+    }
+    return offsets;
+  }
+
+  /**
+   * Waits up to timeoutMillis for all dispatched events to complete, and returns whether they did.
+   */
+  synchronized boolean awaitCompleted(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long remaining = timeoutMillis;
+    while (numPending > 0 && remaining > 0) {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return numPending == 0;
+  }
+}
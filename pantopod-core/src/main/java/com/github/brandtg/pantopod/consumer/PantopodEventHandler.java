@@ -16,7 +16,9 @@
 package com.github.brandtg.pantopod.consumer;
 
 import com.github.brandtg.pantopod.api.CrawlEvent;
+import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.List;
 import java.util.Set;
 
 public interface PantopodEventHandler {
@@ -24,4 +26,31 @@ public interface PantopodEventHandler {
    * Returns a set of the next values to add to Kafka.
    */
   Set<CrawlEvent> handle(CrawlEvent event) throws Exception;
+
+  /**
+   * Returns a future of the next values to add to Kafka, without holding the calling thread while fetching (or, if it
+   * fetches on the calling thread, while parsing and storing).
+   */
+  ListenableFuture<Set<CrawlEvent>> handleAsync(CrawlEvent event);
+
+  /**
+   * Called once event, one of the next values returned for an event, has been acknowledged by Kafka.
+   */
+  void onProduced(CrawlEvent event);
+
+  /**
+   * Applies the settings of a resource before its events are handled.
+   */
+  void configureResource(String resource, PantopodResourceConfig resourceConfig);
+
+  /**
+   * Called when this node starts consuming kafkaPartitions, of the numKafkaPartitions of resource (see
+   * {@link UrlPartitioner}).
+   */
+  void onAssigned(String resource, int numKafkaPartitions, List<Integer> kafkaPartitions);
+
+  /**
+   * Called once this node has stopped consuming kafkaPartitions of resource.
+   */
+  void onRevoked(String resource, List<Integer> kafkaPartitions) throws Exception;
 }
@@ -15,123 +15,194 @@
  */
 package com.github.brandtg.pantopod.consumer;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.github.brandtg.pantopod.api.CrawlEvent;
+import com.github.brandtg.pantopod.api.CrawlEventCodec;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import io.dropwizard.lifecycle.Managed;
-import kafka.consumer.Consumer;
-import kafka.consumer.ConsumerConfig;
-import kafka.consumer.ConsumerIterator;
-import kafka.consumer.KafkaStream;
-import kafka.javaapi.consumer.ConsumerConnector;
-import kafka.javaapi.producer.Producer;
-import kafka.message.MessageAndMetadata;
-import kafka.producer.KeyedMessage;
-import kafka.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Consumes the events of one resource, and produces the events for the links of each page.
+ *
+ * <p>
+ *   Each consumer holds one Helix partition of the resource, and is assigned the Kafka partitions it owns (see
+ *   {@link UrlPartitioner}) on the node's {@link KafkaPartitionReader}, so starting or stopping one does not disturb
+ *   the others. The reader fills a small buffer per {@link PriorityLanes lane}, and one dispatcher thread hands events
+ *   from the buffers to the event handler, by weighted round robin. Events then run on the node's
+ *   {@link ResourceScheduler}. The producer and offset store are the node's, and shared with the other consumers.
+ * </p>
+ */
 public class PantopodKafkaConsumer implements Managed {
   private static final Logger LOG = LoggerFactory.getLogger(PantopodKafkaConsumer.class);
-  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
-  private final String zkConnectionString;
-  private final String kafkaGroupId;
+  private static final long RESEND_BACKOFF_MILLIS = 1000;
   private final String kafkaTopic;
-  private final String kafkaBrokerList;
+  private final int helixPartition;
+  private final int numHelixPartitions;
   private final ExecutorService executorService;
   private final PantopodEventHandler eventHandler;
   private final String uriChroot;
   private final String startPage;
+  private final int concurrency;
+  private final long commitIntervalMillis;
+  private final boolean asyncFetch;
+  private final ResourceScheduler scheduler;
+  private final Producer<byte[], byte[]> producer;
+  private final KafkaPartitionReader reader;
+  private final ZkOffsetStore offsetStore;
+  private final CrawlEventCodec codec;
+  private final PriorityLanes lanes;
   private final AtomicBoolean isRunning;
+  private final Histogram nextEventsPerPage;
+  private final Timer produceLatency;
+  private final Meter produceFailures;
+  private final Object laneLock = new Object();
+  private final Meter[] laneEvents;
+
+  // Events fetched into the lane buffers but not yet taken by the dispatcher (guarded by laneLock)
+  private int numBuffered;
+  private int[] laneCredits;
+  private List<Queue<KafkaPartitionReader.Record>> laneBuffers;
 
-  private Producer<byte[], byte[]> producer;
-  private ConsumerConnector consumer;
+  private ByteBudget byteBudget;
+  private List<List<Integer>> lanePartitions;
+  private List<KafkaPartitionReader.Assignment> laneAssignments;
+  private OffsetTracker offsetTracker;
+  private List<Map<Integer, Long>> committedOffsets;
+  private Semaphore inFlight;
+  private CountDownLatch dispatcherDone;
+  private volatile boolean stopped;
 
-  public PantopodKafkaConsumer(String zkConnectionString,
-                               String kafkaBrokerList,
-                               String kafkaGroupId,
-                               String kafkaTopic,
+  public PantopodKafkaConsumer(String kafkaTopic,
+                               int helixPartition,
+                               int numHelixPartitions,
                                ExecutorService executorService,
                                PantopodEventHandler eventHandler,
                                String uriChroot,
-                               String startPage) {
-    this.zkConnectionString = zkConnectionString;
-    this.kafkaGroupId = kafkaGroupId;
+                               String startPage,
+                               int concurrency,
+                               long commitIntervalMillis,
+                               boolean asyncFetch,
+                               ResourceScheduler scheduler,
+                               Producer<byte[], byte[]> producer,
+                               KafkaPartitionReader reader,
+                               ZkOffsetStore offsetStore,
+                               CrawlEventCodec codec,
+                               PriorityLanes lanes,
+                               MetricRegistry metricRegistry) {
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+    }
     this.kafkaTopic = kafkaTopic;
+    this.helixPartition = helixPartition;
+    this.numHelixPartitions = numHelixPartitions;
     this.uriChroot = uriChroot;
     this.startPage = startPage;
-    this.kafkaBrokerList = kafkaBrokerList;
     this.executorService = executorService;
     this.eventHandler = eventHandler;
+    this.concurrency = concurrency;
+    this.commitIntervalMillis = commitIntervalMillis;
+    this.asyncFetch = asyncFetch;
+    this.scheduler = scheduler;
+    this.producer = producer;
+    this.reader = reader;
+    this.offsetStore = offsetStore;
+    this.codec = codec;
+    this.lanes = lanes;
     this.isRunning = new AtomicBoolean(false);
+    this.nextEventsPerPage =
+        metricRegistry.histogram(MetricRegistry.name(PantopodKafkaConsumer.class, "next-events-per-page"));
+    this.produceLatency = metricRegistry.timer(MetricRegistry.name(PantopodKafkaConsumer.class, "produce-latency"));
+    this.produceFailures = metricRegistry.meter(MetricRegistry.name(PantopodKafkaConsumer.class, "produce-failures"));
+    this.laneEvents = new Meter[lanes.getNumLanes()];
+    for (int i = 0; i < laneEvents.length; i++) {
+      laneEvents[i] = metricRegistry.meter(MetricRegistry.name(PantopodKafkaConsumer.class, kafkaTopic, "lane-" + i));
+    }
+  }
+
+  /**
+   * Stops dispatching events while byteBudget is exhausted. Must be called before {@link #start()}.
+   */
+  public void setByteBudget(ByteBudget byteBudget) {
+    this.byteBudget = byteBudget;
   }
 
   @Override
   public void start() throws Exception {
     if (!isRunning.getAndSet(true)) {
-      // Producer config
-      Properties producerProps = new Properties();
-      producerProps.put("metadata.broker.list", kafkaBrokerList);
-      producerProps.put("request.required.acks", "1");
-      ProducerConfig producerConfig = new ProducerConfig(producerProps);
-
-      // Producer
-      producer = new Producer<byte[], byte[]>(producerConfig);
-
-      // Consumer config
-      Properties consumerProps = new Properties();
-      consumerProps.put("zookeeper.connect", zkConnectionString);
-      consumerProps.put("group.id", kafkaGroupId);
-      consumerProps.put("zookeeper.session.timeout.ms", "400");
-      consumerProps.put("zookeeper.sync.time.ms", "200");
-      consumerProps.put("auto.commit.interval.ms", "1000");
-      consumerProps.put("auto.offset.reset", "smallest");
-      ConsumerConfig consumerConfig = new ConsumerConfig(consumerProps);
-
-      // Consumer
-      consumer = Consumer.createJavaConsumerConnector(consumerConfig);
-
-      // Topic config
-      Map<String, Integer> topicCountMap = new HashMap<String, Integer>();
-      topicCountMap.put(kafkaTopic, 1 /* one thread per topic */);
-      Map<String, List<KafkaStream<byte[], byte[]>>> consumerMap = consumer.createMessageStreams(topicCountMap);
-      List<KafkaStream<byte[], byte[]>> streams = consumerMap.get(kafkaTopic);
-
-      // Consume streams
-      for (final KafkaStream<byte[], byte[]> stream : streams) {
-        LOG.info("Starting Kafka consumer for {}", kafkaTopic);
-        executorService.submit(new Runnable() {
+      stopped = false;
+      laneBuffers = new ArrayList<>();
+      laneCredits = new int[lanes.getNumLanes()];
+      lanePartitions = new ArrayList<>();
+      laneAssignments = new ArrayList<>();
+      offsetTracker = new OffsetTracker(lanes.getNumLanes());
+      committedOffsets = new ArrayList<>();
+      dispatcherDone = new CountDownLatch(1);
+
+      // At most concurrency events are in flight at once
+      inFlight = new Semaphore(concurrency);
+
+      // Read the Kafka partitions of this Helix partition in each lane (offsets are committed manually once the events
+      // before them have been handled, starting from the earliest offset if none was)
+      for (int i = 0; i < lanes.getNumLanes(); i++) {
+        String laneTopic = PriorityLanes.getTopic(kafkaTopic, i);
+        List<Integer> partitions = UrlPartitioner.getKafkaPartitions(
+            helixPartition, numHelixPartitions, producer.partitionsFor(laneTopic).size());
+        Map<Integer, Long> offsets = offsetStore.getOffsets(laneTopic, partitions);
+        final Queue<KafkaPartitionReader.Record> buffer = new ArrayDeque<>();
+        synchronized (laneLock) {
+          laneBuffers.add(buffer);
+        }
+        lanePartitions.add(partitions);
+        committedOffsets.add(new HashMap<>(offsets));
+        laneAssignments.add(reader.assign(laneTopic, partitions, offsets, new KafkaPartitionReader.Listener() {
           @Override
-          public void run() {
-            ConsumerIterator<byte[], byte[]> it = stream.iterator();
-            while (isRunning.get() && it.hasNext()) {
-              MessageAndMetadata<byte[], byte[]> messageAndMetadata = it.next();
-              try {
-                CrawlEvent event = OBJECT_MAPPER.readValue(messageAndMetadata.message(), CrawlEvent.class);
-                if (event.getUrl() != null && !URI.create(event.getUrl()).getPath().startsWith(uriChroot)) {
-                  LOG.warn("Got event that does not match chroot={}: {}", uriChroot, event);
-                }
-
-                Set<CrawlEvent> nextEvents = eventHandler.handle(event);
-                if (nextEvents != null) {
-                  for (CrawlEvent nextEvent : nextEvents) {
-                    byte[] encodedNextEvent = OBJECT_MAPPER.writeValueAsBytes(nextEvent);
-                    producer.send(new KeyedMessage<byte[], byte[]>(kafkaTopic, encodedNextEvent));
-                  }
-                }
-              } catch (Exception e) {
-                LOG.error("Exception handling message!", e);
-              }
+          public boolean hasCapacity() {
+            synchronized (laneLock) {
+              return buffer.size() < concurrency;
             }
           }
-        });
+
+          @Override
+          public void onRecord(KafkaPartitionReader.Record record) {
+            synchronized (laneLock) {
+              buffer.add(record);
+              numBuffered++;
+              laneLock.notifyAll();
+            }
+          }
+        }));
       }
+      LOG.info(
+          "Starting Kafka consumer for {} partition {} of {} (Kafka partitions {}) with concurrency {} and {} lanes",
+          kafkaTopic, helixPartition, numHelixPartitions, lanePartitions.get(0), concurrency, lanes.getNumLanes());
+      eventHandler.onAssigned(
+          kafkaTopic, producer.partitionsFor(PriorityLanes.getTopic(kafkaTopic, 0)).size(), lanePartitions.get(0));
 
-      // Produce the topic name as a URL (this kick-starts the process)
+      // Produce the topic name as a URL (this kick-starts the process), once per resource: only from the owner of its
+      // partition, and only if that was never consumed
       String url = "http://"
           + kafkaTopic
           + (uriChroot == null ? "" : uriChroot)
@@ -139,18 +210,330 @@ public class PantopodKafkaConsumer implements Managed {
       CrawlEvent firstEvent = new CrawlEvent();
       firstEvent.setUrl(url);
       firstEvent.setChroot(uriChroot);
-      byte[] encodedFirstEvent = OBJECT_MAPPER.writeValueAsBytes(firstEvent);
-      producer.send(new KeyedMessage<byte[], byte[]>(kafkaTopic, encodedFirstEvent));
-      LOG.info("Sent first event {}", kafkaTopic);
+      int firstLane = lanes.getLane(firstEvent);
+      int firstPartition = UrlPartitioner.getPartition(
+          url, producer.partitionsFor(PriorityLanes.getTopic(kafkaTopic, firstLane)).size());
+      boolean sendFirstEvent = lanePartitions.get(firstLane).contains(firstPartition)
+          && !committedOffsets.get(firstLane).containsKey(firstPartition);
+
+      // Dispatch events
+      executorService.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            dispatch();
+          } catch (Exception e) {
+            LOG.error("Exception dispatching events for {}", kafkaTopic, e);
+          } finally {
+            dispatcherDone.countDown();
+          }
+        }
+      });
+
+      if (sendFirstEvent) {
+        produce(Collections.singleton(firstEvent));
+        LOG.info("Sent first event {}", kafkaTopic);
+      }
     }
   }
 
   @Override
   public void stop() throws Exception {
     if (isRunning.getAndSet(false)) {
-      LOG.info("Stopping Kafka consumer for {}", kafkaTopic);
-      consumer.shutdown();
-      producer.close();
+      LOG.info("Stopping Kafka consumer for {} partition {}", kafkaTopic, helixPartition);
+      stopped = true;
+
+      // Buffered events are dropped, and read again by the next owner, as their offsets are not committed
+      for (KafkaPartitionReader.Assignment assignment : laneAssignments) {
+        reader.unassign(assignment);
+      }
+      synchronized (laneLock) {
+        laneLock.notifyAll();
+      }
+
+      // The dispatcher waits for in-flight events and commits
+      if (!dispatcherDone.await(commitIntervalMillis * 10, TimeUnit.MILLISECONDS)) {
+        LOG.warn("Timed out waiting for in-flight events of {}", kafkaTopic);
+      }
+      eventHandler.onRevoked(kafkaTopic, lanePartitions.get(0));
+    }
+  }
+
+  /**
+   * Hands buffered events to the event handler until stopped, committing offsets every commitIntervalMillis.
+   */
+  private void dispatch() throws Exception {
+    long lastCommitTime = System.currentTimeMillis();
+
+    while (isRunning.get()) {
+      if (System.currentTimeMillis() - lastCommitTime >= commitIntervalMillis) {
+        commitOffsets();
+        lastCommitTime = System.currentTimeMillis();
+      }
+
+      LaneRecord next = takeNext(commitIntervalMillis);
+      if (next != null) {
+        dispatchMessage(next.lane, next.record);
+      }
+    }
+
+    if (!offsetTracker.awaitCompleted(commitIntervalMillis * 5)) {
+      LOG.warn("Committing {} before all in-flight events completed", kafkaTopic);
+    }
+    commitOffsets();
+  }
+
+  /**
+   * Returns the next buffered event, or null if there is none within timeoutMillis or this is stopping.
+   *
+   * <p>
+   *   Among the lanes with buffered events, picks the one with the most credit after each gets its weight, then takes
+   *   their total from it (smooth weighted round robin), so lanes are drained in proportion to their weight. The
+   *   event counts as dispatched, as the dispatcher hands it to the handler next.
+   * </p>
+   */
+  private LaneRecord takeNext(long timeoutMillis) throws InterruptedException {
+    synchronized (laneLock) {
+      if (numBuffered == 0 && isRunning.get()) {
+        laneLock.wait(timeoutMillis);
+      }
+      if (numBuffered == 0 || !isRunning.get()) {
+        return null;
+      }
+
+      int lane = -1;
+      int totalWeight = 0;
+      for (int i = 0; i < laneBuffers.size(); i++) {
+        if (!laneBuffers.get(i).isEmpty()) {
+          laneCredits[i] += lanes.getWeight(i);
+          totalWeight += lanes.getWeight(i);
+          if (lane < 0 || laneCredits[i] > laneCredits[lane]) {
+            lane = i;
+          }
+        }
+      }
+      laneCredits[lane] -= totalWeight;
+
+      numBuffered--;
+      laneEvents[lane].mark();
+      KafkaPartitionReader.Record record = laneBuffers.get(lane).poll();
+      offsetTracker.dispatched(lane, record);
+      return new LaneRecord(lane, record);
+    }
+  }
+
+  private void dispatchMessage(final int lane, final KafkaPartitionReader.Record record) throws Exception {
+    inFlight.acquire();
+    if (byteBudget != null) {
+      // Bodies in flight free the budget, whether or not this is stopping
+      while (!byteBudget.awaitAvailable(commitIntervalMillis)) {
+        LOG.debug("Waiting for byte budget to dispatch events of {}", kafkaTopic);
+      }
+    }
+    // Events run on the node's workers, shared with the other resources. A blocking event holds its worker until
+    // fetched (the page may then be parsed and stored on the handler's pipeline), and an async one until its fetch has
+    // started, but counts against the resource's share until it completes
+    try {
+      if (asyncFetch) {
+        scheduler.submitAsync(kafkaTopic, new Callable<ListenableFuture<Set<CrawlEvent>>>() {
+          @Override
+          public ListenableFuture<Set<CrawlEvent>> call() {
+            return handleMessageAsync(lane, record);
+          }
+        });
+      } else {
+        scheduler.submit(kafkaTopic, new Runnable() {
+          @Override
+          public void run() {
+            handleMessageAsync(lane, record);
+          }
+        });
+      }
+    } catch (Exception e) {
+      inFlight.release();
+      offsetTracker.completed(lane, record);
+      throw e;
+    }
+  }
+
+  /**
+   * Commits the offsets up to the first event of each partition that has not completed (been handled and had its next
+   * events acknowledged), so events still in flight are read again if this stops before they complete.
+   */
+  private void commitOffsets() {
+    try {
+      for (int i = 0; i < committedOffsets.size(); i++) {
+        String laneTopic = PriorityLanes.getTopic(kafkaTopic, i);
+        for (Map.Entry<Integer, Long> entry : offsetTracker.getCommitOffsets(i).entrySet()) {
+          if (!entry.getValue().equals(committedOffsets.get(i).get(entry.getKey()))) {
+            offsetStore.commit(laneTopic, entry.getKey(), entry.getValue());
+            committedOffsets.get(i).put(entry.getKey(), entry.getValue());
+          }
+        }
+      }
+    } catch (Exception e) {
+      LOG.error("Could not commit offsets for {}", kafkaTopic, e);
+    }
+  }
+
+  /**
+   * Starts handling record, releases its in-flight permit once its next events have been handed to the producer, and
+   * completes it once they have been acknowledged. Returns the future of its next events.
+   */
+  private ListenableFuture<Set<CrawlEvent>> handleMessageAsync(final int lane,
+                                                               final KafkaPartitionReader.Record record) {
+    ListenableFuture<Set<CrawlEvent>> nextEvents;
+    try {
+      nextEvents = eventHandler.handleAsync(decode(record.getMessage()));
+    } catch (Exception e) {
+      nextEvents = Futures.immediateFailedFuture(e);
+    }
+
+    final Runnable completion = new Runnable() {
+      @Override
+      public void run() {
+        offsetTracker.completed(lane, record);
+      }
+    };
+    Futures.addCallback(nextEvents, new FutureCallback<Set<CrawlEvent>>() {
+      @Override
+      public void onSuccess(Set<CrawlEvent> result) {
+        try {
+          produce(result, completion);
+        } catch (Exception e) {
+          LOG.error("Exception handling message!", e);
+        } finally {
+          inFlight.release();
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        LOG.error("Exception handling message!", t);
+        inFlight.release();
+        completion.run();
+      }
+    }, MoreExecutors.directExecutor());
+    return nextEvents;
+  }
+
+  private CrawlEvent decode(byte[] message) throws Exception {
+    CrawlEvent event = codec.decode(message);
+    if (event.getUrl() != null && uriChroot != null && !URI.create(event.getUrl()).getPath().startsWith(uriChroot)) {
+      LOG.warn("Got event that does not match chroot={}: {}", uriChroot, event);
+    }
+    return event;
+  }
+
+  /**
+   * Hands nextEvents to the producer, which sends them in batches with those of other pages, each to its lane and the
+   * partition of its URL (see {@link UrlPartitioner}).
+   *
+   * <p>
+   *   This only blocks if the producer's buffer is full. Delivery failures (after the producer's retries) are logged
+   *   and counted.
+   * </p>
+   */
+  void produce(Set<CrawlEvent> nextEvents) throws Exception {
+    produce(nextEvents, null);
+  }
+
+  /**
+   * Hands nextEvents to the producer like {@link #produce(Set)}, and runs onAcked (if not null) once all of them have
+   * been acknowledged. Those that fail are sent again after a backoff until this is stopped, so that onAcked (which
+   * lets the offset of their page be committed) never runs for links that were not delivered. If this stops first,
+   * onAcked does not run, and the page is read again by the next owner of its partition.
+   */
+  void produce(Set<CrawlEvent> nextEvents, Runnable onAcked) throws Exception {
+    if (nextEvents == null || nextEvents.isEmpty()) {
+      if (onAcked != null) {
+        onAcked.run();
+      }
+      return;
+    }
+
+    nextEventsPerPage.update(nextEvents.size());
+    send(nextEvents, onAcked);
+  }
+
+  private void send(final Collection<CrawlEvent> events, final Runnable onAcked) {
+    final AtomicInteger pendingSends = new AtomicInteger(events.size());
+    final Set<CrawlEvent> failed = Collections.newSetFromMap(new ConcurrentHashMap<CrawlEvent, Boolean>());
+    for (final CrawlEvent event : events) {
+      try {
+        byte[] encodedEvent = codec.encode(event);
+        String laneTopic = PriorityLanes.getTopic(kafkaTopic, lanes.getLane(event));
+        int partition = UrlPartitioner.getPartition(event.getUrl(), producer.partitionsFor(laneTopic).size());
+        ProducerRecord<byte[], byte[]> record = new ProducerRecord<>(
+            laneTopic, partition, UrlPartitioner.getKey(event.getUrl()), encodedEvent);
+        final Timer.Context timer = produceLatency.time();
+        producer.send(record, new Callback() {
+          @Override
+          public void onCompletion(RecordMetadata metadata, Exception exception) {
+            timer.stop();
+            if (exception == null) {
+              eventHandler.onProduced(event);
+            } else {
+              produceFailed(event, exception, failed);
+            }
+            if (pendingSends.decrementAndGet() == 0) {
+              sent(failed, onAcked);
+            }
+          }
+        });
+      } catch (Exception e) {
+        produceFailed(event, e, failed);
+        if (pendingSends.decrementAndGet() == 0) {
+          sent(failed, onAcked);
+        }
+      }
+    }
+  }
+
+  private void produceFailed(CrawlEvent event, Exception e, Set<CrawlEvent> failed) {
+    produceFailures.mark();
+    LOG.error("Could not produce {}", event, e);
+    failed.add(event);
+  }
+
+  /**
+   * Called once every event of a send was acknowledged or failed.
+   */
+  private void sent(final Set<CrawlEvent> failed, final Runnable onAcked) {
+    if (failed.isEmpty()) {
+      if (onAcked != null) {
+        onAcked.run();
+      }
+      return;
+    }
+    if (onAcked == null || stopped) {
+      return;
+    }
+
+    // Not from the producer's I/O thread, which a send may wait on for metadata
+    executorService.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        Thread.sleep(RESEND_BACKOFF_MILLIS);
+        if (!stopped) {
+          LOG.warn("Sending {} events of {} again", failed.size(), kafkaTopic);
+          send(failed, onAcked);
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * An event taken from a lane buffer.
+   */
+  private static class LaneRecord {
+    private final int lane;
+    private final KafkaPartitionReader.Record record;
+
+    LaneRecord(int lane, KafkaPartitionReader.Record record) {
+      this.lane = lane;
+      this.record = record;
     }
   }
 }
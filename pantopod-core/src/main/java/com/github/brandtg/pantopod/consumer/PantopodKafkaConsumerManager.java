@@ -15,79 +15,221 @@
  */
 package com.github.brandtg.pantopod.consumer;
 
+import com.codahale.metrics.MetricRegistry;
+import com.github.brandtg.pantopod.api.CrawlEvent;
+import com.github.brandtg.pantopod.api.CrawlEventCodec;
 import io.dropwizard.lifecycle.Managed;
+import kafka.utils.ZKStringSerializer$;
+import org.I0Itec.zkclient.ZkClient;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 
-public class PantopodKafkaConsumerManager implements Managed {
+/**
+ * Runs the consumers of the Helix partitions this node holds.
+ *
+ * <p>
+ *   All consumers share one {@link KafkaPartitionReader}, one producer and one ZooKeeper session, which are created on
+ *   start, and the events of all resources run on one {@link ResourceScheduler}, so holding another partition
+ *   costs only its dispatcher thread.
+ * </p>
+ */
+public class PantopodKafkaConsumerManager implements Managed, CrawlEventSink {
+  private static final int ZK_TIMEOUT_MILLIS = 10000;
+
   private final String zkConnectionString;
   private final String kafkaGroupId;
   private final String kafkaBrokerList;
   private final ExecutorService executorService;
   private final PantopodEventHandler eventHandler;
-  private final Map<String, List<PantopodKafkaConsumer>> consumers;
+  private final int defaultConcurrency;
+  private final int defaultPriorityLanes;
+  private final int defaultKafkaPartitions;
+  private final int kafkaReplicationFactor;
+  private final long commitIntervalMillis;
+  private final boolean asyncFetch;
+  private final Properties producerConfig;
+  private final CrawlEventCodec codec;
+  private final MetricRegistry metricRegistry;
+  private final Map<String, Map<Integer, PantopodKafkaConsumer>> consumers;
+  private final KafkaPartitionReader reader;
+  private final ResourceScheduler scheduler;
+
+  private ByteBudget byteBudget;
+  private ZkClient zkClient;
+  private ZkOffsetStore offsetStore;
+  private KafkaProducer<byte[], byte[]> producer;
 
   public PantopodKafkaConsumerManager(String zkConnectionString,
                                       String kafkaBrokerList,
                                       String kafkaGroupId,
                                       ExecutorService executorService,
-                                      PantopodEventHandler eventHandler) {
+                                      PantopodEventHandler eventHandler,
+                                      int defaultConcurrency,
+                                      ResourceScheduler scheduler,
+                                      int defaultPriorityLanes,
+                                      int defaultKafkaPartitions,
+                                      int kafkaReplicationFactor,
+                                      long commitIntervalMillis,
+                                      boolean asyncFetch,
+                                      Properties producerConfig,
+                                      CrawlEventCodec codec,
+                                      MetricRegistry metricRegistry) {
     this.zkConnectionString = zkConnectionString;
     this.kafkaGroupId = kafkaGroupId;
     this.kafkaBrokerList = kafkaBrokerList;
     this.executorService = executorService;
     this.eventHandler = eventHandler;
+    this.defaultConcurrency = defaultConcurrency;
+    this.defaultPriorityLanes = defaultPriorityLanes;
+    this.defaultKafkaPartitions = defaultKafkaPartitions;
+    this.kafkaReplicationFactor = kafkaReplicationFactor;
+    this.commitIntervalMillis = commitIntervalMillis;
+    this.asyncFetch = asyncFetch;
+    this.producerConfig = producerConfig;
+    this.codec = codec;
+    this.metricRegistry = metricRegistry;
     this.consumers = new HashMap<>();
+    this.reader = new KafkaPartitionReader(kafkaBrokerList, kafkaGroupId, executorService, metricRegistry);
+    this.scheduler = scheduler;
   }
 
-  public void start(String kafkaTopic, String uriChroot, String startPage) throws Exception {
+  /**
+   * Stops consuming events while byteBudget is exhausted. Must be called before {@link #start()}.
+   */
+  public void setByteBudget(ByteBudget byteBudget) {
+    this.byteBudget = byteBudget;
+    this.reader.setByteBudget(byteBudget);
+  }
+
+  /**
+   * Starts consuming the Kafka partitions of helixPartition, one of the numHelixPartitions of the resource kafkaTopic
+   * (see {@link UrlPartitioner#getKafkaPartitions(int, int, int)}).
+   */
+  public void start(String kafkaTopic,
+                    int helixPartition,
+                    int numHelixPartitions,
+                    PantopodResourceConfig resourceConfig) throws Exception {
     synchronized (consumers) {
+      Map<Integer, PantopodKafkaConsumer> resourceConsumers = consumers.get(kafkaTopic);
+      if (resourceConsumers != null && resourceConsumers.containsKey(helixPartition)) {
+        return;
+      }
+
+      int concurrency = resourceConfig.getConcurrency() == null
+          ? defaultConcurrency
+          : resourceConfig.getConcurrency();
+      int priorityLanes = resourceConfig.getPriorityLanes() == null
+          ? defaultPriorityLanes
+          : resourceConfig.getPriorityLanes();
+      int kafkaPartitions = resourceConfig.getKafkaPartitions() == null
+          ? defaultKafkaPartitions
+          : resourceConfig.getKafkaPartitions();
+      if (resourceConsumers == null) {
+        // First partition of the resource on this node
+        for (int i = 0; i < priorityLanes; i++) {
+          UrlPartitioner.createTopic(
+              zkClient, PriorityLanes.getTopic(kafkaTopic, i), kafkaPartitions, kafkaReplicationFactor);
+        }
+        resourceConsumers = new HashMap<>();
+        consumers.put(kafkaTopic, resourceConsumers);
+      }
+      eventHandler.configureResource(kafkaTopic, resourceConfig);
+      scheduler.register(
+          kafkaTopic,
+          resourceConfig.getWeight() == null ? 1 : resourceConfig.getWeight(),
+          resourceConfig.getMaxThreads() == null ? scheduler.getMaxRunning() : resourceConfig.getMaxThreads());
       PantopodKafkaConsumer consumer = new PantopodKafkaConsumer(
-          zkConnectionString,
-          kafkaBrokerList,
-          kafkaGroupId,
           kafkaTopic,
+          helixPartition,
+          numHelixPartitions,
           executorService,
           eventHandler,
-          uriChroot,
-          startPage);
-      List<PantopodKafkaConsumer> consumerList = consumers.get(kafkaTopic);
-      if (consumerList == null) {
-        consumerList = new ArrayList<>();
-        consumers.put(kafkaTopic, consumerList);
-      }
-      consumerList.add(consumer);
+          resourceConfig.getChroot(),
+          resourceConfig.getStartPage(),
+          concurrency,
+          commitIntervalMillis,
+          asyncFetch,
+          scheduler,
+          producer,
+          reader,
+          offsetStore,
+          codec,
+          new PriorityLanes(priorityLanes),
+          metricRegistry);
+      consumer.setByteBudget(byteBudget);
+      resourceConsumers.put(helixPartition, consumer);
       consumer.start();
     }
   }
 
-  public void stop(String kafkaTopic) throws Exception {
+  public void stop(String kafkaTopic, int helixPartition) throws Exception {
     synchronized (consumers) {
-      List<PantopodKafkaConsumer> consumerList = consumers.get(kafkaTopic);
-      if (consumerList != null && !consumerList.isEmpty()) {
-        PantopodKafkaConsumer consumer = consumerList.remove(consumerList.size() - 1);
+      Map<Integer, PantopodKafkaConsumer> resourceConsumers = consumers.get(kafkaTopic);
+      PantopodKafkaConsumer consumer = resourceConsumers == null ? null : resourceConsumers.remove(helixPartition);
+      if (consumer != null) {
         consumer.stop();
       }
+      if (resourceConsumers != null && resourceConsumers.isEmpty()) {
+        consumers.remove(kafkaTopic);
+        scheduler.unregister(kafkaTopic);
+      }
     }
   }
 
+  @Override
+  public boolean send(String kafkaTopic, Set<CrawlEvent> events) throws Exception {
+    PantopodKafkaConsumer consumer;
+    synchronized (consumers) {
+      Map<Integer, PantopodKafkaConsumer> resourceConsumers = consumers.get(kafkaTopic);
+      if (resourceConsumers == null || resourceConsumers.isEmpty()) {
+        return false;
+      }
+      consumer = resourceConsumers.values().iterator().next();
+    }
+    consumer.produce(events);
+    return true;
+  }
+
   @Override
   public void start() throws Exception {
-    // NOP
+    zkClient = new ZkClient(zkConnectionString, ZK_TIMEOUT_MILLIS, ZK_TIMEOUT_MILLIS, ZKStringSerializer$.MODULE$);
+    offsetStore = new ZkOffsetStore(zkClient, kafkaGroupId);
+
+    // Sends are batched, compressed and acknowledged asynchronously, for all consumers. Retried sends may be reordered,
+    // which is fine as links are independent. Failures after that are sent again by the consumer, which holds back the
+    // offset of their page until they are acknowledged
+    Properties producerProps = new Properties();
+    producerProps.put(ProducerConfig.RETRIES_CONFIG, "3");
+    producerProps.putAll(producerConfig);
+    producerProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaBrokerList);
+    producerProps.put(ProducerConfig.ACKS_CONFIG, "1");
+    producerProps.put(ProducerConfig.BLOCK_ON_BUFFER_FULL_CONFIG, "true");
+    producer = new KafkaProducer<byte[], byte[]>(producerProps, new ByteArraySerializer(), new ByteArraySerializer());
+
+    scheduler.start();
+    reader.start();
   }
 
   @Override
   public void stop() throws Exception {
     synchronized (consumers) {
-      for (List<PantopodKafkaConsumer> consumerList : consumers.values()) {
-        for (PantopodKafkaConsumer consumer : consumerList) {
+      for (Map<Integer, PantopodKafkaConsumer> resourceConsumers : consumers.values()) {
+        for (PantopodKafkaConsumer consumer : resourceConsumers.values()) {
           consumer.stop();
         }
       }
+      consumers.clear();
     }
+    reader.stop();
+    scheduler.stop();
+    producer.close();
+    zkClient.close();
   }
 }
@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-resource settings, as read from the Helix resource config.
+ */
+public class PantopodResourceConfig {
+  public static final String CHROOT = "chroot";
+  public static final String START_PAGE = "startPage";
+  public static final String CONCURRENCY = "concurrency";
+  public static final String WEIGHT = "weight";
+  public static final String MAX_THREADS = "maxThreads";
+  public static final String MAX_DEPTH = "maxDepth";
+  public static final String PRIORITY_LANES = "priorityLanes";
+  public static final String KAFKA_PARTITIONS = "kafkaPartitions";
+  public static final String LINK_EXTRACTOR = "linkExtractor";
+  public static final String RECRAWL_INTERVAL_MILLIS = "recrawlIntervalMillis";
+  public static final String REVISIT_BUDGET_PER_HOUR = "revisitBudgetPerHour";
+  public static final String MAX_BODY_BYTES = "maxBodyBytes";
+  public static final String ALLOWED_CONTENT_TYPES = "allowedContentTypes";
+
+  /** The Helix resource config keys that are understood */
+  public static final List<String> KEYS = Collections.unmodifiableList(Arrays.asList(
+      CHROOT,
+      START_PAGE,
+      CONCURRENCY,
+      WEIGHT,
+      MAX_THREADS,
+      MAX_DEPTH,
+      PRIORITY_LANES,
+      KAFKA_PARTITIONS,
+      LINK_EXTRACTOR,
+      RECRAWL_INTERVAL_MILLIS,
+      REVISIT_BUDGET_PER_HOUR,
+      MAX_BODY_BYTES,
+      ALLOWED_CONTENT_TYPES));
+
+  private String chroot;
+  private String startPage;
+  private Integer concurrency;
+  private Integer weight;
+  private Integer maxThreads;
+  private Integer maxDepth;
+  private Integer priorityLanes;
+  private Integer kafkaPartitions;
+  private String linkExtractor;
+  private Long recrawlIntervalMillis;
+  private Integer revisitBudgetPerHour;
+  private Long maxBodyBytes;
+  private List<String> allowedContentTypes;
+
+  public PantopodResourceConfig() {}
+
+  public static PantopodResourceConfig fromMap(Map<String, String> config) {
+    PantopodResourceConfig resourceConfig = new PantopodResourceConfig();
+    resourceConfig.setChroot(config.get(CHROOT));
+    resourceConfig.setStartPage(config.get(START_PAGE));
+    resourceConfig.setConcurrency(parseInteger(config.get(CONCURRENCY)));
+    resourceConfig.setWeight(parseInteger(config.get(WEIGHT)));
+    resourceConfig.setMaxThreads(parseInteger(config.get(MAX_THREADS)));
+    resourceConfig.setMaxDepth(parseInteger(config.get(MAX_DEPTH)));
+    resourceConfig.setPriorityLanes(parseInteger(config.get(PRIORITY_LANES)));
+    resourceConfig.setKafkaPartitions(parseInteger(config.get(KAFKA_PARTITIONS)));
+    resourceConfig.setLinkExtractor(config.get(LINK_EXTRACTOR));
+    resourceConfig.setRecrawlIntervalMillis(parseLong(config.get(RECRAWL_INTERVAL_MILLIS)));
+    resourceConfig.setRevisitBudgetPerHour(parseInteger(config.get(REVISIT_BUDGET_PER_HOUR)));
+    resourceConfig.setMaxBodyBytes(parseLong(config.get(MAX_BODY_BYTES)));
+    resourceConfig.setAllowedContentTypes(parseList(config.get(ALLOWED_CONTENT_TYPES)));
+    return resourceConfig;
+  }
+
+  public String getChroot() {
+    return chroot;
+  }
+
+  public void setChroot(String chroot) {
+    this.chroot = chroot;
+  }
+
+  public String getStartPage() {
+    return startPage;
+  }
+
+  public void setStartPage(String startPage) {
+    this.startPage = startPage;
+  }
+
+  /**
+   * Returns the number of events handled in parallel by each consumer of this resource, or null to use the default.
+   */
+  public Integer getConcurrency() {
+    return concurrency;
+  }
+
+  public void setConcurrency(Integer concurrency) {
+    this.concurrency = concurrency;
+  }
+
+  /**
+   * Returns this resource's share of the node's workers relative to other resources, or null for 1.
+   */
+  public Integer getWeight() {
+    return weight;
+  }
+
+  public void setWeight(Integer weight) {
+    this.weight = weight;
+  }
+
+  /**
+   * Returns the most of the node's workers that events of this resource may hold at once, or null for no cap.
+   */
+  public Integer getMaxThreads() {
+    return maxThreads;
+  }
+
+  public void setMaxThreads(Integer maxThreads) {
+    this.maxThreads = maxThreads;
+  }
+
+  /**
+   * Returns the depth (links from the start page) beyond which links are not followed, or null to use the default.
+   */
+  public Integer getMaxDepth() {
+    return maxDepth;
+  }
+
+  public void setMaxDepth(Integer maxDepth) {
+    this.maxDepth = maxDepth;
+  }
+
+  /**
+   * Returns the number of {@link PriorityLanes} of this resource, or null to use the default.
+   */
+  public Integer getPriorityLanes() {
+    return priorityLanes;
+  }
+
+  public void setPriorityLanes(Integer priorityLanes) {
+    this.priorityLanes = priorityLanes;
+  }
+
+  /**
+   * Returns the number of partitions of the topics of this resource when they are created, or null to use the default.
+   */
+  public Integer getKafkaPartitions() {
+    return kafkaPartitions;
+  }
+
+  public void setKafkaPartitions(Integer kafkaPartitions) {
+    this.kafkaPartitions = kafkaPartitions;
+  }
+
+  /**
+   * Returns the name of the link extractor for pages of this resource, or null to use the default.
+   */
+  public String getLinkExtractor() {
+    return linkExtractor;
+  }
+
+  public void setLinkExtractor(String linkExtractor) {
+    this.linkExtractor = linkExtractor;
+  }
+
+  /**
+   * Returns how long stored pages of this resource are considered fresh, or null to use the default.
+   */
+  public Long getRecrawlIntervalMillis() {
+    return recrawlIntervalMillis;
+  }
+
+  public void setRecrawlIntervalMillis(Long recrawlIntervalMillis) {
+    this.recrawlIntervalMillis = recrawlIntervalMillis;
+  }
+
+  /**
+   * Returns the most pages of this resource visited again per hour by each node, or null to use the default.
+   */
+  public Integer getRevisitBudgetPerHour() {
+    return revisitBudgetPerHour;
+  }
+
+  public void setRevisitBudgetPerHour(Integer revisitBudgetPerHour) {
+    this.revisitBudgetPerHour = revisitBudgetPerHour;
+  }
+
+  /**
+   * Returns the size in bytes beyond which pages of this resource are not fetched, or null to use the default.
+   */
+  public Long getMaxBodyBytes() {
+    return maxBodyBytes;
+  }
+
+  public void setMaxBodyBytes(Long maxBodyBytes) {
+    this.maxBodyBytes = maxBodyBytes;
+  }
+
+  /**
+   * Returns the content types of the pages of this resource that are stored, or null to use the default.
+   */
+  public List<String> getAllowedContentTypes() {
+    return allowedContentTypes;
+  }
+
+  public void setAllowedContentTypes(List<String> allowedContentTypes) {
+    this.allowedContentTypes = allowedContentTypes;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("chroot", chroot)
+        .add("startPage", startPage)
+        .add("concurrency", concurrency)
+        .add("weight", weight)
+        .add("maxThreads", maxThreads)
+        .add("maxDepth", maxDepth)
+        .add("priorityLanes", priorityLanes)
+        .add("kafkaPartitions", kafkaPartitions)
+        .add("linkExtractor", linkExtractor)
+        .add("recrawlIntervalMillis", recrawlIntervalMillis)
+        .add("revisitBudgetPerHour", revisitBudgetPerHour)
+        .add("maxBodyBytes", maxBodyBytes)
+        .add("allowedContentTypes", allowedContentTypes)
+        .toString();
+  }
+
+  private static Integer parseInteger(String value) {
+    return value == null || value.trim().isEmpty() ? null : Integer.valueOf(value.trim());
+  }
+
+  private static Long parseLong(String value) {
+    return value == null || value.trim().isEmpty() ? null : Long.valueOf(value.trim());
+  }
+
+  private static List<String> parseList(String value) {
+    if (value == null || value.trim().isEmpty()) {
+      return null;
+    }
+    List<String> values = new ArrayList<>();
+    for (String token : value.split(",")) {
+      if (!token.trim().isEmpty()) {
+        values.add(token.trim());
+      }
+    }
+    return values;
+  }
+}
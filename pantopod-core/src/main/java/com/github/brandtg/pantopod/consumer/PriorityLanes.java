@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import com.github.brandtg.pantopod.api.CrawlEvent;
+
+/**
+ * Splits the events of a resource into lanes, each its own topic, that consumers drain in proportion to their weight.
+ *
+ * <p>
+ *   An event's lane is its score: its depth, plus one if its URL has a query string (often a sort order, calendar or
+ *   session variant of another page), capped at the last lane. Lane 0 is the resource's topic itself, so with one lane
+ *   the topic is a plain FIFO. When several lanes have events, each is drained half as often as the one before it.
+ * </p>
+ */
+public class PriorityLanes {
+  public static final int MAX_LANES = 16;
+
+  private final int numLanes;
+
+  public PriorityLanes(int numLanes) {
+    if (numLanes < 1 || numLanes > MAX_LANES) {
+      throw new IllegalArgumentException("Priority lanes must be between 1 and " + MAX_LANES + ": " + numLanes);
+    }
+    this.numLanes = numLanes;
+  }
+
+  public int getNumLanes() {
+    return numLanes;
+  }
+
+  public int getLane(CrawlEvent event) {
+    int score = event.getDepth();
+    if (event.getUrl() != null && event.getUrl().indexOf('?') >= 0) {
+      score++;
+    }
+    return Math.max(0, Math.min(score, numLanes - 1));
+  }
+
+  public int getWeight(int lane) {
+    return 1 << (numLanes - 1 - lane);
+  }
+
+  /**
+   * Returns the topic of lane for the resource whose topic is kafkaTopic.
+   */
+  public static String getTopic(String kafkaTopic, int lane) {
+    return lane == 0 ? kafkaTopic : kafkaTopic + ".lane" + lane;
+  }
+}
@@ -0,0 +1,329 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the events of all resources on one pool of worker threads, sharing them by weight.
+ *
+ * <p>
+ *   Each resource has its own run queue. Workers take events by deficit round robin: the resource at the head of the
+ *   round gets its weight in credit, runs one event per credit, then goes to the back. A resource that already has
+ *   maxThreads events running is passed over until one completes, so one slow or huge resource cannot hold every
+ *   worker, and an idle one gives its share to the others.
+ * </p>
+ *
+ * <p>
+ *   An event submitted with {@link #submitAsync} frees its worker once started, but counts as running until its future
+ *   completes, and at most maxRunning events run at once, so pages fetched without blocking are shared the same way.
+ * </p>
+ */
+public class ResourceScheduler implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(ResourceScheduler.class);
+  private static final long STOP_TIMEOUT_MILLIS = 30000;
+
+  private final int numThreads;
+  private final int maxRunning;
+  private final MetricRegistry metricRegistry;
+  private final Meter totalEvents;
+  private final Map<String, RunQueue> runQueues; // guarded by this
+  private final Deque<RunQueue> round; // those with queued events, guarded by this
+
+  private ExecutorService workers;
+  private boolean isRunning;
+  private int totalRunning; // guarded by this
+
+  public ResourceScheduler(int numThreads, MetricRegistry metricRegistry) {
+    this(numThreads, numThreads, metricRegistry);
+  }
+
+  /**
+   * @param maxRunning
+   *  The most events running at once, including those submitted with {@link #submitAsync} that are not yet complete
+   */
+  public ResourceScheduler(int numThreads, int maxRunning, MetricRegistry metricRegistry) {
+    if (numThreads < 1 || maxRunning < 1) {
+      throw new IllegalArgumentException("Threads / max running must be positive: " + numThreads + " / " + maxRunning);
+    }
+    this.numThreads = numThreads;
+    this.maxRunning = maxRunning;
+    this.metricRegistry = metricRegistry;
+    this.totalEvents = metricRegistry.meter(MetricRegistry.name(ResourceScheduler.class, "events"));
+    this.runQueues = new HashMap<>();
+    this.round = new ArrayDeque<>();
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  public int getMaxRunning() {
+    return maxRunning;
+  }
+
+  /**
+   * Adds resource, or updates its weight and cap.
+   *
+   * @param weight
+   *  Events run per round, relative to the other resources
+   * @param maxThreads
+   *  The most events of resource running at once
+   */
+  public synchronized void register(String resource, int weight, int maxThreads) {
+    if (weight < 1 || maxThreads < 1) {
+      throw new IllegalArgumentException("Weight and max threads must be positive: " + weight + ", " + maxThreads);
+    }
+    RunQueue runQueue = runQueues.get(resource);
+    if (runQueue == null) {
+      runQueue = new RunQueue(resource);
+      runQueues.put(resource, runQueue);
+      registerMetrics(runQueue);
+    }
+    runQueue.weight = weight;
+    runQueue.maxThreads = maxThreads;
+    notifyAll();
+  }
+
+  /**
+   * Removes resource. Events it already queued still run.
+   */
+  public synchronized void unregister(String resource) {
+    if (runQueues.remove(resource) != null) {
+      for (String metric : new String[] { "events", "queue-wait", "queued", "running", "share" }) {
+        metricRegistry.remove(MetricRegistry.name(ResourceScheduler.class, resource, metric));
+      }
+    }
+  }
+
+  /**
+   * Queues task to run as one event of resource, which must be registered.
+   */
+  public void submit(String resource, final Runnable task) {
+    submitAsync(resource, new Callable<ListenableFuture<?>>() {
+      @Override
+      public ListenableFuture<?> call() throws Exception {
+        task.run();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Queues task to run as one event of resource, which must be registered. The event is running until the future task
+   * returns completes (or task returns null or throws).
+   */
+  public synchronized void submitAsync(String resource, Callable<? extends ListenableFuture<?>> task) {
+    RunQueue runQueue = runQueues.get(resource);
+    if (runQueue == null) {
+      throw new IllegalStateException("Resource not registered: " + resource);
+    }
+    if (runQueue.tasks.isEmpty()) {
+      round.addLast(runQueue);
+    }
+    runQueue.tasks.addLast(new QueuedTask(task, runQueue.queueWait.time()));
+    notifyAll();
+  }
+
+  @Override
+  public void start() throws Exception {
+    synchronized (this) {
+      isRunning = true;
+    }
+    workers = Executors.newFixedThreadPool(numThreads, new ThreadFactoryBuilder()
+        .setNameFormat("pantopod-worker-%d")
+        .setDaemon(true)
+        .build());
+    for (int i = 0; i < numThreads; i++) {
+      workers.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            work();
+          } catch (InterruptedException e) {
+            LOG.debug("Interrupted while waiting for events");
+          }
+        }
+      });
+    }
+  }
+
+  @Override
+  public void stop() throws Exception {
+    synchronized (this) {
+      isRunning = false;
+      notifyAll();
+    }
+    workers.shutdown();
+    if (!workers.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+      LOG.warn("Timed out waiting for running events");
+      workers.shutdownNow();
+    }
+  }
+
+  private void work() throws InterruptedException {
+    while (true) {
+      RunQueue runQueue;
+      QueuedTask task;
+      synchronized (this) {
+        while ((runQueue = next()) == null) {
+          if (!isRunning) {
+            return;
+          }
+          wait();
+        }
+        task = runQueue.tasks.pollFirst();
+        runQueue.running++;
+        totalRunning++;
+      }
+
+      task.queueTimer.stop();
+      runQueue.events.mark();
+      totalEvents.mark();
+      ListenableFuture<?> completion = null;
+      try {
+        completion = task.task.call();
+      } catch (Exception e) {
+        LOG.error("Exception running event of {}", runQueue.resource, e);
+      } finally {
+        final RunQueue completedQueue = runQueue;
+        Runnable completed = new Runnable() {
+          @Override
+          public void run() {
+            synchronized (ResourceScheduler.this) {
+              completedQueue.running--;
+              totalRunning--;
+              ResourceScheduler.this.notifyAll();
+            }
+          }
+        };
+        if (completion == null) {
+          completed.run();
+        } else {
+          completion.addListener(completed, MoreExecutors.directExecutor());
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the run queue to take the next event from, or null if none can run one now.
+   */
+  private RunQueue next() {
+    if (totalRunning >= maxRunning) {
+      return null;
+    }
+    for (int i = round.size(); i > 0; i--) {
+      RunQueue runQueue = round.peekFirst();
+      if (runQueue.running >= runQueue.maxThreads) {
+        // Passed over, keeping its credit
+        round.addLast(round.pollFirst());
+        continue;
+      }
+      if (runQueue.deficit < 1) {
+        runQueue.deficit += runQueue.weight;
+      }
+      runQueue.deficit--;
+      if (runQueue.tasks.size() == 1) {
+        // Leaves the round until it queues again
+        round.pollFirst();
+        runQueue.deficit = 0;
+      } else if (runQueue.deficit < 1) {
+        round.addLast(round.pollFirst());
+      }
+      return runQueue;
+    }
+    return null;
+  }
+
+  private void registerMetrics(final RunQueue runQueue) {
+    String resource = runQueue.resource;
+    metricRegistry.register(MetricRegistry.name(ResourceScheduler.class, resource, "queued"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        synchronized (ResourceScheduler.this) {
+          return runQueue.tasks.size();
+        }
+      }
+    });
+    metricRegistry.register(MetricRegistry.name(ResourceScheduler.class, resource, "running"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        synchronized (ResourceScheduler.this) {
+          return runQueue.running;
+        }
+      }
+    });
+    metricRegistry.register(MetricRegistry.name(ResourceScheduler.class, resource, "share"), new Gauge<Double>() {
+      @Override
+      public Double getValue() {
+        synchronized (ResourceScheduler.this) {
+          double total = 0;
+          for (RunQueue other : runQueues.values()) {
+            total += other.events.getOneMinuteRate();
+          }
+          return total == 0 ? 0 : runQueue.events.getOneMinuteRate() / total;
+        }
+      }
+    });
+  }
+
+  private class RunQueue {
+    private final String resource;
+    private final Deque<QueuedTask> tasks;
+    private final Meter events;
+    private final Timer queueWait;
+    private int weight;
+    private int maxThreads;
+    private int running;
+    private int deficit;
+
+    RunQueue(String resource) {
+      this.resource = resource;
+      this.tasks = new ArrayDeque<>();
+      this.events = metricRegistry.meter(MetricRegistry.name(ResourceScheduler.class, resource, "events"));
+      this.queueWait = metricRegistry.timer(MetricRegistry.name(ResourceScheduler.class, resource, "queue-wait"));
+    }
+  }
+
+  private static class QueuedTask {
+    private final Callable<? extends ListenableFuture<?>> task;
+    private final Timer.Context queueTimer;
+
+    QueuedTask(Callable<? extends ListenableFuture<?>> task, Timer.Context queueTimer) {
+      this.task = task;
+      this.queueTimer = queueTimer;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import com.github.brandtg.pantopod.api.UrlFingerprint;
+import com.google.common.primitives.Longs;
+import kafka.admin.AdminUtils;
+import kafka.common.TopicExistsException;
+import org.I0Itec.zkclient.ZkClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Shards the URLs of a resource by fingerprint, so that each URL always goes to the same Kafka partition.
+ *
+ * <p>
+ *   Events are keyed and partitioned by the {@link UrlFingerprint} of their URL, modulo the number of partitions of
+ *   their topic, so topics must be created with a fixed number of partitions (see {@link #createTopic}). Helix
+ *   partition i of a resource with n Helix partitions owns the Kafka partitions p with p % n == i, so the worker that
+ *   holds it sees every occurrence of the URLs of its shard.
+ * </p>
+ */
+public final class UrlPartitioner {
+  private static final Logger LOG = LoggerFactory.getLogger(UrlPartitioner.class);
+
+  private UrlPartitioner() {}
+
+  /**
+   * Returns the message key of url, its fingerprint as 8 big-endian bytes.
+   */
+  public static byte[] getKey(String url) {
+    return Longs.toByteArray(UrlFingerprint.of(url));
+  }
+
+  /**
+   * Returns the Kafka partition of url, of a topic with numPartitions partitions.
+   */
+  public static int getPartition(String url, int numPartitions) {
+    return (int) ((UrlFingerprint.of(url) & Long.MAX_VALUE) % numPartitions);
+  }
+
+  /**
+   * Returns the Kafka partitions owned by helixPartition, one of numHelixPartitions, of a topic with
+   * numKafkaPartitions partitions (none if there are more Helix than Kafka partitions, and it is one of the extras).
+   */
+  public static List<Integer> getKafkaPartitions(int helixPartition, int numHelixPartitions, int numKafkaPartitions) {
+    if (helixPartition < 0 || helixPartition >= numHelixPartitions) {
+      throw new IllegalArgumentException(
+          "Helix partition " + helixPartition + " not in [0, " + numHelixPartitions + ")");
+    }
+    List<Integer> kafkaPartitions = new ArrayList<>();
+    for (int p = helixPartition; p < numKafkaPartitions; p += numHelixPartitions) {
+      kafkaPartitions.add(p);
+    }
+    return kafkaPartitions;
+  }
+
+  /**
+   * Returns the number of a Helix partition from its name (e.g. 3 for "www.example.com_3").
+   */
+  public static int getHelixPartition(String partitionName) {
+    return Integer.parseInt(partitionName.substring(partitionName.lastIndexOf('_') + 1));
+  }
+
+  /**
+   * Creates kafkaTopic with numPartitions partitions if it does not exist, and returns its number of partitions (which
+   * differs from numPartitions if it already existed with another number). zkClient must use Kafka's string serializer.
+   */
+  public static int createTopic(ZkClient zkClient, String kafkaTopic, int numPartitions, int replicationFactor) {
+    if (!AdminUtils.topicExists(zkClient, kafkaTopic)) {
+      try {
+        AdminUtils.createTopic(zkClient, kafkaTopic, numPartitions, replicationFactor, new Properties());
+        LOG.info("Created topic {} with {} partitions", kafkaTopic, numPartitions);
+        return numPartitions;
+      } catch (TopicExistsException e) {
+        // Created by another node meanwhile
+      }
+    }
+    int existingPartitions = AdminUtils.fetchTopicMetadataFromZk(kafkaTopic, zkClient).partitionsMetadata().size();
+    if (existingPartitions != numPartitions) {
+      LOG.warn("Topic {} has {} partitions instead of {}", kafkaTopic, existingPartitions, numPartitions);
+    }
+    return existingPartitions;
+  }
+}
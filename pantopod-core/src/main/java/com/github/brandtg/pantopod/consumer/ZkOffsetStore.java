@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import kafka.utils.ZKGroupTopicDirs;
+import kafka.utils.ZkUtils;
+import org.I0Itec.zkclient.ZkClient;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the consumed offsets of a consumer group in ZooKeeper, where the Kafka high-level consumer keeps them, so
+ * groups that it used carry on from where they were.
+ *
+ * <p>
+ *   All consumers of a node share one, and its ZooKeeper session. zkClient must use Kafka's string serializer.
+ * </p>
+ */
+public class ZkOffsetStore {
+  private final ZkClient zkClient;
+  private final String kafkaGroupId;
+
+  public ZkOffsetStore(ZkClient zkClient, String kafkaGroupId) {
+    this.zkClient = zkClient;
+    this.kafkaGroupId = kafkaGroupId;
+  }
+
+  /**
+   * Returns the committed offsets of those of partitions of topic that have one.
+   */
+  public Map<Integer, Long> getOffsets(String topic, List<Integer> partitions) {
+    Map<Integer, Long> offsets = new HashMap<>();
+    for (int partition : partitions) {
+      String offset = zkClient.readData(getPath(topic, partition), true);
+      if (offset != null) {
+        offsets.put(partition, Long.valueOf(offset.trim()));
+      }
+    }
+    return offsets;
+  }
+
+  public void commit(String topic, int partition, long offset) {
+    ZkUtils.updatePersistentPath(zkClient, getPath(topic, partition), String.valueOf(offset));
+  }
+
+  private String getPath(String topic, int partition) {
+    return new ZKGroupTopicDirs(kafkaGroupId, topic).consumerOffsetDir() + "/" + partition;
+  }
+}
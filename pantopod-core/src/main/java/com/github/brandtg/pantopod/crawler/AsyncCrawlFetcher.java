@@ -0,0 +1,322 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.github.brandtg.pantopod.consumer.ByteBudget;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Fetches pages with a non-blocking HTTP client, so many requests share a few I/O threads.
+ *
+ * <p>
+ *   The number of outstanding requests is capped per node and per authority. Requests over either cap wait in a queue
+ *   per authority without holding the caller's thread, and start as others complete, taking turns across authorities
+ *   so a busy site does not hold up the rest. The Kafka consumer's concurrency bounds how many wait.
+ * </p>
+ */
+public class AsyncCrawlFetcher implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncCrawlFetcher.class);
+
+  private final CloseableHttpAsyncClient httpClient;
+  private final int maxInFlight;
+  private final int maxInFlightPerAuthority;
+  private final Map<String, Authority> authorities;
+  private final Queue<Authority> ready;
+
+  private int inFlight;
+
+  private ByteBudget byteBudget;
+
+  public AsyncCrawlFetcher(CloseableHttpAsyncClient httpClient, int maxInFlight, int maxInFlightPerAuthority) {
+    this.httpClient = httpClient;
+    this.maxInFlight = maxInFlight;
+    this.maxInFlightPerAuthority = maxInFlightPerAuthority;
+    this.authorities = new HashMap<>();
+    this.ready = new ArrayDeque<>();
+  }
+
+  /**
+   * Counts the bodies buffered by {@link #fetch(HttpUriRequest, FetchPolicy)} against byteBudget as they arrive. The
+   * reservation goes with the response (see {@link #getReservation(HttpResponse)}), and must be released by the caller.
+   */
+  public void setByteBudget(ByteBudget byteBudget) {
+    this.byteBudget = byteBudget;
+  }
+
+  /**
+   * Returns the reservation of the body of a response of {@link #fetch(HttpUriRequest, FetchPolicy)}, or null if it
+   * has none.
+   */
+  public static ByteBudget.Reservation getReservation(HttpResponse res) {
+    return res.getEntity() instanceof BufferedEntity ? ((BufferedEntity) res.getEntity()).reservation : null;
+  }
+
+  @Override
+  public void start() throws Exception {
+    httpClient.start();
+  }
+
+  @Override
+  public void stop() throws Exception {
+    httpClient.close();
+  }
+
+  /**
+   * Starts a GET for url, whose response (with the body buffered in memory) completes the returned future.
+   */
+  public ListenableFuture<HttpResponse> fetch(URI url) {
+    return fetch(new HttpGet(url));
+  }
+
+  /**
+   * Starts req, whose response (with the body buffered in memory) completes the returned future.
+   */
+  public ListenableFuture<HttpResponse> fetch(HttpUriRequest req) {
+    return fetch(req, null);
+  }
+
+  /**
+   * Starts req like {@link #fetch(HttpUriRequest)}, but fails with a {@link FetchPolicy.SkippedException} (closing the
+   * connection) as soon as fetchPolicy says the response should not be read.
+   */
+  public ListenableFuture<HttpResponse> fetch(HttpUriRequest req, FetchPolicy fetchPolicy) {
+    Request request = new Request(req, fetchPolicy);
+    List<Request> started;
+    synchronized (this) {
+      Authority authority = authorities.get(req.getURI().getAuthority());
+      if (authority == null) {
+        authority = new Authority();
+        authorities.put(req.getURI().getAuthority(), authority);
+      }
+      request.authority = authority;
+      authority.waiting.add(request);
+      markReady(authority);
+      started = takeStartable();
+    }
+    start(started);
+    return request.result;
+  }
+
+  private void release(Authority authority) {
+    List<Request> started;
+    synchronized (this) {
+      inFlight--;
+      authority.inFlight--;
+      markReady(authority);
+      started = takeStartable();
+    }
+    start(started);
+  }
+
+  private void markReady(Authority authority) {
+    if (!authority.ready && !authority.waiting.isEmpty() && authority.inFlight < maxInFlightPerAuthority) {
+      authority.ready = true;
+      ready.add(authority);
+    }
+  }
+
+  /**
+   * Takes the requests that may start now, one per authority in turn, counting them as in flight.
+   */
+  private List<Request> takeStartable() {
+    List<Request> started = new ArrayList<>();
+    while (inFlight < maxInFlight && !ready.isEmpty()) {
+      Authority authority = ready.remove();
+      authority.ready = false;
+      started.add(authority.waiting.remove());
+      authority.inFlight++;
+      inFlight++;
+      markReady(authority);
+    }
+    return started;
+  }
+
+  /**
+   * Starts requests outside the lock, as a request that fails right away releases its slot.
+   */
+  private void start(List<Request> requests) {
+    for (Request request : requests) {
+      start(request);
+    }
+  }
+
+  private void start(final Request request) {
+    if (request.result.isCancelled()) {
+      release(request.authority);
+      return;
+    }
+
+    try {
+      FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>() {
+        @Override
+        public void completed(HttpResponse response) {
+          release(request.authority);
+          request.result.set(response);
+        }
+
+        @Override
+        public void failed(Exception e) {
+          release(request.authority);
+          request.result.setException(e);
+        }
+
+        @Override
+        public void cancelled() {
+          release(request.authority);
+          request.result.cancel(false);
+        }
+      };
+      if (request.fetchPolicy == null) {
+        httpClient.execute(request.req, callback);
+      } else {
+        httpClient.execute(
+            HttpAsyncMethods.create(request.req),
+            new PolicyResponseConsumer(request.fetchPolicy, byteBudget),
+            callback);
+      }
+    } catch (RuntimeException e) {
+      LOG.error("Could not start request for {}", request.req.getURI(), e);
+      release(request.authority);
+      request.result.setException(e);
+    }
+  }
+
+  private static class Authority {
+    private final Queue<Request> waiting = new ArrayDeque<>();
+    private int inFlight;
+    private boolean ready;
+  }
+
+  private static class Request {
+    private final HttpUriRequest req;
+    private final FetchPolicy fetchPolicy;
+    private final SettableFuture<HttpResponse> result;
+    private Authority authority;
+
+    Request(HttpUriRequest req, FetchPolicy fetchPolicy) {
+      this.req = req;
+      this.fetchPolicy = fetchPolicy;
+      this.result = SettableFuture.create();
+    }
+  }
+
+  /**
+   * Buffers a response like the default consumer, but fails once its headers or size break the policy.
+   */
+  private static class PolicyResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+    private final FetchPolicy fetchPolicy;
+    private final ByteBudget byteBudget;
+    private final ByteBuffer buffer;
+
+    private HttpResponse response;
+    private ByteArrayOutputStream body;
+    private ByteBudget.Reservation reservation;
+
+    PolicyResponseConsumer(FetchPolicy fetchPolicy, ByteBudget byteBudget) {
+      this.fetchPolicy = fetchPolicy;
+      this.byteBudget = byteBudget;
+      this.buffer = ByteBuffer.allocate(8192);
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) throws IOException {
+      this.response = response;
+      if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+        fetchPolicy.checkHeaders(response);
+      }
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+      body = fetchPolicy.newBodyBuffer(entity.getContentLength());
+      if (byteBudget != null) {
+        reservation = byteBudget.reserveNow(0);
+      }
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+      int n;
+      while ((n = decoder.read(buffer)) > 0) {
+        body.write(buffer.array(), 0, n);
+        buffer.clear();
+        fetchPolicy.checkBodySize(response, body.size());
+        if (reservation != null) {
+          reservation.growTo(body.size());
+        }
+      }
+    }
+
+    @Override
+    protected HttpResponse buildResult(HttpContext context) {
+      if (body != null) {
+        BufferedEntity entity = new BufferedEntity(body.toByteArray(), reservation);
+        reservation = null;
+        entity.setContentType(response.getEntity().getContentType());
+        entity.setContentEncoding(response.getEntity().getContentEncoding());
+        response.setEntity(entity);
+      }
+      return response;
+    }
+
+    @Override
+    protected void releaseResources() {
+      body = null;
+      if (reservation != null) {
+        reservation.release();
+        reservation = null;
+      }
+    }
+  }
+
+  private static class BufferedEntity extends ByteArrayEntity {
+    private final ByteBudget.Reservation reservation;
+
+    BufferedEntity(byte[] body, ByteBudget.Reservation reservation) {
+      super(body);
+      this.reservation = reservation;
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import net.jpountz.lz4.LZ4Factory;
+import org.apache.commons.io.IOUtils;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compression algorithms for stored page bodies, identified in stored records by {@link #getId()}.
+ *
+ * <p>
+ *   Only {@link #DEFLATE} uses a preset dictionary; the others ignore it.
+ * </p>
+ */
+public enum BodyCodec {
+  NONE(0) {
+    @Override
+    byte[] compress(byte[] data, byte[] dictionary) {
+      return data;
+    }
+
+    @Override
+    byte[] decompress(byte[] data, int offset, byte[] dictionary) {
+      return copyOfRange(data, offset);
+    }
+  },
+
+  GZIP(1) {
+    @Override
+    byte[] compress(byte[] data, byte[] dictionary) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+      try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+        out.write(data);
+      }
+      return bytes.toByteArray();
+    }
+
+    @Override
+    byte[] decompress(byte[] data, int offset, byte[] dictionary) throws IOException {
+      try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data, offset, data.length - offset))) {
+        return IOUtils.toByteArray(in);
+      }
+    }
+  },
+
+  DEFLATE(2) {
+    @Override
+    byte[] compress(byte[] data, byte[] dictionary) {
+      Deflater deflater = new Deflater();
+      try {
+        if (dictionary != null) {
+          deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+          out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return out.toByteArray();
+      } finally {
+        deflater.end();
+      }
+    }
+
+    @Override
+    byte[] decompress(byte[] data, int offset, byte[] dictionary) throws IOException {
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(data, offset, data.length - offset);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((data.length - offset) * 4);
+        byte[] buffer = new byte[8192];
+        while (!inflater.finished()) {
+          int numBytes = inflater.inflate(buffer);
+          if (numBytes == 0) {
+            if (inflater.needsDictionary()) {
+              if (dictionary == null) {
+                throw new IOException("Missing dictionary");
+              }
+              inflater.setDictionary(dictionary);
+            } else if (inflater.needsInput()) {
+              throw new IOException("Truncated deflate data");
+            }
+          }
+          out.write(buffer, 0, numBytes);
+        }
+        return out.toByteArray();
+      } catch (DataFormatException e) {
+        throw new IOException(e);
+      } finally {
+        inflater.end();
+      }
+    }
+  },
+
+  /** Fast, but compresses less; the uncompressed length is prepended. */
+  LZ4(3) {
+    @Override
+    byte[] compress(byte[] data, byte[] dictionary) {
+      byte[] compressed = LZ4Factory.fastestInstance().fastCompressor().compress(data);
+      return ByteBuffer.allocate(4 + compressed.length).putInt(data.length).put(compressed).array();
+    }
+
+    @Override
+    byte[] decompress(byte[] data, int offset, byte[] dictionary) {
+      int length = ByteBuffer.wrap(data, offset, 4).getInt();
+      byte[] uncompressed = new byte[length];
+      LZ4Factory.fastestInstance().fastDecompressor().decompress(data, offset + 4, uncompressed, 0, length);
+      return uncompressed;
+    }
+  },
+
+  SNAPPY(4) {
+    @Override
+    byte[] compress(byte[] data, byte[] dictionary) throws IOException {
+      return Snappy.compress(data);
+    }
+
+    @Override
+    byte[] decompress(byte[] data, int offset, byte[] dictionary) throws IOException {
+      byte[] uncompressed = new byte[Snappy.uncompressedLength(data, offset, data.length - offset)];
+      Snappy.uncompress(data, offset, data.length - offset, uncompressed, 0);
+      return uncompressed;
+    }
+  };
+
+  private final byte id;
+
+  BodyCodec(int id) {
+    this.id = (byte) id;
+  }
+
+  public byte getId() {
+    return id;
+  }
+
+  abstract byte[] compress(byte[] data, byte[] dictionary) throws IOException;
+
+  /**
+   * Decompresses data from offset to its end.
+   */
+  abstract byte[] decompress(byte[] data, int offset, byte[] dictionary) throws IOException;
+
+  public static BodyCodec forId(byte id) {
+    for (BodyCodec codec : values()) {
+      if (codec.id == id) {
+        return codec;
+      }
+    }
+    return null;
+  }
+
+  public static BodyCodec forName(String name) {
+    return valueOf(name.toUpperCase());
+  }
+
+  private static byte[] copyOfRange(byte[] data, int offset) {
+    byte[] copy = new byte[data.length - offset];
+    System.arraycopy(data, offset, copy, 0, copy.length);
+    return copy;
+  }
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.github.brandtg.pantopod.api.ContentHash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compresses page bodies for storage, and decompresses whatever a previous configuration stored.
+ *
+ * <p>
+ *   A compressed body starts with {@link #MAGIC} and the {@link BodyCodec} id, so bodies stored with different
+ *   codecs (or uncompressed, as before) can be read side by side. With {@link BodyCodec#NONE}, bodies are stored as
+ *   they are.
+ * </p>
+ *
+ * <p>
+ *   With {@link BodyCodec#DEFLATE} and dictionarySamples &gt; 0, the first dictionarySamples pages of each authority
+ *   are used to train a preset dictionary of the markup they share, which then primes the compression of every later
+ *   page of that authority. Its id follows the codec id, and it is kept in a {@link BodyDictionaryStore}.
+ * </p>
+ */
+public class BodyCompressor {
+  private static final Logger LOG = LoggerFactory.getLogger(BodyCompressor.class);
+  static final byte MAGIC = (byte) 0xDC;
+  private static final int DICTIONARY_FLAG = 0x80;
+  private static final int HEADER_BYTES = 2;
+  private static final int DICTIONARY_ID_BYTES = 8;
+  private static final int MAX_DICTIONARY_BYTES = 32 * 1024; // the deflate window
+  private static final int MAX_SAMPLE_BYTES = 64 * 1024;
+  private static final int MIN_CHUNK_BYTES = 8;
+  private static final int MAX_CHUNK_BYTES = 256;
+
+  private final BodyCodec codec;
+  private final BodyDictionaryStore dictionaryStore;
+  private final int dictionarySamples;
+  private final int dictionaryBytes;
+  private final ConcurrentMap<String, AuthorityDictionary> authorityDictionaries;
+  private final ConcurrentMap<Long, byte[]> dictionaries;
+
+  public BodyCompressor(BodyCodec codec) {
+    this(codec, null, 0, 0);
+  }
+
+  /**
+   * @param dictionaryStore
+   *  Where dictionaries are kept, or null if none are used (dictionary-compressed bodies then cannot be read)
+   * @param dictionarySamples
+   *  The number of pages to train each authority's dictionary with, or 0 to not train any
+   * @param dictionaryBytes
+   *  The size of trained dictionaries, at most 32KB
+   */
+  public BodyCompressor(BodyCodec codec,
+                        BodyDictionaryStore dictionaryStore,
+                        int dictionarySamples,
+                        int dictionaryBytes) {
+    if (dictionarySamples > 0 && (codec != BodyCodec.DEFLATE || dictionaryStore == null)) {
+      throw new IllegalArgumentException("Dictionaries need the deflate codec and a dictionary store");
+    }
+    this.codec = codec;
+    this.dictionaryStore = dictionaryStore;
+    this.dictionarySamples = dictionarySamples;
+    this.dictionaryBytes = Math.min(dictionaryBytes, MAX_DICTIONARY_BYTES);
+    this.authorityDictionaries = new ConcurrentHashMap<>();
+    this.dictionaries = new ConcurrentHashMap<>();
+  }
+
+  public BodyCodec getCodec() {
+    return codec;
+  }
+
+  /**
+   * Returns data as it should be stored for a page of authority.
+   */
+  public byte[] compress(String authority, byte[] data) throws IOException {
+    if (codec == BodyCodec.NONE) {
+      return uncompressed(data);
+    }
+
+    AuthorityDictionary dictionary = dictionarySamples > 0 ? getDictionary(authority, data) : null;
+    byte[] compressed = codec.compress(data, dictionary == null ? null : dictionary.bytes);
+    if (compressed.length + HEADER_BYTES + DICTIONARY_ID_BYTES >= data.length) {
+      // Not worth it (e.g. images), so stored as is
+      return uncompressed(data);
+    }
+    return frame(codec, dictionary, compressed);
+  }
+
+  /**
+   * Returns the page body of stored, which may have been stored by any codec or none.
+   */
+  public byte[] decompress(byte[] stored) throws IOException {
+    if (stored == null || stored.length < HEADER_BYTES || stored[0] != MAGIC) {
+      return stored;
+    }
+    BodyCodec storedCodec = BodyCodec.forId((byte) (stored[1] & ~DICTIONARY_FLAG));
+    if (storedCodec == null) {
+      return stored; // an uncompressed body that happens to start with MAGIC, stored before codecs existed
+    }
+
+    if ((stored[1] & DICTIONARY_FLAG) == 0) {
+      return storedCodec.decompress(stored, HEADER_BYTES, null);
+    }
+    long id = ByteBuffer.wrap(stored, HEADER_BYTES, DICTIONARY_ID_BYTES).getLong();
+    return storedCodec.decompress(stored, HEADER_BYTES + DICTIONARY_ID_BYTES, getDictionary(id));
+  }
+
+  /**
+   * Returns data as is, unless it could be mistaken for a compressed body.
+   */
+  private static byte[] uncompressed(byte[] data) {
+    return data.length > 0 && data[0] == MAGIC ? frame(BodyCodec.NONE, null, data) : data;
+  }
+
+  private static byte[] frame(BodyCodec codec, AuthorityDictionary dictionary, byte[] payload) {
+    ByteBuffer buffer = ByteBuffer.allocate(
+        HEADER_BYTES + (dictionary == null ? 0 : DICTIONARY_ID_BYTES) + payload.length);
+    buffer.put(MAGIC);
+    if (dictionary == null) {
+      buffer.put(codec.getId());
+    } else {
+      buffer.put((byte) (codec.getId() | DICTIONARY_FLAG)).putLong(dictionary.id);
+    }
+    return buffer.put(payload).array();
+  }
+
+  private byte[] getDictionary(long id) throws IOException {
+    byte[] dictionary = dictionaries.get(id);
+    if (dictionary == null) {
+      dictionary = dictionaryStore == null ? null : dictionaryStore.get(id);
+      if (dictionary == null) {
+        throw new IOException("Unknown dictionary " + Long.toHexString(id));
+      }
+      dictionaries.put(id, dictionary);
+    }
+    return dictionary;
+  }
+
+  /**
+   * Returns the dictionary for authority, or null if it is still being sampled (in which case data is a sample).
+   */
+  private AuthorityDictionary getDictionary(String authority, byte[] data) throws IOException {
+    AuthorityDictionary dictionary = authorityDictionaries.get(authority);
+    if (dictionary == null) {
+      authorityDictionaries.putIfAbsent(authority, new AuthorityDictionary());
+      dictionary = authorityDictionaries.get(authority);
+    }
+
+    synchronized (dictionary) {
+      if (dictionary.samples == null) {
+        // Loaded or trained
+        return dictionary.bytes == null ? null : dictionary;
+      }
+
+      if (dictionary.samples.isEmpty()) {
+        byte[] bytes = dictionaryStore.getForAuthority(authority);
+        if (bytes != null) {
+          dictionary.set(bytes);
+          dictionaries.put(dictionary.id, bytes);
+          return dictionary;
+        }
+      }
+
+      dictionary.samples.add(data.length > MAX_SAMPLE_BYTES ? Arrays.copyOf(data, MAX_SAMPLE_BYTES) : data);
+      if (dictionary.samples.size() >= dictionarySamples) {
+        byte[] bytes = trainDictionary(dictionary.samples, dictionaryBytes);
+        dictionary.samples = null;
+        if (bytes != null) {
+          dictionary.set(bytes);
+          dictionaryStore.put(authority, dictionary.id, bytes);
+          dictionaries.put(dictionary.id, bytes);
+          LOG.info("Trained {} byte dictionary {} for {}", bytes.length, Long.toHexString(dictionary.id), authority);
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Returns the chunks (up to each '&gt;' or newline) that most samples share, up to maxBytes, or null if they share
+   * none.
+   *
+   * <p>
+   *   Deflate reaches back into the dictionary from its end, so the chunks worth most are put last.
+   * </p>
+   */
+  static byte[] trainDictionary(List<byte[]> samples, int maxBytes) {
+    final Map<String, Integer> numSamples = new HashMap<>();
+    for (byte[] sample : samples) {
+      Set<String> chunks = new HashSet<>();
+      int start = 0;
+      for (int i = 0; i < sample.length; i++) {
+        if (sample[i] == '>' || sample[i] == '\n' || i - start + 1 >= MAX_CHUNK_BYTES || i == sample.length - 1) {
+          if (i - start + 1 >= MIN_CHUNK_BYTES) {
+            chunks.add(new String(sample, start, i - start + 1, StandardCharsets.ISO_8859_1));
+          }
+          start = i + 1;
+        }
+      }
+      for (String chunk : chunks) {
+        Integer count = numSamples.get(chunk);
+        numSamples.put(chunk, count == null ? 1 : count + 1);
+      }
+    }
+
+    int minSamples = samples.size() > 1 ? 2 : 1;
+    List<String> candidates = new ArrayList<>();
+    for (Map.Entry<String, Integer> entry : numSamples.entrySet()) {
+      if (entry.getValue() >= minSamples) {
+        candidates.add(entry.getKey());
+      }
+    }
+    if (candidates.isEmpty()) {
+      return null;
+    }
+
+    // Most bytes saved first
+    Collections.sort(candidates, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        long savedA = (long) numSamples.get(a) * a.length();
+        long savedB = (long) numSamples.get(b) * b.length();
+        return savedA == savedB ? a.compareTo(b) : Long.compare(savedB, savedA);
+      }
+    });
+    List<String> chosen = new ArrayList<>();
+    int numBytes = 0;
+    for (String candidate : candidates) {
+      if (numBytes + candidate.length() <= maxBytes) {
+        chosen.add(candidate);
+        numBytes += candidate.length();
+      }
+    }
+
+    ByteArrayOutputStream dictionary = new ByteArrayOutputStream(numBytes);
+    for (int i = chosen.size() - 1; i >= 0; i--) {
+      byte[] chunk = chosen.get(i).getBytes(StandardCharsets.ISO_8859_1);
+      dictionary.write(chunk, 0, chunk.length);
+    }
+    return dictionary.toByteArray();
+  }
+
+  private static class AuthorityDictionary {
+    private List<byte[]> samples = new ArrayList<>();
+    private byte[] bytes;
+    private long id;
+
+    void set(byte[] bytes) {
+      this.bytes = bytes;
+      this.id = ContentHash.of(bytes).asLong();
+      this.samples = null;
+    }
+  }
+}
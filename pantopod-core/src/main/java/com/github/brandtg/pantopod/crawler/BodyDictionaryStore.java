@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import java.io.IOException;
+
+/**
+ * Persists the compression dictionaries of {@link BodyCompressor}, which are needed to read the bodies compressed
+ * with them.
+ */
+public interface BodyDictionaryStore {
+  /**
+   * Returns the dictionary with id, or null if there is none.
+   */
+  byte[] get(long id) throws IOException;
+
+  /**
+   * Returns the dictionary to compress pages of authority with, or null if none has been trained.
+   */
+  byte[] getForAuthority(String authority) throws IOException;
+
+  /**
+   * Stores a dictionary trained for authority.
+   *
+   * <p>
+   *   If another one was stored for authority meanwhile (e.g. by another node), both are kept, and either may be
+   *   returned by {@link #getForAuthority(String)}.
+   * </p>
+   */
+  void put(String authority, long id, byte[] dictionary) throws IOException;
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Discards links that look like crawler traps: infinite calendars, path loops, and ever-growing URLs.
+ *
+ * <p>
+ *   A URL is a trap if it is longer than maxUrlLength, if a path segment repeats more than maxSegmentRepeats times
+ *   (e.g. "/a/b/a/b/a/b"), or if maxPagesPerPattern pages of its pattern have already been stored. A URL's pattern is
+ *   its authority and path with digits collapsed, and the names of its query parameters, so "/cal/2015/10?day=3" and
+ *   "/cal/2016/1?day=12" share a budget. Each limit is off if not positive. Page counts are kept per node, for the
+ *   maxPatterns most recently used patterns.
+ * </p>
+ */
+public class CrawlerTrapDetector {
+  private final int maxUrlLength;
+  private final int maxSegmentRepeats;
+  private final int maxPagesPerPattern;
+  private final LoadingCache<String, AtomicInteger> pagesPerPattern;
+  private final Meter discardedLength;
+  private final Meter discardedRepeats;
+  private final Meter discardedPattern;
+
+  public CrawlerTrapDetector(int maxUrlLength,
+                             int maxSegmentRepeats,
+                             int maxPagesPerPattern,
+                             int maxPatterns,
+                             MetricRegistry metricRegistry) {
+    this.maxUrlLength = maxUrlLength;
+    this.maxSegmentRepeats = maxSegmentRepeats;
+    this.maxPagesPerPattern = maxPagesPerPattern;
+    this.pagesPerPattern = CacheBuilder.newBuilder()
+        .maximumSize(maxPatterns)
+        .build(new CacheLoader<String, AtomicInteger>() {
+          @Override
+          public AtomicInteger load(String pattern) {
+            return new AtomicInteger();
+          }
+        });
+    this.discardedLength = metricRegistry.meter(MetricRegistry.name(CrawlerTrapDetector.class, "discarded-length"));
+    this.discardedRepeats = metricRegistry.meter(MetricRegistry.name(CrawlerTrapDetector.class, "discarded-repeats"));
+    this.discardedPattern = metricRegistry.meter(MetricRegistry.name(CrawlerTrapDetector.class, "discarded-pattern"));
+  }
+
+  /**
+   * Returns whether url looks like a trap, and counts it as discarded if so.
+   */
+  public boolean isTrap(URI url) {
+    if (maxUrlLength > 0 && url.toString().length() > maxUrlLength) {
+      discardedLength.mark();
+      return true;
+    }
+
+    if (maxSegmentRepeats > 0 && url.getRawPath() != null) {
+      Map<String, Integer> counts = new HashMap<>();
+      for (String segment : url.getRawPath().split("/")) {
+        if (!segment.isEmpty()) {
+          Integer count = counts.get(segment);
+          count = count == null ? 1 : count + 1;
+          if (count > maxSegmentRepeats) {
+            discardedRepeats.mark();
+            return true;
+          }
+          counts.put(segment, count);
+        }
+      }
+    }
+
+    if (maxPagesPerPattern > 0) {
+      AtomicInteger numPages = pagesPerPattern.getIfPresent(getPattern(url));
+      if (numPages != null && numPages.get() >= maxPagesPerPattern) {
+        discardedPattern.mark();
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Counts url, which was stored, against the budget of its pattern.
+   */
+  public void recordPage(URI url) {
+    if (maxPagesPerPattern > 0) {
+      pagesPerPattern.getUnchecked(getPattern(url)).incrementAndGet();
+    }
+  }
+
+  static String getPattern(URI url) {
+    StringBuilder pattern = new StringBuilder()
+        .append(url.getAuthority())
+        .append(url.getRawPath() == null ? "" : url.getRawPath().replaceAll("[0-9]+", "0"));
+    if (url.getRawQuery() != null) {
+      List<String> names = new ArrayList<>();
+      for (String param : url.getRawQuery().split("&")) {
+        int equals = param.indexOf('=');
+        names.add(equals < 0 ? param : param.substring(0, equals));
+      }
+      Collections.sort(names);
+      pattern.append('?');
+      for (int i = 0; i < names.size(); i++) {
+        pattern.append(i == 0 ? "" : "&").append(names.get(i));
+      }
+    }
+    return pattern.toString();
+  }
+}
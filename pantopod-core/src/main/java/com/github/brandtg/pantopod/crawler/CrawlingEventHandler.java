@@ -15,35 +15,74 @@
  */
 package com.github.brandtg.pantopod.crawler;
 
+import com.github.brandtg.pantopod.api.ContentHash;
 import com.github.brandtg.pantopod.api.CrawlEvent;
+import com.github.brandtg.pantopod.consumer.ByteBudget;
 import com.github.brandtg.pantopod.consumer.PantopodEventHandler;
-import org.apache.commons.io.IOUtils;
+import com.github.brandtg.pantopod.consumer.PantopodResourceConfig;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 /**
  * Follows all links on a page.
  */
 public abstract class CrawlingEventHandler implements PantopodEventHandler {
   private static Logger LOG = LoggerFactory.getLogger(CrawlingEventHandler.class);
+  private static final long UNKNOWN_BODY_BYTES = 256 * 1024; // reserved for a body without a Content-Length
 
   private final HttpClient httpClient;
   private final boolean checkErrors;
   private final boolean traverseDuplicates;
+  private final ConcurrentMap<String, LinkExtractor> linkExtractors;
+  private final ConcurrentMap<String, Long> recrawlIntervals;
+  private final ConcurrentMap<String, Integer> maxDepths;
+  private final ConcurrentMap<String, FetchPolicy> fetchPolicies;
+
+  private LinkExtractor defaultLinkExtractor;
+  private AsyncCrawlFetcher asyncFetcher;
+  private Executor callbackExecutor;
+  private SeenUrlFilterManager seenUrlFilters;
+  private PolitenessController politenessController;
+  private int maxThrottledAttempts;
+  private BodyCompressor bodyCompressor;
+  private long defaultRecrawlIntervalMillis;
+  private int defaultMaxDepth = -1;
+  private RevisitScheduler revisitScheduler;
+  private UrlCanonicalizer urlCanonicalizer;
+  private CrawlerTrapDetector trapDetector;
+  private RetryScheduler retryScheduler;
+  private FetchPolicy defaultFetchPolicy;
+  private ByteBudget byteBudget;
+  private PipelineStage parseStage;
+  private PipelineStage persistStage;
 
   public CrawlingEventHandler(HttpClient httpClient) {
     this(httpClient, true, false);
@@ -53,102 +92,786 @@ public abstract class CrawlingEventHandler implements PantopodEventHandler {
     this.httpClient = httpClient;
     this.checkErrors = checkErrors;
     this.traverseDuplicates = traverseDuplicates;
+    this.linkExtractors = new ConcurrentHashMap<>();
+    this.recrawlIntervals = new ConcurrentHashMap<>();
+    this.maxDepths = new ConcurrentHashMap<>();
+    this.fetchPolicies = new ConcurrentHashMap<>();
+    this.defaultLinkExtractor = new JsoupLinkExtractor();
+    this.bodyCompressor = new BodyCompressor(BodyCodec.NONE);
+    this.urlCanonicalizer = new UrlCanonicalizer();
+    this.defaultFetchPolicy = new FetchPolicy();
+  }
+
+  /**
+   * Sets the link extractor for resources that do not configure one.
+   */
+  public void setDefaultLinkExtractor(LinkExtractor defaultLinkExtractor) {
+    this.defaultLinkExtractor = defaultLinkExtractor;
+  }
+
+  /**
+   * Fetches pages with asyncFetcher in {@link #handleAsync(CrawlEvent)}, then stores and parses them on
+   * callbackExecutor.
+   */
+  public void setAsyncFetcher(AsyncCrawlFetcher asyncFetcher, Executor callbackExecutor) {
+    this.asyncFetcher = asyncFetcher;
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  /**
+   * Parses pages on parseStage and stores them on persistStage, so fetch threads go on to the next page instead of
+   * waiting on the parser and storage.
+   */
+  public void setPipeline(PipelineStage parseStage, PipelineStage persistStage) {
+    this.parseStage = parseStage;
+    this.persistStage = persistStage;
+  }
+
+  /**
+   * Skips the {@link #shouldExplore(URI)} storage check for URLs that seenUrlFilters says were already enqueued.
+   */
+  public void setSeenUrlFilters(SeenUrlFilterManager seenUrlFilters) {
+    this.seenUrlFilters = seenUrlFilters;
+  }
+
+  /**
+   * Asks politenessController before each fetch. Throttled pages are retried like other transient failures if there is
+   * a retry scheduler, and otherwise re-enqueued right away, until they have been throttled maxThrottledAttempts times
+   * and are marked as errors.
+   */
+  public void setPolitenessController(PolitenessController politenessController, int maxThrottledAttempts) {
+    this.politenessController = politenessController;
+    this.maxThrottledAttempts = maxThrottledAttempts;
+  }
+
+  /**
+   * Compresses page data with bodyCompressor before it is stored (see {@link #compressBody(URI, byte[])}).
+   */
+  public void setBodyCompressor(BodyCompressor bodyCompressor) {
+    this.bodyCompressor = bodyCompressor;
+  }
+
+  /**
+   * Fetches stored pages again (conditionally, see {@link PageValidators}) once they are older than
+   * recrawlIntervalMillis, for resources that do not configure an interval; 0 to never fetch them again.
+   */
+  public void setDefaultRecrawlIntervalMillis(long defaultRecrawlIntervalMillis) {
+    this.defaultRecrawlIntervalMillis = defaultRecrawlIntervalMillis;
+  }
+
+  /**
+   * Does not follow links deeper than maxDepth from the start page, for resources that do not configure a depth; -1 for
+   * no limit.
+   */
+  public void setDefaultMaxDepth(int defaultMaxDepth) {
+    this.defaultMaxDepth = defaultMaxDepth;
+  }
+
+  /**
+   * Turns the hrefs on pages into URLs with urlCanonicalizer.
+   */
+  public void setUrlCanonicalizer(UrlCanonicalizer urlCanonicalizer) {
+    this.urlCanonicalizer = urlCanonicalizer;
+  }
+
+  /**
+   * Does not follow links that trapDetector says are traps.
+   */
+  public void setTrapDetector(CrawlerTrapDetector trapDetector) {
+    this.trapDetector = trapDetector;
+  }
+
+  /**
+   * Reserves the body of each page in byteBudget before it is read, until it has been handled. The size of a body
+   * without a Content-Length is guessed, and the rest reserved as it is read.
+   */
+  public void setByteBudget(ByteBudget byteBudget) {
+    this.byteBudget = byteBudget;
+  }
+
+  /**
+   * Fetches pages again later with retryScheduler if their fetch failed transiently (an I/O error, or a status for
+   * which {@link RetryScheduler#isTransient(int)}), instead of marking them as errors.
+   */
+  public void setRetryScheduler(RetryScheduler retryScheduler) {
+    this.retryScheduler = retryScheduler;
+  }
+
+  /**
+   * Records each fetch with revisitScheduler, and handles the revisits it sends like stale pages.
+   */
+  public void setRevisitScheduler(RevisitScheduler revisitScheduler) {
+    this.revisitScheduler = revisitScheduler;
+  }
+
+  /**
+   * Limits the size and types of the pages that are fetched, for resources that do not configure limits.
+   */
+  public void setDefaultFetchPolicy(FetchPolicy defaultFetchPolicy) {
+    this.defaultFetchPolicy = defaultFetchPolicy;
+  }
+
+  /**
+   * Marks the URL of event as seen, now that it is enqueued (so a URL whose event was lost is not skipped later).
+   */
+  @Override
+  public void onProduced(CrawlEvent event) {
+    if (seenUrlFilters != null) {
+      seenUrlFilters.markSeen(URI.create(event.getUrl()));
+    }
+  }
+
+  @Override
+  public void onAssigned(String resource, int numKafkaPartitions, List<Integer> kafkaPartitions) {
+    if (seenUrlFilters != null) {
+      seenUrlFilters.assign(resource, numKafkaPartitions, kafkaPartitions);
+    }
+    if (revisitScheduler != null) {
+      revisitScheduler.assign(resource, numKafkaPartitions, kafkaPartitions);
+    }
+  }
+
+  @Override
+  public void onRevoked(String resource, List<Integer> kafkaPartitions) throws Exception {
+    if (seenUrlFilters != null) {
+      seenUrlFilters.revoke(resource, kafkaPartitions);
+    }
+    if (revisitScheduler != null) {
+      revisitScheduler.revoke(resource, kafkaPartitions);
+    }
+  }
+
+  @Override
+  public void configureResource(String resource, PantopodResourceConfig resourceConfig) {
+    if (resourceConfig.getLinkExtractor() == null) {
+      linkExtractors.remove(resource);
+    } else {
+      linkExtractors.put(resource, LinkExtractors.forName(resourceConfig.getLinkExtractor()));
+    }
+    if (resourceConfig.getRecrawlIntervalMillis() == null) {
+      recrawlIntervals.remove(resource);
+    } else {
+      recrawlIntervals.put(resource, resourceConfig.getRecrawlIntervalMillis());
+    }
+    if (resourceConfig.getMaxDepth() == null) {
+      maxDepths.remove(resource);
+    } else {
+      maxDepths.put(resource, resourceConfig.getMaxDepth());
+    }
+    if (resourceConfig.getMaxBodyBytes() == null && resourceConfig.getAllowedContentTypes() == null) {
+      fetchPolicies.remove(resource);
+    } else {
+      fetchPolicies.put(resource, defaultFetchPolicy.withLimits(
+          resourceConfig.getMaxBodyBytes(), resourceConfig.getAllowedContentTypes()));
+    }
+    if (revisitScheduler != null) {
+      revisitScheduler.setBudgetPerHour(resource, resourceConfig.getRevisitBudgetPerHour());
+    }
   }
 
   @Override
   public Set<CrawlEvent> handle(CrawlEvent event) throws Exception {
-    Set<CrawlEvent> nextEvents = new HashSet<>();
+    try {
+      return handleAsync(event).get();
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), Exception.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
 
-    // Get url
+  /**
+   * Fetches the page for event with the blocking client, and returns the events for its links once it is parsed and
+   * stored (right away if there is no pipeline).
+   */
+  private ListenableFuture<Set<CrawlEvent>> fetch(CrawlEvent event) throws Exception {
     URI url = URI.create(event.getUrl());
-    Document dom = null;
-    boolean created = false;
-    if (!checkErrors || !hasError(url)) {
-      HttpGet req = new HttpGet(url);
-      HttpResponse res = httpClient.execute(req);
-
-      try {
-        if (res.getStatusLine().getStatusCode() == 200) {
-          byte[] domBytes = IOUtils.toByteArray(res.getEntity().getContent());
-          created = handleData(url, domBytes);
-          dom = Jsoup.parse(new String(domBytes));
-        } else {
-          LOG.error("Error for {} #=> {}", url, res.getStatusLine().getStatusCode());
-          markError(url, res.getStatusLine().getStatusCode());
+    if (checkErrors && hasError(url)) {
+      return noEvents();
+    }
+
+    PageValidators validators = getRecrawlValidators(event, url);
+    if (validators != null && !event.isRevisit() && !isStale(url, validators)) {
+      return noEvents();
+    }
+
+    FetchPolicy fetchPolicy = getFetchPolicy(url);
+    if (validators == null && fetchPolicy.shouldProbe(url) && isSkippedByProbe(url, fetchPolicy)) {
+      return noEvents();
+    }
+
+    HttpGet req = new HttpGet(url);
+    if (validators != null) {
+      validators.applyTo(req);
+    }
+    PolitenessController.Permit permit = acquirePermit(url);
+    HttpResponse res;
+    try {
+      res = httpClient.execute(req);
+    } catch (Exception e) {
+      releasePermitFailed(permit);
+      if (e instanceof IOException && retry(event, null, e)) {
+        return noEvents();
+      }
+      throw e;
+    }
+    // Released once the body is read, so its latency counts and the authority's limit covers the download
+    HttpResponse permitResponse = null;
+    try {
+      ListenableFuture<Set<CrawlEvent>> nextEvents = handleResponse(event, url, res, validators);
+      permitResponse = res;
+      return nextEvents;
+    } catch (FetchPolicy.SkippedException e) {
+      // Closes the connection instead of reading the rest of the body
+      req.abort();
+      permitResponse = e.getResponse();
+      handleSkipped(url, e);
+      return noEvents();
+    } finally {
+      if (res.getEntity() != null) {
+        EntityUtils.consumeQuietly(res.getEntity());
+      }
+      if (permitResponse == null) {
+        releasePermitFailed(permit);
+      } else {
+        releasePermit(permit, permitResponse);
+      }
+    }
+  }
+
+  @Override
+  public ListenableFuture<Set<CrawlEvent>> handleAsync(CrawlEvent event) {
+    ListenableFuture<Set<CrawlEvent>> nextEvents;
+    try {
+      // Consumed, so enqueued: the owner of its partition learns the URLs other nodes enqueued
+      if (seenUrlFilters != null) {
+        seenUrlFilters.markSeen(URI.create(event.getUrl()));
+      }
+      nextEvents = asyncFetcher == null ? fetch(event) : fetchNonBlocking(event);
+    } catch (Exception e) {
+      nextEvents = Futures.immediateFailedFuture(e);
+    }
+    return retryOnFailure(event, nextEvents);
+  }
+
+  /**
+   * Retries event later with the retry scheduler if handling it failed (e.g. storage was unavailable), instead of
+   * dropping it, unless it has no attempts left.
+   */
+  private ListenableFuture<Set<CrawlEvent>> retryOnFailure(final CrawlEvent event,
+                                                           ListenableFuture<Set<CrawlEvent>> nextEvents) {
+    if (retryScheduler == null) {
+      return nextEvents;
+    }
+    return Futures.withFallback(nextEvents, new FutureFallback<Set<CrawlEvent>>() {
+      @Override
+      public ListenableFuture<Set<CrawlEvent>> create(Throwable t) {
+        if (retry(event, null, t)) {
+          return noEvents();
         }
-      } finally {
-        if (res.getEntity() != null) {
-          EntityUtils.consumeQuietly(res.getEntity());
+        return Futures.immediateFailedFuture(t);
+      }
+    });
+  }
+
+  /**
+   * Fetches the page for event with the async fetcher, and returns the events for its links once it is parsed and
+   * stored.
+   */
+  private ListenableFuture<Set<CrawlEvent>> fetchNonBlocking(final CrawlEvent event) {
+    try {
+      final URI url = URI.create(event.getUrl());
+      if (checkErrors && hasError(url)) {
+        return noEvents();
+      }
+
+      final PageValidators validators = getRecrawlValidators(event, url);
+      if (validators != null && !event.isRevisit() && !isStale(url, validators)) {
+        return noEvents();
+      }
+
+      final FetchPolicy fetchPolicy = getFetchPolicy(url);
+      if (validators == null && fetchPolicy.shouldProbe(url)) {
+        ListenableFuture<HttpResponse> probe = Futures.withFallback(
+            asyncFetcher.fetch(new HttpHead(url)),
+            new FutureFallback<HttpResponse>() {
+              @Override
+              public ListenableFuture<HttpResponse> create(Throwable t) {
+                // Fetch it to find out
+                return Futures.immediateFuture(null);
+              }
+            });
+        return Futures.transform(probe, new AsyncFunction<HttpResponse, Set<CrawlEvent>>() {
+          @Override
+          public ListenableFuture<Set<CrawlEvent>> apply(HttpResponse res) throws Exception {
+            if (res != null && isSkippedByProbe(url, fetchPolicy, res)) {
+              return noEvents();
+            }
+            return fetchAsync(event, url, validators, fetchPolicy);
+          }
+        }, callbackExecutor);
+      }
+
+      return fetchAsync(event, url, validators, fetchPolicy);
+    } catch (Exception e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  private ListenableFuture<Set<CrawlEvent>> fetchAsync(final CrawlEvent event,
+                                                       final URI url,
+                                                       final PageValidators validators,
+                                                       final FetchPolicy fetchPolicy) throws Exception {
+    final HttpGet req = new HttpGet(url);
+    if (validators != null) {
+      validators.applyTo(req);
+    }
+    ListenableFuture<HttpResponse> response;
+    if (politenessController == null) {
+      response = asyncFetcher.fetch(req, fetchPolicy);
+    } else {
+      // Waits for the permit without holding a thread, then starts the request on a callback thread
+      response = Futures.transform(politenessController.acquireAsync(url.getAuthority()),
+          new AsyncFunction<PolitenessController.Permit, HttpResponse>() {
+            @Override
+            public ListenableFuture<HttpResponse> apply(PolitenessController.Permit permit) throws Exception {
+              return fetchAsync(req, fetchPolicy, permit);
+            }
+          }, callbackExecutor);
+    }
+
+    response = Futures.withFallback(response, new FutureFallback<HttpResponse>() {
+      @Override
+      public ListenableFuture<HttpResponse> create(Throwable t) throws Exception {
+        if (t instanceof FetchPolicy.SkippedException) {
+          handleSkipped(url, (FetchPolicy.SkippedException) t);
+          return Futures.immediateFuture(null);
         }
+        if (t instanceof IOException && retry(event, null, t)) {
+          return Futures.immediateFuture(null);
+        }
+        return Futures.immediateFailedFuture(t);
+      }
+    }, callbackExecutor);
+
+    return Futures.transform(response, new AsyncFunction<HttpResponse, Set<CrawlEvent>>() {
+      @Override
+      public ListenableFuture<Set<CrawlEvent>> apply(HttpResponse res) throws Exception {
+        if (res == null) {
+          // Skipped or retried
+          return noEvents();
+        }
+        return handleResponse(event, url, res, validators);
       }
+    }, callbackExecutor);
+  }
+
+  /**
+   * Starts req with the async fetcher, releasing permit once its response (whose body is buffered) completes.
+   */
+  private ListenableFuture<HttpResponse> fetchAsync(HttpGet req,
+                                                    FetchPolicy fetchPolicy,
+                                                    final PolitenessController.Permit permit) throws Exception {
+    ListenableFuture<HttpResponse> response;
+    try {
+      response = asyncFetcher.fetch(req, fetchPolicy);
+    } catch (Exception e) {
+      releasePermitFailed(permit);
+      throw e;
     }
+    Futures.addCallback(response, new FutureCallback<HttpResponse>() {
+      @Override
+      public void onSuccess(HttpResponse res) {
+        releasePermit(permit, res);
+      }
 
-    // Extract links
-    if ((created || traverseDuplicates) && dom != null) {
-      for (Element element : dom.select("a")) {
-        String href = element.attr("href");
-        if (href != null) {
-          URI nextUri = getNextUri(url, href, event.getChroot());
-          if (shouldExplore(nextUri)
-              && isSameDomain(url, nextUri)
-              && isDifferentPage(url, nextUri)) {
-            CrawlEvent nextEvent = new CrawlEvent(event);
-            nextEvent.setUrl(nextUri.toString());
-            nextEvent.setParentUrl(event.getUrl());
-            nextEvent.setDepth(event.getDepth() + 1);
-            nextEvents.add(nextEvent);
-            LOG.debug("Exploring {}", nextUri);
-          } else {
-            LOG.debug("Skipping {}", nextUri);
-          }
+      @Override
+      public void onFailure(Throwable t) {
+        if (t instanceof FetchPolicy.SkippedException) {
+          releasePermit(permit, ((FetchPolicy.SkippedException) t).getResponse());
+        } else {
+          releasePermitFailed(permit);
         }
       }
+    });
+    return response;
+  }
+
+  /**
+   * Probes url with a HEAD request, and returns true (having recorded it) if fetchPolicy says it should be skipped.
+   */
+  private boolean isSkippedByProbe(URI url, FetchPolicy fetchPolicy) throws IOException {
+    HttpHead req = new HttpHead(url);
+    HttpResponse res;
+    try {
+      res = httpClient.execute(req);
+    } catch (IOException e) {
+      // Fetch it to find out
+      return false;
+    }
+    try {
+      return isSkippedByProbe(url, fetchPolicy, res);
+    } finally {
+      if (res.getEntity() != null) {
+        EntityUtils.consumeQuietly(res.getEntity());
+      }
+    }
+  }
+
+  private boolean isSkippedByProbe(URI url, FetchPolicy fetchPolicy, HttpResponse res) throws IOException {
+    if (res.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+      // Not all servers support HEAD
+      return false;
+    }
+    try {
+      fetchPolicy.checkHeaders(res);
+      return false;
+    } catch (FetchPolicy.SkippedException e) {
+      handleSkipped(url, e);
+      return true;
+    }
+  }
+
+  private static ListenableFuture<Set<CrawlEvent>> noEvents() {
+    return Futures.<Set<CrawlEvent>>immediateFuture(new HashSet<CrawlEvent>());
+  }
+
+  private void handleSkipped(URI url, FetchPolicy.SkippedException e) throws IOException {
+    LOG.info("Skipping {}: {}", url, e.getMessage());
+    markSkipped(url, e.getResponse(), e.getMessage());
+  }
+
+  /**
+   * Reads the response for url, then parses and stores it, on the pipeline's stages if there is one (see
+   * {@link #setPipeline}), and returns the events for the links it contains if it is new. Its body stays reserved in
+   * the byte budget until it is stored.
+   */
+  private ListenableFuture<Set<CrawlEvent>> handleResponse(CrawlEvent event,
+                                                           URI url,
+                                                           HttpResponse res,
+                                                           PageValidators validators) throws Exception {
+    final ByteBudget.Reservation reservation = reserveBody(url, res);
+    ListenableFuture<Set<CrawlEvent>> nextEvents;
+    try {
+      FetchedPage page = readPage(event, url, res, validators, reservation);
+      if (page.nextEvents != null) {
+        nextEvents = Futures.immediateFuture(page.nextEvents);
+      } else if (parseStage == null) {
+        nextEvents = Futures.immediateFuture(storePage(page));
+      } else {
+        nextEvents = processPage(page);
+      }
+    } catch (Exception e) {
+      if (reservation != null) {
+        reservation.release();
+      }
+      throw e;
     }
 
+    if (reservation != null) {
+      nextEvents.addListener(new Runnable() {
+        @Override
+        public void run() {
+          reservation.release();
+        }
+      }, MoreExecutors.directExecutor());
+    }
     return nextEvents;
   }
 
-  private URI getNextUri(URI url, String href, String chroot) throws Exception {
-//    if (href.contains("..")) {
-//
-//      throw new IllegalArgumentException("Relative URI not allowed: " + href);
-//    }
+  /**
+   * Returns the reservation of the body of res, waiting for the budget to allow it if it is not yet read, or null if
+   * there is no budget or no body to read.
+   */
+  private ByteBudget.Reservation reserveBody(URI url, HttpResponse res) throws InterruptedException {
+    ByteBudget.Reservation reservation = AsyncCrawlFetcher.getReservation(res);
+    if (reservation != null
+        || byteBudget == null
+        || res.getEntity() == null
+        || res.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+      return reservation;
+    }
+    long numBytes = res.getEntity().getContentLength();
+    if (numBytes < 0) {
+      numBytes = UNKNOWN_BODY_BYTES;
+    }
+    long maxBodyBytes = getFetchPolicy(url).getMaxBodyBytes();
+    if (maxBodyBytes > 0) {
+      numBytes = Math.min(numBytes, maxBodyBytes);
+    }
+    return byteBudget.reserve(numBytes);
+  }
 
-    URI hrefUri = URI.create(href.trim().replaceAll(" ", "+"));
+  /**
+   * Reads the body of res (or the stored copy of url if it was not modified), or sets the next events if the response
+   * needs nothing else.
+   */
+  private FetchedPage readPage(CrawlEvent event,
+                               URI url,
+                               HttpResponse res,
+                               PageValidators validators,
+                               ByteBudget.Reservation reservation) throws Exception {
+    FetchedPage page = new FetchedPage(event, url, res, validators, System.currentTimeMillis());
 
-    URIBuilder builder = new URIBuilder();
+    if (politenessController != null
+        && retryScheduler == null
+        && PolitenessController.isThrottled(res)
+        && event.getAttempt() + 1 < maxThrottledAttempts) {
+      // With a retry scheduler, this is a transient failure (see storePage), retried after a backoff. Otherwise, once
+      // out of attempts, it is marked as an error there
+      LOG.warn("Throttled for {} #=> {}, will retry", url, res.getStatusLine().getStatusCode());
+      CrawlEvent retryEvent = new CrawlEvent(event);
+      retryEvent.setAttempt(event.getAttempt() + 1);
+      page.nextEvents = new HashSet<>();
+      page.nextEvents.add(retryEvent);
+    } else if (validators != null && res.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+      page.domBytes = readData(url);
+    } else if (res.getStatusLine().getStatusCode() == 200) {
+      page.domBytes = getFetchPolicy(url).readBody(res, reservation);
+      page.contentHash = ContentHash.of(page.domBytes).toString();
+    }
 
-    builder.setScheme(hrefUri.getScheme() == null ? url.getScheme() : hrefUri.getScheme());
-    builder.setHost(hrefUri.getHost() == null ? url.getHost() : hrefUri.getHost());
-    builder.setPort(hrefUri.getPort() == -1 ? url.getPort() : hrefUri.getPort());
+    return page;
+  }
 
-    if (hrefUri.getPath() != null) {
-      StringBuilder path = new StringBuilder();
-      if (hrefUri.getHost() == null && chroot != null) {
-        path.append(chroot);
+  /**
+   * Parses page on the parse stage (unless its links will not be followed), then stores it on the persist stage.
+   *
+   * <p>
+   *   Both wait while the next stage's queue is full, so a slow store holds up parsing, which holds up fetching.
+   * </p>
+   */
+  private ListenableFuture<Set<CrawlEvent>> processPage(final FetchedPage page) throws InterruptedException {
+    ListenableFuture<FetchedPage> parsed = parseStage.submit(new Callable<FetchedPage>() {
+      @Override
+      public FetchedPage call() throws Exception {
+        if (mayFollowLinks(page)) {
+          parseLinks(page);
+        }
+        return page;
       }
+    });
 
-      // Ensure no two slashes
-      if (hrefUri.getPath() != null
-          && hrefUri.getPath().length() > 0
-          && hrefUri.getPath().charAt(0) == '/'
-          && path.length() > 0
-          && path.charAt(path.length() - 1) == '/') {
-        path.setLength(path.length() - 1);
+    return Futures.transform(parsed, new AsyncFunction<FetchedPage, Set<CrawlEvent>>() {
+      @Override
+      public ListenableFuture<Set<CrawlEvent>> apply(final FetchedPage page) throws Exception {
+        return persistStage.submit(new Callable<Set<CrawlEvent>>() {
+          @Override
+          public Set<CrawlEvent> call() throws Exception {
+            return storePage(page);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Returns false if the links of page will not be followed whether or not it is new.
+   */
+  private boolean mayFollowLinks(FetchedPage page) {
+    if (page.domBytes == null || isTooDeep(page.url, page.event.getDepth() + 1)) {
+      return false;
+    }
+    if (page.validators == null || !page.event.isRevisit()) {
+      return true;
+    }
+    // Revisits are only followed if changed
+    return page.contentHash != null && !page.contentHash.equals(page.validators.getContentHash());
+  }
+
+  /**
+   * Extracts the links of page, resolved and canonicalized, except those to itself.
+   */
+  private void parseLinks(FetchedPage page) throws IOException {
+    List<URI> links = new ArrayList<>();
+    URI canonicalUrl = urlCanonicalizer.canonicalize(page.url);
+    for (String href : getLinkExtractor(page.url).extractLinks(page.url, page.domBytes, getCharset(page.res))) {
+      if (href != null) {
+        URI nextUri = urlCanonicalizer.resolve(page.url, href, page.event.getChroot());
+        if (nextUri != null && !nextUri.equals(canonicalUrl)) {
+          links.add(nextUri);
+        } else {
+          LOG.debug("Skipping {}", nextUri);
+        }
+      }
+    }
+    page.links = links;
+  }
+
+  /**
+   * Stores page, and returns the events for the links it contains if it is new.
+   *
+   * <p>
+   *   If url was fetched again (validators is not null), the stored copy is only replaced if it changed, and its links
+   *   are followed either way (from the stored copy if unchanged), so stale pages below it are fetched again too. The
+   *   links of a revisited page (see {@link RevisitScheduler}) are only followed if it changed.
+   * </p>
+   */
+  private Set<CrawlEvent> storePage(FetchedPage page) throws Exception {
+    CrawlEvent event = page.event;
+    URI url = page.url;
+    HttpResponse res = page.res;
+    PageValidators validators = page.validators;
+    Set<CrawlEvent> nextEvents = new HashSet<>();
+    Stored stored = Stored.NONE;
+    Boolean changed = null;
+
+    if (validators != null && res.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+      LOG.info("Not modified {}", url);
+      storeValidators(url, validators.revalidated(res, page.fetchTime));
+      changed = false;
+    } else if (res.getStatusLine().getStatusCode() == 200) {
+      if (validators == null) {
+        stored = handleData(url, res, page.domBytes);
+        if (stored != Stored.NONE && trapDetector != null) {
+          trapDetector.recordPage(url);
+        }
+      } else if (page.contentHash.equals(validators.getContentHash())) {
+        LOG.info("Unchanged {}", url);
+        changed = false;
+      } else {
+        replaceData(url, res, page.domBytes);
+        LOG.info("Changed {}", url);
+        changed = true;
+      }
+      storeValidators(url, PageValidators.fromResponse(res, page.contentHash, page.fetchTime));
+    } else if (RetryScheduler.isTransient(res.getStatusLine().getStatusCode())
+        && retry(event, res, res.getStatusLine().getStatusCode())) {
+      return nextEvents;
+    } else {
+      LOG.error("Error for {} #=> {}", url, res.getStatusLine().getStatusCode());
+      markError(url, res.getStatusLine().getStatusCode());
+      if (revisitScheduler != null && event.isRevisit()) {
+        revisitScheduler.forget(url.getAuthority(), event.getUrl());
+      }
+    }
+
+    if (revisitScheduler != null && (stored != Stored.NONE || changed != null)) {
+      revisitScheduler.recordFetch(url.getAuthority(), event, changed, page.fetchTime);
+    }
+
+    // Follow links, once per content: a new url with the content of another page has the same links
+    boolean followLinks = stored == Stored.NEW
+        || traverseDuplicates
+        || Boolean.TRUE.equals(changed)
+        || (validators != null && !event.isRevisit());
+    if (followLinks && page.domBytes != null && !isTooDeep(url, event.getDepth() + 1)) {
+      if (page.links == null) {
+        parseLinks(page);
+      }
+      for (URI nextUri : page.links) {
+        if (isSameDomain(url, nextUri) && !isTrap(nextUri) && shouldVisit(nextUri)) {
+          CrawlEvent nextEvent = new CrawlEvent(event);
+          nextEvent.setUrl(nextUri.toString());
+          nextEvent.setParentUrl(event.getUrl());
+          nextEvent.setDepth(event.getDepth() + 1);
+          nextEvent.setRevisit(false);
+          nextEvent.setAttempt(0);
+          nextEvents.add(nextEvent);
+          LOG.debug("Exploring {}", nextUri);
+        } else {
+          LOG.debug("Skipping {}", nextUri);
+        }
       }
+    }
 
-      path.append(hrefUri.getPath());
+    return nextEvents;
+  }
 
-      builder.setPath(chroot == null ? "" : chroot + hrefUri.getPath());
+  /**
+   * Returns whether url should be enqueued: if it is not stored, or is stale if pages of its resource are recrawled.
+   */
+  private boolean shouldVisit(URI url) throws IOException {
+    if (getRecrawlIntervalMillis(url) <= 0) {
+      return !isSeen(url) && shouldExplore(url);
     }
-    if (hrefUri.getQuery() != null) {
-      builder.setCustomQuery(hrefUri.getQuery());
+
+    // Stored pages are visited again once stale, so the seen filter does not apply
+    if (shouldExplore(url)) {
+      return true;
+    }
+    PageValidators validators = getValidators(url);
+    return validators == null ? !hasError(url) : isStale(url, validators);
+  }
+
+  /**
+   * Returns the validators of url if it is stored and event is a revisit or pages of its resource are recrawled,
+   * otherwise null.
+   */
+  private PageValidators getRecrawlValidators(CrawlEvent event, URI url) throws IOException {
+    if (!event.isRevisit() && getRecrawlIntervalMillis(url) <= 0) {
+      return null;
+    }
+    PageValidators validators = getValidators(url);
+    if (validators == null && !shouldExplore(url)) {
+      // Stored before validators were kept
+      validators = new PageValidators(null, null, null, 0);
+    }
+    return validators;
+  }
+
+  private boolean isTooDeep(URI url, int depth) {
+    Integer maxDepth = maxDepths.get(url.getAuthority());
+    int limit = maxDepth == null ? defaultMaxDepth : maxDepth;
+    return limit >= 0 && depth > limit;
+  }
+
+  private FetchPolicy getFetchPolicy(URI url) {
+    FetchPolicy fetchPolicy = fetchPolicies.get(url.getAuthority());
+    return fetchPolicy == null ? defaultFetchPolicy : fetchPolicy;
+  }
+
+  private boolean isStale(URI url, PageValidators validators) {
+    return System.currentTimeMillis() - validators.getFetchTime() >= getRecrawlIntervalMillis(url);
+  }
+
+  private long getRecrawlIntervalMillis(URI url) {
+    Long recrawlIntervalMillis = recrawlIntervals.get(url.getAuthority());
+    return recrawlIntervalMillis == null ? defaultRecrawlIntervalMillis : recrawlIntervalMillis;
+  }
+
+  /**
+   * Schedules event to be fetched again after a transient failure, returning false if it should count as permanent.
+   */
+  private boolean retry(CrawlEvent event, HttpResponse res, Object failure) {
+    if (retryScheduler == null || !retryScheduler.retry(event, res)) {
+      return false;
     }
-    if (hrefUri.getFragment() != null) {
-      builder.setFragment(hrefUri.getFragment());
+    LOG.warn("Transient failure for {} #=> {}", event.getUrl(), String.valueOf(failure));
+    return true;
+  }
+
+  private PolitenessController.Permit acquirePermit(URI url) throws InterruptedException {
+    return politenessController == null ? null : politenessController.acquire(url.getAuthority());
+  }
+
+  private static void releasePermit(PolitenessController.Permit permit, HttpResponse res) {
+    if (permit != null) {
+      permit.release(res);
     }
+  }
 
-    return builder.build();
+  private static void releasePermitFailed(PolitenessController.Permit permit) {
+    if (permit != null) {
+      permit.releaseFailed();
+    }
+  }
+
+  private LinkExtractor getLinkExtractor(URI url) {
+    LinkExtractor linkExtractor = linkExtractors.get(url.getAuthority());
+    return linkExtractor == null ? defaultLinkExtractor : linkExtractor;
+  }
+
+  private static Charset getCharset(HttpResponse res) {
+    try {
+      ContentType contentType = ContentType.get(res.getEntity());
+      return contentType == null ? null : contentType.getCharset();
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private boolean isSeen(URI url) {
+    return seenUrlFilters != null && seenUrlFilters.isSeen(url);
   }
 
   private boolean isSameDomain(URI url, URI nextUrl) throws IOException {
@@ -159,17 +882,101 @@ public abstract class CrawlingEventHandler implements PantopodEventHandler {
     return false;
   }
 
-  private boolean isDifferentPage(URI url, URI nextUrl) throws IOException {
-    return nextUrl.getPath() != null && !nextUrl.getPath().equals(url.getPath());
+  private boolean isTrap(URI url) {
+    return trapDetector != null && trapDetector.isTrap(url);
   }
 
   protected abstract void handleExternalDomain(URI srcUrl, URI dstUrl) throws IOException;
 
-  protected abstract boolean handleData(URI url, byte[] data) throws IOException;
+  /**
+   * What {@link #handleData} stored for a page.
+   */
+  protected enum Stored {
+    /** Nothing, the page was already stored */
+    NONE,
+    /** The page, as a reference to the same content stored for another page */
+    DUPLICATE,
+    /** The page and its content */
+    NEW
+  }
+
+  protected abstract Stored handleData(URI url, byte[] data) throws IOException;
+
+  /**
+   * Stores the data of a page, for handlers that also keep its response headers.
+   */
+  protected Stored handleData(URI url, HttpResponse res, byte[] data) throws IOException {
+    return handleData(url, data);
+  }
+
+  /**
+   * Replaces the stored data of a page that changed since it was stored.
+   */
+  protected abstract void replaceData(URI url, HttpResponse res, byte[] data) throws IOException;
+
+  /**
+   * Returns the page data stored for url, or null if there is none.
+   */
+  public abstract byte[] readData(URI url) throws IOException;
+
+  /**
+   * Returns the validators stored for url, or null if there are none.
+   */
+  protected abstract PageValidators getValidators(URI url) throws IOException;
+
+  protected abstract void storeValidators(URI url, PageValidators validators) throws IOException;
+
+  /**
+   * Returns data as it should be stored for url.
+   */
+  protected byte[] compressBody(URI url, byte[] data) throws IOException {
+    return bodyCompressor.compress(url.getAuthority(), data);
+  }
+
+  /**
+   * Returns the page data of stored, whichever codec it was stored with.
+   */
+  protected byte[] decompressBody(byte[] stored) throws IOException {
+    return bodyCompressor.decompress(stored);
+  }
 
   protected abstract boolean shouldExplore(URI url);
 
   protected abstract boolean hasError(URI url);
 
   protected abstract void markError(URI url, int errorCode) throws IOException;
+
+  /**
+   * Records that url was not fetched (or not stored) because of its headers or size, so it is not fetched again.
+   *
+   * <p>
+   *   By default this marks it as an error with the response status.
+   * </p>
+   */
+  protected void markSkipped(URI url, HttpResponse res, String reason) throws IOException {
+    markError(url, res.getStatusLine().getStatusCode());
+  }
+
+  /**
+   * A response as it goes from fetch to parse to store.
+   */
+  private static class FetchedPage {
+    private final CrawlEvent event;
+    private final URI url;
+    private final HttpResponse res;
+    private final PageValidators validators;
+    private final long fetchTime;
+    private byte[] domBytes;
+    private String contentHash;
+    private List<URI> links;
+    private Set<CrawlEvent> nextEvents;
+
+    FetchedPage(CrawlEvent event, URI url, HttpResponse res, PageValidators validators, long fetchTime) {
+      this.event = event;
+      this.url = url;
+      this.res = res;
+      this.validators = validators;
+      this.fetchTime = fetchTime;
+    }
+  }
 }
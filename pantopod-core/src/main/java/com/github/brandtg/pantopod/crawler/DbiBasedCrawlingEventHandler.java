@@ -15,16 +15,23 @@
  */
 package com.github.brandtg.pantopod.crawler;
 
+import com.github.brandtg.pantopod.api.ContentHash;
+import com.google.common.hash.HashCode;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
-import org.skife.jdbi.v2.util.BooleanMapper;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+import org.skife.jdbi.v2.util.ByteArrayMapper;
 import org.skife.jdbi.v2.util.IntegerMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 
 public class DbiBasedCrawlingEventHandler extends CrawlingEventHandler {
   private static final Logger LOG = LoggerFactory.getLogger(DbiBasedCrawlingEventHandler.class);
@@ -37,14 +44,61 @@ public class DbiBasedCrawlingEventHandler extends CrawlingEventHandler {
       + "`src` VARCHAR(255),"
       + "`dst` VARCHAR(255),"
       + "PRIMARY KEY(`src`, `dst`))";
+  private static final String CREATE_CONTENT_TABLE = "CREATE TABLE IF NOT EXISTS `pantopod_content` ("
+      + "`hash` BINARY(16),"
+      + "`data` LONGBLOB,"
+      + "PRIMARY KEY(`hash`))";
+  private static final String CREATE_CONTENT_REF_TABLE = "CREATE TABLE IF NOT EXISTS `pantopod_content_ref` ("
+      + "`url` VARCHAR(255),"
+      + "`hash` BINARY(16),"
+      + "PRIMARY KEY(`url`))";
+  private static final String CREATE_VALIDATORS_TABLE = "CREATE TABLE IF NOT EXISTS `pantopod_validators` ("
+      + "`url` VARCHAR(255),"
+      + "`etag` VARCHAR(255),"
+      + "`last_modified` VARCHAR(64),"
+      + "`content_hash` BINARY(16),"
+      + "`fetch_time` BIGINT,"
+      + "PRIMARY KEY(`url`))";
+  private static final String CREATE_SKIPPED_TABLE = "CREATE TABLE IF NOT EXISTS `pantopod_skipped` ("
+      + "`url` VARCHAR(255),"
+      + "`status` INT,"
+      + "`content_type` VARCHAR(255),"
+      + "`content_length` BIGINT,"
+      + "`reason` VARCHAR(255),"
+      + "PRIMARY KEY(`url`))";
+  static final String UPSERT_VALIDATORS = "INSERT INTO `pantopod_validators`"
+      + " (`url`, `etag`, `last_modified`, `content_hash`, `fetch_time`) VALUES (?, ?, ?, ?, ?)"
+      + " ON DUPLICATE KEY UPDATE `etag` = VALUES(`etag`), `last_modified` = VALUES(`last_modified`),"
+      + " `content_hash` = VALUES(`content_hash`), `fetch_time` = VALUES(`fetch_time`)";
   private final DBI dbi;
+  private final DbiBatchWriter batchWriter;
+  private final boolean dedupe;
 
   public DbiBasedCrawlingEventHandler(HttpClient httpClient, DBI dbi) {
+    this(httpClient, dbi, null, false);
+  }
+
+  /**
+   * @param batchWriter
+   *  If not null, rows are buffered here and written in batches instead of one statement per row
+   * @param dedupe
+   *  If true, page data is stored once per content hash in pantopod_content, and each page in pantopod_crawler
+   *  (with null data) has a pantopod_content_ref to it
+   */
+  public DbiBasedCrawlingEventHandler(HttpClient httpClient, DBI dbi, DbiBatchWriter batchWriter, boolean dedupe) {
     super(httpClient);
     this.dbi = dbi;
+    this.batchWriter = batchWriter;
+    this.dedupe = dedupe;
     try (Handle handle = dbi.open()) {
       handle.execute(CREATE_DATA_TABLE);
       handle.execute(CREATE_EXT_TABLE);
+      handle.execute(CREATE_VALIDATORS_TABLE);
+      handle.execute(CREATE_SKIPPED_TABLE);
+      if (dedupe) {
+        handle.execute(CREATE_CONTENT_TABLE);
+        handle.execute(CREATE_CONTENT_REF_TABLE);
+      }
     } catch (Exception e) {
       throw new IllegalStateException(e);
     }
@@ -52,8 +106,13 @@ public class DbiBasedCrawlingEventHandler extends CrawlingEventHandler {
 
   @Override
   protected void handleExternalDomain(URI srcUrl, URI dstUrl) throws IOException {
+    if (batchWriter != null) {
+      batchWriter.addExternalDomain(srcUrl.getAuthority(), dstUrl.getAuthority());
+      return;
+    }
+
     try (Handle handle = dbi.open()) {
-      int numRows = handle.update("INSERT IGNORE INTO `pantopod_ext` (`src_url`, `dst_url`) VALUES (?, ?)",
+      int numRows = handle.update("INSERT IGNORE INTO `pantopod_ext` (`src`, `dst`) VALUES (?, ?)",
           srcUrl.getAuthority(), dstUrl.getAuthority());
       if (numRows > 0) {
         LOG.info("Inserted {} #=> {}", srcUrl.getAuthority(), dstUrl.getAuthority());
@@ -62,47 +121,239 @@ public class DbiBasedCrawlingEventHandler extends CrawlingEventHandler {
   }
 
   @Override
-  protected boolean handleData(URI url, byte[] data) throws IOException {
+  protected Stored handleData(URI url, byte[] data) throws IOException {
+    if (dedupe) {
+      return handleContent(url, data);
+    }
+
+    if (batchWriter != null) {
+      // Created only if neither buffered nor already written
+      boolean created = !batchWriter.isPending(url.toString())
+          && !exists(url)
+          && batchWriter.addData(url.toString(), compressBody(url, data));
+      return created ? Stored.NEW : Stored.NONE;
+    }
+
+    byte[] stored = compressBody(url, data);
     try (Handle handle = dbi.open()) {
-      int numRows = handle.update("INSERT IGNORE INTO `pantopod_crawler` (`url`, `data`) VALUES (?, ?)", url.toString(), data);
+      int numRows = handle.update(
+          "INSERT IGNORE INTO `pantopod_crawler` (`url`, `data`) VALUES (?, ?)", url.toString(), stored);
       if (numRows > 0) {
         LOG.info("Inserted {}", url);
       }
-      return true;
+      return Stored.NEW;
     } catch (Exception e) {
       LOG.error("Could not insert {}", url, e);
-      return false;
+      return Stored.NONE;
+    }
+  }
+
+  /**
+   * Stores url as a reference to the content of data, and the content itself unless it is already stored.
+   */
+  private Stored handleContent(URI url, byte[] data) throws IOException {
+    HashCode hash = ContentHash.of(data);
+    if (batchWriter != null) {
+      if (batchWriter.isPending(url.toString()) || exists(url)) {
+        return Stored.NONE;
+      }
+      boolean stored = batchWriter.isPendingContent(hash) || contentExists(hash);
+      return batchWriter.addContent(url.toString(), hash, stored ? null : compressBody(url, data))
+          ? Stored.NEW : Stored.DUPLICATE;
+    }
+
+    byte[] stored = compressBody(url, data);
+    try (Handle handle = dbi.open()) {
+      handle.begin();
+      try {
+        if (handle.update("INSERT IGNORE INTO `pantopod_crawler` (`url`) VALUES (?)", url.toString()) == 0) {
+          handle.rollback();
+          return Stored.NONE;
+        }
+        int numRows = handle.update("INSERT IGNORE INTO `pantopod_content` (`hash`, `data`) VALUES (?, ?)",
+            hash.asBytes(), stored);
+        handle.update("INSERT IGNORE INTO `pantopod_content_ref` (`url`, `hash`) VALUES (?, ?)",
+            url.toString(), hash.asBytes());
+        handle.commit();
+        LOG.info("Inserted {}{}", url, numRows > 0 ? "" : " (duplicate of " + hash + ")");
+        return numRows > 0 ? Stored.NEW : Stored.DUPLICATE;
+      } catch (Exception e) {
+        handle.rollback();
+        throw e;
+      }
+    } catch (Exception e) {
+      LOG.error("Could not insert {}", url, e);
+      return Stored.NONE;
+    }
+  }
+
+  private boolean contentExists(HashCode hash) {
+    try (Handle handle = dbi.open()) {
+      Integer count = handle.createQuery("SELECT COUNT(*) FROM `pantopod_content` WHERE `hash` = :hash")
+          .bind("hash", hash.asBytes())
+          .map(IntegerMapper.FIRST)
+          .first();
+      return count > 0;
+    }
+  }
+
+  @Override
+  protected void replaceData(URI url, HttpResponse res, byte[] data) throws IOException {
+    byte[] stored = compressBody(url, data);
+    try (Handle handle = dbi.open()) {
+      if (dedupe) {
+        HashCode hash = ContentHash.of(data);
+        handle.begin();
+        try {
+          handle.update("INSERT IGNORE INTO `pantopod_crawler` (`url`) VALUES (?)", url.toString());
+          handle.update("INSERT IGNORE INTO `pantopod_content` (`hash`, `data`) VALUES (?, ?)", hash.asBytes(), stored);
+          handle.update("INSERT INTO `pantopod_content_ref` (`url`, `hash`) VALUES (?, ?)"
+              + " ON DUPLICATE KEY UPDATE `hash` = VALUES(`hash`)", url.toString(), hash.asBytes());
+          handle.commit();
+        } catch (Exception e) {
+          handle.rollback();
+          throw e;
+        }
+      } else {
+        handle.update("INSERT INTO `pantopod_crawler` (`url`, `data`) VALUES (?, ?)"
+            + " ON DUPLICATE KEY UPDATE `data` = VALUES(`data`), `error` = NULL", url.toString(), stored);
+      }
+      LOG.info("Replaced {}", url);
+    }
+  }
+
+  @Override
+  protected PageValidators getValidators(URI url) {
+    if (batchWriter != null) {
+      PageValidators validators = batchWriter.getPendingValidators(url.toString());
+      if (validators != null) {
+        return validators;
+      }
+    }
+
+    try (Handle handle = dbi.open()) {
+      return handle.createQuery("SELECT `etag`, `last_modified`, `content_hash`, `fetch_time`"
+          + " FROM `pantopod_validators` WHERE `url` = :url")
+          .bind("url", url.toString())
+          .map(new ResultSetMapper<PageValidators>() {
+            @Override
+            public PageValidators map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+              byte[] contentHash = r.getBytes("content_hash");
+              return new PageValidators(
+                  r.getString("etag"),
+                  r.getString("last_modified"),
+                  contentHash == null ? null : HashCode.fromBytes(contentHash).toString(),
+                  r.getLong("fetch_time"));
+            }
+          })
+          .first();
+    }
+  }
+
+  @Override
+  protected void storeValidators(URI url, PageValidators validators) {
+    if (batchWriter != null) {
+      batchWriter.addValidators(url.toString(), validators);
+      return;
+    }
+
+    try (Handle handle = dbi.open()) {
+      handle.update(UPSERT_VALIDATORS,
+          url.toString(),
+          validators.getEtag(),
+          validators.getLastModified(),
+          validators.getContentHash() == null ? null : HashCode.fromString(validators.getContentHash()).asBytes(),
+          validators.getFetchTime());
+    }
+  }
+
+  @Override
+  public byte[] readData(URI url) throws IOException {
+    try (Handle handle = dbi.open()) {
+      byte[] stored = handle.createQuery("SELECT `data` FROM `pantopod_crawler` WHERE `url` = :url")
+          .bind("url", url.toString())
+          .map(ByteArrayMapper.FIRST)
+          .first();
+      if (stored == null && dedupe) {
+        stored = handle.createQuery("SELECT c.`data` FROM `pantopod_content_ref` r"
+            + " JOIN `pantopod_content` c ON c.`hash` = r.`hash` WHERE r.`url` = :url")
+            .bind("url", url.toString())
+            .map(ByteArrayMapper.FIRST)
+            .first();
+      }
+      return decompressBody(stored);
     }
   }
 
   @Override
   protected boolean shouldExplore(URI url) {
+    if (batchWriter != null && batchWriter.isPending(url.toString())) {
+      return false;
+    }
+    return !exists(url);
+  }
+
+  private boolean exists(URI url) {
     try (Handle handle = dbi.open()) {
       Integer count = handle.createQuery("SELECT COUNT(*) FROM `pantopod_crawler` WHERE `url` = :url")
           .bind("url", url.toString())
           .map(IntegerMapper.FIRST)
           .first();
-      return count == 0;
+      return count > 0;
     }
   }
 
   @Override
   protected boolean hasError(URI url) {
+    if (batchWriter != null && batchWriter.isPendingError(url.toString())) {
+      return true;
+    }
+
     try (Handle handle = dbi.open()) {
-      Boolean isError = handle.createQuery("SELECT `error` FROM `pantopod_crawler` WHERE `url` = :url")
+      Integer count = handle.createQuery(
+          "SELECT COUNT(*) FROM `pantopod_crawler` WHERE `url` = :url AND `error` IS NOT NULL")
           .bind("url", url.toString())
-          .map(BooleanMapper.FIRST)
+          .map(IntegerMapper.FIRST)
           .first();
-      return isError != null;
+      return count > 0;
     }
   }
 
   @Override
   protected void markError(URI url, int errorCode) throws IOException {
+    if (batchWriter != null) {
+      batchWriter.addError(url.toString(), errorCode);
+      return;
+    }
+
     try (Handle handle = dbi.open()) {
       handle.execute("INSERT INTO `pantopod_crawler` (`url`, `error`) VALUES (?, ?)", url.toString(), errorCode);
     } catch (Exception e) {
       LOG.error("Could not mark error {}", url, e);
     }
   }
+
+  @Override
+  protected void markSkipped(URI url, HttpResponse res, String reason) throws IOException {
+    markError(url, res.getStatusLine().getStatusCode());
+    Long contentLength = null;
+    if (res.getFirstHeader("Content-Length") != null) {
+      try {
+        contentLength = Long.valueOf(res.getFirstHeader("Content-Length").getValue().trim());
+      } catch (NumberFormatException e) {
+        // Leave it null
+      }
+    }
+    try (Handle handle = dbi.open()) {
+      handle.execute("INSERT IGNORE INTO `pantopod_skipped`"
+              + " (`url`, `status`, `content_type`, `content_length`, `reason`) VALUES (?, ?, ?, ?, ?)",
+          url.toString(),
+          res.getStatusLine().getStatusCode(),
+          res.getFirstHeader("Content-Type") == null ? null : res.getFirstHeader("Content-Type").getValue(),
+          contentLength,
+          reason);
+    } catch (Exception e) {
+      LOG.error("Could not mark skipped {}", url, e);
+    }
+  }
 }
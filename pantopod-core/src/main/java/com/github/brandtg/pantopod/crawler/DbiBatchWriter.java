@@ -0,0 +1,396 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.google.common.hash.HashCode;
+import io.dropwizard.lifecycle.Managed;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers rows for {@link DbiBasedCrawlingEventHandler}, and writes them as JDBC batches in one transaction.
+ *
+ * <p>
+ *   A flush happens once maxRows rows or maxBytes bytes of page data are buffered, every flushIntervalMillis,
+ *   and on stop. Buffered rows are visible through {@link #isPending(String)} and {@link #isPendingError(String)}
+ *   until they are flushed. Rows of a failed flush stay buffered and are written by the next one, and while the
+ *   database is failing, writers that fill the buffer wait for the next attempt.
+ * </p>
+ */
+public class DbiBatchWriter implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(DbiBatchWriter.class);
+  private static final int STOP_FLUSH_ATTEMPTS = 3;
+  private static final String INSERT_DATA = "INSERT IGNORE INTO `pantopod_crawler` (`url`, `data`) VALUES (?, ?)";
+  private static final String INSERT_ERROR = "INSERT IGNORE INTO `pantopod_crawler` (`url`, `error`) VALUES (?, ?)";
+  private static final String INSERT_EXT = "INSERT IGNORE INTO `pantopod_ext` (`src`, `dst`) VALUES (?, ?)";
+  private static final String INSERT_URL = "INSERT IGNORE INTO `pantopod_crawler` (`url`) VALUES (?)";
+  private static final String INSERT_CONTENT = "INSERT IGNORE INTO `pantopod_content` (`hash`, `data`) VALUES (?, ?)";
+  private static final String INSERT_CONTENT_REF =
+      "INSERT IGNORE INTO `pantopod_content_ref` (`url`, `hash`) VALUES (?, ?)";
+
+  private final DBI dbi;
+  private final int maxRows;
+  private final long maxBytes;
+  private final long flushIntervalMillis;
+  private final ScheduledExecutorService scheduler;
+  private final Object flushLock = new Object();
+
+  private Batch batch = new Batch();
+  private Batch flushing = new Batch();
+  private long retryTimeMillis; // no flush for a full buffer before this, after a failed one
+
+  public DbiBatchWriter(DBI dbi,
+                        int maxRows,
+                        long maxBytes,
+                        long flushIntervalMillis,
+                        ScheduledExecutorService scheduler) {
+    this.dbi = dbi;
+    this.maxRows = maxRows;
+    this.maxBytes = maxBytes;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.scheduler = scheduler;
+  }
+
+  @Override
+  public void start() throws Exception {
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (Exception e) {
+          LOG.error("Could not flush batch", e);
+        }
+      }
+    }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() throws Exception {
+    for (int i = 1; !flush(); i++) {
+      if (i == STOP_FLUSH_ATTEMPTS) {
+        LOG.error("Dropping buffered rows after {} failed flushes", i);
+        return;
+      }
+      Thread.sleep(flushIntervalMillis);
+    }
+  }
+
+  /**
+   * Buffers page data for url, returning false if it is already buffered.
+   */
+  public boolean addData(String url, byte[] data) {
+    boolean added;
+    boolean full;
+    synchronized (this) {
+      added = !batch.data.containsKey(url) && !flushing.data.containsKey(url);
+      if (added) {
+        batch.data.put(url, data);
+        batch.numBytes += data.length;
+      }
+      full = isFull();
+    }
+    if (full) {
+      flushFull();
+    }
+    return added;
+  }
+
+  /**
+   * Buffers url as a page with the content hash, and data as that content unless it is null or already buffered.
+   *
+   * @return
+   *  True if data was buffered
+   */
+  public boolean addContent(String url, HashCode hash, byte[] data) {
+    boolean added;
+    boolean full;
+    synchronized (this) {
+      batch.contentRefs.put(url, hash);
+      added = data != null && !batch.contents.containsKey(hash) && !flushing.contents.containsKey(hash);
+      if (added) {
+        batch.contents.put(hash, data);
+        batch.numBytes += data.length;
+      }
+      full = isFull();
+    }
+    if (full) {
+      flushFull();
+    }
+    return added;
+  }
+
+  public synchronized boolean isPendingContent(HashCode hash) {
+    return batch.contents.containsKey(hash) || flushing.contents.containsKey(hash);
+  }
+
+  /**
+   * Buffers the validators of url, replacing any it already has.
+   */
+  public void addValidators(String url, PageValidators validators) {
+    boolean full;
+    synchronized (this) {
+      batch.validators.put(url, validators);
+      full = isFull();
+    }
+    if (full) {
+      flushFull();
+    }
+  }
+
+  /**
+   * Returns the validators buffered for url, or null if there are none.
+   */
+  public synchronized PageValidators getPendingValidators(String url) {
+    PageValidators validators = batch.validators.get(url);
+    return validators == null ? flushing.validators.get(url) : validators;
+  }
+
+  public void addError(String url, int errorCode) {
+    boolean full;
+    synchronized (this) {
+      if (!batch.errors.containsKey(url)) {
+        batch.errors.put(url, errorCode);
+      }
+      full = isFull();
+    }
+    if (full) {
+      flushFull();
+    }
+  }
+
+  public void addExternalDomain(String srcAuthority, String dstAuthority) {
+    boolean full;
+    synchronized (this) {
+      batch.externalDomains.add(srcAuthority + "\t" + dstAuthority);
+      full = isFull();
+    }
+    if (full) {
+      flushFull();
+    }
+  }
+
+  public synchronized boolean isPending(String url) {
+    return batch.contains(url) || flushing.contains(url);
+  }
+
+  public synchronized boolean isPendingError(String url) {
+    return batch.errors.containsKey(url) || flushing.errors.containsKey(url);
+  }
+
+  /**
+   * Writes all buffered rows in one transaction, and returns whether it succeeded (or there was nothing to write).
+   *
+   * <p>
+   *   Rows stay visible as pending until the transaction completes. If it fails, they are buffered again, under any
+   *   rows buffered since, and a full buffer is not flushed again for flushIntervalMillis.
+   * </p>
+   */
+  public boolean flush() {
+    synchronized (flushLock) {
+      Batch toFlush;
+      synchronized (this) {
+        if (batch.isEmpty()) {
+          return true;
+        }
+        toFlush = batch;
+        flushing = batch;
+        batch = new Batch();
+      }
+
+      long startTime = System.currentTimeMillis();
+      boolean flushed = false;
+      try (Handle handle = dbi.open()) {
+        handle.begin();
+        try {
+          if (!toFlush.data.isEmpty()) {
+            PreparedBatch dataBatch = handle.prepareBatch(INSERT_DATA);
+            for (Map.Entry<String, byte[]> entry : toFlush.data.entrySet()) {
+              dataBatch.add(entry.getKey(), entry.getValue());
+            }
+            dataBatch.execute();
+          }
+
+          if (!toFlush.contentRefs.isEmpty()) {
+            PreparedBatch urlBatch = handle.prepareBatch(INSERT_URL);
+            PreparedBatch refBatch = handle.prepareBatch(INSERT_CONTENT_REF);
+            for (Map.Entry<String, HashCode> entry : toFlush.contentRefs.entrySet()) {
+              urlBatch.add(entry.getKey());
+              refBatch.add(entry.getKey(), entry.getValue().asBytes());
+            }
+            urlBatch.execute();
+            refBatch.execute();
+          }
+
+          if (!toFlush.contents.isEmpty()) {
+            PreparedBatch contentBatch = handle.prepareBatch(INSERT_CONTENT);
+            for (Map.Entry<HashCode, byte[]> entry : toFlush.contents.entrySet()) {
+              contentBatch.add(entry.getKey().asBytes(), entry.getValue());
+            }
+            contentBatch.execute();
+          }
+
+          if (!toFlush.validators.isEmpty()) {
+            PreparedBatch validatorsBatch = handle.prepareBatch(DbiBasedCrawlingEventHandler.UPSERT_VALIDATORS);
+            for (Map.Entry<String, PageValidators> entry : toFlush.validators.entrySet()) {
+              PageValidators validators = entry.getValue();
+              String contentHash = validators.getContentHash();
+              validatorsBatch.add(
+                  entry.getKey(),
+                  validators.getEtag(),
+                  validators.getLastModified(),
+                  contentHash == null ? null : HashCode.fromString(contentHash).asBytes(),
+                  validators.getFetchTime());
+            }
+            validatorsBatch.execute();
+          }
+
+          if (!toFlush.errors.isEmpty()) {
+            PreparedBatch errorBatch = handle.prepareBatch(INSERT_ERROR);
+            for (Map.Entry<String, Integer> entry : toFlush.errors.entrySet()) {
+              errorBatch.add(entry.getKey(), entry.getValue());
+            }
+            errorBatch.execute();
+          }
+
+          if (!toFlush.externalDomains.isEmpty()) {
+            PreparedBatch extBatch = handle.prepareBatch(INSERT_EXT);
+            for (String edge : toFlush.externalDomains) {
+              String[] tokens = edge.split("\t");
+              extBatch.add(tokens[0], tokens[1]);
+            }
+            extBatch.execute();
+          }
+
+          handle.commit();
+          flushed = true;
+          LOG.info("Flushed {} data, {} content, {} validators, {} error, {} ext rows ({} bytes) in {} ms",
+              toFlush.data.size() + toFlush.contentRefs.size(), toFlush.contents.size(), toFlush.validators.size(),
+              toFlush.errors.size(), toFlush.externalDomains.size(), toFlush.numBytes,
+              System.currentTimeMillis() - startTime);
+        } catch (Exception e) {
+          handle.rollback();
+          throw e;
+        }
+      } catch (Exception e) {
+        LOG.error("Could not flush {} data, {} content, {} validators, {} error, {} ext rows, will retry",
+            toFlush.data.size() + toFlush.contentRefs.size(), toFlush.contents.size(), toFlush.validators.size(),
+            toFlush.errors.size(), toFlush.externalDomains.size(), e);
+      } finally {
+        synchronized (this) {
+          if (flushed) {
+            retryTimeMillis = 0;
+          } else {
+            toFlush.putAll(batch);
+            batch = toFlush;
+            retryTimeMillis = System.currentTimeMillis() + flushIntervalMillis;
+          }
+          flushing = new Batch();
+        }
+        flushLock.notifyAll();
+      }
+      return flushed;
+    }
+  }
+
+  /**
+   * Flushes the buffer if it is full, first waiting until a failed flush may be retried, unless another flush empties
+   * it meanwhile.
+   */
+  private void flushFull() {
+    synchronized (flushLock) {
+      while (true) {
+        long delayMillis;
+        synchronized (this) {
+          if (!isFull()) {
+            return;
+          }
+          delayMillis = retryTimeMillis - System.currentTimeMillis();
+        }
+        if (delayMillis <= 0) {
+          break;
+        }
+        try {
+          flushLock.wait(delayMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      flush();
+    }
+  }
+
+  private boolean isFull() {
+    return batch.size() >= maxRows || batch.numBytes >= maxBytes;
+  }
+
+  private static class Batch {
+    private final Map<String, byte[]> data;
+    private final Map<String, HashCode> contentRefs;
+    private final Map<HashCode, byte[]> contents;
+    private final Map<String, PageValidators> validators;
+    private final Map<String, Integer> errors;
+    private final Set<String> externalDomains;
+    private long numBytes;
+
+    Batch() {
+      this.data = new LinkedHashMap<>();
+      this.contentRefs = new LinkedHashMap<>();
+      this.contents = new LinkedHashMap<>();
+      this.validators = new LinkedHashMap<>();
+      this.errors = new HashMap<>();
+      this.externalDomains = new LinkedHashSet<>();
+    }
+
+    /**
+     * Adds the rows of newer, which replace those of this for the same key.
+     */
+    void putAll(Batch newer) {
+      data.putAll(newer.data);
+      contentRefs.putAll(newer.contentRefs);
+      contents.putAll(newer.contents);
+      validators.putAll(newer.validators);
+      errors.putAll(newer.errors);
+      externalDomains.addAll(newer.externalDomains);
+      numBytes += newer.numBytes;
+    }
+
+    boolean contains(String url) {
+      return data.containsKey(url) || contentRefs.containsKey(url) || errors.containsKey(url);
+    }
+
+    int size() {
+      return data.size() + contentRefs.size() + contents.size() + validators.size() + errors.size()
+          + externalDomains.size();
+    }
+
+    boolean isEmpty() {
+      return size() == 0;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.util.ByteArrayMapper;
+
+/**
+ * Stores dictionaries in the pantopod_dict table.
+ */
+public class DbiBodyDictionaryStore implements BodyDictionaryStore {
+  private static final String CREATE_DICT_TABLE = "CREATE TABLE IF NOT EXISTS `pantopod_dict` ("
+      + "`id` BIGINT,"
+      + "`authority` VARCHAR(255),"
+      + "`data` BLOB,"
+      + "PRIMARY KEY(`id`),"
+      + "KEY(`authority`))";
+  private final DBI dbi;
+
+  public DbiBodyDictionaryStore(DBI dbi) {
+    this.dbi = dbi;
+    try (Handle handle = dbi.open()) {
+      handle.execute(CREATE_DICT_TABLE);
+    }
+  }
+
+  @Override
+  public byte[] get(long id) {
+    try (Handle handle = dbi.open()) {
+      return handle.createQuery("SELECT `data` FROM `pantopod_dict` WHERE `id` = :id")
+          .bind("id", id)
+          .map(ByteArrayMapper.FIRST)
+          .first();
+    }
+  }
+
+  @Override
+  public byte[] getForAuthority(String authority) {
+    try (Handle handle = dbi.open()) {
+      return handle.createQuery(
+          "SELECT `data` FROM `pantopod_dict` WHERE `authority` = :authority ORDER BY `id` LIMIT 1")
+          .bind("authority", authority)
+          .map(ByteArrayMapper.FIRST)
+          .first();
+    }
+  }
+
+  @Override
+  public void put(String authority, long id, byte[] dictionary) {
+    try (Handle handle = dbi.open()) {
+      handle.update("INSERT IGNORE INTO `pantopod_dict` (`id`, `authority`, `data`) VALUES (?, ?, ?)",
+          id, authority, dictionary);
+    }
+  }
+}
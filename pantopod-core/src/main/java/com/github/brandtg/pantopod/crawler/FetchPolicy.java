@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.github.brandtg.pantopod.consumer.ByteBudget;
+import com.google.common.collect.ImmutableList;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides which responses are worth reading: at most maxBodyBytes, of one of allowedContentTypes.
+ *
+ * <p>
+ *   Both are checked from the headers before the body is read, and the size again while it is read, so that a huge
+ *   or unwanted body is never downloaded in full. Content types may end with "/*", and a response without one is
+ *   allowed. URLs with one of probeExtensions (e.g. "pdf") are probed with a HEAD request first. An empty list or
+ *   non-positive size means no limit.
+ * </p>
+ */
+public class FetchPolicy {
+  public static final List<String> DEFAULT_ALLOWED_CONTENT_TYPES = ImmutableList.of(
+      "text/html", "application/xhtml+xml");
+  public static final List<String> DEFAULT_PROBE_EXTENSIONS = ImmutableList.of(
+      "pdf", "zip", "gz", "tgz", "bz2", "xz", "tar", "rar", "7z", "iso", "dmg", "exe", "msi", "bin", "jar",
+      "jpg", "jpeg", "png", "gif", "bmp", "tif", "tiff", "webp", "svg",
+      "mp3", "mp4", "m4a", "avi", "mov", "mkv", "webm", "wav", "flac", "ogg",
+      "doc", "docx", "xls", "xlsx", "ppt", "pptx");
+
+  private static final int BUFFER_BYTES = 8192;
+
+  private final long maxBodyBytes;
+  private final List<String> allowedContentTypes;
+  private final List<String> probeExtensions;
+
+  /** A policy without limits */
+  public FetchPolicy() {
+    this(0, ImmutableList.<String>of(), ImmutableList.<String>of());
+  }
+
+  public FetchPolicy(long maxBodyBytes, List<String> allowedContentTypes, List<String> probeExtensions) {
+    this.maxBodyBytes = maxBodyBytes;
+    this.allowedContentTypes = toLowerCase(allowedContentTypes);
+    this.probeExtensions = toLowerCase(probeExtensions);
+  }
+
+  /**
+   * Returns this policy with the limits that are not null replaced.
+   */
+  public FetchPolicy withLimits(Long maxBodyBytes, List<String> allowedContentTypes) {
+    return new FetchPolicy(
+        maxBodyBytes == null ? this.maxBodyBytes : maxBodyBytes,
+        allowedContentTypes == null ? this.allowedContentTypes : allowedContentTypes,
+        probeExtensions);
+  }
+
+  public long getMaxBodyBytes() {
+    return maxBodyBytes;
+  }
+
+  /**
+   * Returns whether url should be probed with a HEAD request before it is fetched.
+   */
+  public boolean shouldProbe(URI url) {
+    String path = url.getPath();
+    if (probeExtensions.isEmpty() || path == null) {
+      return false;
+    }
+    int dot = path.lastIndexOf('.');
+    return dot > path.lastIndexOf('/') && probeExtensions.contains(path.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Throws if the headers of res say its body should not be read.
+   */
+  public void checkHeaders(HttpResponse res) throws SkippedException {
+    Header contentLength = res.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+    if (maxBodyBytes > 0 && contentLength != null) {
+      try {
+        long length = Long.parseLong(contentLength.getValue().trim());
+        if (length > maxBodyBytes) {
+          throw new SkippedException(res, "Content-Length " + length + " over " + maxBodyBytes);
+        }
+      } catch (NumberFormatException e) {
+        // Checked while reading
+      }
+    }
+
+    Header contentType = res.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+    if (!allowedContentTypes.isEmpty() && contentType != null) {
+      String mimeType;
+      try {
+        mimeType = ContentType.parse(contentType.getValue()).getMimeType().toLowerCase(Locale.ROOT);
+      } catch (RuntimeException e) {
+        throw new SkippedException(res, "Invalid Content-Type " + contentType.getValue());
+      }
+      if (!isAllowed(mimeType)) {
+        throw new SkippedException(res, "Content-Type " + mimeType);
+      }
+    }
+  }
+
+  /**
+   * Returns the body of res, or throws if the headers or its size say it should not be read (then, the caller should
+   * abort the request rather than consume the rest of it).
+   */
+  public byte[] readBody(HttpResponse res) throws IOException {
+    return readBody(res, null);
+  }
+
+  /**
+   * Reads the body of res like {@link #readBody(HttpResponse)}, growing reservation (if not null) to its size as it is
+   * read.
+   */
+  public byte[] readBody(HttpResponse res, ByteBudget.Reservation reservation) throws IOException {
+    checkHeaders(res);
+    HttpEntity entity = res.getEntity();
+    if (entity == null) {
+      return new byte[0];
+    }
+    // Not closed if the body is too large, because closing it would read the rest of it
+    InputStream in = entity.getContent();
+    ByteArrayOutputStream body = newBodyBuffer(entity.getContentLength());
+    byte[] buffer = new byte[BUFFER_BYTES];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      body.write(buffer, 0, n);
+      checkBodySize(res, body.size());
+      if (reservation != null) {
+        reservation.growTo(body.size());
+      }
+    }
+    in.close();
+    return body.toByteArray();
+  }
+
+  /**
+   * Throws if numBytes of the body of res were read, and that is too many.
+   */
+  void checkBodySize(HttpResponse res, long numBytes) throws SkippedException {
+    if (maxBodyBytes > 0 && numBytes > maxBodyBytes) {
+      throw new SkippedException(res, "Body over " + maxBodyBytes + " bytes");
+    }
+  }
+
+  ByteArrayOutputStream newBodyBuffer(long contentLength) {
+    long expected = contentLength > 0 ? contentLength : BUFFER_BYTES;
+    if (maxBodyBytes > 0) {
+      expected = Math.min(expected, maxBodyBytes);
+    }
+    return new ByteArrayOutputStream((int) Math.min(expected, 1024 * 1024));
+  }
+
+  private boolean isAllowed(String mimeType) {
+    for (String allowed : allowedContentTypes) {
+      if (allowed.endsWith("/*")
+          ? mimeType.startsWith(allowed.substring(0, allowed.length() - 1))
+          : mimeType.equals(allowed)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<String> toLowerCase(List<String> values) {
+    List<String> lowerCase = new ArrayList<>();
+    for (String value : values) {
+      lowerCase.add(value.trim().toLowerCase(Locale.ROOT));
+    }
+    return lowerCase;
+  }
+
+  /**
+   * Thrown instead of reading a response that the policy says should not be read.
+   */
+  public static class SkippedException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final transient HttpResponse response;
+
+    public SkippedException(HttpResponse response, String reason) {
+      super(reason);
+      this.response = response;
+    }
+
+    public HttpResponse getResponse() {
+      return response;
+    }
+  }
+}
@@ -15,25 +15,44 @@
  */
 package com.github.brandtg.pantopod.crawler;
 
+import com.github.brandtg.pantopod.api.ContentHash;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.Properties;
 
 public class FileBasedCrawlingEventHandler extends CrawlingEventHandler {
   private static final Logger LOG = LoggerFactory.getLogger(FileBasedCrawlingEventHandler.class);
   private static final String DAT_FILE = ".dat";
   private static final String ERR_FILE = ".err";
   private static final String EXT_FILE = ".ext";
+  private static final String REF_FILE = ".ref";
+  private static final String VAL_FILE = ".val";
+  private static final String SKIP_FILE = ".skip";
+  private static final String CONTENT_DIR = ".content";
   private final File outputDir;
+  private final boolean dedupe;
 
   public FileBasedCrawlingEventHandler(HttpClient httpClient, File outputDir) {
+    this(httpClient, outputDir, false);
+  }
+
+  /**
+   * @param dedupe
+   *  If true, page data is stored once per content hash in .content, and each page has a .ref to it
+   */
+  public FileBasedCrawlingEventHandler(HttpClient httpClient, File outputDir, boolean dedupe) {
     super(httpClient);
     this.outputDir = outputDir;
+    this.dedupe = dedupe;
   }
 
   @Override
@@ -47,18 +66,123 @@ public class FileBasedCrawlingEventHandler extends CrawlingEventHandler {
   }
 
   @Override
-  protected boolean handleData(URI url, byte[] data) throws IOException {
+  protected Stored handleData(URI url, byte[] data) throws IOException {
     File outputRoot = new File(outputDir, url.getHost() + File.separator + url.getPath());
     FileUtils.forceMkdir(outputRoot);
+    if (dedupe) {
+      return handleContent(url, outputRoot, data);
+    }
     File outputData = new File(outputRoot, DAT_FILE);
     if (!outputData.exists()) {
       try (OutputStream os = new FileOutputStream(outputData)) {
-        IOUtils.write(data, os);
+        IOUtils.write(compressBody(url, data), os);
         LOG.info("Wrote {}", outputRoot);
       }
-      return true;
+      return Stored.NEW;
+    }
+    return Stored.NONE;
+  }
+
+  /**
+   * Writes a .ref to the content of data, and the content itself unless it is already stored.
+   */
+  private Stored handleContent(URI url, File outputRoot, byte[] data) throws IOException {
+    File refFile = new File(outputRoot, REF_FILE);
+    if (refFile.exists() || new File(outputRoot, DAT_FILE).exists()) {
+      return Stored.NONE;
+    }
+
+    String hash = ContentHash.of(data).toString();
+    File contentFile = getContentFile(hash);
+    boolean created = false;
+    if (!contentFile.exists()) {
+      // Written aside then linked (which fails if it exists), so concurrent pages with the same content store it once
+      FileUtils.forceMkdir(contentFile.getParentFile());
+      File tmpFile = File.createTempFile(hash, ".tmp", contentFile.getParentFile());
+      try (OutputStream os = new FileOutputStream(tmpFile)) {
+        IOUtils.write(compressBody(url, data), os);
+      }
+      try {
+        Files.createLink(contentFile.toPath(), tmpFile.toPath());
+        created = true;
+      } catch (FileAlreadyExistsException e) {
+        // Stored by another page meanwhile
+      } finally {
+        FileUtils.deleteQuietly(tmpFile);
+      }
+    }
+
+    try (OutputStream os = new FileOutputStream(refFile)) {
+      IOUtils.write(hash.getBytes(), os);
+    }
+
+    if (created) {
+      LOG.info("Wrote {}", outputRoot);
+    } else {
+      LOG.info("Wrote {} (duplicate of {})", outputRoot, hash);
+    }
+    return created ? Stored.NEW : Stored.DUPLICATE;
+  }
+
+  @Override
+  protected void replaceData(URI url, HttpResponse res, byte[] data) throws IOException {
+    File outputRoot = new File(outputDir, url.getHost() + File.separator + url.getPath());
+    FileUtils.deleteQuietly(new File(outputRoot, DAT_FILE));
+    FileUtils.deleteQuietly(new File(outputRoot, REF_FILE));
+    handleData(url, data);
+  }
+
+  @Override
+  protected PageValidators getValidators(URI url) throws IOException {
+    File outputRoot = new File(outputDir, url.getHost() + File.separator + url.getPath());
+    File valFile = new File(outputRoot, VAL_FILE);
+    if (!valFile.exists()) {
+      return null;
+    }
+    Properties props = new Properties();
+    try (InputStream is = new FileInputStream(valFile)) {
+      props.load(is);
     }
-    return false;
+    return new PageValidators(
+        props.getProperty("etag"),
+        props.getProperty("lastModified"),
+        props.getProperty("contentHash"),
+        Long.parseLong(props.getProperty("fetchTime", "0")));
+  }
+
+  @Override
+  protected void storeValidators(URI url, PageValidators validators) throws IOException {
+    File outputRoot = new File(outputDir, url.getHost() + File.separator + url.getPath());
+    Properties props = new Properties();
+    if (validators.getEtag() != null) {
+      props.setProperty("etag", validators.getEtag());
+    }
+    if (validators.getLastModified() != null) {
+      props.setProperty("lastModified", validators.getLastModified());
+    }
+    if (validators.getContentHash() != null) {
+      props.setProperty("contentHash", validators.getContentHash());
+    }
+    props.setProperty("fetchTime", String.valueOf(validators.getFetchTime()));
+    FileUtils.forceMkdir(outputRoot);
+    try (OutputStream os = new FileOutputStream(new File(outputRoot, VAL_FILE))) {
+      props.store(os, null);
+    }
+  }
+
+  @Override
+  public byte[] readData(URI url) throws IOException {
+    File outputRoot = new File(outputDir, url.getHost() + File.separator + url.getPath());
+    File dataFile = new File(outputRoot, DAT_FILE);
+    File refFile = new File(outputRoot, REF_FILE);
+    if (refFile.exists()) {
+      dataFile = getContentFile(FileUtils.readFileToString(refFile).trim());
+    }
+    return dataFile.exists() ? decompressBody(FileUtils.readFileToByteArray(dataFile)) : null;
+  }
+
+  private File getContentFile(String hash) {
+    return new File(outputDir, CONTENT_DIR + File.separator + hash.substring(0, 2) + File.separator + hash);
   }
 
   @Override
@@ -80,6 +204,24 @@ public class FileBasedCrawlingEventHandler extends CrawlingEventHandler {
     }
   }
 
+  @Override
+  protected void markSkipped(URI url, HttpResponse res, String reason) throws IOException {
+    markError(url, res.getStatusLine().getStatusCode());
+    File outputRoot = new File(outputDir, url.getHost() + File.separator + url.getPath());
+    Properties props = new Properties();
+    props.setProperty("status", String.valueOf(res.getStatusLine().getStatusCode()));
+    if (res.getFirstHeader("Content-Type") != null) {
+      props.setProperty("contentType", res.getFirstHeader("Content-Type").getValue());
+    }
+    if (res.getFirstHeader("Content-Length") != null) {
+      props.setProperty("contentLength", res.getFirstHeader("Content-Length").getValue());
+    }
+    props.setProperty("reason", reason);
+    try (OutputStream os = new FileOutputStream(new File(outputRoot, SKIP_FILE))) {
+      props.store(os, null);
+    }
+  }
+
   @Override
   protected boolean hasError(URI url) {
     File outputRoot = new File(outputDir, url.getHost() + File.separator + url.getPath());
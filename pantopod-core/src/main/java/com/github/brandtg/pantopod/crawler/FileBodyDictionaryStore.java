@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+
+/**
+ * Stores each dictionary as dir/&lt;id&gt;.dict, and the id of each authority's dictionary in dir/&lt;authority&gt;.
+ */
+public class FileBodyDictionaryStore implements BodyDictionaryStore {
+  private static final String DICT_SUFFIX = ".dict";
+  private final File dir;
+
+  public FileBodyDictionaryStore(File dir) {
+    this.dir = dir;
+  }
+
+  @Override
+  public byte[] get(long id) throws IOException {
+    File dictFile = getDictFile(id);
+    return dictFile.exists() ? FileUtils.readFileToByteArray(dictFile) : null;
+  }
+
+  @Override
+  public byte[] getForAuthority(String authority) throws IOException {
+    File authorityFile = new File(dir, authority);
+    if (!authorityFile.exists()) {
+      return null;
+    }
+    String id = FileUtils.readFileToString(authorityFile, StandardCharsets.UTF_8).trim();
+    return get(Long.parseLong(id, 16));
+  }
+
+  @Override
+  public void put(String authority, long id, byte[] dictionary) throws IOException {
+    FileUtils.forceMkdir(dir);
+    File dictFile = getDictFile(id);
+    if (!dictFile.exists()) {
+      FileUtils.writeByteArrayToFile(dictFile, dictionary);
+    }
+    try {
+      Files.write(Files.createFile(new File(dir, authority).toPath()),
+          Long.toHexString(id).getBytes(StandardCharsets.UTF_8));
+    } catch (FileAlreadyExistsException e) {
+      // Keep the first one
+    }
+  }
+
+  private File getDictFile(long id) {
+    return new File(dir, Long.toHexString(id) + DICT_SUFFIX);
+  }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the full Jsoup DOM of the page, and selects its anchors.
+ */
+public class JsoupLinkExtractor implements LinkExtractor {
+  @Override
+  public List<String> extractLinks(URI url, byte[] body, Charset charset) throws IOException {
+    Document dom = Jsoup.parse(new ByteArrayInputStream(body), charset == null ? null : charset.name(), url.toString());
+
+    List<String> hrefs = new ArrayList<>();
+    for (Element element : dom.select("a[href]")) {
+      hrefs.add(element.attr("href"));
+    }
+
+    Element base = dom.select("base[href]").first();
+    return LinkExtractors.resolveAgainstBase(url, base == null ? null : base.attr("href"), hrefs);
+  }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Finds the links on a page.
+ */
+public interface LinkExtractor {
+  /**
+   * Returns the href of each anchor in body, resolved against the page's {@code <base href>} if it has one.
+   *
+   * @param url
+   *  The page URL
+   * @param charset
+   *  The charset declared by the response, or null to detect it from the page
+   */
+  List<String> extractLinks(URI url, byte[] body, Charset charset) throws IOException;
+}
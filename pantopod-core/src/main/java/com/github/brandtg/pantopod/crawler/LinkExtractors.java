@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates {@link LinkExtractor}s by name.
+ */
+public final class LinkExtractors {
+  public static final String JSOUP = "jsoup";
+  public static final String STREAMING = "streaming";
+
+  private LinkExtractors() {}
+
+  public static LinkExtractor forName(String name) {
+    if (JSOUP.equalsIgnoreCase(name)) {
+      return new JsoupLinkExtractor();
+    } else if (STREAMING.equalsIgnoreCase(name)) {
+      return new StreamingLinkExtractor();
+    }
+    throw new IllegalArgumentException("Unknown link extractor " + name);
+  }
+
+  /**
+   * Resolves each href against base (itself relative to url), or returns hrefs unchanged if there is no base.
+   */
+  static List<String> resolveAgainstBase(URI url, String base, List<String> hrefs) {
+    if (base == null) {
+      return hrefs;
+    }
+
+    URI baseUri;
+    try {
+      baseUri = url.resolve(base.trim());
+    } catch (IllegalArgumentException e) {
+      return hrefs;
+    }
+
+    List<String> resolved = new ArrayList<>(hrefs.size());
+    for (String href : hrefs) {
+      try {
+        resolved.add(baseUri.resolve(href.trim()).toString());
+      } catch (IllegalArgumentException e) {
+        resolved.add(href);
+      }
+    }
+    return resolved;
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+/**
+ * What is known about the stored copy of a page, to fetch it again only if it changed.
+ */
+public class PageValidators {
+  private final String etag;
+  private final String lastModified;
+  private final String contentHash;
+  private final long fetchTime;
+
+  /**
+   * @param etag
+   *  The ETag response header, or null
+   * @param lastModified
+   *  The Last-Modified response header, or null
+   * @param contentHash
+   *  The {@link com.github.brandtg.pantopod.api.ContentHash} of the body, or null
+   * @param fetchTime
+   *  When the page was last fetched (or found unchanged)
+   */
+  public PageValidators(String etag, String lastModified, String contentHash, long fetchTime) {
+    this.etag = etag;
+    this.lastModified = lastModified;
+    this.contentHash = contentHash;
+    this.fetchTime = fetchTime;
+  }
+
+  public static PageValidators fromResponse(HttpResponse res, String contentHash, long fetchTime) {
+    return new PageValidators(
+        getHeader(res, HttpHeaders.ETAG), getHeader(res, HttpHeaders.LAST_MODIFIED), contentHash, fetchTime);
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public String getLastModified() {
+    return lastModified;
+  }
+
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  public long getFetchTime() {
+    return fetchTime;
+  }
+
+  /**
+   * Returns a copy fetched again at fetchTime, with the validators of res if it has any.
+   */
+  public PageValidators revalidated(HttpResponse res, long fetchTime) {
+    String newEtag = getHeader(res, HttpHeaders.ETAG);
+    String newLastModified = getHeader(res, HttpHeaders.LAST_MODIFIED);
+    return new PageValidators(
+        newEtag == null ? etag : newEtag,
+        newLastModified == null ? lastModified : newLastModified,
+        contentHash,
+        fetchTime);
+  }
+
+  /**
+   * Makes req conditional on the page having changed, if there is anything to compare it with.
+   */
+  public void applyTo(HttpRequest req) {
+    if (etag != null) {
+      req.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+    }
+    if (lastModified != null) {
+      req.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+    }
+  }
+
+  private static String getHeader(HttpResponse res, String name) {
+    Header header = res.getFirstHeader(name);
+    return header == null ? null : header.getValue();
+  }
+
+  @Override
+  public String toString() {
+    return "PageValidators{etag=" + etag + ", lastModified=" + lastModified
+        + ", contentHash=" + contentHash + ", fetchTime=" + fetchTime + "}";
+  }
+}
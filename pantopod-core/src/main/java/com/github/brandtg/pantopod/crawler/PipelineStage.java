@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One stage of the page pipeline (see {@link CrawlingEventHandler#setPipeline}): a pool of threads with a bounded
+ * queue.
+ *
+ * <p>
+ *   {@link #submit(Callable)} blocks while the queue is full, so a stage that falls behind slows down the one before
+ *   it, and in the end the Kafka consumers. The queue depth, the time tasks wait in the queue, and their service time
+ *   are reported as metrics under the stage's name.
+ * </p>
+ */
+public class PipelineStage implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(PipelineStage.class);
+  private static final long STOP_TIMEOUT_MILLIS = 30000;
+
+  private final String name;
+  private final ThreadPoolExecutor executor;
+  private final Semaphore capacity;
+  private final Timer queueWait;
+  private final Timer serviceTime;
+
+  public PipelineStage(String name, int numThreads, int queueCapacity, MetricRegistry metricRegistry) {
+    if (numThreads < 1 || queueCapacity < 0) {
+      throw new IllegalArgumentException("Invalid threads / queue capacity: " + numThreads + " / " + queueCapacity);
+    }
+    this.name = name;
+    this.executor = new ThreadPoolExecutor(
+        numThreads,
+        numThreads,
+        0,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setNameFormat("pantopod-" + name + "-%d").setDaemon(true).build());
+    this.capacity = new Semaphore(numThreads + queueCapacity);
+    this.queueWait = metricRegistry.timer(MetricRegistry.name(PipelineStage.class, name, "queue-wait"));
+    this.serviceTime = metricRegistry.timer(MetricRegistry.name(PipelineStage.class, name, "service-time"));
+    metricRegistry.register(MetricRegistry.name(PipelineStage.class, name, "queued"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return executor.getQueue().size();
+      }
+    });
+    metricRegistry.register(MetricRegistry.name(PipelineStage.class, name, "active"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return executor.getActiveCount();
+      }
+    });
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Queues task, waiting while the queue is full.
+   */
+  public <T> ListenableFuture<T> submit(final Callable<T> task) throws InterruptedException {
+    capacity.acquire();
+    final Timer.Context queueTimer = queueWait.time();
+    ListenableFutureTask<T> future = ListenableFutureTask.create(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        queueTimer.stop();
+        Timer.Context serviceTimer = serviceTime.time();
+        try {
+          return task.call();
+        } finally {
+          serviceTimer.stop();
+          capacity.release();
+        }
+      }
+    });
+    try {
+      executor.execute(future);
+    } catch (RuntimeException e) {
+      capacity.release();
+      throw e;
+    }
+    return future;
+  }
+
+  @Override
+  public void start() throws Exception {
+    // NOP
+  }
+
+  @Override
+  public void stop() throws Exception {
+    executor.shutdown();
+    if (!executor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+      LOG.warn("Timed out waiting for {} tasks", name);
+      executor.shutdownNow();
+    }
+  }
+}
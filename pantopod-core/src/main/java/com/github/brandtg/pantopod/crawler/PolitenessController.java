@@ -0,0 +1,357 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the concurrency and spacing of requests to each authority, adapting to how the site responds (AIMD).
+ *
+ * <p>
+ *   Each authority starts at initialLimit concurrent requests with no delay between them. Every 200 with a normal
+ *   latency adds about one request per round trip to the limit and shortens the delay, up to maxLimit and down to
+ *   minDelayMillis. A 429 or 503, a failed request, or a latency more than latencyTolerance times the baseline,
+ *   halves the limit and doubles the delay (at most once per round trip). A Retry-After header holds off all requests
+ *   to the authority until then, up to maxDelayMillis.
+ * </p>
+ *
+ * <p>
+ *   The baseline is the fastest latency of a 200 seen, which drifts up toward slower ones, so a site that has become
+ *   slower for good is not held at the minimum limit forever. Other responses leave the limit and baseline alone.
+ * </p>
+ */
+public class PolitenessController {
+  private static final Logger LOG = LoggerFactory.getLogger(PolitenessController.class);
+  private static final double LATENCY_ALPHA = 0.2;
+  private static final double LATENCY_DECREASE = 0.75;
+  private static final double THROTTLE_DECREASE = 0.5;
+  private static final double DELAY_DECREASE = 0.9;
+  private static final long INITIAL_BACKOFF_MILLIS = 100;
+  private static final double BASELINE_DRIFT = 0.01;
+
+  private final int initialLimit;
+  private final int maxLimit;
+  private final long minDelayMillis;
+  private final long maxDelayMillis;
+  private final double latencyTolerance;
+  private final ScheduledExecutorService scheduler;
+  private final MetricRegistry metricRegistry;
+  private final ConcurrentMap<String, AuthorityState> states;
+  private final Meter throttled;
+
+  public PolitenessController(int initialLimit,
+                              int maxLimit,
+                              long minDelayMillis,
+                              long maxDelayMillis,
+                              double latencyTolerance,
+                              ScheduledExecutorService scheduler,
+                              MetricRegistry metricRegistry) {
+    this.initialLimit = initialLimit;
+    this.maxLimit = maxLimit;
+    this.minDelayMillis = minDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.latencyTolerance = latencyTolerance;
+    this.scheduler = scheduler;
+    this.metricRegistry = metricRegistry;
+    this.states = new ConcurrentHashMap<>();
+    this.throttled = metricRegistry.meter(MetricRegistry.name(PolitenessController.class, "throttled"));
+  }
+
+  /**
+   * Blocks until another request to authority is allowed, and returns the permit to release once its response has
+   * been read.
+   */
+  public Permit acquire(String authority) throws InterruptedException {
+    AuthorityState state = getState(authority);
+    state.acquire();
+    return new Permit(state);
+  }
+
+  /**
+   * Returns a future of the permit for another request to authority, which completes once it is allowed without
+   * holding a thread while waiting.
+   */
+  public ListenableFuture<Permit> acquireAsync(String authority) {
+    SettableFuture<Permit> permit = SettableFuture.create();
+    getState(authority).acquireAsync(permit);
+    return permit;
+  }
+
+  /**
+   * Returns true if the response means the site wants us to slow down.
+   */
+  public static boolean isThrottled(HttpResponse res) {
+    int statusCode = res.getStatusLine().getStatusCode();
+    return statusCode == 429 || statusCode == 503;
+  }
+
+  /**
+   * A request in flight, which must be released exactly once.
+   */
+  public class Permit {
+    private final AuthorityState state;
+    private final long startTime;
+
+    Permit(AuthorityState state) {
+      this.state = state;
+      this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Releases the permit once the response res has been read.
+     */
+    public void release(HttpResponse res) {
+      if (isThrottled(res)) {
+        throttled.mark();
+        state.releaseThrottled(getRetryAfterMillis(res));
+      } else if (res.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+        state.releaseCompleted(System.currentTimeMillis() - startTime);
+      } else {
+        state.release();
+      }
+    }
+
+    public void releaseFailed() {
+      state.releaseThrottled(-1);
+    }
+  }
+
+  /**
+   * Returns how long res (which may be null) asks to wait with Retry-After, in seconds or as an HTTP date, or -1.
+   */
+  static long getRetryAfterMillis(HttpResponse res) {
+    Header header = res == null ? null : res.getFirstHeader(HttpHeaders.RETRY_AFTER);
+    if (header == null || header.getValue() == null) {
+      return -1;
+    }
+
+    String value = header.getValue().trim();
+    try {
+      return Long.parseLong(value) * 1000;
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(value);
+      return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+  }
+
+  AuthorityState getState(final String authority) {
+    AuthorityState state = states.get(authority);
+    if (state == null) {
+      synchronized (states) {
+        state = states.get(authority);
+        if (state == null) {
+          state = new AuthorityState(authority);
+          states.put(authority, state);
+
+          final AuthorityState registeredState = state;
+          metricRegistry.register(
+              MetricRegistry.name(PolitenessController.class, authority, "limit"),
+              new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                  return registeredState.getLimit();
+                }
+              });
+          metricRegistry.register(
+              MetricRegistry.name(PolitenessController.class, authority, "delay-millis"),
+              new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                  return registeredState.getDelayMillis();
+                }
+              });
+        }
+      }
+    }
+    return state;
+  }
+
+  class AuthorityState {
+    private final String authority;
+    private final Queue<SettableFuture<Permit>> waiting;
+    private double limit;
+    private int inFlight;
+    private long delayMillis;
+    private long nextRequestTime;
+    private double latencyMillis;
+    private double baselineLatencyMillis;
+    private long lastDecreaseTime;
+    private boolean wakeUpScheduled;
+
+    AuthorityState(String authority) {
+      this.authority = authority;
+      this.waiting = new ArrayDeque<>();
+      this.limit = initialLimit;
+      this.delayMillis = minDelayMillis;
+      this.latencyMillis = -1;
+      this.baselineLatencyMillis = -1;
+    }
+
+    synchronized void acquire() throws InterruptedException {
+      while (true) {
+        long now = System.currentTimeMillis();
+        if (inFlight < getLimit() && waiting.isEmpty()) {
+          if (now >= nextRequestTime) {
+            inFlight++;
+            nextRequestTime = now + delayMillis;
+            return;
+          }
+          wait(nextRequestTime - now);
+        } else {
+          wait();
+        }
+      }
+    }
+
+    void acquireAsync(SettableFuture<Permit> permit) {
+      synchronized (this) {
+        waiting.add(permit);
+      }
+      grantWaiting();
+    }
+
+    /**
+     * Grants permits to waiting requests while the limit and delay allow, and schedules a wake-up for the delay.
+     */
+    private void grantWaiting() {
+      List<SettableFuture<Permit>> granted = new ArrayList<>();
+      synchronized (this) {
+        long now = System.currentTimeMillis();
+        while (!waiting.isEmpty() && inFlight < getLimit()) {
+          if (now < nextRequestTime) {
+            if (!wakeUpScheduled) {
+              wakeUpScheduled = true;
+              scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                  synchronized (AuthorityState.this) {
+                    wakeUpScheduled = false;
+                  }
+                  grantWaiting();
+                }
+              }, nextRequestTime - now, TimeUnit.MILLISECONDS);
+            }
+            break;
+          }
+          granted.add(waiting.remove());
+          inFlight++;
+          nextRequestTime = now + delayMillis;
+        }
+      }
+
+      // Outside the lock, as completing a future runs its listeners
+      for (SettableFuture<Permit> permit : granted) {
+        if (!permit.set(new Permit(this))) {
+          // Cancelled while waiting
+          release();
+        }
+      }
+    }
+
+    /**
+     * Releases a request that returned a 200 after requestLatencyMillis.
+     */
+    void releaseCompleted(long requestLatencyMillis) {
+      synchronized (this) {
+        inFlight--;
+        long now = System.currentTimeMillis();
+        double sample = Math.max(requestLatencyMillis, 1);
+        latencyMillis = latencyMillis < 0 ? sample : LATENCY_ALPHA * sample + (1 - LATENCY_ALPHA) * latencyMillis;
+        baselineLatencyMillis = baselineLatencyMillis < 0 || sample < baselineLatencyMillis
+            ? sample
+            : baselineLatencyMillis + BASELINE_DRIFT * (sample - baselineLatencyMillis);
+
+        if (latencyMillis > baselineLatencyMillis * latencyTolerance) {
+          decrease(now, LATENCY_DECREASE, false);
+        } else {
+          limit = Math.min(maxLimit, limit + 1.0 / limit);
+          delayMillis = Math.max(minDelayMillis, (long) (delayMillis * DELAY_DECREASE));
+        }
+        notifyAll();
+      }
+      grantWaiting();
+    }
+
+    /**
+     * Releases a request that was throttled (held off for retryAfterMillis, if not negative) or failed.
+     */
+    void releaseThrottled(long retryAfterMillis) {
+      synchronized (this) {
+        inFlight--;
+        long now = System.currentTimeMillis();
+        decrease(now, THROTTLE_DECREASE, true);
+        if (retryAfterMillis >= 0) {
+          nextRequestTime = Math.max(nextRequestTime, now + Math.min(retryAfterMillis, maxDelayMillis));
+        }
+        notifyAll();
+      }
+      grantWaiting();
+    }
+
+    /**
+     * Releases a request that says nothing about how the site is coping (e.g. a 404 or 304).
+     */
+    void release() {
+      synchronized (this) {
+        inFlight--;
+        notifyAll();
+      }
+      grantWaiting();
+    }
+
+    private void decrease(long now, double factor, boolean backOff) {
+      // Only once per round trip, as the responses still in flight were sent at the old rate
+      if (now - lastDecreaseTime < Math.max(latencyMillis, 0)) {
+        return;
+      }
+      lastDecreaseTime = now;
+      limit = Math.max(1, limit * factor);
+      if (backOff) {
+        delayMillis = Math.min(maxDelayMillis, Math.max(delayMillis * 2, INITIAL_BACKOFF_MILLIS));
+      }
+      LOG.info("Slowing down {} to {} concurrent requests, {} ms apart", authority, getLimit(), delayMillis);
+    }
+
+    synchronized int getLimit() {
+      return (int) limit;
+    }
+
+    synchronized long getDelayMillis() {
+      return delayMillis;
+    }
+  }
+}
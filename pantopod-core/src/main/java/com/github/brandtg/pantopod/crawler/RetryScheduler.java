@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.github.brandtg.pantopod.api.CrawlEvent;
+import com.github.brandtg.pantopod.consumer.CrawlEventSink;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-enqueues pages whose fetch failed transiently, after an exponential backoff.
+ *
+ * <p>
+ *   The n-th retry waits between half and all of min(baseDelayMillis * 2^n, maxDelayMillis), or longer if the response
+ *   asked to (Retry-After), then sends the event to its resource's topic with its attempt incremented.
+ *   After maxAttempts attempts, the failure counts as permanent. Retries wait in memory, and are sent right away on
+ *   stop so that they are not lost (but they are if the node dies).
+ * </p>
+ */
+public class RetryScheduler implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(RetryScheduler.class);
+
+  private final int maxAttempts;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private final ScheduledExecutorService scheduler;
+  private final Set<Retry> pending;
+  private final Meter retries;
+  private final Meter exhausted;
+
+  private CrawlEventSink sink;
+
+  public RetryScheduler(int maxAttempts,
+                        long baseDelayMillis,
+                        long maxDelayMillis,
+                        ScheduledExecutorService scheduler,
+                        MetricRegistry metricRegistry) {
+    this.maxAttempts = maxAttempts;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.scheduler = scheduler;
+    this.pending = Collections.newSetFromMap(new ConcurrentHashMap<Retry, Boolean>());
+    this.retries = metricRegistry.meter(MetricRegistry.name(RetryScheduler.class, "retries"));
+    this.exhausted = metricRegistry.meter(MetricRegistry.name(RetryScheduler.class, "exhausted"));
+    metricRegistry.register(MetricRegistry.name(RetryScheduler.class, "pending"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return pending.size();
+      }
+    });
+  }
+
+  /**
+   * Sets where retries are sent, which must be done before start.
+   */
+  public void setSink(CrawlEventSink sink) {
+    this.sink = sink;
+  }
+
+  @Override
+  public void start() throws Exception {
+    // NOP
+  }
+
+  @Override
+  public void stop() throws Exception {
+    for (Retry retry : pending) {
+      retry.run();
+    }
+  }
+
+  /**
+   * Returns whether a response with statusCode may succeed if the page is fetched again later.
+   */
+  public static boolean isTransient(int statusCode) {
+    return statusCode == HttpStatus.SC_REQUEST_TIMEOUT
+        || statusCode == 429
+        || statusCode == HttpStatus.SC_INTERNAL_SERVER_ERROR
+        || statusCode == HttpStatus.SC_BAD_GATEWAY
+        || statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE
+        || statusCode == HttpStatus.SC_GATEWAY_TIMEOUT;
+  }
+
+  /**
+   * Schedules event to be fetched again after res (or null if there was no response), unless it has no attempts left.
+   *
+   * @return
+   *  False if the failure should be treated as permanent
+   */
+  public boolean retry(CrawlEvent event, HttpResponse res) {
+    if (event.getAttempt() + 1 >= maxAttempts) {
+      exhausted.mark();
+      return false;
+    }
+
+    long delayMillis = Math.min(baseDelayMillis << Math.min(event.getAttempt(), 30), maxDelayMillis);
+    delayMillis = delayMillis / 2 + ThreadLocalRandom.current().nextLong(delayMillis / 2 + 1);
+    delayMillis = Math.max(delayMillis, Math.min(PolitenessController.getRetryAfterMillis(res), maxDelayMillis));
+
+    CrawlEvent retryEvent = new CrawlEvent(event);
+    retryEvent.setAttempt(event.getAttempt() + 1);
+    Retry retry = new Retry(URI.create(event.getUrl()).getAuthority(), retryEvent);
+    pending.add(retry);
+    scheduler.schedule(retry, delayMillis, TimeUnit.MILLISECONDS);
+    retries.mark();
+    LOG.info("Retrying {} in {} ms (attempt {})", event.getUrl(), delayMillis, retryEvent.getAttempt());
+    return true;
+  }
+
+  private class Retry implements Runnable {
+    private final String resource;
+    private final CrawlEvent event;
+
+    Retry(String resource, CrawlEvent event) {
+      this.resource = resource;
+      this.event = event;
+    }
+
+    @Override
+    public void run() {
+      if (!pending.remove(this)) {
+        return; // Already sent on stop
+      }
+      try {
+        if (sink == null || !sink.send(resource, Collections.singleton(event))) {
+          LOG.warn("Dropping retry of {}, {} is not consumed on this node", event.getUrl(), resource);
+        }
+      } catch (Exception e) {
+        LOG.error("Could not send retry of {}", event.getUrl(), e);
+      }
+    }
+  }
+}
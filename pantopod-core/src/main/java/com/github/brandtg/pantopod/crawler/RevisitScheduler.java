@@ -0,0 +1,535 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.github.brandtg.pantopod.api.CrawlEvent;
+import com.github.brandtg.pantopod.consumer.CrawlEventSink;
+import com.github.brandtg.pantopod.consumer.UrlPartitioner;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Visits stored pages again, more often the more often they have been seen to change.
+ *
+ * <p>
+ *   For each page fetched on this node, records how many times it was checked and found changed. Assuming changes
+ *   arrive as a Poisson process, its change rate is estimated as -ln((n - X + 0.5) / (n + 0.5)) / T for X changes
+ *   in n checks T apart on average (Cho and Garcia-Molina), and it is next visited one expected change later,
+ *   within minIntervalMillis and maxIntervalMillis. A page that has not been seen to change waits twice as long as
+ *   the last time.
+ * </p>
+ *
+ * <p>
+ *   Pages are scheduled per Kafka partition this node owns (see {@link UrlPartitioner}), as the owner of a partition
+ *   fetches all of its pages, and at most maxUrls pages are tracked per partition. Every tickMillis, the pages that are
+ *   due are sent as {@link CrawlEvent#isRevisit()} events, most overdue first, but no more than the partition's share
+ *   of the resource's budget per hour allows. If a directory is given, a schedule is loaded from it when its
+ *   partition is assigned (so resources whose crawl has finished are still visited again after a restart), and
+ *   written back to it when the partition is revoked or on stop, so that it moves with the partition if the directory
+ *   is shared.
+ * </p>
+ */
+public class RevisitScheduler implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(RevisitScheduler.class);
+  private static final String SCHEDULE_FILE_SUFFIX = ".revisit";
+  private static final int SCHEDULE_FILE_VERSION = 1;
+  private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private final long minIntervalMillis;
+  private final long maxIntervalMillis;
+  private final long initialIntervalMillis;
+  private final int defaultBudgetPerHour;
+  private final long tickMillis;
+  private final int maxUrls;
+  private final File scheduleDir;
+  private final ScheduledExecutorService scheduler;
+  private final MetricRegistry metricRegistry;
+  private final ConcurrentMap<String, Integer> numPartitions;
+  private final ConcurrentMap<String, ResourceSchedule> schedules;
+  private final ConcurrentMap<String, Integer> budgets;
+  private final Meter revisits;
+  private final Meter untracked;
+
+  private CrawlEventSink sink;
+  private ScheduledFuture<?> tick;
+
+  /**
+   * @param initialIntervalMillis
+   *  How long after it is first fetched a page is visited again
+   * @param defaultBudgetPerHour
+   *  The most pages of a resource visited again per hour, for resources that do not configure it
+   * @param maxUrls
+   *  The most pages tracked per Kafka partition, beyond which new pages are not visited again
+   */
+  public RevisitScheduler(long minIntervalMillis,
+                          long maxIntervalMillis,
+                          long initialIntervalMillis,
+                          int defaultBudgetPerHour,
+                          long tickMillis,
+                          int maxUrls,
+                          File scheduleDir,
+                          ScheduledExecutorService scheduler,
+                          MetricRegistry metricRegistry) {
+    this.minIntervalMillis = minIntervalMillis;
+    this.maxIntervalMillis = maxIntervalMillis;
+    this.initialIntervalMillis = initialIntervalMillis;
+    this.defaultBudgetPerHour = defaultBudgetPerHour;
+    this.tickMillis = tickMillis;
+    this.maxUrls = maxUrls;
+    this.scheduleDir = scheduleDir;
+    this.scheduler = scheduler;
+    this.metricRegistry = metricRegistry;
+    this.numPartitions = new ConcurrentHashMap<>();
+    this.schedules = new ConcurrentHashMap<>();
+    this.budgets = new ConcurrentHashMap<>();
+    this.revisits = metricRegistry.meter(MetricRegistry.name(RevisitScheduler.class, "revisits"));
+    this.untracked = metricRegistry.meter(MetricRegistry.name(RevisitScheduler.class, "untracked"));
+  }
+
+  /**
+   * Sets where revisits are sent, which must be done before start.
+   */
+  public void setSink(CrawlEventSink sink) {
+    this.sink = sink;
+  }
+
+  /**
+   * Sets the budget of resource, or null to use the default.
+   */
+  public void setBudgetPerHour(String resource, Integer budgetPerHour) {
+    if (budgetPerHour == null) {
+      budgets.remove(resource);
+    } else {
+      budgets.put(resource, budgetPerHour);
+    }
+  }
+
+  @Override
+  public void start() throws Exception {
+    if (scheduleDir != null) {
+      FileUtils.forceMkdir(scheduleDir);
+    }
+    tick = scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        for (ResourceSchedule schedule : schedules.values()) {
+          try {
+            sendDue(schedule, System.currentTimeMillis());
+          } catch (Exception e) {
+            LOG.error("Could not send revisits of {} partition {}", schedule.resource, schedule.partition, e);
+          }
+        }
+      }
+    }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() throws Exception {
+    if (tick != null) {
+      tick.cancel(false);
+    }
+    for (Map.Entry<String, ResourceSchedule> entry : schedules.entrySet()) {
+      writeSchedule(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Starts scheduling the pages of kafkaPartitions, of the numKafkaPartitions of resource.
+   */
+  public synchronized void assign(String resource, int numKafkaPartitions, List<Integer> kafkaPartitions) {
+    numPartitions.put(resource, numKafkaPartitions);
+    for (int partition : kafkaPartitions) {
+      String key = getKey(resource, partition);
+      if (!schedules.containsKey(key)) {
+        ResourceSchedule schedule = loadSchedule(key, resource, partition);
+        schedules.put(key, schedule);
+        registerMetrics(schedule);
+      }
+    }
+  }
+
+  /**
+   * Stops scheduling the pages of kafkaPartitions of resource, writing their schedules back if there is a directory.
+   */
+  public synchronized void revoke(String resource, List<Integer> kafkaPartitions) throws IOException {
+    for (int partition : kafkaPartitions) {
+      String key = getKey(resource, partition);
+      ResourceSchedule schedule = schedules.remove(key);
+      if (schedule != null) {
+        metricRegistry.remove(MetricRegistry.name(RevisitScheduler.class, resource, String.valueOf(partition), "urls"));
+        metricRegistry.remove(
+            MetricRegistry.name(RevisitScheduler.class, resource, String.valueOf(partition), "overdue-millis"));
+        writeSchedule(key, schedule);
+      }
+    }
+  }
+
+  /**
+   * Records that the page of event was fetched at fetchTime.
+   *
+   * @param changed
+   *  Whether it changed since it was last fetched, or null if it was fetched for the first time
+   */
+  public void recordFetch(String resource, CrawlEvent event, Boolean changed, long fetchTime) {
+    ResourceSchedule schedule = getSchedule(resource, event.getUrl());
+    if (schedule == null) {
+      return;
+    }
+    synchronized (schedule) {
+      if (event.getChroot() != null) {
+        schedule.chroot = event.getChroot();
+      }
+      Page page = schedule.pages.get(event.getUrl());
+      if (page == null) {
+        if (schedule.size() >= maxUrls) {
+          untracked.mark();
+          return;
+        }
+        page = new Page(event.getUrl(), event.getDepth());
+        page.lastFetchTime = fetchTime;
+        page.nextVisitTime = fetchTime + initialIntervalMillis;
+        schedule.add(page);
+        return;
+      }
+      if (changed == null) {
+        // Fetched again as a new page (e.g. found through another link), which tells nothing about changes
+        return;
+      }
+
+      schedule.queue.remove(page);
+      long intervalMillis = Math.max(fetchTime - page.lastFetchTime, 0);
+      page.numChecks++;
+      page.totalCheckMillis += intervalMillis;
+      if (changed) {
+        page.numChanges++;
+      }
+      page.lastFetchTime = fetchTime;
+      page.nextVisitTime = fetchTime + getNextIntervalMillis(page, intervalMillis);
+      schedule.queue.add(page);
+    }
+  }
+
+  /**
+   * Stops visiting url again (e.g. because it is gone).
+   */
+  public void forget(String resource, String url) {
+    ResourceSchedule schedule = getSchedule(resource, url);
+    if (schedule == null) {
+      return;
+    }
+    synchronized (schedule) {
+      Page page = schedule.pages.remove(url);
+      if (page != null) {
+        schedule.queue.remove(page);
+      }
+    }
+  }
+
+  /**
+   * Returns how long to wait before checking page again, lastIntervalMillis after it was last checked.
+   */
+  long getNextIntervalMillis(Page page, long lastIntervalMillis) {
+    long intervalMillis;
+    if (page.numChanges == 0) {
+      intervalMillis = Math.max(lastIntervalMillis, minIntervalMillis) * 2;
+    } else {
+      double meanCheckMillis = page.totalCheckMillis / (double) page.numChecks;
+      double changesPerMilli = -Math.log((page.numChecks - page.numChanges + 0.5) / (page.numChecks + 0.5))
+          / Math.max(meanCheckMillis, 1);
+      intervalMillis = (long) Math.min(1 / changesPerMilli, maxIntervalMillis);
+    }
+    return Math.max(minIntervalMillis, Math.min(intervalMillis, maxIntervalMillis));
+  }
+
+  /**
+   * Returns when the page at url is next visited, or -1 if it is not tracked.
+   */
+  long getNextVisitTime(String resource, String url) {
+    ResourceSchedule schedule = getSchedule(resource, url);
+    if (schedule == null) {
+      return -1;
+    }
+    synchronized (schedule) {
+      Page page = schedule.pages.get(url);
+      return page == null ? -1 : page.nextVisitTime;
+    }
+  }
+
+  /**
+   * Sends the pages of schedule that are due at now, as far as its share of the resource's budget allows.
+   */
+  void sendDue(ResourceSchedule schedule, long now) throws Exception {
+    String resource = schedule.resource;
+    Integer budgetPerHour = budgets.get(resource);
+    Integer numKafkaPartitions = numPartitions.get(resource);
+    double budget = (budgetPerHour == null ? defaultBudgetPerHour : budgetPerHour)
+        / (double) (numKafkaPartitions == null ? 1 : numKafkaPartitions);
+
+    Set<CrawlEvent> events = new LinkedHashSet<>();
+    synchronized (schedule) {
+      if (schedule.lastTickTime > 0) {
+        // At most one tick's worth carries over, so an idle resource does not send a burst
+        schedule.tokens = Math.min(
+            schedule.tokens + budget * (now - schedule.lastTickTime) / HOUR_MILLIS,
+            Math.max(budget * tickMillis / HOUR_MILLIS, 1) * 2);
+      }
+      schedule.lastTickTime = now;
+
+      while (schedule.tokens >= 1 && !schedule.queue.isEmpty() && schedule.queue.first().nextVisitTime <= now) {
+        Page page = schedule.queue.pollFirst();
+        CrawlEvent event = new CrawlEvent();
+        event.setUrl(page.url);
+        event.setChroot(schedule.chroot);
+        event.setDepth(page.depth);
+        event.setRevisit(true);
+        events.add(event);
+        schedule.tokens--;
+
+        // Until its fetch is recorded (in case the event is lost)
+        page.nextVisitTime = now + maxIntervalMillis;
+        schedule.queue.add(page);
+      }
+    }
+
+    if (!events.isEmpty()) {
+      if (sink != null && sink.send(resource, events)) {
+        revisits.mark(events.size());
+        LOG.info("Sent {} revisits of {}", events.size(), resource);
+      } else {
+        // Not consumed on this node right now, so try again later
+        synchronized (schedule) {
+          for (CrawlEvent event : events) {
+            Page page = schedule.pages.get(event.getUrl());
+            if (page != null) {
+              schedule.queue.remove(page);
+              page.nextVisitTime = now;
+              schedule.queue.add(page);
+            }
+          }
+          schedule.tokens += events.size();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the schedule of the partition of url, or null if this node does not own it.
+   */
+  ResourceSchedule getSchedule(String resource, String url) {
+    Integer numKafkaPartitions = numPartitions.get(resource);
+    if (numKafkaPartitions == null) {
+      return null;
+    }
+    return schedules.get(getKey(resource, UrlPartitioner.getPartition(url, numKafkaPartitions)));
+  }
+
+  private void registerMetrics(final ResourceSchedule schedule) {
+    String partition = String.valueOf(schedule.partition);
+    metricRegistry.register(
+        MetricRegistry.name(RevisitScheduler.class, schedule.resource, partition, "urls"),
+        new Gauge<Integer>() {
+          @Override
+          public Integer getValue() {
+            synchronized (schedule) {
+              return schedule.size();
+            }
+          }
+        });
+    metricRegistry.register(
+        MetricRegistry.name(RevisitScheduler.class, schedule.resource, partition, "overdue-millis"),
+        new Gauge<Long>() {
+          @Override
+          public Long getValue() {
+            synchronized (schedule) {
+              return schedule.queue.isEmpty()
+                  ? 0L
+                  : Math.max(System.currentTimeMillis() - schedule.queue.first().nextVisitTime, 0);
+            }
+          }
+        });
+  }
+
+  private ResourceSchedule loadSchedule(String key, String resource, int partition) {
+    if (scheduleDir != null) {
+      File scheduleFile = getScheduleFile(key);
+      if (scheduleFile.exists()) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(scheduleFile)))) {
+          ResourceSchedule schedule = ResourceSchedule.readFrom(in, resource, partition);
+          LOG.info("Loaded {} ({} URLs)", scheduleFile, schedule.size());
+          return schedule;
+        } catch (IOException e) {
+          LOG.error("Could not load {}, starting empty", scheduleFile, e);
+        }
+      }
+    }
+    return new ResourceSchedule(resource, partition);
+  }
+
+  private void writeSchedule(String key, ResourceSchedule schedule) throws IOException {
+    if (scheduleDir == null) {
+      return;
+    }
+    File scheduleFile = getScheduleFile(key);
+    File tmpFile = new File(scheduleDir, scheduleFile.getName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+      synchronized (schedule) {
+        schedule.writeTo(out);
+      }
+    }
+    if (scheduleFile.exists()) {
+      FileUtils.forceDelete(scheduleFile);
+    }
+    FileUtils.moveFile(tmpFile, scheduleFile);
+    LOG.info("Wrote {} ({} URLs)", scheduleFile, schedule.size());
+  }
+
+  private static String getKey(String resource, int kafkaPartition) {
+    return resource + "-" + kafkaPartition;
+  }
+
+  private File getScheduleFile(String key) {
+    return new File(scheduleDir, key + SCHEDULE_FILE_SUFFIX);
+  }
+
+  static class Page {
+    private final String url;
+    private final int depth;
+    private long lastFetchTime;
+    private long nextVisitTime;
+    private int numChecks;
+    private int numChanges;
+    private long totalCheckMillis;
+
+    Page(String url, int depth) {
+      this.url = url;
+      this.depth = depth;
+    }
+  }
+
+  static class ResourceSchedule {
+    private static final Comparator<Page> BY_NEXT_VISIT = new Comparator<Page>() {
+      @Override
+      public int compare(Page a, Page b) {
+        int cmp = Long.compare(a.nextVisitTime, b.nextVisitTime);
+        return cmp == 0 ? a.url.compareTo(b.url) : cmp;
+      }
+    };
+
+    private final String resource;
+    private final int partition;
+    private final Map<String, Page> pages = new HashMap<>();
+    private final TreeSet<Page> queue = new TreeSet<>(BY_NEXT_VISIT);
+    private String chroot;
+    private double tokens;
+    private long lastTickTime;
+
+    ResourceSchedule(String resource, int partition) {
+      this.resource = resource;
+      this.partition = partition;
+    }
+
+    void add(Page page) {
+      pages.put(page.url, page);
+      queue.add(page);
+    }
+
+    int size() {
+      return pages.size();
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.writeInt(SCHEDULE_FILE_VERSION);
+      out.writeBoolean(chroot != null);
+      if (chroot != null) {
+        writeString(out, chroot);
+      }
+      out.writeInt(pages.size());
+      for (Page page : pages.values()) {
+        writeString(out, page.url);
+        out.writeInt(page.depth);
+        out.writeLong(page.lastFetchTime);
+        out.writeLong(page.nextVisitTime);
+        out.writeInt(page.numChecks);
+        out.writeInt(page.numChanges);
+        out.writeLong(page.totalCheckMillis);
+      }
+    }
+
+    static ResourceSchedule readFrom(DataInputStream in, String resource, int partition) throws IOException {
+      int version = in.readInt();
+      if (version != SCHEDULE_FILE_VERSION) {
+        throw new IOException("Unsupported revisit schedule version " + version);
+      }
+      ResourceSchedule schedule = new ResourceSchedule(resource, partition);
+      if (in.readBoolean()) {
+        schedule.chroot = readString(in);
+      }
+      int numPages = in.readInt();
+      for (int i = 0; i < numPages; i++) {
+        Page page = new Page(readString(in), in.readInt());
+        page.lastFetchTime = in.readLong();
+        page.nextVisitTime = in.readLong();
+        page.numChecks = in.readInt();
+        page.numChanges = in.readInt();
+        page.totalCheckMillis = in.readLong();
+        schedule.add(page);
+      }
+      return schedule;
+    }
+  }
+
+  /**
+   * Writes value as its length and UTF-8 bytes, as {@link DataOutputStream#writeUTF} is limited to 64 KB.
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
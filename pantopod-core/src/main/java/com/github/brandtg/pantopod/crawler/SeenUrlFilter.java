@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A scalable Bloom filter of URL fingerprints.
+ *
+ * <p>
+ *   Starts with one stage sized for the expected number of URLs, and adds a stage twice as large (with half the
+ *   false positive probability) each time the last one fills up, until maxUrls are covered. After that, the last
+ *   stage keeps absorbing URLs and its false positive probability grows, which {@link #expectedFpp()} reports.
+ * </p>
+ */
+public class SeenUrlFilter {
+  private static final int VERSION = 1;
+
+  private final long maxUrls;
+  private final List<Stage> stages;
+
+  public SeenUrlFilter(long expectedUrls, double fpp, long maxUrls) {
+    this.maxUrls = maxUrls;
+    this.stages = new ArrayList<>();
+    this.stages.add(new Stage(expectedUrls, fpp));
+  }
+
+  private SeenUrlFilter(long maxUrls, List<Stage> stages) {
+    this.maxUrls = maxUrls;
+    this.stages = stages;
+  }
+
+  public synchronized boolean mightContain(long fingerprint) {
+    for (Stage stage : stages) {
+      if (stage.filter.mightContain(fingerprint)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public synchronized void put(long fingerprint) {
+    Stage last = stages.get(stages.size() - 1);
+    if (last.count >= last.capacity && getCapacity() + last.capacity * 2 <= maxUrls) {
+      last = new Stage(last.capacity * 2, last.fpp / 2);
+      stages.add(last);
+    }
+    if (last.filter.put(fingerprint)) {
+      last.count++;
+    }
+  }
+
+  /**
+   * Returns the probability that {@link #mightContain(long)} is true for a URL that was never put.
+   */
+  public synchronized double expectedFpp() {
+    double pNone = 1.0;
+    for (Stage stage : stages) {
+      pNone *= 1.0 - stage.filter.expectedFpp();
+    }
+    return 1.0 - pNone;
+  }
+
+  public synchronized long getCount() {
+    long count = 0;
+    for (Stage stage : stages) {
+      count += stage.count;
+    }
+    return count;
+  }
+
+  private long getCapacity() {
+    long capacity = 0;
+    for (Stage stage : stages) {
+      capacity += stage.capacity;
+    }
+    return capacity;
+  }
+
+  public synchronized void writeTo(OutputStream outputStream) throws IOException {
+    DataOutputStream out = new DataOutputStream(outputStream);
+    out.writeInt(VERSION);
+    out.writeLong(maxUrls);
+    out.writeInt(stages.size());
+    for (Stage stage : stages) {
+      out.writeLong(stage.capacity);
+      out.writeDouble(stage.fpp);
+      out.writeLong(stage.count);
+      stage.filter.writeTo(out);
+    }
+    out.flush();
+  }
+
+  public static SeenUrlFilter readFrom(InputStream inputStream) throws IOException {
+    DataInputStream in = new DataInputStream(inputStream);
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported seen URL filter version " + version);
+    }
+    long maxUrls = in.readLong();
+    int numStages = in.readInt();
+    List<Stage> stages = new ArrayList<>(numStages);
+    for (int i = 0; i < numStages; i++) {
+      long capacity = in.readLong();
+      double fpp = in.readDouble();
+      long count = in.readLong();
+      stages.add(new Stage(capacity, fpp, count, BloomFilter.readFrom(in, Funnels.longFunnel())));
+    }
+    return new SeenUrlFilter(maxUrls, stages);
+  }
+
+  private static class Stage {
+    private final long capacity;
+    private final double fpp;
+    private final BloomFilter<Long> filter;
+    private long count;
+
+    Stage(long capacity, double fpp) {
+      this(capacity, fpp, 0,
+          BloomFilter.create(Funnels.longFunnel(), (int) Math.min(capacity, Integer.MAX_VALUE), fpp));
+    }
+
+    Stage(long capacity, double fpp, long count, BloomFilter<Long> filter) {
+      this.capacity = capacity;
+      this.fpp = fpp;
+      this.count = count;
+      this.filter = filter;
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.github.brandtg.pantopod.api.UrlFingerprint;
+import com.github.brandtg.pantopod.consumer.UrlPartitioner;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps a {@link SeenUrlFilter} per Kafka partition this node owns, of the URLs of that partition that have already
+ * been enqueued.
+ *
+ * <p>
+ *   As every occurrence of a URL goes to the partition of its fingerprint (see {@link UrlPartitioner}), the owner of a
+ *   partition sees all of its URLs, and its filter covers them whichever node enqueued them. URLs of partitions owned
+ *   by other nodes are not filtered.
+ * </p>
+ *
+ * <p>
+ *   If a directory is given, a filter is loaded from it when its partition is assigned, and written back to it when
+ *   the partition is revoked or on stop, so that it moves with the partition if the directory is shared.
+ * </p>
+ */
+public class SeenUrlFilterManager implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(SeenUrlFilterManager.class);
+  private static final String FILTER_FILE_SUFFIX = ".seen";
+
+  private final long expectedUrls;
+  private final double fpp;
+  private final long maxUrls;
+  private final File filterDir;
+  private final MetricRegistry metricRegistry;
+  private final ConcurrentMap<String, Integer> numPartitions;
+  private final ConcurrentMap<String, SeenUrlFilter> filters;
+  private final Meter savedLookups;
+  private final Meter storageLookups;
+
+  public SeenUrlFilterManager(long expectedUrls,
+                              double fpp,
+                              long maxUrls,
+                              File filterDir,
+                              MetricRegistry metricRegistry) {
+    this.expectedUrls = expectedUrls;
+    this.fpp = fpp;
+    this.maxUrls = maxUrls;
+    this.filterDir = filterDir;
+    this.metricRegistry = metricRegistry;
+    this.numPartitions = new ConcurrentHashMap<>();
+    this.filters = new ConcurrentHashMap<>();
+    this.savedLookups = metricRegistry.meter(MetricRegistry.name(SeenUrlFilterManager.class, "saved-lookups"));
+    this.storageLookups = metricRegistry.meter(MetricRegistry.name(SeenUrlFilterManager.class, "storage-lookups"));
+  }
+
+  @Override
+  public void start() throws Exception {
+    if (filterDir != null) {
+      FileUtils.forceMkdir(filterDir);
+    }
+  }
+
+  @Override
+  public void stop() throws Exception {
+    for (Map.Entry<String, SeenUrlFilter> entry : filters.entrySet()) {
+      writeFilter(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Starts filtering the URLs of kafkaPartitions, of the numKafkaPartitions of resource.
+   */
+  public synchronized void assign(String resource, int numKafkaPartitions, List<Integer> kafkaPartitions) {
+    numPartitions.put(resource, numKafkaPartitions);
+    for (int partition : kafkaPartitions) {
+      final String key = getKey(resource, partition);
+      if (filters.containsKey(key)) {
+        continue;
+      }
+      final SeenUrlFilter filter = loadFilter(key);
+      filters.put(key, filter);
+      metricRegistry.register(
+          MetricRegistry.name(SeenUrlFilterManager.class, resource, String.valueOf(partition), "expected-fpp"),
+          new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+              return filter.expectedFpp();
+            }
+          });
+    }
+  }
+
+  /**
+   * Stops filtering the URLs of kafkaPartitions of resource, writing their filters back if there is a directory.
+   */
+  public synchronized void revoke(String resource, List<Integer> kafkaPartitions) throws IOException {
+    for (int partition : kafkaPartitions) {
+      String key = getKey(resource, partition);
+      SeenUrlFilter filter = filters.remove(key);
+      if (filter != null) {
+        metricRegistry.remove(
+            MetricRegistry.name(SeenUrlFilterManager.class, resource, String.valueOf(partition), "expected-fpp"));
+        writeFilter(key, filter);
+      }
+    }
+  }
+
+  /**
+   * Returns true if url has (probably) been enqueued before, which saves checking the underlying storage.
+   */
+  public boolean isSeen(URI url) {
+    SeenUrlFilter filter = getFilter(url);
+    boolean seen = filter != null && filter.mightContain(UrlFingerprint.of(url));
+    if (seen) {
+      savedLookups.mark();
+    } else {
+      storageLookups.mark();
+    }
+    return seen;
+  }
+
+  /**
+   * Marks url as enqueued, if its partition is owned by this node.
+   */
+  public void markSeen(URI url) {
+    SeenUrlFilter filter = getFilter(url);
+    if (filter != null) {
+      filter.put(UrlFingerprint.of(url));
+    }
+  }
+
+  /**
+   * Returns the filter of the partition of url, or null if this node does not own it.
+   */
+  private SeenUrlFilter getFilter(URI url) {
+    Integer numKafkaPartitions = numPartitions.get(url.getAuthority());
+    if (numKafkaPartitions == null) {
+      return null;
+    }
+    int partition = UrlPartitioner.getPartition(url.toString(), numKafkaPartitions);
+    return filters.get(getKey(url.getAuthority(), partition));
+  }
+
+  private SeenUrlFilter loadFilter(String key) {
+    if (filterDir != null) {
+      File filterFile = getFilterFile(key);
+      if (filterFile.exists()) {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(filterFile))) {
+          SeenUrlFilter filter = SeenUrlFilter.readFrom(is);
+          LOG.info("Loaded {} ({} URLs)", filterFile, filter.getCount());
+          return filter;
+        } catch (IOException e) {
+          LOG.error("Could not load {}, starting empty", filterFile, e);
+        }
+      }
+    }
+    return new SeenUrlFilter(expectedUrls, fpp, maxUrls);
+  }
+
+  private void writeFilter(String key, SeenUrlFilter filter) throws IOException {
+    if (filterDir == null) {
+      return;
+    }
+    File filterFile = getFilterFile(key);
+    File tmpFile = new File(filterDir, filterFile.getName() + ".tmp");
+    try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+      filter.writeTo(os);
+    }
+    if (filterFile.exists()) {
+      FileUtils.forceDelete(filterFile);
+    }
+    FileUtils.moveFile(tmpFile, filterFile);
+    LOG.info("Wrote {} ({} URLs)", filterFile, filter.getCount());
+  }
+
+  private static String getKey(String resource, int kafkaPartition) {
+    return resource + "-" + kafkaPartition;
+  }
+
+  private File getFilterFile(String key) {
+    return new File(filterDir, key + FILTER_FILE_SUFFIX);
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Stores pages, errors and external domains in a {@link SegmentStore}.
+ */
+public class SegmentCrawlingEventHandler extends CrawlingEventHandler {
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentCrawlingEventHandler.class);
+  private final SegmentStore store;
+
+  public SegmentCrawlingEventHandler(HttpClient httpClient, SegmentStore store) {
+    super(httpClient);
+    this.store = store;
+  }
+
+  @Override
+  protected void handleExternalDomain(URI srcUrl, URI dstUrl) throws IOException {
+    if (store.appendExternalDomain(srcUrl.getAuthority(), dstUrl.getAuthority())) {
+      LOG.info("Wrote {} #=> {}", srcUrl.getAuthority(), dstUrl.getAuthority());
+    }
+  }
+
+  @Override
+  protected Stored handleData(URI url, HttpResponse res, byte[] data) throws IOException {
+    boolean created = store.appendData(
+        url.toString(), res.getStatusLine().getStatusCode(), res.getAllHeaders(), compressBody(url, data));
+    if (created) {
+      LOG.info("Wrote {}", url);
+    }
+    return created ? Stored.NEW : Stored.NONE;
+  }
+
+  @Override
+  protected Stored handleData(URI url, byte[] data) throws IOException {
+    return store.appendData(url.toString(), 200, null, compressBody(url, data)) ? Stored.NEW : Stored.NONE;
+  }
+
+  @Override
+  protected void replaceData(URI url, HttpResponse res, byte[] data) throws IOException {
+    store.replaceData(
+        url.toString(), res.getStatusLine().getStatusCode(), res.getAllHeaders(), compressBody(url, data));
+  }
+
+  @Override
+  public byte[] readData(URI url) throws IOException {
+    return decompressBody(store.readData(url.toString()));
+  }
+
+  @Override
+  protected PageValidators getValidators(URI url) throws IOException {
+    return store.readValidators(url.toString());
+  }
+
+  @Override
+  protected void storeValidators(URI url, PageValidators validators) throws IOException {
+    store.appendValidators(url.toString(), validators);
+  }
+
+  @Override
+  protected boolean shouldExplore(URI url) {
+    return !store.contains(url.toString());
+  }
+
+  @Override
+  protected void markError(URI url, int errorCode) throws IOException {
+    store.appendError(url.toString(), errorCode);
+  }
+
+  @Override
+  protected void markSkipped(URI url, HttpResponse res, String reason) throws IOException {
+    long contentLength = -1;
+    if (res.getFirstHeader("Content-Length") != null) {
+      try {
+        contentLength = Long.parseLong(res.getFirstHeader("Content-Length").getValue().trim());
+      } catch (NumberFormatException e) {
+        // Leave it unknown
+      }
+    }
+    store.appendSkipped(url.toString(),
+        res.getStatusLine().getStatusCode(),
+        res.getFirstHeader("Content-Type") == null ? null : res.getFirstHeader("Content-Type").getValue(),
+        contentLength,
+        reason);
+  }
+
+  @Override
+  protected boolean hasError(URI url) {
+    return store.isError(url.toString());
+  }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory-mapped hash table from URL fingerprint to the location of its record in a {@link SegmentStore}.
+ *
+ * <p>
+ *   Open addressing with linear probing, in 16 byte slots (fingerprint, segment, offset). It doubles in size when
+ *   three quarters full. The header records whether it was closed cleanly, i.e. is consistent with the segments.
+ * </p>
+ */
+class SegmentIndex implements Closeable {
+  private static final long MAGIC = 0x50414E544F504F44L;
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 64;
+  private static final int SLOT_BYTES = 16;
+  private static final int MAX_SLOTS = 1 << 26; // so slot offsets fit in an int
+  private static final int ERROR_FLAG = 0x80000000;
+
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 8;
+  private static final int SLOTS_OFFSET = 12;
+  private static final int SIZE_OFFSET = 16;
+  private static final int CLEAN_OFFSET = 20;
+  private static final int LAST_SEGMENT_OFFSET = 24;
+  private static final int LAST_SEGMENT_BYTES_OFFSET = 28;
+
+  private final File file;
+  private MappedByteBuffer buffer;
+  private int numSlots;
+  private int size;
+
+  private SegmentIndex(File file, MappedByteBuffer buffer) {
+    this.file = file;
+    this.buffer = buffer;
+    this.numSlots = buffer.getInt(SLOTS_OFFSET);
+    this.size = buffer.getInt(SIZE_OFFSET);
+  }
+
+  /**
+   * Opens the index in file, or creates an empty one with numSlots (a power of two) if it is missing or unreadable.
+   */
+  static SegmentIndex open(File file, int numSlots) throws IOException {
+    if (file.exists()) {
+      MappedByteBuffer buffer = map(file, file.length());
+      if (file.length() >= HEADER_BYTES
+          && buffer.getLong(MAGIC_OFFSET) == MAGIC
+          && buffer.getInt(VERSION_OFFSET) == VERSION
+          && file.length() == HEADER_BYTES + (long) buffer.getInt(SLOTS_OFFSET) * SLOT_BYTES) {
+        return new SegmentIndex(file, buffer);
+      }
+    }
+    return new SegmentIndex(file, create(file, numSlots));
+  }
+
+  boolean isClean() {
+    return buffer.getInt(CLEAN_OFFSET) != 0;
+  }
+
+  int getLastSegment() {
+    return buffer.getInt(LAST_SEGMENT_OFFSET);
+  }
+
+  long getLastSegmentBytes() {
+    return buffer.getLong(LAST_SEGMENT_BYTES_OFFSET);
+  }
+
+  /**
+   * Records that entries may be missing (until {@link #markClean(int, long)}), so a crash forces a rebuild.
+   */
+  void markDirty() {
+    buffer.putInt(CLEAN_OFFSET, 0);
+    buffer.force();
+  }
+
+  /**
+   * Records that the index covers every record up to lastSegmentBytes of lastSegment.
+   */
+  void markClean(int lastSegment, long lastSegmentBytes) {
+    buffer.putInt(SIZE_OFFSET, size);
+    buffer.force();
+    buffer.putInt(LAST_SEGMENT_OFFSET, lastSegment);
+    buffer.putLong(LAST_SEGMENT_BYTES_OFFSET, lastSegmentBytes);
+    buffer.putInt(CLEAN_OFFSET, 1);
+    buffer.force();
+  }
+
+  /**
+   * Removes all entries.
+   */
+  void clear() throws IOException {
+    buffer = create(file, numSlots);
+    size = 0;
+  }
+
+  boolean contains(long fingerprint) {
+    return findSlot(normalize(fingerprint)) >= 0;
+  }
+
+  boolean isError(long fingerprint) {
+    int slot = findSlot(normalize(fingerprint));
+    return slot >= 0 && (buffer.getInt(slotOffset(slot) + 8) & ERROR_FLAG) != 0;
+  }
+
+  /**
+   * Returns the segment of the record for fingerprint, or -1 if there is none.
+   */
+  int getSegment(long fingerprint) {
+    int slot = findSlot(normalize(fingerprint));
+    return slot < 0 ? -1 : buffer.getInt(slotOffset(slot) + 8) & ~ERROR_FLAG;
+  }
+
+  /**
+   * Returns the offset of the record for fingerprint in its segment, or -1 if there is none.
+   */
+  int getOffset(long fingerprint) {
+    int slot = findSlot(normalize(fingerprint));
+    return slot < 0 ? -1 : buffer.getInt(slotOffset(slot) + 12);
+  }
+
+  void put(long fingerprint, int segment, int offset, boolean error) throws IOException {
+    if ((size + 1) * 4L > numSlots * 3L) {
+      grow();
+    }
+    if (putSlot(buffer, numSlots, normalize(fingerprint), segment | (error ? ERROR_FLAG : 0), offset)) {
+      size++;
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  @Override
+  public void close() throws IOException {
+    buffer.force();
+  }
+
+  private int findSlot(long fingerprint) {
+    int mask = numSlots - 1;
+    for (int slot = (int) mix(fingerprint) & mask; ; slot = (slot + 1) & mask) {
+      long slotFingerprint = buffer.getLong(slotOffset(slot));
+      if (slotFingerprint == fingerprint) {
+        return slot;
+      } else if (slotFingerprint == 0) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Returns true if a new slot was used, false if the entry for fingerprint was replaced.
+   */
+  private static boolean putSlot(MappedByteBuffer buffer, int numSlots, long fingerprint, int segment, int offset) {
+    int mask = numSlots - 1;
+    for (int slot = (int) mix(fingerprint) & mask; ; slot = (slot + 1) & mask) {
+      int slotOffset = slotOffset(slot);
+      long slotFingerprint = buffer.getLong(slotOffset);
+      if (slotFingerprint == fingerprint || slotFingerprint == 0) {
+        buffer.putLong(slotOffset, fingerprint);
+        buffer.putInt(slotOffset + 8, segment);
+        buffer.putInt(slotOffset + 12, offset);
+        return slotFingerprint == 0;
+      }
+    }
+  }
+
+  private void grow() throws IOException {
+    if (numSlots >= MAX_SLOTS) {
+      throw new IllegalStateException("Segment index is full at " + size + " entries");
+    }
+
+    int newNumSlots = numSlots * 2;
+    File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+    MappedByteBuffer newBuffer = create(tmpFile, newNumSlots);
+    for (int slot = 0; slot < numSlots; slot++) {
+      int slotOffset = slotOffset(slot);
+      long fingerprint = buffer.getLong(slotOffset);
+      if (fingerprint != 0) {
+        putSlot(newBuffer, newNumSlots, fingerprint, buffer.getInt(slotOffset + 8), buffer.getInt(slotOffset + 12));
+      }
+    }
+    newBuffer.putInt(SIZE_OFFSET, size);
+    newBuffer.force();
+
+    FileUtils.deleteQuietly(file);
+    FileUtils.moveFile(tmpFile, file);
+    buffer = newBuffer;
+    numSlots = newNumSlots;
+  }
+
+  private static MappedByteBuffer create(File file, int numSlots) throws IOException {
+    if (Integer.bitCount(numSlots) != 1 || numSlots > MAX_SLOTS) {
+      throw new IllegalArgumentException("Number of slots must be a power of two up to " + MAX_SLOTS);
+    }
+    FileUtils.deleteQuietly(file);
+    MappedByteBuffer buffer = map(file, HEADER_BYTES + (long) numSlots * SLOT_BYTES);
+    buffer.putLong(MAGIC_OFFSET, MAGIC);
+    buffer.putInt(VERSION_OFFSET, VERSION);
+    buffer.putInt(SLOTS_OFFSET, numSlots);
+    buffer.putInt(SIZE_OFFSET, 0);
+    buffer.putInt(CLEAN_OFFSET, 0);
+    return buffer;
+  }
+
+  private static MappedByteBuffer map(File file, long length) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(length);
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+  }
+
+  private static int slotOffset(int slot) {
+    return HEADER_BYTES + slot * SLOT_BYTES;
+  }
+
+  /** 0 marks an empty slot */
+  private static long normalize(long fingerprint) {
+    return fingerprint == 0 ? 1 : fingerprint;
+  }
+
+  /** The fingerprints are already hashes, but fold the high bits in for small tables */
+  private static long mix(long fingerprint) {
+    return fingerprint ^ (fingerprint >>> 32);
+  }
+}
@@ -0,0 +1,585 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.github.brandtg.pantopod.api.UrlFingerprint;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Stores crawl records by appending them to segment files, with a {@link SegmentIndex} of where each URL's is.
+ *
+ * <p>
+ *   A record is [type][payload length][payload][CRC32 of type and payload]. The payload of a data record is the URL,
+ *   status, headers and body; of an error record, the URL and status; of a skipped record (an error record for a
+ *   response not read, see {@link FetchPolicy}), the URL, status, content type, content length and reason; of an
+ *   external domain record, the source and destination authorities; of a validators record, the URL and its
+ *   {@link PageValidators}. Strings are written as their length and UTF-8 bytes. A new segment is started once the
+ *   current one would exceed maxSegmentBytes.
+ * </p>
+ *
+ * <p>
+ *   A later data record for a URL (see {@link #replaceData}) supersedes earlier ones, as does a later validators
+ *   record, which are indexed separately.
+ * </p>
+ *
+ * <p>
+ *   The index, and the set of external domains, are rebuilt by replaying every segment on start unless they were
+ *   closed cleanly. Replaying truncates each segment at its first record that is torn (from a crash) or fails its CRC.
+ *   Records are checked against their CRC when read, too.
+ * </p>
+ */
+public class SegmentStore implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentStore.class);
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String INDEX_FILE = "index.map";
+  private static final String VALIDATORS_INDEX_FILE = "validators.map";
+  private static final String EXTERNAL_DOMAINS_FILE = "external-domains.tsv";
+  private static final byte TYPE_DATA = 1;
+  private static final byte TYPE_ERROR = 2;
+  private static final byte TYPE_EXTERNAL_DOMAIN = 3;
+  private static final byte TYPE_VALIDATORS = 4;
+  private static final byte TYPE_SKIPPED = 5;
+  private static final int RECORD_HEADER_BYTES = 5;
+  private static final int RECORD_TRAILER_BYTES = 4;
+
+  private final File dir;
+  private final long maxSegmentBytes;
+  private final int initialIndexSlots;
+  private final Set<String> externalDomains;
+
+  private SegmentIndex index;
+  private SegmentIndex validatorsIndex;
+  private List<FileChannel> segments;
+  private FileChannel current;
+  private long currentBytes;
+
+  /**
+   * @param maxSegmentBytes
+   *  At most 2GB, as offsets in the index are ints
+   * @param initialIndexSlots
+   *  The initial capacity of a new index (a power of two), which doubles as needed
+   */
+  public SegmentStore(File dir, long maxSegmentBytes, int initialIndexSlots) {
+    if (maxSegmentBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Segments cannot be larger than " + Integer.MAX_VALUE + " bytes");
+    }
+    this.dir = dir;
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.initialIndexSlots = initialIndexSlots;
+    this.externalDomains = new HashSet<>();
+  }
+
+  @Override
+  public synchronized void start() throws Exception {
+    FileUtils.forceMkdir(dir);
+    index = SegmentIndex.open(new File(dir, INDEX_FILE), initialIndexSlots);
+    validatorsIndex = SegmentIndex.open(new File(dir, VALIDATORS_INDEX_FILE), initialIndexSlots);
+    segments = new ArrayList<>();
+
+    List<File> segmentFiles = listSegmentFiles();
+    boolean clean = index.isClean()
+        && validatorsIndex.isClean()
+        && !segmentFiles.isEmpty()
+        && index.getLastSegment() == segmentFiles.size() - 1
+        && index.getLastSegmentBytes() == segmentFiles.get(segmentFiles.size() - 1).length();
+    if (!clean) {
+      // Its size is only recorded when closed cleanly, so may be 0 with entries
+      if (!segmentFiles.isEmpty()) {
+        LOG.warn("Index in {} was not closed cleanly, rebuilding", dir);
+      }
+      index.clear();
+      validatorsIndex.clear();
+    }
+    index.markDirty();
+    validatorsIndex.markDirty();
+
+    long startTime = System.currentTimeMillis();
+    int numRecords = 0;
+    File externalDomainsFile = new File(dir, EXTERNAL_DOMAINS_FILE);
+    boolean replayExternalDomains = !clean || !externalDomainsFile.exists();
+    if (!replayExternalDomains) {
+      for (String line : FileUtils.readLines(externalDomainsFile, StandardCharsets.UTF_8)) {
+        if (!line.isEmpty()) {
+          externalDomains.add(line);
+        }
+      }
+    }
+    for (int i = 0; i < segmentFiles.size(); i++) {
+      File segmentFile = segmentFiles.get(i);
+      if (replayExternalDomains) {
+        // Data records are skipped if indexed
+        numRecords += replay(i, segmentFile, !clean);
+      }
+      segments.add(new RandomAccessFile(segmentFile, "rw").getChannel());
+    }
+    LOG.info("Opened {} segments in {} ({} records replayed, {} URLs) in {} ms",
+        segmentFiles.size(), dir, numRecords, index.size(), System.currentTimeMillis() - startTime);
+
+    if (segments.isEmpty()) {
+      roll();
+    } else {
+      current = segments.get(segments.size() - 1);
+      currentBytes = current.size();
+    }
+  }
+
+  @Override
+  public synchronized void stop() throws Exception {
+    if (current == null) {
+      return;
+    }
+    current.force(true);
+    writeExternalDomains();
+    index.markClean(segments.size() - 1, currentBytes);
+    index.close();
+    validatorsIndex.markClean(segments.size() - 1, currentBytes);
+    validatorsIndex.close();
+    for (FileChannel segment : segments) {
+      segment.close();
+    }
+  }
+
+  /**
+   * Returns true if there is a data or error record for url.
+   */
+  public synchronized boolean contains(String url) {
+    return index.contains(UrlFingerprint.of(url));
+  }
+
+  public synchronized boolean isError(String url) {
+    return index.isError(UrlFingerprint.of(url));
+  }
+
+  public synchronized boolean containsExternalDomain(String srcAuthority, String dstAuthority) {
+    return externalDomains.contains(srcAuthority + "\t" + dstAuthority);
+  }
+
+  /**
+   * Appends a data record for url, unless it already has a record, in which case returns false.
+   */
+  public synchronized boolean appendData(String url, int status, Header[] headers, byte[] body) throws IOException {
+    if (index.contains(UrlFingerprint.of(url))) {
+      return false;
+    }
+    replaceData(url, status, headers, body);
+    return true;
+  }
+
+  /**
+   * Appends a data record for url, which supersedes any record it already has.
+   */
+  public synchronized void replaceData(String url, int status, Header[] headers, byte[] body) throws IOException {
+    ByteArrayOutputStream meta = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(meta);
+    writeString(out, url);
+    out.writeInt(status);
+    out.writeInt(headers == null ? 0 : headers.length);
+    if (headers != null) {
+      for (Header header : headers) {
+        writeString(out, header.getName());
+        writeString(out, header.getValue() == null ? "" : header.getValue());
+      }
+    }
+    out.writeInt(body.length);
+    out.flush();
+
+    long location = append(TYPE_DATA, meta.toByteArray(), body);
+    index.put(UrlFingerprint.of(url), (int) (location >>> 32), (int) location, false);
+  }
+
+  /**
+   * Appends an error record for url, unless it already has a record, in which case returns false.
+   */
+  public synchronized boolean appendError(String url, int status) throws IOException {
+    long fingerprint = UrlFingerprint.of(url);
+    if (index.contains(fingerprint)) {
+      return false;
+    }
+
+    ByteArrayOutputStream meta = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(meta);
+    writeString(out, url);
+    out.writeInt(status);
+    out.flush();
+
+    long location = append(TYPE_ERROR, meta.toByteArray(), new byte[0]);
+    index.put(fingerprint, (int) (location >>> 32), (int) location, true);
+    return true;
+  }
+
+  /**
+   * Appends a skipped record for url, which counts as an error, unless it already has a record, in which case returns
+   * false.
+   *
+   * @param contentLength
+   *  Or -1 if unknown
+   */
+  public synchronized boolean appendSkipped(String url, int status, String contentType, long contentLength,
+                                            String reason) throws IOException {
+    long fingerprint = UrlFingerprint.of(url);
+    if (index.contains(fingerprint)) {
+      return false;
+    }
+
+    ByteArrayOutputStream meta = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(meta);
+    writeString(out, url);
+    out.writeInt(status);
+    writeNullableString(out, contentType);
+    out.writeLong(contentLength);
+    writeString(out, reason);
+    out.flush();
+
+    long location = append(TYPE_SKIPPED, meta.toByteArray(), new byte[0]);
+    index.put(fingerprint, (int) (location >>> 32), (int) location, true);
+    return true;
+  }
+
+  /**
+   * Appends an external domain record, unless the same one exists, in which case returns false.
+   */
+  public synchronized boolean appendExternalDomain(String srcAuthority, String dstAuthority) throws IOException {
+    if (!externalDomains.add(srcAuthority + "\t" + dstAuthority)) {
+      return false;
+    }
+
+    ByteArrayOutputStream meta = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(meta);
+    writeString(out, srcAuthority);
+    writeString(out, dstAuthority);
+    out.flush();
+
+    append(TYPE_EXTERNAL_DOMAIN, meta.toByteArray(), new byte[0]);
+    return true;
+  }
+
+  /**
+   * Appends a validators record for url, which supersedes any it already has.
+   */
+  public synchronized void appendValidators(String url, PageValidators validators) throws IOException {
+    ByteArrayOutputStream meta = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(meta);
+    writeString(out, url);
+    writeNullableString(out, validators.getEtag());
+    writeNullableString(out, validators.getLastModified());
+    writeNullableString(out, validators.getContentHash());
+    out.writeLong(validators.getFetchTime());
+    out.flush();
+
+    long location = append(TYPE_VALIDATORS, meta.toByteArray(), new byte[0]);
+    validatorsIndex.put(UrlFingerprint.of(url), (int) (location >>> 32), (int) location, false);
+  }
+
+  /**
+   * Returns the validators stored for url, or null if it has none.
+   */
+  public PageValidators readValidators(String url) throws IOException {
+    DataInputStream in;
+    synchronized (this) {
+      in = readRecord(validatorsIndex, UrlFingerprint.of(url));
+    }
+    if (in == null) {
+      return null;
+    }
+    skipFully(in, in.readInt());
+    return new PageValidators(readNullableString(in), readNullableString(in), readNullableString(in), in.readLong());
+  }
+
+  /**
+   * Returns the body stored for url, or null if it has no data record.
+   */
+  public byte[] readData(String url) throws IOException {
+    DataInputStream in;
+    synchronized (this) {
+      long fingerprint = UrlFingerprint.of(url);
+      in = index.isError(fingerprint) ? null : readRecord(index, fingerprint);
+    }
+    if (in == null) {
+      return null;
+    }
+    skipFully(in, in.readInt());
+    in.readInt();
+    int numHeaders = in.readInt();
+    for (int i = 0; i < numHeaders; i++) {
+      skipFully(in, in.readInt());
+      skipFully(in, in.readInt());
+    }
+    byte[] body = new byte[in.readInt()];
+    in.readFully(body);
+    return body;
+  }
+
+  /**
+   * Returns the payload of the record that indexToRead has for fingerprint, or null if it has none.
+   *
+   * @throws IOException
+   *  If the record fails its CRC
+   */
+  private DataInputStream readRecord(SegmentIndex indexToRead, long fingerprint) throws IOException {
+    if (!indexToRead.contains(fingerprint)) {
+      return null;
+    }
+    int segmentId = indexToRead.getSegment(fingerprint);
+    FileChannel segment = segments.get(segmentId);
+    int offset = indexToRead.getOffset(fingerprint);
+
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+    readFully(segment, header, offset);
+    header.flip();
+    byte type = header.get();
+    int payloadLength = header.getInt();
+    if (payloadLength < 0 || (long) offset + RECORD_HEADER_BYTES + payloadLength > segment.size()) {
+      throw new IOException("Corrupt record at " + offset + " of " + getSegmentFile(segmentId));
+    }
+    ByteBuffer record = ByteBuffer.allocate(payloadLength + RECORD_TRAILER_BYTES);
+    readFully(segment, record, offset + RECORD_HEADER_BYTES);
+    if (!checkCrc(type, record.array(), payloadLength, record.getInt(payloadLength))) {
+      throw new IOException("CRC mismatch of record at " + offset + " of " + getSegmentFile(segmentId));
+    }
+    return new DataInputStream(new ByteArrayInputStream(record.array(), 0, payloadLength));
+  }
+
+  /**
+   * Appends a record to the current segment, returning its location (segment in the high int, offset in the low).
+   */
+  private long append(byte type, byte[] meta, byte[] body) throws IOException {
+    int payloadLength = meta.length + body.length;
+    long recordBytes = RECORD_HEADER_BYTES + payloadLength + RECORD_TRAILER_BYTES;
+    if (currentBytes > 0 && currentBytes + recordBytes > maxSegmentBytes) {
+      roll();
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+    header.put(type).putInt(payloadLength).flip();
+    CRC32 crc = new CRC32();
+    crc.update(type);
+    crc.update(meta);
+    crc.update(body);
+    ByteBuffer trailer = ByteBuffer.allocate(RECORD_TRAILER_BYTES);
+    trailer.putInt((int) crc.getValue()).flip();
+
+    long offset = currentBytes;
+    ByteBuffer[] buffers = {header, ByteBuffer.wrap(meta), ByteBuffer.wrap(body), trailer};
+    current.position(offset);
+    while (trailer.hasRemaining()) {
+      current.write(buffers);
+    }
+    currentBytes += recordBytes;
+    return ((long) (segments.size() - 1) << 32) | offset;
+  }
+
+  private void roll() throws IOException {
+    if (current != null) {
+      current.force(true);
+    }
+    File segmentFile = getSegmentFile(segments.size());
+    current = new RandomAccessFile(segmentFile, "rw").getChannel();
+    currentBytes = 0;
+    segments.add(current);
+    LOG.info("Started {}", segmentFile);
+  }
+
+  /**
+   * Reads the records of a segment, adding them to the index if indexing, and returns the number read.
+   */
+  private int replay(int segmentId, File segmentFile, boolean indexing) throws IOException {
+    int numRecords = 0;
+    long offset = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)))) {
+      while (true) {
+        byte type;
+        try {
+          type = in.readByte();
+        } catch (EOFException e) {
+          return numRecords;
+        }
+
+        byte[] payload;
+        int storedCrc;
+        try {
+          int payloadLength = in.readInt();
+          if (payloadLength < 0 || offset + RECORD_HEADER_BYTES + payloadLength > segmentFile.length()) {
+            throw new EOFException();
+          }
+
+          // Already indexed (and checked when it was), so only skip over it
+          if (!indexing && type != TYPE_EXTERNAL_DOMAIN) {
+            skipFully(in, payloadLength + RECORD_TRAILER_BYTES);
+            numRecords++;
+            offset += RECORD_HEADER_BYTES + payloadLength + RECORD_TRAILER_BYTES;
+            continue;
+          }
+
+          payload = new byte[payloadLength];
+          in.readFully(payload);
+          storedCrc = in.readInt();
+        } catch (EOFException e) {
+          truncate(segmentFile, offset, indexing);
+          return numRecords;
+        }
+
+        if (!checkCrc(type, payload, payload.length, storedCrc)) {
+          truncate(segmentFile, offset, indexing);
+          return numRecords;
+        }
+
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        if (type == TYPE_DATA || type == TYPE_ERROR || type == TYPE_SKIPPED) {
+          if (indexing) {
+            index.put(UrlFingerprint.of(readString(record)), segmentId, (int) offset, type != TYPE_DATA);
+          }
+        } else if (type == TYPE_VALIDATORS) {
+          if (indexing) {
+            validatorsIndex.put(UrlFingerprint.of(readString(record)), segmentId, (int) offset, false);
+          }
+        } else if (type == TYPE_EXTERNAL_DOMAIN) {
+          externalDomains.add(readString(record) + "\t" + readString(record));
+        }
+
+        numRecords++;
+        offset += RECORD_HEADER_BYTES + payload.length + RECORD_TRAILER_BYTES;
+      }
+    }
+  }
+
+  /**
+   * Truncates segmentFile at the bad record at offset, unless it is indexed (i.e. was closed cleanly), in which case
+   * the rest of it is only ignored.
+   */
+  private void truncate(File segmentFile, long offset, boolean indexing) throws IOException {
+    if (!indexing) {
+      LOG.error("Corrupt record at {} of {}, ignoring the rest of it", offset, segmentFile);
+      return;
+    }
+    LOG.warn("Truncating torn or corrupt record at {} of {} ({} bytes)", offset, segmentFile, segmentFile.length());
+    try (RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw")) {
+      raf.setLength(offset);
+    }
+  }
+
+  /**
+   * Writes the external domains next to the index, so a clean start need not replay the segments for them.
+   */
+  private void writeExternalDomains() throws IOException {
+    File tmpFile = new File(dir, EXTERNAL_DOMAINS_FILE + ".tmp");
+    FileUtils.writeLines(tmpFile, StandardCharsets.UTF_8.name(), externalDomains);
+    Files.move(tmpFile.toPath(), new File(dir, EXTERNAL_DOMAINS_FILE).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static boolean checkCrc(byte type, byte[] payload, int payloadLength, int storedCrc) {
+    CRC32 crc = new CRC32();
+    crc.update(type);
+    crc.update(payload, 0, payloadLength);
+    return (int) crc.getValue() == storedCrc;
+  }
+
+  private List<File> listSegmentFiles() {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    List<File> segmentFiles = files == null ? new ArrayList<File>() : new ArrayList<>(Arrays.asList(files));
+    Collections.sort(segmentFiles);
+    for (int i = 0; i < segmentFiles.size(); i++) {
+      if (!segmentFiles.get(i).getName().equals(getSegmentFile(i).getName())) {
+        throw new IllegalStateException("Missing segment " + getSegmentFile(i));
+      }
+    }
+    return segmentFiles;
+  }
+
+  private File getSegmentFile(int segmentId) {
+    return new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, segmentId, SEGMENT_SUFFIX));
+  }
+
+  /**
+   * Writes value as its length and UTF-8 bytes, as {@link DataOutputStream#writeUTF} is limited to 64 KB.
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      writeString(out, value);
+    }
+  }
+
+  private static String readNullableString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? readString(in) : null;
+  }
+
+  private static void skipFully(DataInputStream in, int numBytes) throws IOException {
+    int remaining = numBytes;
+    while (remaining > 0) {
+      int numSkipped = in.skipBytes(remaining);
+      if (numSkipped <= 0) {
+        throw new EOFException();
+      }
+      remaining -= numSkipped;
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int numRead = channel.read(buffer, position + buffer.position());
+      if (numRead < 0) {
+        throw new EOFException();
+      }
+    }
+  }
+}
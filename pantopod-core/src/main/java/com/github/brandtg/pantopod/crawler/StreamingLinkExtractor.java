@@ -0,0 +1,475 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.google.common.base.Charsets;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds anchors by scanning the raw bytes of the page once, without building a DOM or decoding the whole body.
+ *
+ * <p>
+ *   Only tags are tokenized: comments, doctypes, the content of raw text elements (script, style, textarea, title,
+ *   iframe, xmp, noembed, noframes, and noscript before the body) and everything after a plaintext tag are skipped,
+ *   as Jsoup would. Only the attribute values that are needed (href of a and base, charset of meta)
+ *   are decoded, in the declared charset, or the one given by a meta tag, or UTF-8. Pages in a charset that is not
+ *   ASCII-compatible (e.g. UTF-16) are transcoded to UTF-8 first.
+ * </p>
+ */
+public class StreamingLinkExtractor implements LinkExtractor {
+  private static final byte[][] RAW_TEXT_TAGS = {
+      ascii("script"), ascii("style"), ascii("textarea"), ascii("title"), ascii("iframe"), ascii("xmp"),
+      ascii("noembed"), ascii("noframes")
+  };
+  private static final byte[] NOSCRIPT = ascii("noscript");
+  // Tags that do not start the body
+  private static final String[] HEAD_TAGS = {
+      "html", "head", "base", "basefont", "bgsound", "command", "link", "meta", "noframes", "script", "style",
+      "template", "title", "noscript"
+  };
+
+  @Override
+  public List<String> extractLinks(URI url, byte[] body, Charset charset) {
+    Scanner scanner = new Scanner(body, charset);
+    scanner.scan();
+    return LinkExtractors.resolveAgainstBase(url, scanner.base, scanner.hrefs);
+  }
+
+  private static class Scanner {
+    private final byte[] bytes;
+    private final List<String> hrefs;
+    private Charset charset;
+    private boolean charsetKnown;
+    private int start;
+    private String base;
+    private boolean inBody;
+
+    // The attributes of the current tag that matter
+    private String href;
+    private String charsetAttr;
+    private String content;
+    private String httpEquiv;
+
+    Scanner(byte[] body, Charset declaredCharset) {
+      Charset charset = declaredCharset;
+      if (hasUtf16ByteOrderMark(body)) {
+        charset = body[0] == (byte) 0xFE ? Charsets.UTF_16BE : Charsets.UTF_16LE;
+      }
+
+      if (charset != null && !isAsciiCompatible(charset)) {
+        this.bytes = new String(body, charset).getBytes(Charsets.UTF_8);
+        this.charset = Charsets.UTF_8;
+        this.charsetKnown = true;
+      } else {
+        this.bytes = body;
+        this.charset = charset == null ? Charsets.UTF_8 : charset;
+        this.charsetKnown = charset != null;
+      }
+
+      if (startsWith(bytes, 0, new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF})) {
+        this.start = 3;
+        this.charset = Charsets.UTF_8;
+        this.charsetKnown = true;
+      }
+
+      this.hrefs = new ArrayList<>();
+    }
+
+    void scan() {
+      int n = bytes.length;
+      int i = start;
+      while (i < n) {
+        int lt = indexOf(bytes, (byte) '<', i);
+        if (lt < 0 || lt + 1 >= n) {
+          return;
+        }
+        if (!inBody && !isBlank(i, lt)) {
+          inBody = true;
+        }
+        i = lt + 1;
+
+        // Comments, doctypes, processing instructions
+        if (bytes[i] == '!') {
+          if (startsWith(bytes, i + 1, ascii("--"))) {
+            int end = indexOf(bytes, ascii("-->"), i + 3);
+            i = end < 0 ? n : end + 3;
+          } else {
+            i = skipPast(i, (byte) '>');
+          }
+          continue;
+        }
+        if (bytes[i] == '?') {
+          i = skipPast(i, (byte) '>');
+          continue;
+        }
+
+        boolean closing = bytes[i] == '/';
+        if (closing) {
+          i++;
+        }
+
+        // Tag name (a '<' not followed by a letter is text)
+        if (i >= n || !isAsciiLetter(bytes[i])) {
+          continue;
+        }
+        int nameStart = i;
+        while (i < n && !isWhitespace(bytes[i]) && bytes[i] != '/' && bytes[i] != '>') {
+          i++;
+        }
+        int nameEnd = i;
+
+        if (closing) {
+          if (isTag(nameStart, nameEnd, "head")) {
+            inBody = true;
+          }
+          i = skipPast(i, (byte) '>');
+          continue;
+        }
+        if (!inBody && !isHeadTag(nameStart, nameEnd)) {
+          inBody = true;
+        }
+
+        i = scanAttributes(i);
+        if (i < 0) {
+          return;
+        }
+
+        if (isTag(nameStart, nameEnd, "a")) {
+          if (href != null) {
+            hrefs.add(href);
+          }
+        } else if (isTag(nameStart, nameEnd, "base")) {
+          if (base == null && href != null) {
+            base = href;
+          }
+        } else if (isTag(nameStart, nameEnd, "meta")) {
+          handleMeta();
+        } else if (isTag(nameStart, nameEnd, "plaintext")) {
+          // Has no end tag, the rest of the page is text
+          return;
+        } else if (!inBody && isTag(nameStart, nameEnd, "noscript")) {
+          // Like Jsoup, which only parses the content of a noscript in the body
+          i = skipRawText(i, NOSCRIPT);
+        } else {
+          for (byte[] rawTextTag : RAW_TEXT_TAGS) {
+            if (equalsIgnoreCase(nameStart, nameEnd, rawTextTag)) {
+              i = skipRawText(i, rawTextTag);
+              break;
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Reads the attributes of a tag up to and including its '>', keeping the ones that matter, or returns -1 if the
+     * tag is cut off by the end of the page (in which case it is dropped).
+     */
+    private int scanAttributes(int i) {
+      href = null;
+      charsetAttr = null;
+      content = null;
+      httpEquiv = null;
+
+      int n = bytes.length;
+      while (i < n) {
+        while (i < n && (isWhitespace(bytes[i]) || bytes[i] == '/')) {
+          // Like Jsoup, a '/' that does not close the tag also swallows the character after it
+          if (bytes[i] == '/' && i + 1 < n && bytes[i + 1] != '>') {
+            i++;
+          }
+          i++;
+        }
+        if (i >= n) {
+          return -1;
+        }
+        if (bytes[i] == '>') {
+          return i + 1;
+        }
+
+        // Name
+        int nameStart = i;
+        i++;
+        while (i < n && !isWhitespace(bytes[i]) && bytes[i] != '/' && bytes[i] != '>' && bytes[i] != '=') {
+          i++;
+        }
+        int nameEnd = i;
+        while (i < n && isWhitespace(bytes[i])) {
+          i++;
+        }
+
+        // Value
+        int valueStart = i;
+        int valueEnd = i;
+        if (i < n && bytes[i] == '=') {
+          i++;
+          while (i < n && isWhitespace(bytes[i])) {
+            i++;
+          }
+          if (i < n && (bytes[i] == '"' || bytes[i] == '\'')) {
+            byte quote = bytes[i];
+            valueStart = i + 1;
+            valueEnd = indexOf(bytes, quote, valueStart);
+            if (valueEnd < 0) {
+              return -1;
+            }
+            i = valueEnd + 1;
+          } else {
+            valueStart = i;
+            while (i < n && !isWhitespace(bytes[i]) && bytes[i] != '>') {
+              i++;
+            }
+            valueEnd = i;
+          }
+        }
+
+        if (equalsIgnoreCase(nameStart, nameEnd, HREF)) {
+          href = decodeValue(valueStart, valueEnd);
+        } else if (equalsIgnoreCase(nameStart, nameEnd, CHARSET)) {
+          charsetAttr = decodeValue(valueStart, valueEnd);
+        } else if (equalsIgnoreCase(nameStart, nameEnd, CONTENT)) {
+          content = decodeValue(valueStart, valueEnd);
+        } else if (equalsIgnoreCase(nameStart, nameEnd, HTTP_EQUIV)) {
+          httpEquiv = decodeValue(valueStart, valueEnd);
+        }
+      }
+      return -1;
+    }
+
+    private void handleMeta() {
+      if (charsetKnown) {
+        return;
+      }
+
+      String name = null;
+      if (charsetAttr != null) {
+        name = charsetAttr.trim();
+      } else if (httpEquiv != null && content != null && "content-type".equalsIgnoreCase(httpEquiv.trim())) {
+        int idx = content.toLowerCase().indexOf("charset=");
+        if (idx >= 0) {
+          name = content.substring(idx + "charset=".length()).replaceAll("[\"';].*$", "").trim();
+        }
+      }
+
+      if (name != null && !name.isEmpty()) {
+        try {
+          Charset metaCharset = Charset.forName(name);
+          if (isAsciiCompatible(metaCharset)) {
+            charset = metaCharset;
+          }
+          charsetKnown = true;
+        } catch (IllegalArgumentException e) {
+          // Unknown charset, keep the default
+        }
+      }
+    }
+
+    /**
+     * Skips to just after the end tag of a raw text element (e.g. script), whose content is never markup.
+     */
+    private int skipRawText(int i, byte[] tagName) {
+      int n = bytes.length;
+      while (i < n) {
+        int lt = indexOf(bytes, (byte) '<', i);
+        if (lt < 0 || lt + 1 >= n) {
+          return n;
+        }
+        i = lt + 1;
+        if (bytes[i] == '/') {
+          int nameStart = i + 1;
+          int nameEnd = nameStart + tagName.length;
+          if (nameEnd <= n
+              && equalsIgnoreCase(nameStart, nameEnd, tagName)
+              && (nameEnd == n || isWhitespace(bytes[nameEnd]) || bytes[nameEnd] == '>' || bytes[nameEnd] == '/')) {
+            return skipPast(nameEnd, (byte) '>');
+          }
+        }
+      }
+      return n;
+    }
+
+    private int skipPast(int i, byte b) {
+      int idx = indexOf(bytes, b, i);
+      return idx < 0 ? bytes.length : idx + 1;
+    }
+
+    private boolean isHeadTag(int start, int end) {
+      for (String name : HEAD_TAGS) {
+        if (isTag(start, end, name)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean isBlank(int start, int end) {
+      for (int i = start; i < end; i++) {
+        if (!isWhitespace(bytes[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean isTag(int start, int end, String name) {
+      return end - start == name.length() && equalsIgnoreCase(start, end, ascii(name));
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, byte[] lowerCaseName) {
+      if (end - start != lowerCaseName.length) {
+        return false;
+      }
+      for (int i = 0; i < lowerCaseName.length; i++) {
+        byte b = bytes[start + i];
+        if (b >= 'A' && b <= 'Z') {
+          b += 'a' - 'A';
+        }
+        if (b != lowerCaseName[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private String decodeValue(int start, int end) {
+      String value = new String(bytes, start, end - start, charset);
+      return value.indexOf('&') < 0 ? value : decodeEntities(value);
+    }
+  }
+
+  private static final byte[] HREF = ascii("href");
+  private static final byte[] CHARSET = ascii("charset");
+  private static final byte[] CONTENT = ascii("content");
+  private static final byte[] HTTP_EQUIV = ascii("http-equiv");
+
+  /**
+   * Decodes numeric character references and the common named ones, as they appear in URLs.
+   */
+  static String decodeEntities(String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    int i = 0;
+    while (i < value.length()) {
+      char c = value.charAt(i);
+      if (c != '&') {
+        sb.append(c);
+        i++;
+        continue;
+      }
+
+      int semi = value.indexOf(';', i);
+      if (i + 1 < value.length() && value.charAt(i + 1) == '#' && semi > i + 2) {
+        try {
+          String number = value.substring(i + 2, semi);
+          int codePoint = number.charAt(0) == 'x' || number.charAt(0) == 'X'
+              ? Integer.parseInt(number.substring(1), 16)
+              : Integer.parseInt(number);
+          sb.appendCodePoint(codePoint);
+          i = semi + 1;
+          continue;
+        } catch (IllegalArgumentException e) {
+          // Not a valid reference, keep as is
+        }
+      }
+
+      String decoded = null;
+      int length = 0;
+      for (String[] entity : NAMED_ENTITIES) {
+        if (value.startsWith(entity[0], i + 1)) {
+          int end = i + 1 + entity[0].length();
+          if (end < value.length() && value.charAt(end) == ';') {
+            decoded = entity[1];
+            length = entity[0].length() + 2;
+            break;
+          } else if (end == value.length()
+              || (!Character.isLetterOrDigit(value.charAt(end)) && value.charAt(end) != '=')) {
+            decoded = entity[1];
+            length = entity[0].length() + 1;
+            break;
+          }
+        }
+      }
+
+      if (decoded != null) {
+        sb.append(decoded);
+        i += length;
+      } else {
+        sb.append(c);
+        i++;
+      }
+    }
+    return sb.toString();
+  }
+
+  private static final String[][] NAMED_ENTITIES = {
+      {"amp", "&"}, {"lt", "<"}, {"gt", ">"}, {"quot", "\""}, {"apos", "'"}, {"nbsp", "\u00A0"}
+  };
+
+  private static boolean isAsciiCompatible(Charset charset) {
+    String name = charset.name().toUpperCase();
+    return !name.startsWith("UTF-16") && !name.startsWith("UTF-32") && !name.startsWith("UTF-7");
+  }
+
+  private static boolean hasUtf16ByteOrderMark(byte[] body) {
+    return body.length >= 2
+        && ((body[0] == (byte) 0xFE && body[1] == (byte) 0xFF) || (body[0] == (byte) 0xFF && body[1] == (byte) 0xFE));
+  }
+
+  private static boolean isAsciiLetter(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+  }
+
+  private static int indexOf(byte[] bytes, byte b, int from) {
+    for (int i = from; i < bytes.length; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(byte[] bytes, byte[] target, int from) {
+    for (int i = from; i <= bytes.length - target.length; i++) {
+      if (startsWith(bytes, i, target)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+    if (offset + prefix.length > bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (bytes[offset + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(Charsets.US_ASCII);
+  }
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Turns the hrefs on a page into canonical URLs, so that variants of one page are fetched once.
+ *
+ * <p>
+ *   Scheme and host are lower-cased, and default ports dropped. Depending on the rules, fragments are stripped, query
+ *   parameters sorted, paths normalized (dot-segments and empty segments removed), and the parameters in dropParams
+ *   (e.g. session IDs, names ending with "*" are prefixes) removed from both the query and the path (";jsessionid=").
+ *   Hrefs that are not valid http or https URLs are discarded.
+ * </p>
+ */
+public class UrlCanonicalizer {
+  public static final List<String> DEFAULT_DROP_PARAMS = ImmutableList.of(
+      "jsessionid", "phpsessid", "aspsessionid*", "sessionid", "cfid", "cftoken", "utm_*");
+
+  private final boolean stripFragments;
+  private final boolean sortQueryParams;
+  private final boolean normalizePaths;
+  private final List<String> dropParams;
+  private final Meter invalid;
+
+  public UrlCanonicalizer() {
+    this(true, true, true, DEFAULT_DROP_PARAMS, null);
+  }
+
+  /**
+   * @param metricRegistry
+   *  Where discarded hrefs are counted, or null
+   */
+  public UrlCanonicalizer(boolean stripFragments,
+                          boolean sortQueryParams,
+                          boolean normalizePaths,
+                          List<String> dropParams,
+                          MetricRegistry metricRegistry) {
+    this.stripFragments = stripFragments;
+    this.sortQueryParams = sortQueryParams;
+    this.normalizePaths = normalizePaths;
+    this.dropParams = new ArrayList<>();
+    for (String dropParam : dropParams) {
+      this.dropParams.add(dropParam.toLowerCase(Locale.ROOT));
+    }
+    this.invalid = metricRegistry == null
+        ? new Meter()
+        : metricRegistry.meter(MetricRegistry.name(UrlCanonicalizer.class, "discarded-invalid"));
+  }
+
+  /**
+   * Returns the canonical URL of href on the page at url, or null if it is not a valid http or https URL.
+   *
+   * @param chroot
+   *  If not null, the path that host-relative hrefs (e.g. "/a.html") are relative to
+   */
+  public URI resolve(URI url, String href, String chroot) {
+    URI hrefUri;
+    try {
+      hrefUri = URI.create(href.trim().replaceAll(" ", "+"));
+      if (hrefUri.getHost() == null && hrefUri.getScheme() == null && chroot != null) {
+        String path = hrefUri.getRawPath();
+        if (path != null && path.startsWith("/") && !path.startsWith(chroot)) {
+          // Ensure no two slashes
+          String prefix = chroot.endsWith("/") ? chroot.substring(0, chroot.length() - 1) : chroot;
+          hrefUri = URI.create(prefix + hrefUri.toString());
+        }
+      }
+      if (hrefUri.getScheme() == null && hrefUri.getRawAuthority() == null && hrefUri.getRawPath().isEmpty()) {
+        // The same page (if empty or a fragment), or a query of it (URI#resolve would drop the last path segment, as
+        // in RFC 2396)
+        String query = hrefUri.getRawQuery() == null ? url.getRawQuery() : hrefUri.getRawQuery();
+        return canonicalize(URI.create(url.getScheme() + "://" + url.getRawAuthority() + url.getRawPath()
+            + (query == null ? "" : "?" + query)
+            + (hrefUri.getRawFragment() == null ? "" : "#" + hrefUri.getRawFragment())));
+      }
+      return canonicalize(url.resolve(hrefUri));
+    } catch (IllegalArgumentException e) {
+      invalid.mark();
+      return null;
+    }
+  }
+
+  /**
+   * Returns the canonical form of url, or null if it is not a valid http or https URL.
+   */
+  public URI canonicalize(URI url) {
+    String scheme = url.getScheme() == null ? null : url.getScheme().toLowerCase(Locale.ROOT);
+    if (!("http".equals(scheme) || "https".equals(scheme)) || url.getHost() == null) {
+      invalid.mark();
+      return null;
+    }
+
+    StringBuilder canonical = new StringBuilder()
+        .append(scheme)
+        .append("://");
+    if (url.getRawUserInfo() != null) {
+      canonical.append(url.getRawUserInfo()).append('@');
+    }
+    canonical.append(url.getHost().toLowerCase(Locale.ROOT));
+    int port = url.getPort();
+    if (port != -1 && !(port == 80 && "http".equals(scheme)) && !(port == 443 && "https".equals(scheme))) {
+      canonical.append(':').append(port);
+    }
+
+    canonical.append(canonicalizePath(url.getRawPath()));
+
+    String query = canonicalizeQuery(url.getRawQuery());
+    if (query != null) {
+      canonical.append('?').append(query);
+    }
+
+    if (!stripFragments && url.getRawFragment() != null) {
+      canonical.append('#').append(url.getRawFragment());
+    }
+
+    try {
+      return URI.create(canonical.toString());
+    } catch (IllegalArgumentException e) {
+      invalid.mark();
+      return null;
+    }
+  }
+
+  private String canonicalizePath(String path) {
+    if (path == null || path.isEmpty()) {
+      return "/";
+    }
+
+    // Path parameters (e.g. "/a;jsessionid=123/b")
+    if (!dropParams.isEmpty() && path.indexOf(';') >= 0) {
+      String[] segments = path.split("/", -1);
+      StringBuilder kept = new StringBuilder();
+      for (int i = 0; i < segments.length; i++) {
+        if (i > 0) {
+          kept.append('/');
+        }
+        String[] params = segments[i].split(";", -1);
+        kept.append(params[0]);
+        for (int j = 1; j < params.length; j++) {
+          if (!isDropped(params[j])) {
+            kept.append(';').append(params[j]);
+          }
+        }
+      }
+      path = kept.toString();
+    }
+
+    if (!normalizePaths) {
+      return path;
+    }
+
+    List<String> segments = new ArrayList<>();
+    String[] tokens = path.split("/", -1);
+    for (int i = 0; i < tokens.length; i++) {
+      String token = tokens[i];
+      boolean last = i == tokens.length - 1;
+      if (token.equals("..")) {
+        if (!segments.isEmpty()) {
+          segments.remove(segments.size() - 1);
+        }
+        if (last) {
+          segments.add("");
+        }
+      } else if (token.equals(".") || token.isEmpty()) {
+        if (last && i > 0) {
+          segments.add("");
+        }
+      } else {
+        segments.add(token);
+      }
+    }
+
+    StringBuilder normalized = new StringBuilder();
+    for (String segment : segments) {
+      normalized.append('/').append(segment);
+    }
+    return normalized.length() == 0 ? "/" : normalized.toString();
+  }
+
+  private String canonicalizeQuery(String query) {
+    if (query == null) {
+      return null;
+    }
+
+    List<String> params = new ArrayList<>();
+    for (String param : query.split("&")) {
+      if (!param.isEmpty() && !isDropped(param)) {
+        params.add(param);
+      }
+    }
+    if (params.isEmpty()) {
+      return null;
+    }
+    if (sortQueryParams) {
+      Collections.sort(params);
+    }
+
+    StringBuilder canonical = new StringBuilder();
+    for (String param : params) {
+      if (canonical.length() > 0) {
+        canonical.append('&');
+      }
+      canonical.append(param);
+    }
+    return canonical.toString();
+  }
+
+  private boolean isDropped(String param) {
+    int equals = param.indexOf('=');
+    String name = (equals < 0 ? param : param.substring(0, equals)).toLowerCase(Locale.ROOT);
+    for (String dropParam : dropParams) {
+      if (dropParam.endsWith("*")
+          ? name.startsWith(dropParam.substring(0, dropParam.length() - 1))
+          : name.equals(dropParam)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
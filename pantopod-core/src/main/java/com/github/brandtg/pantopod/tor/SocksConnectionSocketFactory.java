@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.tor;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Connects plain HTTP through a {@link TorProxyPool}, letting the proxy resolve host names.
+ *
+ * <p>
+ *   The client must use {@link SocksDnsResolver}, so host names are not resolved (or leaked) locally.
+ * </p>
+ */
+public class SocksConnectionSocketFactory implements ConnectionSocketFactory {
+  private final TorProxyPool pool;
+
+  public SocksConnectionSocketFactory(TorProxyPool pool) {
+    this.pool = pool;
+  }
+
+  @Override
+  public Socket createSocket(HttpContext context) throws IOException {
+    return pool.createSocket(getAuthority(context));
+  }
+
+  @Override
+  public Socket connectSocket(int connectTimeout,
+                              Socket socket,
+                              HttpHost host,
+                              InetSocketAddress remoteAddress,
+                              InetSocketAddress localAddress,
+                              HttpContext context) throws IOException {
+    Socket sock = socket != null ? socket : createSocket(context);
+    if (localAddress != null) {
+      sock.bind(localAddress);
+    }
+    try {
+      sock.connect(toUnresolved(host, remoteAddress), connectTimeout);
+    } catch (IOException e) {
+      sock.close();
+      throw e;
+    }
+    return sock;
+  }
+
+  static String getAuthority(HttpContext context) {
+    HttpHost target = HttpClientContext.adapt(context).getTargetHost();
+    return target == null ? null : target.toHostString();
+  }
+
+  static InetSocketAddress toUnresolved(HttpHost host, InetSocketAddress remoteAddress) {
+    return InetSocketAddress.createUnresolved(host.getHostName(), remoteAddress.getPort());
+  }
+}
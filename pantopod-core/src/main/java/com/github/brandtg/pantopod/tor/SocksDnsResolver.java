@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.tor;
+
+import org.apache.http.conn.DnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Does not resolve host names, as they are sent to the SOCKS proxy unresolved.
+ */
+public class SocksDnsResolver implements DnsResolver {
+  @Override
+  public InetAddress[] resolve(String host) throws UnknownHostException {
+    return new InetAddress[] { InetAddress.getByAddress(host, new byte[] {0, 0, 0, 0}) };
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.tor;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Connects HTTPS through a {@link TorProxyPool}, letting the proxy resolve host names.
+ */
+public class SocksSslConnectionSocketFactory extends SSLConnectionSocketFactory {
+  private final TorProxyPool pool;
+
+  public SocksSslConnectionSocketFactory(SSLContext sslContext, HostnameVerifier hostnameVerifier, TorProxyPool pool) {
+    super(sslContext, hostnameVerifier);
+    this.pool = pool;
+  }
+
+  @Override
+  public Socket createSocket(HttpContext context) throws IOException {
+    return pool.createSocket(SocksConnectionSocketFactory.getAuthority(context));
+  }
+
+  @Override
+  public Socket connectSocket(int connectTimeout,
+                              Socket socket,
+                              HttpHost host,
+                              InetSocketAddress remoteAddress,
+                              InetSocketAddress localAddress,
+                              HttpContext context) throws IOException {
+    return super.connectSocket(
+        connectTimeout,
+        socket,
+        host,
+        SocksConnectionSocketFactory.toUnresolved(host, remoteAddress),
+        localAddress,
+        context);
+  }
+}
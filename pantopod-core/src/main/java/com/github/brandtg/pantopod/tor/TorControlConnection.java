@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.tor;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A connection to the control port of a tor process (see the tor control protocol spec).
+ */
+public class TorControlConnection implements Closeable {
+  private final Socket socket;
+  private final BufferedReader reader;
+  private final Writer writer;
+
+  public TorControlConnection(InetSocketAddress address, int timeoutMillis) throws IOException {
+    this.socket = new Socket();
+    try {
+      socket.connect(address, timeoutMillis);
+      socket.setSoTimeout(timeoutMillis);
+      this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charsets.US_ASCII));
+      this.writer = new OutputStreamWriter(socket.getOutputStream(), Charsets.US_ASCII);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  public synchronized void authenticate(String password) throws IOException {
+    sendCommand("AUTHENTICATE \"" + password.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+  }
+
+  /**
+   * Sends a signal, e.g. NEWNYM to use new circuits for new connections, or HALT to exit immediately.
+   */
+  public synchronized void signal(String signal) throws IOException {
+    sendCommand("SIGNAL " + signal);
+  }
+
+  /**
+   * Returns the value of key (e.g. "status/bootstrap-phase", or "circuit-status" which has one line per circuit).
+   */
+  public synchronized String getInfo(String key) throws IOException {
+    String prefix = key + "=";
+    for (String line : sendCommand("GETINFO " + key)) {
+      if (line.startsWith(prefix)) {
+        String value = line.substring(prefix.length());
+        return value.startsWith("\n") ? value.substring(1) : value;
+      }
+    }
+    throw new IOException("No value for " + key);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    socket.close();
+  }
+
+  /**
+   * Returns the lines of the reply to command, with multi-line values joined by newlines.
+   */
+  private List<String> sendCommand(String command) throws IOException {
+    writer.write(command);
+    writer.write("\r\n");
+    writer.flush();
+
+    List<String> lines = new ArrayList<>();
+    while (true) {
+      String line = readLine();
+      if (line.length() < 4) {
+        throw new IOException("Bad reply from tor: " + line);
+      }
+
+      String status = line.substring(0, 3);
+      char separator = line.charAt(3);
+      String body = line.substring(4);
+      if (!status.startsWith("2")) {
+        throw new IOException("Error from tor for " + command.split(" ")[0] + ": " + line);
+      }
+
+      if (separator == '+') {
+        StringBuilder data = new StringBuilder(body);
+        for (String dataLine = readLine(); !".".equals(dataLine); dataLine = readLine()) {
+          data.append('\n').append(dataLine.startsWith(".") ? dataLine.substring(1) : dataLine);
+        }
+        lines.add(data.toString());
+      } else {
+        lines.add(body);
+      }
+
+      if (separator == ' ') {
+        return lines;
+      }
+    }
+  }
+
+  private String readLine() throws IOException {
+    String line = reader.readLine();
+    if (line == null) {
+      throw new EOFException("Tor control connection closed");
+    }
+    return line;
+  }
+}
@@ -15,27 +15,46 @@
  */
 package com.github.brandtg.pantopod.tor;
 
-import io.dropwizard.lifecycle.Managed;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.log4j.BasicConfigurator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.util.concurrent.CountDownLatch;
+import java.net.InetSocketAddress;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-public class TorProxyManager implements Managed {
+/**
+ * Runs a tor process, and manages its circuits through the control port.
+ *
+ * <p>
+ *   On start, waits until tor has bootstrapped. Then, every circuitCheckIntervalMillis, compares the connections
+ *   made through the current circuits (see {@link #recordConnect(long, boolean)}) to the limits, and asks tor for new
+ *   circuits (NEWNYM) if they are too slow or fail too often, or are older than watchdogDelayMillis (if positive).
+ * </p>
+ *
+ * <p>
+ *   The latency is that of the SOCKS connect through this instance (i.e. of building or reusing a circuit to the
+ *   target), not of the fetches over it, and it is taken over all of this instance's circuits at once, as NEWNYM
+ *   replaces them all anyway.
+ * </p>
+ */
+public class TorProxyManager implements SocksProxy {
   private static final Logger LOG = LoggerFactory.getLogger(TorProxyManager.class);
   private static final String PID_FILE_NAME = "tor.pid";
+  private static final int CONTROL_TIMEOUT_MILLIS = 10000;
+  private static final long CONTROL_RETRY_MILLIS = 250;
+  private static final long NEWNYM_MIN_INTERVAL_MILLIS = 10000; // tor rate-limits NEWNYM to this anyway
+  private static final Pattern BOOTSTRAP_PROGRESS = Pattern.compile("PROGRESS=(\\d+)");
 
   private final String torRootDir;
   private final int socksPort;
@@ -43,9 +62,23 @@ public class TorProxyManager implements Managed {
   private final String torExecutable;
   private final ScheduledExecutorService scheduler;
   private final long watchdogDelayMillis;
+  private final boolean systemProxy;
+  private final long bootstrapTimeoutMillis;
+  private final long circuitCheckIntervalMillis;
+  private final long circuitMaxLatencyMillis;
+  private final double circuitMaxErrorRate;
+  private final int circuitMinSamples;
   private final Object sync = new Object();
 
   private File pidFile;
+  private TorControlConnection control;
+  private ScheduledFuture<?> watchdog;
+
+  // Connections through the current circuits (guarded by this)
+  private long circuitStartTime;
+  private int numConnects;
+  private int numFailures;
+  private long totalLatencyMillis;
 
   public TorProxyManager(String torRootDir,
                          int socksPort,
@@ -53,12 +86,45 @@ public class TorProxyManager implements Managed {
                          String torExecutable,
                          ScheduledExecutorService scheduler,
                          long watchdogDelayMillis) {
+    this(torRootDir, socksPort, controlPort, torExecutable, scheduler, watchdogDelayMillis, true,
+        120000, 5000, 5000, 0.25, 10);
+  }
+
+  /**
+   * @param systemProxy
+   *  If true, routes all sockets in the JVM through this instance (otherwise, see {@link TorProxyPool})
+   * @param watchdogDelayMillis
+   *  The maximum age of circuits, or non-positive for no limit
+   */
+  public TorProxyManager(String torRootDir,
+                         int socksPort,
+                         int controlPort,
+                         String torExecutable,
+                         ScheduledExecutorService scheduler,
+                         long watchdogDelayMillis,
+                         boolean systemProxy,
+                         long bootstrapTimeoutMillis,
+                         long circuitCheckIntervalMillis,
+                         long circuitMaxLatencyMillis,
+                         double circuitMaxErrorRate,
+                         int circuitMinSamples) {
     this.torRootDir = torRootDir;
     this.socksPort = socksPort;
     this.controlPort = controlPort;
     this.torExecutable = torExecutable;
     this.scheduler = scheduler;
     this.watchdogDelayMillis = watchdogDelayMillis;
+    this.systemProxy = systemProxy;
+    this.bootstrapTimeoutMillis = bootstrapTimeoutMillis;
+    this.circuitCheckIntervalMillis = circuitCheckIntervalMillis;
+    this.circuitMaxLatencyMillis = circuitMaxLatencyMillis;
+    this.circuitMaxErrorRate = circuitMaxErrorRate;
+    this.circuitMinSamples = circuitMinSamples;
+  }
+
+  @Override
+  public InetSocketAddress getSocksAddress() {
+    return new InetSocketAddress("localhost", socksPort);
   }
 
   @Override
@@ -69,7 +135,7 @@ public class TorProxyManager implements Managed {
 
       if (pidFile.exists()) {
         LOG.info("Stopping existing process {}", pidFile);
-        stopProcess(pidFile, 2 /* SIGINT */);
+        halt();
       }
 
       LOG.info("Creating {}", dataDir);
@@ -89,24 +155,35 @@ public class TorProxyManager implements Managed {
       int retCode = executor.execute(CommandLine.parse(command));
       LOG.info("Executed {} #=> {}", command, retCode);
 
-      // Set the system socket proxy
-      System.setProperty("socksProxyHost", "localhost");
-      System.setProperty("socksProxyPort", String.valueOf(socksPort));
+      control = connectControl(System.currentTimeMillis() + bootstrapTimeoutMillis);
+      awaitBootstrap(System.currentTimeMillis() + bootstrapTimeoutMillis);
+      resetCircuitStats();
 
-      // Schedule a watchdog to periodically send SIGHUP, which resets the tor circuit
-      if (watchdogDelayMillis > 0) {
-        scheduler.schedule(new SigHupWatchdog(pidFile), watchdogDelayMillis, TimeUnit.MILLISECONDS);
+      // Set the system socket proxy
+      if (systemProxy) {
+        System.setProperty("socksProxyHost", "localhost");
+        System.setProperty("socksProxyPort", String.valueOf(socksPort));
       }
+
+      // Schedule a watchdog to replace circuits that are slow, failing, or too old
+      watchdog = scheduler.scheduleWithFixedDelay(
+          new CircuitWatchdog(), circuitCheckIntervalMillis, circuitCheckIntervalMillis, TimeUnit.MILLISECONDS);
     }
   }
 
   @Override
   public void stop() throws Exception {
     synchronized (sync) {
+      if (watchdog != null) {
+        watchdog.cancel(false);
+        watchdog = null;
+      }
       if (pidFile.exists()) {
-        stopProcess(pidFile, 2 /* SIGINT */);
-        System.clearProperty("socksProxyHost");
-        System.clearProperty("socksProxyPort");
+        halt();
+        if (systemProxy) {
+          System.clearProperty("socksProxyHost");
+          System.clearProperty("socksProxyPort");
+        }
       }
     }
   }
@@ -118,6 +195,136 @@ public class TorProxyManager implements Managed {
     }
   }
 
+  /**
+   * Records a SOCKS connect through this instance, for the rotation check (latencyMillis is not that of any fetch).
+   */
+  @Override
+  public synchronized void recordConnect(long latencyMillis, boolean failed) {
+    numConnects++;
+    if (failed) {
+      numFailures++;
+    } else {
+      totalLatencyMillis += latencyMillis;
+    }
+  }
+
+  /**
+   * Asks tor to use new circuits for new connections.
+   */
+  public void newCircuits(String reason) throws IOException {
+    synchronized (sync) {
+      if (control == null) {
+        return;
+      }
+      control.signal("NEWNYM");
+      int numBuilt = 0;
+      for (String circuit : control.getInfo("circuit-status").split("\n")) {
+        if (circuit.contains(" BUILT ")) {
+          numBuilt++;
+        }
+      }
+      LOG.info("New circuits for tor on {} ({}), {} circuits were built", socksPort, reason, numBuilt);
+      resetCircuitStats();
+    }
+  }
+
+  private synchronized void resetCircuitStats() {
+    circuitStartTime = System.currentTimeMillis();
+    numConnects = 0;
+    numFailures = 0;
+    totalLatencyMillis = 0;
+  }
+
+  /**
+   * Returns why the current circuits should be replaced, or null if they are fine.
+   */
+  private synchronized String getRotationReason() {
+    long age = System.currentTimeMillis() - circuitStartTime;
+    if (age < NEWNYM_MIN_INTERVAL_MILLIS) {
+      return null;
+    }
+
+    if (numConnects >= circuitMinSamples) {
+      double errorRate = numFailures / (double) numConnects;
+      if (errorRate > circuitMaxErrorRate) {
+        return String.format("%d of %d connections failed", numFailures, numConnects);
+      }
+
+      int numSucceeded = numConnects - numFailures;
+      if (numSucceeded > 0 && totalLatencyMillis / numSucceeded > circuitMaxLatencyMillis) {
+        return String.format("mean connect latency %d ms", totalLatencyMillis / numSucceeded);
+      }
+    }
+
+    if (watchdogDelayMillis > 0 && age >= watchdogDelayMillis) {
+      return String.format("circuits are %d ms old", age);
+    }
+
+    return null;
+  }
+
+  private TorControlConnection connectControl(long deadline) throws Exception {
+    InetSocketAddress address = new InetSocketAddress("localhost", controlPort);
+    while (true) {
+      try {
+        TorControlConnection connection = new TorControlConnection(address, CONTROL_TIMEOUT_MILLIS);
+        try {
+          connection.authenticate("");
+        } catch (IOException e) {
+          connection.close();
+          throw e;
+        }
+        return connection;
+      } catch (IOException e) {
+        if (System.currentTimeMillis() >= deadline) {
+          throw new IllegalStateException("Could not connect to tor control port " + controlPort, e);
+        }
+        Thread.sleep(CONTROL_RETRY_MILLIS);
+      }
+    }
+  }
+
+  private void awaitBootstrap(long deadline) throws Exception {
+    int lastProgress = -1;
+    while (true) {
+      String phase = control.getInfo("status/bootstrap-phase");
+      Matcher matcher = BOOTSTRAP_PROGRESS.matcher(phase);
+      int progress = matcher.find() ? Integer.parseInt(matcher.group(1)) : 0;
+      if (progress >= 100) {
+        LOG.info("Tor on {} bootstrapped", socksPort);
+        return;
+      }
+      if (progress != lastProgress) {
+        LOG.info("Tor on {} bootstrapping: {}", socksPort, phase);
+        lastProgress = progress;
+      }
+      if (System.currentTimeMillis() >= deadline) {
+        throw new IllegalStateException("Tor on " + socksPort + " did not bootstrap: " + phase);
+      }
+      Thread.sleep(CONTROL_RETRY_MILLIS);
+    }
+  }
+
+  /**
+   * Stops the tor process via the control port, or by signal if that is not reachable (e.g. a stale process).
+   */
+  private void halt() throws Exception {
+    try {
+      if (control == null) {
+        control = connectControl(System.currentTimeMillis());
+      }
+      control.signal("HALT");
+    } catch (Exception e) {
+      LOG.warn("Could not halt tor on {} via control port, sending SIGINT", socksPort, e);
+      stopProcess(pidFile, 2 /* SIGINT */);
+    } finally {
+      if (control != null) {
+        control.close();
+        control = null;
+      }
+    }
+  }
+
   private static void stopProcess(File pidFile, int signalNumber) throws Exception {
     try (InputStream inputStream = new FileInputStream(pidFile)) {
       Integer pid = Integer.valueOf(IOUtils.toString(inputStream).trim());
@@ -131,23 +338,15 @@ public class TorProxyManager implements Managed {
     }
   }
 
-  private class SigHupWatchdog implements Runnable {
-    private final File pidFile;
-
-    SigHupWatchdog(File pidFile) {
-      this.pidFile = pidFile;
-    }
-
+  private class CircuitWatchdog implements Runnable {
     @Override
     public void run() {
-      if (pidFile.exists()) {
+      String reason = getRotationReason();
+      if (reason != null) {
         try {
-          stopProcess(pidFile, 1);
-
-          // Keep going as long as exists
-          scheduler.schedule(new SigHupWatchdog(pidFile), watchdogDelayMillis, TimeUnit.MILLISECONDS);
+          newCircuits(reason);
         } catch (Exception e) {
-          LOG.warn("Could not send SIGHUP to {}", pidFile);
+          LOG.warn("Could not get new circuits for tor on {}", socksPort, e);
         }
       }
     }
@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.tor;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads connections over several SOCKS proxies (i.e. tor instances, each with its own circuits).
+ *
+ * <p>
+ *   A proxy is picked for each new connection, or once per authority, either round robin or by fewest open
+ *   connections. A proxy that cannot be reached for maxConnectFailures connections in a row is taken out of the pool
+ *   and restarted. Connections that the proxy could not make (e.g. to an onion service that is down) do not count.
+ *   Use {@link SocksConnectionSocketFactory} and {@link SocksSslConnectionSocketFactory} to connect through it.
+ * </p>
+ */
+public class TorProxyPool implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(TorProxyPool.class);
+  private static final long RESTART_RETRY_DELAY_MILLIS = 10000;
+  private static final int PROBE_TIMEOUT_MILLIS = 2000;
+
+  /** What a proxy is picked for */
+  public enum Affinity {
+    REQUEST,
+    AUTHORITY
+  }
+
+  /** How a proxy is picked */
+  public enum Strategy {
+    ROUND_ROBIN,
+    LEAST_LOADED
+  }
+
+  private final List<Member> members;
+  private final Affinity affinity;
+  private final Strategy strategy;
+  private final int maxConnectFailures;
+  private final ScheduledExecutorService scheduler;
+  private final ConcurrentMap<String, Member> membersByAuthority;
+  private final AtomicLong nextIndex;
+
+  public TorProxyPool(List<? extends SocksProxy> proxies,
+                      Affinity affinity,
+                      Strategy strategy,
+                      int maxConnectFailures,
+                      ScheduledExecutorService scheduler,
+                      MetricRegistry metricRegistry) {
+    this.affinity = affinity;
+    this.strategy = strategy;
+    this.maxConnectFailures = maxConnectFailures;
+    this.scheduler = scheduler;
+    this.membersByAuthority = new ConcurrentHashMap<>();
+    this.nextIndex = new AtomicLong();
+
+    List<Member> members = new ArrayList<>(proxies.size());
+    for (SocksProxy proxy : proxies) {
+      final Member member = new Member(proxy);
+      members.add(member);
+      String port = String.valueOf(proxy.getSocksAddress().getPort());
+      metricRegistry.register(
+          MetricRegistry.name(TorProxyPool.class, port, "open-connections"),
+          new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+              return member.openConnections.get();
+            }
+          });
+    }
+    this.members = Collections.unmodifiableList(members);
+
+    metricRegistry.register(MetricRegistry.name(TorProxyPool.class, "healthy"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return getHealthyMembers().size();
+      }
+    });
+  }
+
+  @Override
+  public void start() throws Exception {
+    for (Member member : members) {
+      member.proxy.start();
+    }
+  }
+
+  @Override
+  public void stop() throws Exception {
+    for (Member member : members) {
+      try {
+        member.proxy.stop();
+      } catch (Exception e) {
+        LOG.error("Could not stop {}", member, e);
+      }
+    }
+  }
+
+  /**
+   * Returns an unconnected socket through the proxy chosen for authority (which may be null if unknown).
+   */
+  public Socket createSocket(String authority) throws IOException {
+    Member member = select(authority);
+    return new PooledSocket(member);
+  }
+
+  private Member select(String authority) throws IOException {
+    if (affinity == Affinity.AUTHORITY && authority != null) {
+      Member member = membersByAuthority.get(authority);
+      if (member == null || !member.healthy) {
+        member = pick();
+        membersByAuthority.put(authority, member);
+      }
+      return member;
+    }
+    return pick();
+  }
+
+  private Member pick() throws IOException {
+    List<Member> healthy = getHealthyMembers();
+    if (healthy.isEmpty()) {
+      throw new IOException("No healthy SOCKS proxy in pool");
+    }
+
+    int start = (int) (nextIndex.getAndIncrement() % healthy.size());
+    if (strategy == Strategy.LEAST_LOADED) {
+      // Ties are broken round robin
+      Member best = null;
+      for (int i = 0; i < healthy.size(); i++) {
+        Member member = healthy.get((start + i) % healthy.size());
+        if (best == null || member.openConnections.get() < best.openConnections.get()) {
+          best = member;
+        }
+      }
+      return best;
+    }
+
+    return healthy.get(start);
+  }
+
+  private List<Member> getHealthyMembers() {
+    List<Member> healthy = new ArrayList<>(members.size());
+    for (Member member : members) {
+      if (member.healthy) {
+        healthy.add(member);
+      }
+    }
+    return healthy;
+  }
+
+  private void restart(final Member member) {
+    scheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          LOG.warn("Restarting {}", member);
+          member.proxy.stop();
+          member.proxy.start();
+          member.consecutiveFailures.set(0);
+          member.healthy = true;
+          LOG.info("Restarted {}", member);
+        } catch (Exception e) {
+          LOG.error("Could not restart {}, retrying in {} ms", member, RESTART_RETRY_DELAY_MILLIS, e);
+          scheduler.schedule(this, RESTART_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+      }
+    });
+  }
+
+  private class Member {
+    private final SocksProxy proxy;
+    private final AtomicInteger openConnections;
+    private final AtomicInteger consecutiveFailures;
+    private volatile boolean healthy;
+
+    Member(SocksProxy proxy) {
+      this.proxy = proxy;
+      this.openConnections = new AtomicInteger();
+      this.consecutiveFailures = new AtomicInteger();
+      this.healthy = true;
+    }
+
+    void connected() {
+      consecutiveFailures.set(0);
+    }
+
+    /**
+     * Returns whether the proxy answers a SOCKS5 greeting.
+     */
+    boolean isReachable() {
+      try (Socket socket = new Socket(Proxy.NO_PROXY)) {
+        socket.connect(proxy.getSocksAddress(), PROBE_TIMEOUT_MILLIS);
+        socket.setSoTimeout(PROBE_TIMEOUT_MILLIS);
+        OutputStream out = socket.getOutputStream();
+        out.write(new byte[] {5, 1, 0}); // version 5, one method: no authentication
+        out.flush();
+        InputStream in = socket.getInputStream();
+        return in.read() == 5 && in.read() == 0;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    void connectFailed() {
+      if (consecutiveFailures.incrementAndGet() >= maxConnectFailures) {
+        synchronized (this) {
+          if (healthy) {
+            healthy = false;
+            LOG.warn("Evicting {} after {} failed connections", this, consecutiveFailures.get());
+            restart(this);
+          }
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "SOCKS proxy " + proxy.getSocksAddress();
+    }
+  }
+
+  /**
+   * A socket through a pool member, which counts towards its open connections and health.
+   */
+  private static class PooledSocket extends Socket {
+    private final Member member;
+    private boolean open;
+
+    PooledSocket(Member member) {
+      super(new Proxy(Proxy.Type.SOCKS, member.proxy.getSocksAddress()));
+      this.member = member;
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+      long startTime = System.currentTimeMillis();
+      try {
+        super.connect(endpoint, timeout);
+      } catch (IOException e) {
+        member.proxy.recordConnect(System.currentTimeMillis() - startTime, true);
+        if (isSocksReply(e) || member.isReachable()) {
+          // The proxy is up, but could not connect to endpoint
+          member.connected();
+        } else {
+          member.connectFailed();
+        }
+        throw e;
+      }
+      member.proxy.recordConnect(System.currentTimeMillis() - startTime, false);
+      member.connected();
+      synchronized (this) {
+        open = true;
+        member.openConnections.incrementAndGet();
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (open) {
+        open = false;
+        member.openConnections.decrementAndGet();
+      }
+      super.close();
+    }
+
+    /**
+     * Returns whether e is an error the proxy replied with, as java.net words them (e.g. "SOCKS: Host unreachable").
+     */
+    private static boolean isSocksReply(IOException e) {
+      return e instanceof SocketException && e.getMessage() != null && e.getMessage().startsWith("SOCKS");
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the encode and decode time and size of events in each format.
+ *
+ * <p>
+ *   Run with
+ *   {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.github.brandtg.pantopod.api.CrawlEventCodecBenchmark [-Dexec.args="numEvents iterations"]}
+ * </p>
+ */
+public class CrawlEventCodecBenchmark {
+  private static final int DEFAULT_NUM_EVENTS = 10000;
+  private static final int DEFAULT_ITERATIONS = 200;
+
+  // Keeps the results live, so the work is not optimized away
+  private static volatile long sink;
+
+  public static void main(String[] args) throws Exception {
+    int numEvents = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_EVENTS;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+    List<CrawlEvent> events = events(numEvents);
+
+    System.out.printf("%-8s %12s %12s %12s%n", "format", "encode ns/op", "decode ns/op", "bytes/msg");
+    run("json", new JsonCrawlEventCodec(), events, iterations);
+    run("binary", new BinaryCrawlEventCodec(), events, iterations);
+  }
+
+  private static void run(String name, CrawlEventCodec codec, List<CrawlEvent> events, int iterations)
+      throws Exception {
+    byte[][] encoded = new byte[events.size()][];
+    long numBytes = 0;
+    for (int i = 0; i < encoded.length; i++) {
+      encoded[i] = codec.encode(events.get(i));
+      numBytes += encoded[i].length;
+    }
+
+    // Warm up, then measure
+    long check = 0;
+    for (int i = 0; i < iterations; i++) {
+      check += encodeAll(codec, events) + decodeAll(codec, encoded);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      check += encodeAll(codec, events);
+    }
+    long encodeNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      check += decodeAll(codec, encoded);
+    }
+    long decodeNanos = System.nanoTime() - start;
+
+    long numOps = (long) iterations * events.size();
+    sink += check;
+    System.out.printf("%-8s %12.1f %12.1f %12.1f%n",
+        name, (double) encodeNanos / numOps, (double) decodeNanos / numOps, (double) numBytes / events.size());
+  }
+
+  private static long encodeAll(CrawlEventCodec codec, List<CrawlEvent> events) throws Exception {
+    long numBytes = 0;
+    for (CrawlEvent event : events) {
+      numBytes += codec.encode(event).length;
+    }
+    return numBytes;
+  }
+
+  private static long decodeAll(CrawlEventCodec codec, byte[][] encoded) throws Exception {
+    long depths = 0;
+    for (byte[] bytes : encoded) {
+      depths += codec.decode(bytes).getDepth();
+    }
+    return depths;
+  }
+
+  /**
+   * Returns events like those of a crawl of a few sites, with a chroot, parent URLs on the same site, and query
+   * strings on some pages.
+   */
+  static List<CrawlEvent> events(int numEvents) {
+    Random random = new Random(0);
+    String[] authorities = new String[8];
+    for (int i = 0; i < authorities.length; i++) {
+      StringBuilder authority = new StringBuilder();
+      for (int j = 0; j < 16; j++) {
+        authority.append((char) ('a' + random.nextInt(26)));
+      }
+      authorities[i] = authority.append(".onion").toString();
+    }
+
+    List<CrawlEvent> events = new ArrayList<>(numEvents);
+    for (int i = 0; i < numEvents; i++) {
+      String base = "http://" + authorities[random.nextInt(authorities.length)] + "/forum";
+      CrawlEvent event = new CrawlEvent();
+      event.setChroot("/forum");
+      event.setUrl(base + "/thread/" + random.nextInt(100000) + "/page-" + random.nextInt(50) + ".html"
+          + (random.nextInt(4) == 0 ? "?sort=date&order=" + random.nextInt(2) : ""));
+      event.setParentUrl(base + "/board/" + random.nextInt(1000) + ".html");
+      event.setDepth(random.nextInt(20));
+      events.add(event);
+    }
+    return events;
+  }
+}
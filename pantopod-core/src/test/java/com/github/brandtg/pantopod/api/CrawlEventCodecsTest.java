@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.api;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CrawlEventCodecsTest {
+  @Test
+  public void testBinaryRoundTrip() throws Exception {
+    CrawlEventCodec codec = new BinaryCrawlEventCodec();
+    for (CrawlEvent event : events()) {
+      assertEquals(event, codec.decode(codec.encode(event)));
+    }
+  }
+
+  @Test
+  public void testJsonRoundTrip() throws Exception {
+    CrawlEventCodec codec = new JsonCrawlEventCodec();
+    for (CrawlEvent event : events()) {
+      assertEquals(event, codec.decode(codec.encode(event)));
+    }
+  }
+
+  @Test
+  public void testDetectsEitherFormat() throws Exception {
+    CrawlEventCodec json = CrawlEventCodecs.forFormat(CrawlEventCodecs.JSON);
+    CrawlEventCodec binary = CrawlEventCodecs.forFormat(CrawlEventCodecs.BINARY);
+    for (CrawlEvent event : events()) {
+      byte[] fromJson = json.encode(event);
+      byte[] fromBinary = binary.encode(event);
+      assertEquals('{', fromJson[0]);
+      assertEquals(BinaryCrawlEventCodec.MAGIC, fromBinary[0]);
+      assertEquals(event, json.decode(fromBinary));
+      assertEquals(event, binary.decode(fromJson));
+    }
+  }
+
+  @Test
+  public void testBinaryIsSmaller() throws Exception {
+    CrawlEvent event = events()[1];
+    assertTrue(new BinaryCrawlEventCodec().encode(event).length < new JsonCrawlEventCodec().encode(event).length);
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedBinary() throws Exception {
+    CrawlEventCodec codec = new BinaryCrawlEventCodec();
+    byte[] bytes = codec.encode(events()[1]);
+    byte[] truncated = new byte[bytes.length - 3];
+    System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+    codec.decode(truncated);
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownVersion() throws Exception {
+    CrawlEventCodec codec = new BinaryCrawlEventCodec();
+    byte[] bytes = codec.encode(events()[1]);
+    bytes[1] = BinaryCrawlEventCodec.VERSION + 1;
+    codec.decode(bytes);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownFormat() {
+    CrawlEventCodecs.forFormat("xml");
+  }
+
+  private static CrawlEvent[] events() {
+    CrawlEvent empty = new CrawlEvent();
+
+    CrawlEvent child = new CrawlEvent();
+    child.setUrl("http://example.onion/site/a/b.html?q=1");
+    child.setParentUrl("http://example.onion/site/a/index.html");
+    child.setChroot("http://example.onion/site/");
+    child.setDepth(300);
+    child.setAttempt(2);
+
+    CrawlEvent revisit = new CrawlEvent();
+    revisit.setUrl("http://example.onion/\u00e9t\u00e9");
+    revisit.setChroot("http://other.onion/");
+    revisit.setRevisit(true);
+
+    CrawlEvent noUrl = new CrawlEvent();
+    noUrl.setParentUrl("http://example.onion/");
+    noUrl.setDepth(1);
+
+    return new CrawlEvent[] { empty, child, revisit, noUrl };
+  }
+}
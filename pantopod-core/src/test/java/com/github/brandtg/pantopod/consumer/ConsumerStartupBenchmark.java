@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.brandtg.pantopod.api.CrawlEvent;
+import com.github.brandtg.pantopod.api.CrawlEventCodecs;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import kafka.consumer.Consumer;
+import kafka.consumer.ConsumerConfig;
+import kafka.consumer.ConsumerIterator;
+import kafka.consumer.KafkaStream;
+import kafka.javaapi.consumer.ConsumerConnector;
+import kafka.javaapi.producer.Producer;
+import kafka.producer.ProducerConfig;
+import kafka.server.KafkaConfig;
+import kafka.server.KafkaServerStartable;
+import kafka.utils.ZKStringSerializer$;
+import org.I0Itec.zkclient.ZkClient;
+import org.apache.commons.io.FileUtils;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures the startup time, ZooKeeper sessions, threads and heap of consuming many resources on one node, with the
+ * node's shared reader, producer and ZooKeeper session, and with a consumer connector and producer per partition (as
+ * before they were shared).
+ *
+ * <p>
+ *   Runs ZooKeeper and a Kafka broker in this JVM. Run with
+ *   {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.github.brandtg.pantopod.consumer.ConsumerStartupBenchmark
+ *   [-Dexec.args="numResources numHelixPartitions"]}
+ * </p>
+ */
+public class ConsumerStartupBenchmark {
+  private static final int DEFAULT_NUM_RESOURCES = 10;
+  private static final int DEFAULT_NUM_HELIX_PARTITIONS = 4;
+  private static final String GROUP_ID = "benchmark";
+
+  private static NIOServerCnxnFactory zkFactory;
+  private static String zkConnect;
+  private static String brokerList;
+
+  public static void main(String[] args) throws Exception {
+    int numResources = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_RESOURCES;
+    int numHelixPartitions = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_NUM_HELIX_PARTITIONS;
+
+    File dir = Files.createTempDirectory("consumer-startup-benchmark").toFile();
+    KafkaServerStartable kafka = null;
+    try {
+      zkFactory = new NIOServerCnxnFactory();
+      zkFactory.configure(new InetSocketAddress("localhost", freePort()), 1000);
+      zkFactory.startup(new ZooKeeperServer(new File(dir, "zk"), new File(dir, "zk"), 2000));
+      zkConnect = "localhost:" + zkFactory.getLocalPort();
+      int kafkaPort = freePort();
+      Properties props = new Properties();
+      props.put("broker.id", "0");
+      props.put("host.name", "localhost");
+      props.put("port", String.valueOf(kafkaPort));
+      props.put("log.dirs", new File(dir, "kafka").getPath());
+      props.put("zookeeper.connect", zkConnect);
+      kafka = new KafkaServerStartable(new KafkaConfig(props));
+      kafka.startup();
+      brokerList = "localhost:" + kafkaPort;
+
+      System.out.printf("%d resources x %d partitions%n", numResources, numHelixPartitions);
+      System.out.printf("%-14s %12s %12s %10s %10s%n", "mode", "startup ms", "zk sessions", "threads", "heap MB");
+      runShared(numResources, numHelixPartitions);
+      runPerPartition(numResources, numHelixPartitions);
+    } finally {
+      if (kafka != null) {
+        kafka.shutdown();
+      }
+      zkFactory.shutdown();
+      FileUtils.deleteQuietly(dir);
+    }
+    System.exit(0);
+  }
+
+  private static void runShared(int numResources, int numHelixPartitions) throws Exception {
+    ExecutorService executorService = Executors.newCachedThreadPool();
+    MetricRegistry metricRegistry = new MetricRegistry();
+    ResourceScheduler scheduler = new ResourceScheduler(4, metricRegistry);
+    PantopodKafkaConsumerManager manager = new PantopodKafkaConsumerManager(zkConnect, brokerList, GROUP_ID,
+        executorService, new NoOpHandler(), 1, scheduler, 1, numHelixPartitions, 1, 1000, false, new Properties(),
+        CrawlEventCodecs.forFormat(CrawlEventCodecs.BINARY), metricRegistry);
+    List<String> topics = createTopics("shared", numResources, numHelixPartitions);
+
+    Snapshot before = new Snapshot();
+    long start = System.currentTimeMillis();
+    manager.start();
+    for (String topic : topics) {
+      for (int i = 0; i < numHelixPartitions; i++) {
+        manager.start(topic, i, numHelixPartitions, new PantopodResourceConfig());
+      }
+    }
+    long startupMillis = System.currentTimeMillis() - start;
+    new Snapshot().print("shared", startupMillis, before);
+
+    for (String topic : topics) {
+      for (int i = 0; i < numHelixPartitions; i++) {
+        manager.stop(topic, i);
+      }
+    }
+    manager.stop();
+    executorService.shutdownNow();
+  }
+
+  private static void runPerPartition(int numResources, int numHelixPartitions) throws Exception {
+    final ExecutorService executorService = Executors.newCachedThreadPool();
+    List<String> topics = createTopics("partition", numResources, numHelixPartitions);
+    List<ConsumerConnector> connectors = new ArrayList<>();
+    List<Producer<byte[], byte[]>> producers = new ArrayList<>();
+
+    Snapshot before = new Snapshot();
+    long start = System.currentTimeMillis();
+    for (String topic : topics) {
+      for (int i = 0; i < numHelixPartitions; i++) {
+        Properties producerProps = new Properties();
+        producerProps.put("metadata.broker.list", brokerList);
+        producerProps.put("request.required.acks", "1");
+        producers.add(new Producer<byte[], byte[]>(new ProducerConfig(producerProps)));
+
+        Properties consumerProps = new Properties();
+        consumerProps.put("zookeeper.connect", zkConnect);
+        consumerProps.put("group.id", GROUP_ID);
+        consumerProps.put("auto.offset.reset", "smallest");
+        ConsumerConnector connector = Consumer.createJavaConsumerConnector(new ConsumerConfig(consumerProps));
+        connectors.add(connector);
+        for (final KafkaStream<byte[], byte[]> stream
+            : connector.createMessageStreams(Collections.singletonMap(topic, 1)).get(topic)) {
+          executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+              ConsumerIterator<byte[], byte[]> it = stream.iterator();
+              while (it.hasNext()) {
+                it.next();
+              }
+            }
+          });
+        }
+      }
+    }
+    long startupMillis = System.currentTimeMillis() - start;
+    new Snapshot().print("per-partition", startupMillis, before);
+
+    for (ConsumerConnector connector : connectors) {
+      connector.shutdown();
+    }
+    for (Producer<byte[], byte[]> producer : producers) {
+      producer.close();
+    }
+    executorService.shutdownNow();
+  }
+
+  private static List<String> createTopics(String prefix, int numResources, int numPartitions) {
+    ZkClient zkClient = new ZkClient(zkConnect, 10000, 10000, ZKStringSerializer$.MODULE$);
+    try {
+      List<String> topics = new ArrayList<>();
+      for (int i = 0; i < numResources; i++) {
+        String topic = prefix + i + ".onion";
+        UrlPartitioner.createTopic(zkClient, topic, numPartitions, 1);
+        topics.add(topic);
+      }
+      return topics;
+    } finally {
+      zkClient.close();
+    }
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * ZooKeeper sessions, live threads and used heap at a point in time.
+   */
+  private static class Snapshot {
+    private final int zkSessions;
+    private final int threads;
+    private final long heapBytes;
+
+    Snapshot() {
+      System.gc();
+      Runtime runtime = Runtime.getRuntime();
+      this.zkSessions = zkFactory.getNumAliveConnections();
+      this.threads = Thread.activeCount();
+      this.heapBytes = runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    void print(String mode, long startupMillis, Snapshot before) {
+      System.out.printf("%-14s %12d %12d %10d %10.1f%n", mode, startupMillis, zkSessions - before.zkSessions,
+          threads - before.threads, (heapBytes - before.heapBytes) / (1024.0 * 1024));
+    }
+  }
+
+  private static class NoOpHandler implements PantopodEventHandler {
+    @Override
+    public Set<CrawlEvent> handle(CrawlEvent event) {
+      return new HashSet<>();
+    }
+
+    @Override
+    public ListenableFuture<Set<CrawlEvent>> handleAsync(CrawlEvent event) {
+      return Futures.<Set<CrawlEvent>>immediateFuture(new HashSet<CrawlEvent>());
+    }
+
+    @Override
+    public void onProduced(CrawlEvent event) {}
+
+    @Override
+    public void configureResource(String resource, PantopodResourceConfig resourceConfig) {}
+
+    @Override
+    public void onAssigned(String resource, int numKafkaPartitions, List<Integer> kafkaPartitions) {}
+
+    @Override
+    public void onRevoked(String resource, List<Integer> kafkaPartitions) {}
+  }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Charsets;
+import kafka.server.KafkaConfig;
+import kafka.server.KafkaServerStartable;
+import kafka.utils.ZKStringSerializer$;
+import org.I0Itec.zkclient.ZkClient;
+import org.apache.commons.io.FileUtils;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads from ZooKeeper and a Kafka broker in this JVM.
+ */
+public class KafkaPartitionReaderTest {
+  private static final long TIMEOUT_MILLIS = 30000;
+
+  private static File dir;
+  private static NIOServerCnxnFactory zkFactory;
+  private static KafkaServerStartable kafka;
+  private static ZkClient zkClient;
+  private static KafkaProducer<byte[], byte[]> producer;
+  private static String brokerList;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    dir = Files.createTempDirectory("kafka-partition-reader-test").toFile();
+    zkFactory = new NIOServerCnxnFactory();
+    zkFactory.configure(new InetSocketAddress("localhost", freePort()), 10);
+    zkFactory.startup(new ZooKeeperServer(new File(dir, "zk"), new File(dir, "zk"), 2000));
+    String zkConnect = "localhost:" + zkFactory.getLocalPort();
+
+    int kafkaPort = freePort();
+    Properties props = new Properties();
+    props.put("broker.id", "0");
+    props.put("host.name", "localhost");
+    props.put("port", String.valueOf(kafkaPort));
+    props.put("log.dirs", new File(dir, "kafka").getPath());
+    props.put("zookeeper.connect", zkConnect);
+    kafka = new KafkaServerStartable(new KafkaConfig(props));
+    kafka.startup();
+    brokerList = "localhost:" + kafkaPort;
+
+    zkClient = new ZkClient(zkConnect, 10000, 10000, ZKStringSerializer$.MODULE$);
+    Properties producerProps = new Properties();
+    producerProps.put("bootstrap.servers", brokerList);
+    producer = new KafkaProducer<>(producerProps, new ByteArraySerializer(), new ByteArraySerializer());
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    producer.close();
+    zkClient.close();
+    kafka.shutdown();
+    zkFactory.shutdown();
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Test
+  public void testReadsEachTopicForItsListener() throws Exception {
+    UrlPartitioner.createTopic(zkClient, "a", 2, 1);
+    UrlPartitioner.createTopic(zkClient, "b", 2, 1);
+    send("a", 0, "a0-0", "a0-1");
+    send("a", 1, "a1-0");
+    send("b", 0, "b0-0", "b0-1", "b0-2");
+
+    KafkaPartitionReader reader = newReader();
+    TestListener a = new TestListener();
+    TestListener b = new TestListener();
+    reader.assign("a", Arrays.asList(0, 1), Collections.<Integer, Long>emptyMap(), a);
+    // Only partition 0, from offset 1
+    reader.assign("b", Arrays.asList(0), Collections.singletonMap(0, 1L), b);
+    reader.start();
+    try {
+      a.await(3);
+      b.await(2);
+      assertEquals(Arrays.asList("a0-0", "a0-1"), a.get(0));
+      assertEquals(Arrays.asList("a1-0"), a.get(1));
+      assertEquals(Arrays.asList("b0-1", "b0-2"), b.get(0));
+      assertEquals(Arrays.asList(1L, 2L), b.offsets.get(0));
+    } finally {
+      reader.stop();
+    }
+  }
+
+  @Test
+  public void testListenerWithoutCapacity() throws Exception {
+    UrlPartitioner.createTopic(zkClient, "full", 1, 1);
+    UrlPartitioner.createTopic(zkClient, "free", 1, 1);
+    send("full", 0, "full-0");
+    send("free", 0, "free-0");
+
+    KafkaPartitionReader reader = newReader();
+    TestListener full = new TestListener();
+    full.capacity = false;
+    TestListener free = new TestListener();
+    reader.assign("full", Arrays.asList(0), Collections.<Integer, Long>emptyMap(), full);
+    reader.assign("free", Arrays.asList(0), Collections.<Integer, Long>emptyMap(), free);
+    reader.start();
+    try {
+      // The other topic is still read
+      free.await(1);
+      send("free", 0, "free-1");
+      free.await(2);
+      assertEquals(0, full.size());
+
+      full.capacity = true;
+      full.await(1);
+      assertEquals(Arrays.asList("full-0"), full.get(0));
+    } finally {
+      reader.stop();
+    }
+  }
+
+  @Test
+  public void testUnassign() throws Exception {
+    UrlPartitioner.createTopic(zkClient, "moved", 1, 1);
+    send("moved", 0, "moved-0");
+
+    KafkaPartitionReader reader = newReader();
+    TestListener before = new TestListener();
+    KafkaPartitionReader.Assignment assignment =
+        reader.assign("moved", Arrays.asList(0), Collections.<Integer, Long>emptyMap(), before);
+    reader.start();
+    try {
+      before.await(1);
+      reader.unassign(assignment);
+
+      // Picked up where the first stopped, e.g. after it moved to another node
+      TestListener after = new TestListener();
+      reader.assign("moved", Arrays.asList(0), Collections.singletonMap(0, 1L), after);
+      send("moved", 0, "moved-1");
+      after.await(1);
+      assertEquals(Arrays.asList("moved-0"), before.get(0));
+      assertEquals(Arrays.asList("moved-1"), after.get(0));
+    } finally {
+      reader.stop();
+    }
+  }
+
+  private static KafkaPartitionReader newReader() {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    return new KafkaPartitionReader(brokerList, "test", executor, new MetricRegistry());
+  }
+
+  private static void send(String topic, int partition, String... messages) throws Exception {
+    for (String message : messages) {
+      producer.send(new ProducerRecord<byte[], byte[]>(topic, partition, null, message.getBytes(Charsets.UTF_8))).get();
+    }
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static class TestListener implements KafkaPartitionReader.Listener {
+    private final Map<Integer, List<String>> messages = new HashMap<>();
+    private final Map<Integer, List<Long>> offsets = new HashMap<>();
+    private volatile boolean capacity = true;
+    private int size;
+
+    @Override
+    public boolean hasCapacity() {
+      return capacity;
+    }
+
+    @Override
+    public synchronized void onRecord(KafkaPartitionReader.Record record) {
+      if (!messages.containsKey(record.getPartition())) {
+        messages.put(record.getPartition(), new ArrayList<String>());
+        offsets.put(record.getPartition(), new ArrayList<Long>());
+      }
+      messages.get(record.getPartition()).add(new String(record.getMessage(), Charsets.UTF_8));
+      offsets.get(record.getPartition()).add(record.getOffset());
+      size++;
+      notifyAll();
+    }
+
+    synchronized List<String> get(int partition) {
+      return messages.get(partition);
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized void await(int numRecords) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+      while (size < numRecords && System.currentTimeMillis() < deadline) {
+        wait(deadline - System.currentTimeMillis());
+      }
+      assertTrue("Got " + size + " of " + numRecords + " records", size >= numRecords);
+    }
+  }
+}
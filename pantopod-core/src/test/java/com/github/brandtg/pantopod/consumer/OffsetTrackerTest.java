@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OffsetTrackerTest {
+  @Test
+  public void testCommitsUpToFirstInFlight() throws Exception {
+    OffsetTracker tracker = new OffsetTracker(2);
+    KafkaPartitionReader.Record[] records = new KafkaPartitionReader.Record[5];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = record(0, 10 + i);
+      tracker.dispatched(0, records[i]);
+    }
+    assertEquals(Collections.singletonMap(0, 10L), tracker.getCommitOffsets(0));
+
+    // A slow event holds back the offset, but not the events after it
+    tracker.completed(0, records[0]);
+    tracker.completed(0, records[2]);
+    tracker.completed(0, records[3]);
+    assertEquals(Collections.singletonMap(0, 11L), tracker.getCommitOffsets(0));
+    assertFalse(tracker.awaitCompleted(10));
+
+    tracker.completed(0, records[1]);
+    assertEquals(Collections.singletonMap(0, 14L), tracker.getCommitOffsets(0));
+    tracker.completed(0, records[4]);
+    assertEquals(Collections.singletonMap(0, 15L), tracker.getCommitOffsets(0));
+    assertTrue(tracker.awaitCompleted(10));
+
+    // Completed twice (e.g. a retried produce) is ignored
+    tracker.completed(0, records[4]);
+    assertTrue(tracker.awaitCompleted(10));
+    assertTrue(tracker.getCommitOffsets(1).isEmpty());
+  }
+
+  @Test
+  public void testPartitionsAndLanes() throws Exception {
+    OffsetTracker tracker = new OffsetTracker(2);
+    KafkaPartitionReader.Record a = record(0, 5);
+    KafkaPartitionReader.Record b = record(1, 7);
+    KafkaPartitionReader.Record c = record(0, 3);
+    tracker.dispatched(0, a);
+    tracker.dispatched(0, b);
+    tracker.dispatched(1, c);
+    tracker.completed(0, b);
+
+    Map<Integer, Long> expected = new HashMap<>();
+    expected.put(0, 5L);
+    expected.put(1, 8L);
+    assertEquals(expected, tracker.getCommitOffsets(0));
+    assertEquals(Collections.singletonMap(0, 3L), tracker.getCommitOffsets(1));
+  }
+
+  @Test
+  public void testAwaitCompleted() throws Exception {
+    final OffsetTracker tracker = new OffsetTracker(1);
+    final KafkaPartitionReader.Record record = record(0, 0);
+    tracker.dispatched(0, record);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        tracker.completed(0, record);
+      }
+    });
+    thread.start();
+    assertTrue(tracker.awaitCompleted(10000));
+    thread.join();
+  }
+
+  private static KafkaPartitionReader.Record record(int partition, long offset) {
+    return new KafkaPartitionReader.Record(partition, offset, offset + 1, new byte[0]);
+  }
+}
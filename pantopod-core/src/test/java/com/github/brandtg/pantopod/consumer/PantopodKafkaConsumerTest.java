@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.brandtg.pantopod.api.CrawlEvent;
+import com.github.brandtg.pantopod.api.CrawlEventCodecs;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PantopodKafkaConsumerTest {
+  private static final String TOPIC = "test.onion";
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  private ExecutorService executorService;
+  private MockProducer producer;
+  private PantopodKafkaConsumer consumer;
+  private List<CrawlEvent> produced;
+
+  @Before
+  public void before() throws Exception {
+    executorService = Executors.newSingleThreadExecutor();
+    Node node = new Node(0, "localhost", 9092);
+    List<PartitionInfo> partitions = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      partitions.add(new PartitionInfo(TOPIC, i, node, new Node[] { node }, new Node[] { node }));
+    }
+    producer = new MockProducer(new Cluster(Collections.singletonList(node), partitions), false);
+    produced = Collections.synchronizedList(new ArrayList<CrawlEvent>());
+    consumer = new PantopodKafkaConsumer(TOPIC, 0, 1, executorService, new ProducedHandler(), null, null, 1, 1000,
+        false, null, producer, null, null, CrawlEventCodecs.forFormat(CrawlEventCodecs.BINARY), new PriorityLanes(1),
+        new MetricRegistry());
+  }
+
+  @After
+  public void after() throws Exception {
+    executorService.shutdownNow();
+  }
+
+  @Test
+  public void testAckedOnceAllSent() throws Exception {
+    AtomicInteger acked = new AtomicInteger();
+    consumer.produce(events("http://test.onion/a", "http://test.onion/b"), counter(acked));
+    assertTrue(producer.completeNext());
+    assertEquals(0, acked.get());
+    assertTrue(producer.completeNext());
+    assertEquals(1, acked.get());
+    assertEquals(2, produced.size());
+  }
+
+  @Test
+  public void testFailedSendIsSentAgain() throws Exception {
+    AtomicInteger acked = new AtomicInteger();
+    consumer.produce(events("http://test.onion/a", "http://test.onion/b"), counter(acked));
+    assertTrue(producer.completeNext());
+    assertTrue(producer.errorNext(new RuntimeException("test")));
+
+    // The offset of the page is held until the failed link is delivered
+    assertEquals(0, acked.get());
+    awaitHistory(3);
+    assertTrue(Arrays.equals(producer.history().get(1).value(), producer.history().get(2).value()));
+    assertTrue(producer.errorNext(new RuntimeException("test")));
+    assertEquals(0, acked.get());
+    awaitHistory(4);
+    assertTrue(producer.completeNext());
+    assertEquals(1, acked.get());
+    assertEquals(2, produced.size());
+  }
+
+  private void awaitHistory(int size) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (producer.history().size() < size) {
+      assertTrue("Timed out waiting for " + size + " sends", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private static Set<CrawlEvent> events(String... urls) {
+    Set<CrawlEvent> events = new HashSet<>();
+    for (String url : urls) {
+      CrawlEvent event = new CrawlEvent();
+      event.setUrl(url);
+      events.add(event);
+    }
+    return events;
+  }
+
+  private static Runnable counter(final AtomicInteger count) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        count.incrementAndGet();
+      }
+    };
+  }
+
+  private class ProducedHandler implements PantopodEventHandler {
+    @Override
+    public Set<CrawlEvent> handle(CrawlEvent event) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ListenableFuture<Set<CrawlEvent>> handleAsync(CrawlEvent event) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void onProduced(CrawlEvent event) {
+      produced.add(event);
+    }
+
+    @Override
+    public void configureResource(String resource, PantopodResourceConfig resourceConfig) {}
+
+    @Override
+    public void onAssigned(String resource, int numKafkaPartitions, List<Integer> kafkaPartitions) {}
+
+    @Override
+    public void onRevoked(String resource, List<Integer> kafkaPartitions) {}
+  }
+}
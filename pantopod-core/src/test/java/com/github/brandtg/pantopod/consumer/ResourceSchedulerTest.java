@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.consumer;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResourceSchedulerTest {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private ResourceScheduler scheduler;
+
+  @After
+  public void after() throws Exception {
+    if (scheduler != null) {
+      scheduler.stop();
+    }
+  }
+
+  @Test
+  public void testWeightedOrder() throws Exception {
+    scheduler = new ResourceScheduler(1, new MetricRegistry());
+    scheduler.register("light", 1, 1);
+    scheduler.register("heavy", 3, 1);
+    scheduler.register("blocker", 1, 1);
+    scheduler.start();
+
+    // Holds the only worker until everything is queued
+    CountDownLatch queued = new CountDownLatch(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    scheduler.submit("blocker", await(blocked, queued));
+    assertTrue(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(12);
+    for (int i = 0; i < 4; i++) {
+      scheduler.submit("light", record(order, "L", done));
+    }
+    for (int i = 0; i < 8; i++) {
+      scheduler.submit("heavy", record(order, "H", done));
+    }
+    queued.countDown();
+
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    // Each round, light runs one event per credit and heavy three, until it has none left
+    assertEquals("L,H,H,H,L,H,H,H,L,H,H,L", Joiner.on(',').join(order));
+  }
+
+  @Test
+  public void testIdleResourceGivesUpItsShare() throws Exception {
+    scheduler = new ResourceScheduler(1, new MetricRegistry());
+    scheduler.register("light", 1, 1);
+    scheduler.register("heavy", 3, 1);
+    scheduler.register("blocker", 1, 1);
+    scheduler.start();
+
+    CountDownLatch queued = new CountDownLatch(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    scheduler.submit("blocker", await(blocked, queued));
+    assertTrue(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(5);
+    for (int i = 0; i < 5; i++) {
+      scheduler.submit("light", record(order, "L", done));
+    }
+    queued.countDown();
+
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals("L,L,L,L,L", Joiner.on(',').join(order));
+  }
+
+  @Test
+  public void testMaxThreads() throws Exception {
+    scheduler = new ResourceScheduler(4, new MetricRegistry());
+    scheduler.register("capped", 1, 2);
+    scheduler.register("other", 1, 4);
+    scheduler.start();
+
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(4);
+    CountDownLatch done = new CountDownLatch(6);
+    for (int i = 0; i < 4; i++) {
+      scheduler.submit("capped", count(running, maxRunning, release, started, done));
+    }
+    for (int i = 0; i < 2; i++) {
+      scheduler.submit("other", count(new AtomicInteger(), new AtomicInteger(), release, started, done));
+    }
+
+    // Two of capped and both of other run, the other two of capped wait
+    assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(2, running.get());
+    release.countDown();
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(2, maxRunning.get());
+  }
+
+  @Test
+  public void testAsyncEventsCountUntilComplete() throws Exception {
+    scheduler = new ResourceScheduler(2, 1, new MetricRegistry());
+    scheduler.register("async", 1, 2);
+    scheduler.start();
+
+    final SettableFuture<Void> completion = SettableFuture.create();
+    final CountDownLatch first = new CountDownLatch(1);
+    scheduler.submitAsync("async", new Callable<ListenableFuture<?>>() {
+      @Override
+      public ListenableFuture<?> call() {
+        first.countDown();
+        return completion;
+      }
+    });
+    assertTrue(first.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+    // The worker is free, but the event still counts against maxRunning
+    CountDownLatch second = new CountDownLatch(1);
+    scheduler.submit("async", record(new ArrayList<String>(), "A", second));
+    assertFalse(second.await(200, TimeUnit.MILLISECONDS));
+    completion.set(null);
+    assertTrue(second.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testUnregistered() {
+    new ResourceScheduler(1, new MetricRegistry()).submit("unknown", record(new ArrayList<String>(), "U", null));
+  }
+
+  private static Runnable await(final CountDownLatch started, final CountDownLatch release) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        awaitUninterruptibly(release);
+      }
+    };
+  }
+
+  private static Runnable record(final List<String> order, final String name, final CountDownLatch done) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        order.add(name);
+        done.countDown();
+      }
+    };
+  }
+
+  private static Runnable count(final AtomicInteger running,
+                                final AtomicInteger maxRunning,
+                                final CountDownLatch release,
+                                final CountDownLatch started,
+                                final CountDownLatch done) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        int now = running.incrementAndGet();
+        while (now > maxRunning.get()) {
+          maxRunning.compareAndSet(maxRunning.get(), now);
+        }
+        started.countDown();
+        awaitUninterruptibly(release);
+        running.decrementAndGet();
+        done.countDown();
+      }
+    };
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
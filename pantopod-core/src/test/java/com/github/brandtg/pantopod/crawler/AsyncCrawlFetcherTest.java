@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncCrawlFetcherTest {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private ExecutorService serverExecutor;
+  private HttpServer server;
+  private HttpServer otherServer;
+  private CountDownLatch slow;
+  private AsyncCrawlFetcher fetcher;
+
+  @Before
+  public void before() throws Exception {
+    slow = new CountDownLatch(1);
+    serverExecutor = Executors.newCachedThreadPool();
+    HttpHandler handler = new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          if (exchange.getRequestURI().getPath().startsWith("/slow")) {
+            slow.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+      }
+    };
+    server = startServer(handler);
+    otherServer = startServer(handler);
+  }
+
+  @After
+  public void after() throws Exception {
+    slow.countDown();
+    if (fetcher != null) {
+      fetcher.stop();
+    }
+    server.stop(0);
+    otherServer.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testWaitsPerAuthority() throws Exception {
+    fetcher = new AsyncCrawlFetcher(HttpAsyncClients.createDefault(), 2, 1);
+    fetcher.start();
+
+    // The second request to the slow authority waits without holding this thread, and the other one goes ahead
+    ListenableFuture<HttpResponse> first = fetcher.fetch(url(server, "/slow/1"));
+    ListenableFuture<HttpResponse> second = fetcher.fetch(url(server, "/slow/2"));
+    ListenableFuture<HttpResponse> other = fetcher.fetch(url(otherServer, "/fast"));
+    assertEquals(204, other.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusLine().getStatusCode());
+    assertFalse(first.isDone());
+    assertFalse(second.isDone());
+
+    slow.countDown();
+    assertEquals(204, first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusLine().getStatusCode());
+    assertEquals(204, second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusLine().getStatusCode());
+  }
+
+  @Test
+  public void testWaitsPerNode() throws Exception {
+    fetcher = new AsyncCrawlFetcher(HttpAsyncClients.createDefault(), 1, 1);
+    fetcher.start();
+
+    ListenableFuture<HttpResponse> first = fetcher.fetch(url(server, "/slow"));
+    ListenableFuture<HttpResponse> other = fetcher.fetch(url(otherServer, "/fast"));
+    Thread.sleep(100);
+    assertFalse(other.isDone());
+
+    slow.countDown();
+    assertTrue(first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) != null);
+    assertEquals(204, other.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusLine().getStatusCode());
+  }
+
+  private HttpServer startServer(HttpHandler handler) throws IOException {
+    HttpServer newServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    newServer.setExecutor(serverExecutor);
+    newServer.createContext("/", handler);
+    newServer.start();
+    return newServer;
+  }
+
+  private static URI url(HttpServer server, String path) {
+    return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+  }
+}
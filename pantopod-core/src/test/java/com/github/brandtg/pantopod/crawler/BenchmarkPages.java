@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Pages for the crawler benchmarks: the files under a directory (e.g. a crawl's outputDir with an uncompressed
+ * handler), or generated ones.
+ */
+class BenchmarkPages {
+  private static final int[] GENERATED_SIZES = { 10 * 1024, 100 * 1024, 1024 * 1024 };
+
+  private BenchmarkPages() {}
+
+  /**
+   * Returns the pages under dir, or generated ones of a few sizes if dir is null.
+   */
+  static List<byte[]> load(String dir) throws IOException {
+    List<byte[]> pages = new ArrayList<>();
+    if (dir == null) {
+      Random random = new Random(0);
+      for (int size : GENERATED_SIZES) {
+        pages.add(generate(size, random));
+      }
+      return pages;
+    }
+
+    Collection<File> files = FileUtils.listFiles(new File(dir), null, true);
+    for (File file : files) {
+      if (file.length() > 0) {
+        pages.add(FileUtils.readFileToByteArray(file));
+      }
+    }
+    if (pages.isEmpty()) {
+      throw new IllegalArgumentException("No pages under " + dir);
+    }
+    return pages;
+  }
+
+  static long totalBytes(List<byte[]> pages) {
+    long numBytes = 0;
+    for (byte[] page : pages) {
+      numBytes += page.length;
+    }
+    return numBytes;
+  }
+
+  /**
+   * Returns a forum-like page of about numBytes: a head with a script and a style, then posts with text and links.
+   */
+  private static byte[] generate(int numBytes, Random random) {
+    StringBuilder page = new StringBuilder(numBytes + 1024);
+    page.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Board index</title>\n")
+        .append("<script type=\"text/javascript\">var threads = [];</script>\n")
+        .append("<style>.post { margin: 0 } a.user { color: #333 }</style></head>\n<body><div id=\"main\">\n");
+    int post = 0;
+    while (page.length() < numBytes) {
+      page.append("<div class=\"post\" id=\"p").append(post).append("\"><table><tr><td class=\"author\">")
+          .append("<a class=\"user\" href=\"/member/").append(random.nextInt(10000)).append("\">user</a></td>")
+          .append("<td class=\"body\"><p>");
+      for (int i = 0; i < 40; i++) {
+        page.append("lorem ipsum ").append(random.nextInt(1000)).append(' ');
+      }
+      page.append("<a href=\"/thread/").append(random.nextInt(100000)).append("?page=").append(random.nextInt(20))
+          .append("&amp;sort=date\">more</a></p><!-- post ").append(post).append(" --></td></tr></table></div>\n");
+      post++;
+    }
+    page.append("</div></body></html>\n");
+    return page.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
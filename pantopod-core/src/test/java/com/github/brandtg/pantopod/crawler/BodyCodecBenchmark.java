@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Measures the compression and decompression throughput of each body codec, and the storage it saves.
+ *
+ * <p>
+ *   Run with
+ *   {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.github.brandtg.pantopod.crawler.BodyCodecBenchmark [-Dexec.args="iterations pageDir"]}
+ *   where pageDir holds uncompressed pages of one site (by default, generated pages of 10 KB, 100 KB and 1 MB).
+ *   deflate+dict trains a dictionary from the first pages, as bodyDictionarySamples does.
+ * </p>
+ */
+public class BodyCodecBenchmark {
+  private static final String AUTHORITY = "example.onion";
+  private static final int DEFAULT_ITERATIONS = 20;
+  private static final int DICTIONARY_SAMPLES = 16;
+  private static final int DICTIONARY_BYTES = 32 * 1024;
+
+  // Keeps the results live, so the work is not optimized away
+  private static volatile long sink;
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+    List<byte[]> pages = BenchmarkPages.load(args.length > 1 ? args[1] : null);
+
+    System.out.printf("%d pages, %d bytes%n", pages.size(), BenchmarkPages.totalBytes(pages));
+    System.out.printf("%-13s %14s %14s %14s %8s%n", "codec", "compress MB/s", "decomp. MB/s", "stored bytes", "ratio");
+    for (BodyCodec codec : BodyCodec.values()) {
+      run(codec.name().toLowerCase(), new BodyCompressor(codec), pages, iterations);
+    }
+
+    File dictionaryDir = Files.createTempDirectory("body-codec-benchmark").toFile();
+    try {
+      BodyCompressor compressor = new BodyCompressor(
+          BodyCodec.DEFLATE, new FileBodyDictionaryStore(dictionaryDir), DICTIONARY_SAMPLES, DICTIONARY_BYTES);
+      // Trains the dictionary
+      for (int i = 0; i <= DICTIONARY_SAMPLES / pages.size(); i++) {
+        compressAll(compressor, pages);
+      }
+      run("deflate+dict", compressor, pages, iterations);
+    } finally {
+      FileUtils.deleteQuietly(dictionaryDir);
+    }
+  }
+
+  private static void run(String name, BodyCompressor compressor, List<byte[]> pages, int iterations)
+      throws Exception {
+    byte[][] stored = compressAll(compressor, pages);
+    long numStoredBytes = 0;
+    for (byte[] body : stored) {
+      numStoredBytes += body.length;
+    }
+
+    // Warm up, then measure
+    for (int i = 0; i < iterations; i++) {
+      sink += compressAll(compressor, pages).length + decompressAll(compressor, stored);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      sink += compressAll(compressor, pages).length;
+    }
+    long compressNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      sink += decompressAll(compressor, stored);
+    }
+    long decompressNanos = System.nanoTime() - start;
+
+    long numBytes = BenchmarkPages.totalBytes(pages);
+    double mb = (double) numBytes * iterations / (1024 * 1024);
+    System.out.printf("%-13s %14.1f %14.1f %14d %8.2f%n",
+        name, mb / (compressNanos / 1e9), mb / (decompressNanos / 1e9), numStoredBytes,
+        (double) numBytes / numStoredBytes);
+  }
+
+  private static byte[][] compressAll(BodyCompressor compressor, List<byte[]> pages) throws Exception {
+    byte[][] stored = new byte[pages.size()][];
+    for (int i = 0; i < stored.length; i++) {
+      stored[i] = compressor.compress(AUTHORITY, pages.get(i));
+    }
+    return stored;
+  }
+
+  private static long decompressAll(BodyCompressor compressor, byte[][] stored) throws Exception {
+    long numBytes = 0;
+    for (byte[] body : stored) {
+      numBytes += compressor.decompress(body).length;
+    }
+    return numBytes;
+  }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.google.common.base.Charsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BodyCompressorTest {
+  private static final String AUTHORITY = "example.onion";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    byte[] page = page(0);
+    for (BodyCodec codec : BodyCodec.values()) {
+      BodyCompressor compressor = new BodyCompressor(codec);
+      byte[] stored = compressor.compress(AUTHORITY, page);
+      if (codec == BodyCodec.NONE) {
+        assertSame(page, stored);
+      } else {
+        assertEquals(BodyCompressor.MAGIC, stored[0]);
+        assertEquals(codec.getId(), stored[1]);
+        assertTrue(codec + " " + stored.length, stored.length < page.length);
+      }
+      assertArrayEquals(codec.toString(), page, compressor.decompress(stored));
+    }
+  }
+
+  @Test
+  public void testReadsAnyCodec() throws Exception {
+    byte[] page = page(0);
+    BodyCompressor reader = new BodyCompressor(BodyCodec.NONE);
+    for (BodyCodec codec : BodyCodec.values()) {
+      assertArrayEquals(codec.toString(), page, reader.decompress(new BodyCompressor(codec).compress(AUTHORITY, page)));
+    }
+  }
+
+  @Test
+  public void testLegacyBody() throws Exception {
+    BodyCompressor compressor = new BodyCompressor(BodyCodec.DEFLATE);
+
+    // Stored before codecs existed
+    byte[] page = page(0);
+    assertSame(page, compressor.decompress(page));
+    byte[] empty = new byte[0];
+    assertSame(empty, compressor.decompress(empty));
+
+    // Happens to start with the magic byte, but no codec id
+    byte[] magic = {BodyCompressor.MAGIC, 0x7F, 'x'};
+    assertSame(magic, compressor.decompress(magic));
+  }
+
+  @Test
+  public void testIncompressibleBody() throws Exception {
+    byte[] random = new byte[4096];
+    new Random(0).nextBytes(random);
+    BodyCompressor compressor = new BodyCompressor(BodyCodec.DEFLATE);
+    assertSame(random, compressor.compress(AUTHORITY, random));
+    assertSame(random, compressor.decompress(random));
+
+    // Framed, so it is not mistaken for a compressed body
+    random[0] = BodyCompressor.MAGIC;
+    random[1] = BodyCodec.GZIP.getId();
+    byte[] stored = compressor.compress(AUTHORITY, random);
+    assertEquals(random.length + 2, stored.length);
+    assertArrayEquals(random, compressor.decompress(stored));
+  }
+
+  @Test
+  public void testDictionary() throws Exception {
+    BodyDictionaryStore store = new FileBodyDictionaryStore(tmp.newFolder());
+    BodyCompressor compressor = new BodyCompressor(BodyCodec.DEFLATE, store, 3, 16 * 1024);
+
+    // Samples are compressed without one
+    for (int i = 0; i < 3; i++) {
+      byte[] stored = compressor.compress(AUTHORITY, page(i));
+      assertEquals(BodyCodec.DEFLATE.getId(), stored[1]);
+      assertArrayEquals(page(i), compressor.decompress(stored));
+    }
+    assertNotNull(store.getForAuthority(AUTHORITY));
+
+    byte[] page = page(3);
+    byte[] stored = compressor.compress(AUTHORITY, page);
+    byte[] withoutDictionary = new BodyCompressor(BodyCodec.DEFLATE).compress(AUTHORITY, page);
+    assertEquals(BodyCodec.DEFLATE.getId() | 0x80, stored[1] & 0xFF);
+    assertTrue(stored.length + " / " + withoutDictionary.length, stored.length < withoutDictionary.length);
+    assertArrayEquals(page, compressor.decompress(stored));
+
+    // Another node reads it from the store, and compresses with the same one
+    BodyCompressor other = new BodyCompressor(BodyCodec.DEFLATE, store, 3, 16 * 1024);
+    assertArrayEquals(page, other.decompress(stored));
+    assertArrayEquals(stored, other.compress(AUTHORITY, page));
+
+    // Other authorities are sampled separately
+    assertEquals(BodyCodec.DEFLATE.getId(), other.compress("other.onion", page)[1]);
+
+    try {
+      new BodyCompressor(BodyCodec.DEFLATE).decompress(stored);
+      fail("Read without the dictionary");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testTrainDictionary() {
+    byte[] dictionary = BodyCompressor.trainDictionary(Arrays.asList(page(0), page(1), page(2)), 64);
+    assertNotNull(dictionary);
+    assertTrue(dictionary.length <= 64);
+    String chunks = new String(dictionary, Charsets.ISO_8859_1);
+    // Only markup all pages share, most bytes saved last
+    assertTrue(chunks, chunks.endsWith("<script type=\"text/javascript\" src=\"/static/js/site.js\">"));
+    assertFalse(chunks, chunks.contains("Page"));
+
+    byte[] a = "<p>aaaaaaaaaa</p>".getBytes(Charsets.UTF_8);
+    byte[] b = "<p>bbbbbbbbbb</p>".getBytes(Charsets.UTF_8);
+    assertNull(BodyCompressor.trainDictionary(Arrays.asList(a, b), 64));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDictionaryNeedsDeflate() {
+    new BodyCompressor(BodyCodec.GZIP, new FileBodyDictionaryStore(tmp.getRoot()), 3, 1024);
+  }
+
+  /**
+   * Returns a page of a site, with the same markup around different text.
+   */
+  private static byte[] page(int n) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<!DOCTYPE html>\n<html><head><title>Page ").append(n).append("</title>\n");
+    sb.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"/static/css/site.css\">\n");
+    sb.append("<script type=\"text/javascript\" src=\"/static/js/site.js\"></script>\n</head><body>\n");
+    sb.append("<div class=\"navigation-menu\">");
+    for (String item : new String[] {"home", "forum", "market", "about", "contact"}) {
+      sb.append("<a class=\"navigation-item\" href=\"/").append(item).append("\">").append(item).append("</a>\n");
+    }
+    sb.append("</div>\n<div class=\"content\">\n");
+    Random random = new Random(n);
+    for (int i = 0; i < 20; i++) {
+      sb.append("<p>");
+      for (int j = 0; j < 12; j++) {
+        sb.append(Integer.toString(random.nextInt(Integer.MAX_VALUE), 36)).append(' ');
+      }
+      sb.append("</p>\n");
+    }
+    sb.append("</div>\n<div class=\"footer\">Copyright (C) example.onion, all rights reserved</div>\n</body></html>\n");
+    return sb.toString().getBytes(Charsets.UTF_8);
+  }
+}
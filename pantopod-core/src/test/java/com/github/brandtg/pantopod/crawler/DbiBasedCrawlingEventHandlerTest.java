@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.brandtg.pantopod.api.CrawlEvent;
+import com.github.brandtg.pantopod.consumer.CrawlEventSink;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Crawls pages from a local server into an {@link InMemoryDatabase}.
+ */
+public class DbiBasedCrawlingEventHandlerTest {
+  private static final long HOUR_MILLIS = 3600000;
+  private static final String ETAG = "\"v1\"";
+  private static final byte[] PAGE = "<html><body><a href=\"/child\">child</a></body></html>"
+      .getBytes(StandardCharsets.UTF_8);
+
+  private HttpServer server;
+  private List<String> conditions;
+  private InMemoryDatabase db;
+  private DbiBasedCrawlingEventHandler handler;
+
+  @Before
+  public void before() throws Exception {
+    conditions = Collections.synchronizedList(new ArrayList<String>());
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestURI().getPath().equals("/busy")) {
+          exchange.sendResponseHeaders(429, -1);
+          exchange.close();
+          return;
+        }
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        conditions.add(String.valueOf(ifNoneMatch));
+        exchange.getResponseHeaders().add("ETag", ETAG);
+        exchange.getResponseHeaders().add("Content-Type", "text/html");
+        if (ETAG.equals(ifNoneMatch)) {
+          exchange.sendResponseHeaders(304, -1);
+        } else {
+          exchange.sendResponseHeaders(200, PAGE.length);
+          try (OutputStream os = exchange.getResponseBody()) {
+            os.write(PAGE);
+          }
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+
+    db = new InMemoryDatabase();
+    handler = new DbiBasedCrawlingEventHandler(HttpClients.createDefault(), db.getDbi());
+  }
+
+  @After
+  public void after() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testHasError() throws Exception {
+    URI page = url("/page");
+    URI error = url("/error");
+    handler.handle(event(page));
+    handler.markError(error, 404);
+
+    assertFalse(handler.hasError(page));
+    assertTrue(handler.hasError(error));
+    assertFalse(handler.hasError(url("/other")));
+  }
+
+  @Test
+  public void testRecrawl() throws Exception {
+    handler.setDefaultRecrawlIntervalMillis(1);
+    URI page = url("/page");
+
+    Set<CrawlEvent> first = handler.handle(event(page));
+    assertEquals(Collections.singleton(url("/child").toString()), urls(first));
+    long firstFetchTime = handler.getValidators(page).getFetchTime();
+
+    // Stale, so fetched again conditionally, and its links are followed from the stored copy
+    Thread.sleep(10);
+    Set<CrawlEvent> second = handler.handle(event(page));
+    assertEquals(Arrays.asList("null", ETAG), conditions);
+    assertEquals(Collections.singleton(url("/child").toString()), urls(second));
+    assertTrue(handler.getValidators(page).getFetchTime() > firstFetchTime);
+    assertEquals(ETAG, handler.getValidators(page).getEtag());
+  }
+
+  @Test
+  public void testRevisit() throws Exception {
+    URI page = url("/page");
+    String resource = page.getAuthority();
+    final List<CrawlEvent> sent = new ArrayList<>();
+    RevisitScheduler revisits = new RevisitScheduler(1000, HOUR_MILLIS, 10, 3600000, 1000, 100, null, null,
+        new MetricRegistry());
+    revisits.setSink(new CrawlEventSink() {
+      @Override
+      public boolean send(String kafkaTopic, Set<CrawlEvent> events) {
+        sent.addAll(events);
+        return true;
+      }
+    });
+    revisits.assign(resource, 1, Collections.singletonList(0));
+    handler.setRevisitScheduler(revisits);
+
+    handler.handle(event(page));
+    Thread.sleep(20);
+    long now = System.currentTimeMillis();
+    RevisitScheduler.ResourceSchedule schedule = revisits.getSchedule(resource, page.toString());
+    revisits.sendDue(schedule, now);
+    revisits.sendDue(schedule, now + 1000);
+    assertEquals(1, sent.size());
+    assertTrue(sent.get(0).isRevisit());
+    assertEquals(now + 1000 + HOUR_MILLIS, revisits.getNextVisitTime(resource, page.toString()));
+
+    // Unchanged, so the page is rescheduled from its estimate rather than left parked
+    long revisitTime = System.currentTimeMillis();
+    assertTrue(handler.handle(sent.get(0)).isEmpty());
+    assertEquals(Arrays.asList("null", ETAG), conditions);
+    long nextVisitTime = revisits.getNextVisitTime(resource, page.toString());
+    assertTrue(nextVisitTime >= revisitTime + 2000);
+    assertTrue(nextVisitTime < now + HOUR_MILLIS);
+  }
+
+  @Test
+  public void testThrottledAttempts() throws Exception {
+    handler.setPolitenessController(new PolitenessController(1, 1, 0, 0, 3.0, null, new MetricRegistry()), 3);
+    URI busy = url("/busy");
+
+    // Re-enqueued with its attempt incremented, then an error once out of attempts
+    CrawlEvent event = event(busy);
+    for (int attempt = 1; attempt < 3; attempt++) {
+      Set<CrawlEvent> next = handler.handle(event);
+      assertEquals(1, next.size());
+      event = next.iterator().next();
+      assertEquals(attempt, event.getAttempt());
+      assertFalse(handler.hasError(busy));
+    }
+    assertTrue(handler.handle(event).isEmpty());
+    assertTrue(handler.hasError(busy));
+  }
+
+  private URI url(String path) {
+    return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+  }
+
+  private static CrawlEvent event(URI url) {
+    CrawlEvent event = new CrawlEvent();
+    event.setUrl(url.toString());
+    return event;
+  }
+
+  private static Set<String> urls(Set<CrawlEvent> events) {
+    Set<String> urls = new HashSet<>();
+    for (CrawlEvent event : events) {
+      urls.add(event.getUrl());
+    }
+    return urls;
+  }
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link DBI} over tables kept in memory, which understands the few MySQL statements the handlers use: CREATE TABLE
+ * with a primary key, INSERT [IGNORE] with ON DUPLICATE KEY UPDATE, and SELECT of columns or COUNT(*) from one table
+ * where columns equal parameters or are (not) null. Transactions are not isolated.
+ */
+class InMemoryDatabase {
+  private static final Pattern CREATE = Pattern.compile(
+      "CREATE TABLE IF NOT EXISTS (\\w+) \\((.*)PRIMARY KEY\\(([^)]*)\\)\\)");
+  private static final Pattern INSERT = Pattern.compile(
+      "INSERT (IGNORE )?INTO (\\w+) \\(([^)]*)\\) VALUES \\(([^)]*)\\)(?: ON DUPLICATE KEY UPDATE (.*))?");
+  private static final Pattern ASSIGNMENT = Pattern.compile("(\\w+) = (?:VALUES\\((\\w+)\\)|(NULL))");
+  private static final Pattern SELECT = Pattern.compile("SELECT (.*) FROM (\\w+) WHERE (.*)");
+  private static final Pattern CONDITION = Pattern.compile("(\\w+) (?:= \\?|IS (NOT )?NULL)");
+
+  private final Map<String, Table> tables = new HashMap<>();
+
+  DBI getDbi() {
+    return new DBI(new ConnectionFactory() {
+      @Override
+      public Connection openConnection() {
+        return proxy(Connection.class, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("prepareStatement")) {
+              return prepare((String) args[0]);
+            } else if (method.getName().equals("getAutoCommit")) {
+              return true;
+            }
+            return defaultValue(method);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Returns the row of table whose primary key is key, or null if there is none.
+   */
+  synchronized Map<String, Object> getRow(String table, Object... key) {
+    return tables.get(table).rows.get(toKey(Arrays.asList(key)));
+  }
+
+  private PreparedStatement prepare(final String sql) {
+    final Map<Integer, Object> params = new HashMap<>();
+    final Object[] result = new Object[1];
+    return proxy(PreparedStatement.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+        String name = method.getName();
+        if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+          params.put((Integer) args[0], name.equals("setNull") ? null : args[1]);
+          return null;
+        } else if (name.equals("execute")) {
+          result[0] = execute(sql, params);
+          return result[0] instanceof ResultSet;
+        } else if (name.equals("getResultSet")) {
+          return result[0] instanceof ResultSet ? result[0] : null;
+        } else if (name.equals("getUpdateCount")) {
+          return result[0] instanceof Integer ? result[0] : -1;
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  private synchronized Object execute(String sql, Map<Integer, Object> params) throws SQLException {
+    String statement = sql.replace("`", "").replaceAll("\\s+", " ").trim();
+    Matcher m;
+    if ((m = CREATE.matcher(statement)).matches()) {
+      if (!tables.containsKey(m.group(1))) {
+        tables.put(m.group(1), new Table(split(m.group(3))));
+      }
+      return 0;
+    } else if ((m = INSERT.matcher(statement)).matches()) {
+      return insert(getTable(m.group(2)), split(m.group(3)), params, m.group(1) != null, m.group(5));
+    } else if ((m = SELECT.matcher(statement)).matches()) {
+      return select(getTable(m.group(2)), m.group(1), m.group(3), params);
+    }
+    throw new SQLException("Unsupported statement " + sql);
+  }
+
+  private int insert(Table table, List<String> columns, Map<Integer, Object> params, boolean ignore, String update)
+      throws SQLException {
+    Map<String, Object> values = new LinkedHashMap<>();
+    for (int i = 0; i < columns.size(); i++) {
+      values.put(columns.get(i), params.get(i + 1));
+    }
+    List<Object> keyValues = new ArrayList<>();
+    for (String column : table.primaryKey) {
+      keyValues.add(values.get(column));
+    }
+    Object key = toKey(keyValues);
+
+    Map<String, Object> row = table.rows.get(key);
+    if (row == null) {
+      table.rows.put(key, values);
+      return 1;
+    } else if (update != null) {
+      Matcher m = ASSIGNMENT.matcher(update);
+      while (m.find()) {
+        row.put(m.group(1), m.group(3) == null ? values.get(m.group(2)) : null);
+      }
+      return 2;
+    } else if (ignore) {
+      return 0;
+    }
+    throw new SQLIntegrityConstraintViolationException("Duplicate entry " + keyValues);
+  }
+
+  private ResultSet select(Table table, String selected, String where, Map<Integer, Object> params) {
+    List<Map<String, Object>> matching = new ArrayList<>();
+    for (Map<String, Object> row : table.rows.values()) {
+      Matcher m = CONDITION.matcher(where);
+      int param = 1;
+      boolean matches = true;
+      while (m.find()) {
+        Object value = row.get(m.group(1));
+        if (m.group(0).endsWith("?")) {
+          matches &= toKey(Arrays.asList(value)).equals(toKey(Arrays.asList(params.get(param++))));
+        } else {
+          matches &= (value != null) == (m.group(2) != null);
+        }
+      }
+      if (matches) {
+        matching.add(row);
+      }
+    }
+
+    final List<String> columns = split(selected);
+    final List<Object[]> rows = new ArrayList<>();
+    if (columns.equals(Arrays.asList("COUNT(*)"))) {
+      rows.add(new Object[] {matching.size()});
+    } else {
+      for (Map<String, Object> row : matching) {
+        Object[] values = new Object[columns.size()];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = row.get(columns.get(i));
+        }
+        rows.add(values);
+      }
+    }
+    return resultSet(columns, rows);
+  }
+
+  private static ResultSet resultSet(final List<String> columns, final List<Object[]> rows) {
+    final int[] position = {-1};
+    final Object[] last = new Object[1];
+    return proxy(ResultSet.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("next")) {
+          return ++position[0] < rows.size();
+        } else if (name.equals("wasNull")) {
+          return last[0] == null;
+        } else if (name.startsWith("get") && args != null && args.length == 1) {
+          int index = args[0] instanceof Integer ? (Integer) args[0] - 1 : columns.indexOf(args[0]);
+          last[0] = rows.get(position[0])[index];
+          return convert(last[0], method.getReturnType());
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  private static Object convert(Object value, Class<?> type) {
+    if (type == int.class) {
+      return value == null ? 0 : ((Number) value).intValue();
+    } else if (type == long.class) {
+      return value == null ? 0L : ((Number) value).longValue();
+    } else if (type == boolean.class) {
+      return value != null && ((Number) value).intValue() != 0;
+    } else if (type == String.class) {
+      return value == null ? null : value.toString();
+    }
+    return value;
+  }
+
+  private Table getTable(String name) throws SQLException {
+    Table table = tables.get(name);
+    if (table == null) {
+      throw new SQLException("No table " + name);
+    }
+    return table;
+  }
+
+  /**
+   * Returns values in a form that is equal for equal byte arrays.
+   */
+  private static Object toKey(List<Object> values) {
+    List<Object> key = new ArrayList<>();
+    for (Object value : values) {
+      key.add(value instanceof byte[] ? ByteBuffer.wrap((byte[]) value) : value);
+    }
+    return key;
+  }
+
+  private static List<String> split(String list) {
+    List<String> items = new ArrayList<>();
+    for (String item : list.split(",")) {
+      if (!item.trim().isEmpty()) {
+        items.add(item.trim());
+      }
+    }
+    return items;
+  }
+
+  private static Object defaultValue(Method method) {
+    Class<?> type = method.getReturnType();
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(InMemoryDatabase.class.getClassLoader(), new Class<?>[] {type}, handler);
+  }
+
+  private static class Table {
+    private final List<String> primaryKey;
+    private final Map<Object, Map<String, Object>> rows = new LinkedHashMap<>();
+
+    Table(List<String> primaryKey) {
+      this.primaryKey = primaryKey;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Measures the time and allocation per page of the Jsoup and streaming link extractors.
+ *
+ * <p>
+ *   Run with
+ *   {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.github.brandtg.pantopod.crawler.LinkExtractorBenchmark [-Dexec.args="iterations pageDir"]}
+ *   where pageDir holds uncompressed pages (by default, generated pages of 10 KB, 100 KB and 1 MB).
+ * </p>
+ */
+public class LinkExtractorBenchmark {
+  private static final URI URL = URI.create("http://example.onion/forum/index.html");
+  private static final int DEFAULT_ITERATIONS = 50;
+
+  // Keeps the results live, so the work is not optimized away
+  private static volatile long sink;
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+    List<byte[]> pages = BenchmarkPages.load(args.length > 1 ? args[1] : null);
+
+    System.out.printf("%d pages, %d bytes%n", pages.size(), BenchmarkPages.totalBytes(pages));
+    System.out.printf("%-10s %10s %14s %8s%n", "extractor", "us/page", "bytes/page", "links");
+    run("jsoup", new JsoupLinkExtractor(), pages, iterations);
+    run("streaming", new StreamingLinkExtractor(), pages, iterations);
+  }
+
+  private static void run(String name, LinkExtractor extractor, List<byte[]> pages, int iterations)
+      throws Exception {
+    // Warm up, then measure
+    for (int i = 0; i < iterations; i++) {
+      sink += extractAll(extractor, pages);
+    }
+    long startBytes = allocatedBytes();
+    long start = System.nanoTime();
+    long numLinks = 0;
+    for (int i = 0; i < iterations; i++) {
+      numLinks += extractAll(extractor, pages);
+    }
+    long nanos = System.nanoTime() - start;
+    long numBytes = allocatedBytes() - startBytes;
+    sink += numLinks;
+
+    long numPages = (long) iterations * pages.size();
+    System.out.printf("%-10s %10.1f %14d %8d%n",
+        name, nanos / 1000.0 / numPages, numBytes / numPages, numLinks / numPages);
+  }
+
+  private static long extractAll(LinkExtractor extractor, List<byte[]> pages) throws Exception {
+    long numLinks = 0;
+    for (byte[] page : pages) {
+      numLinks += extractor.extractLinks(URL, page, StandardCharsets.UTF_8).size();
+    }
+    return numLinks;
+  }
+
+  /**
+   * Returns the bytes allocated by this thread so far, on JVMs that count them (HotSpot), or -1.
+   */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
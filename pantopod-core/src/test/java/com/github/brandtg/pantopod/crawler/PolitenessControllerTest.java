@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PolitenessControllerTest {
+  private static final String AUTHORITY = "test.onion";
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void before() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @After
+  public void after() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testAsyncWaitsForRelease() throws Exception {
+    PolitenessController controller = new PolitenessController(1, 1, 0, 1000, 3.0, scheduler, new MetricRegistry());
+    ListenableFuture<PolitenessController.Permit> first = controller.acquireAsync(AUTHORITY);
+    ListenableFuture<PolitenessController.Permit> second = controller.acquireAsync(AUTHORITY);
+    assertTrue(first.isDone());
+    assertFalse(second.isDone());
+
+    first.get().release(response(200));
+    second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).release(response(200));
+  }
+
+  @Test
+  public void testAsyncWaitsForDelay() throws Exception {
+    PolitenessController controller = new PolitenessController(4, 4, 0, 1000, 3.0, scheduler, new MetricRegistry());
+    controller.acquireAsync(AUTHORITY).get().release(response(429));
+
+    // Throttled, so the next requests are spaced out, on the scheduler rather than a waiting thread
+    long start = System.currentTimeMillis();
+    assertTrue(controller.acquireAsync(AUTHORITY).isDone());
+    ListenableFuture<PolitenessController.Permit> permit = controller.acquireAsync(AUTHORITY);
+    assertFalse(permit.isDone());
+    permit.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    assertTrue(System.currentTimeMillis() - start >= 50);
+  }
+
+  @Test
+  public void testBaselineDrifts() throws Exception {
+    PolitenessController controller = new PolitenessController(4, 8, 0, 1000, 3.0, scheduler, new MetricRegistry());
+    PolitenessController.AuthorityState state = controller.getState(AUTHORITY);
+    state.acquire();
+    state.releaseCompleted(1);
+
+    // Much slower than the first response, so the limit is cut, but recovers as the baseline follows
+    for (int i = 0; i < 300; i++) {
+      state.acquire();
+      state.releaseCompleted(100);
+    }
+    assertEquals(8, state.getLimit());
+  }
+
+  @Test
+  public void testOtherStatusesIgnored() throws Exception {
+    PolitenessController controller = new PolitenessController(2, 8, 0, 1000, 3.0, scheduler, new MetricRegistry());
+    for (int i = 0; i < 10; i++) {
+      controller.acquire(AUTHORITY).release(response(404));
+    }
+    assertEquals(2, controller.getState(AUTHORITY).getLimit());
+  }
+
+  private static HttpResponse response(int statusCode) {
+    return new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, null);
+  }
+}
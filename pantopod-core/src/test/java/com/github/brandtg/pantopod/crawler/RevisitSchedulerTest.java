@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.brandtg.pantopod.api.CrawlEvent;
+import com.github.brandtg.pantopod.consumer.CrawlEventSink;
+import com.github.brandtg.pantopod.consumer.UrlPartitioner;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RevisitSchedulerTest {
+  private static final String RESOURCE = "a.onion";
+  private static final int NUM_PARTITIONS = 4;
+  private static final long HOUR_MILLIS = 3600000;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File dir;
+
+  @Before
+  public void before() throws Exception {
+    dir = tmp.newFolder();
+  }
+
+  @Test
+  public void testOnlyOwnedPartitions() throws Exception {
+    RevisitScheduler scheduler = scheduler(1000, 1000, null);
+    scheduler.assign(RESOURCE, NUM_PARTITIONS, Arrays.asList(0, 1));
+    for (int i = 0; i < 100; i++) {
+      scheduler.recordFetch(RESOURCE, event(i), null, 0);
+    }
+    for (int i = 0; i < 100; i++) {
+      String url = event(i).getUrl();
+      assertEquals(url, partition(url) < 2 ? 10 : -1, scheduler.getNextVisitTime(RESOURCE, url));
+    }
+  }
+
+  @Test
+  public void testMaxUrls() throws Exception {
+    RevisitScheduler scheduler = scheduler(1000, 5, null);
+    scheduler.assign(RESOURCE, 1, Collections.singletonList(0));
+    for (int i = 0; i < 10; i++) {
+      scheduler.recordFetch(RESOURCE, event(i), null, 0);
+    }
+    int numTracked = 0;
+    for (int i = 0; i < 10; i++) {
+      if (scheduler.getNextVisitTime(RESOURCE, event(i).getUrl()) >= 0) {
+        numTracked++;
+      }
+    }
+    assertEquals(5, numTracked);
+
+    // Tracked pages are still updated
+    scheduler.recordFetch(RESOURCE, event(0), false, 5000);
+    assertEquals(5000 + 10000, scheduler.getNextVisitTime(RESOURCE, event(0).getUrl()));
+  }
+
+  @Test
+  public void testMovesWithPartition() throws Exception {
+    RevisitScheduler first = scheduler(1000, 1000, dir);
+    first.assign(RESOURCE, NUM_PARTITIONS, Arrays.asList(0, 1, 2, 3));
+    for (int i = 0; i < 100; i++) {
+      first.recordFetch(RESOURCE, event(i), null, i);
+    }
+    first.revoke(RESOURCE, Collections.singletonList(3));
+    assertTrue(new File(dir, RESOURCE + "-3.revisit").exists());
+
+    // Another node (sharing the directory) takes partition 3 over
+    RevisitScheduler second = scheduler(1000, 1000, dir);
+    second.assign(RESOURCE, NUM_PARTITIONS, Collections.singletonList(3));
+    for (int i = 0; i < 100; i++) {
+      String url = event(i).getUrl();
+      boolean moved = partition(url) == 3;
+      assertEquals(url, moved ? -1 : i + 10, first.getNextVisitTime(RESOURCE, url));
+      assertEquals(url, moved ? i + 10 : -1, second.getNextVisitTime(RESOURCE, url));
+    }
+  }
+
+  @Test
+  public void testBudgetShare() throws Exception {
+    final List<CrawlEvent> sent = new ArrayList<>();
+    RevisitScheduler scheduler = new RevisitScheduler(
+        1000, HOUR_MILLIS, 10, 4000, HOUR_MILLIS, 10000, null, null, new MetricRegistry());
+    scheduler.setSink(new CrawlEventSink() {
+      @Override
+      public boolean send(String kafkaTopic, Set<CrawlEvent> events) {
+        sent.addAll(events);
+        return true;
+      }
+    });
+    scheduler.assign(RESOURCE, NUM_PARTITIONS, Collections.singletonList(0));
+    List<String> urls = new ArrayList<>();
+    for (int i = 0; urls.size() < 2000; i++) {
+      if (partition(event(i).getUrl()) == 0) {
+        scheduler.recordFetch(RESOURCE, event(i), null, 0);
+        urls.add(event(i).getUrl());
+      }
+    }
+
+    // The partition is one of four, so it gets a quarter of the budget
+    RevisitScheduler.ResourceSchedule schedule = scheduler.getSchedule(RESOURCE, urls.get(0));
+    scheduler.sendDue(schedule, HOUR_MILLIS);
+    scheduler.sendDue(schedule, 2 * HOUR_MILLIS);
+    assertEquals(1000, sent.size());
+  }
+
+  private static RevisitScheduler scheduler(long minIntervalMillis, int maxUrls, File dir) {
+    return new RevisitScheduler(
+        minIntervalMillis, HOUR_MILLIS, 10, 1000, 1000, maxUrls, dir, null, new MetricRegistry());
+  }
+
+  private static CrawlEvent event(int i) {
+    CrawlEvent event = new CrawlEvent();
+    event.setUrl("http://" + RESOURCE + "/page/" + i);
+    return event;
+  }
+
+  private static int partition(String url) {
+    return UrlPartitioner.getPartition(url, NUM_PARTITIONS);
+  }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.brandtg.pantopod.consumer.UrlPartitioner;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeenUrlFilterManagerTest {
+  private static final int NUM_PARTITIONS = 4;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File dir;
+
+  @Before
+  public void before() throws Exception {
+    dir = tmp.newFolder();
+  }
+
+  @Test
+  public void testOnlyOwnedPartitions() throws Exception {
+    SeenUrlFilterManager manager = start(dir);
+    manager.assign("a.onion", NUM_PARTITIONS, Arrays.asList(0, 1));
+
+    for (int i = 0; i < 100; i++) {
+      manager.markSeen(url("a.onion", i));
+      manager.markSeen(url("b.onion", i));
+    }
+    for (int i = 0; i < 100; i++) {
+      URI url = url("a.onion", i);
+      assertEquals(url.toString(), partition(url) < 2, manager.isSeen(url));
+      assertFalse(manager.isSeen(url("b.onion", i)));
+    }
+    manager.stop();
+  }
+
+  @Test
+  public void testMovesWithPartition() throws Exception {
+    SeenUrlFilterManager first = start(dir);
+    first.assign("a.onion", NUM_PARTITIONS, Arrays.asList(0, 1, 2, 3));
+    for (int i = 0; i < 100; i++) {
+      first.markSeen(url("a.onion", i));
+    }
+    first.revoke("a.onion", Collections.singletonList(3));
+    assertTrue(new File(dir, "a.onion-3.seen").exists());
+
+    // Another node (sharing the directory) takes partition 3 over
+    SeenUrlFilterManager second = start(dir);
+    second.assign("a.onion", NUM_PARTITIONS, Collections.singletonList(3));
+    for (int i = 0; i < 100; i++) {
+      URI url = url("a.onion", i);
+      assertEquals(url.toString(), partition(url) == 3, second.isSeen(url));
+      assertEquals(url.toString(), partition(url) != 3, first.isSeen(url));
+    }
+    first.stop();
+    second.stop();
+  }
+
+  @Test
+  public void testReassignWithoutDirectory() throws Exception {
+    SeenUrlFilterManager manager = start(null);
+    manager.assign("a.onion", NUM_PARTITIONS, Arrays.asList(0, 1, 2, 3));
+    URI url = url("a.onion", 0);
+    manager.markSeen(url);
+    assertTrue(manager.isSeen(url));
+
+    manager.revoke("a.onion", Collections.singletonList(partition(url)));
+    manager.assign("a.onion", NUM_PARTITIONS, Collections.singletonList(partition(url)));
+    assertFalse(manager.isSeen(url));
+    manager.stop();
+  }
+
+  private static SeenUrlFilterManager start(File dir) throws Exception {
+    SeenUrlFilterManager manager = new SeenUrlFilterManager(1000, 0.001, 100000, dir, new MetricRegistry());
+    manager.start();
+    return manager;
+  }
+
+  private static URI url(String authority, int i) {
+    return URI.create("http://" + authority + "/page/" + i);
+  }
+
+  private static int partition(URI url) {
+    return UrlPartitioner.getPartition(url.toString(), NUM_PARTITIONS);
+  }
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.google.common.base.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentStoreTest {
+  private static final Header[] HEADERS = { new BasicHeader("Content-Type", "text/html") };
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File dir;
+
+  @Before
+  public void before() throws Exception {
+    dir = tmp.newFolder();
+  }
+
+  @Test
+  public void testReadWrite() throws Exception {
+    SegmentStore store = start(1024 * 1024);
+    assertTrue(store.appendData("http://a.onion/1", 200, HEADERS, body(1)));
+    assertFalse(store.appendData("http://a.onion/1", 200, HEADERS, body(2)));
+    assertTrue(store.appendError("http://a.onion/2", 404));
+    assertFalse(store.appendError("http://a.onion/1", 500));
+    assertTrue(store.appendExternalDomain("a.onion", "b.onion"));
+    assertFalse(store.appendExternalDomain("a.onion", "b.onion"));
+    store.appendValidators("http://a.onion/1", new PageValidators("\"etag\"", null, "hash", 1234));
+
+    assertArrayEquals(body(1), store.readData("http://a.onion/1"));
+    assertNull(store.readData("http://a.onion/2"));
+    assertNull(store.readData("http://a.onion/3"));
+    assertTrue(store.isError("http://a.onion/2"));
+    assertFalse(store.isError("http://a.onion/1"));
+    assertTrue(store.containsExternalDomain("a.onion", "b.onion"));
+    assertFalse(store.containsExternalDomain("b.onion", "a.onion"));
+    PageValidators validators = store.readValidators("http://a.onion/1");
+    assertEquals("\"etag\"", validators.getEtag());
+    assertNull(validators.getLastModified());
+    assertEquals("hash", validators.getContentHash());
+    assertEquals(1234, validators.getFetchTime());
+
+    store.replaceData("http://a.onion/1", 200, HEADERS, body(3));
+    assertArrayEquals(body(3), store.readData("http://a.onion/1"));
+    store.stop();
+  }
+
+  @Test
+  public void testLongStrings() throws Exception {
+    // Over the 64 KB of DataOutputStream.writeUTF
+    String path = repeat('p', 70000);
+    String url = "http://a.onion/" + path;
+    Header[] headers = { new BasicHeader("Link", repeat('l', 70000)) };
+    SegmentStore store = start(1024 * 1024);
+    assertTrue(store.appendData(url, 200, headers, body(1)));
+    store.appendValidators(url, new PageValidators(repeat('e', 70000), null, "hash", 1234));
+    assertTrue(store.appendSkipped(url + "/skipped", 200, "video/mp4", -1, repeat('r', 70000)));
+    assertTrue(store.appendExternalDomain("a.onion", repeat('b', 70000) + ".onion"));
+    assertArrayEquals(body(1), store.readData(url));
+
+    // Replayed on a dirty start
+    store = start(1024 * 1024);
+    assertArrayEquals(body(1), store.readData(url));
+    assertEquals(repeat('e', 70000), store.readValidators(url).getEtag());
+    assertTrue(store.isError(url + "/skipped"));
+    assertTrue(store.containsExternalDomain("a.onion", repeat('b', 70000) + ".onion"));
+    store.stop();
+  }
+
+  @Test
+  public void testCleanStart() throws Exception {
+    SegmentStore store = start(256);
+    fill(store, 10);
+    store.stop();
+    long[] lengths = segmentLengths();
+    assertTrue(lengths.length > 1);
+
+    store = start(256);
+    check(store, 10);
+    assertArrayEquals(lengths, segmentLengths());
+
+    // The external domains are not replayed from the segments
+    store.stop();
+    truncateSegment(0, 0);
+    store = start(256);
+    assertTrue(store.containsExternalDomain("a.onion", "b9.onion"));
+    store.stop();
+  }
+
+  @Test
+  public void testCleanStartWithoutExternalDomains() throws Exception {
+    SegmentStore store = start(256);
+    fill(store, 10);
+    store.stop();
+
+    // As stored before they were saved
+    assertTrue(new File(dir, "external-domains.tsv").delete());
+    store = start(256);
+    check(store, 10);
+    store.stop();
+  }
+
+  @Test
+  public void testDirtyStart() throws Exception {
+    SegmentStore store = start(256);
+    fill(store, 10);
+    // Not stopped, as if it crashed
+
+    store = start(256);
+    check(store, 10);
+    store.stop();
+  }
+
+  @Test
+  public void testTornRecord() throws Exception {
+    SegmentStore store = start(1024 * 1024);
+    fill(store, 10);
+    long length = segmentLengths()[0];
+    try (RandomAccessFile raf = new RandomAccessFile(segmentFile(0), "rw")) {
+      raf.seek(length);
+      raf.write(new byte[] {1, 0, 0, 1, 0, 'x'});
+    }
+
+    store = start(1024 * 1024);
+    assertEquals(length, segmentLengths()[0]);
+    check(store, 10);
+
+    // Appends after the last good record
+    assertTrue(store.appendData("http://a.onion/new", 200, null, body(100)));
+    store.stop();
+    store = start(1024 * 1024);
+    assertArrayEquals(body(100), store.readData("http://a.onion/new"));
+    store.stop();
+  }
+
+  @Test
+  public void testSkipped() throws Exception {
+    SegmentStore store = start(1024 * 1024);
+    assertTrue(store.appendSkipped("http://a.onion/1", 200, "image/png", 1234, "Content-Type image/png"));
+    assertFalse(store.appendSkipped("http://a.onion/1", 200, null, -1, "Content-Length 1234 over 100"));
+    assertTrue(store.isError("http://a.onion/1"));
+    assertNull(store.readData("http://a.onion/1"));
+
+    // Still an error after replaying it on a dirty start
+    store = start(1024 * 1024);
+    assertTrue(store.isError("http://a.onion/1"));
+    assertFalse(store.appendData("http://a.onion/1", 200, HEADERS, body(1)));
+    store.stop();
+  }
+
+  @Test
+  public void testCorruptRecord() throws Exception {
+    SegmentStore store = start(1024 * 1024);
+    fill(store, 10);
+    corrupt(0, body(5));
+
+    // Detected when read
+    try {
+      store.readData("http://a.onion/5");
+      fail("Read a corrupt record");
+    } catch (IOException e) {
+      // Expected
+    }
+
+    // And truncated at on a dirty start
+    store = start(1024 * 1024);
+    check(store, 5);
+    for (int i = 5; i < 10; i++) {
+      assertFalse(store.contains("http://a.onion/" + i));
+      assertFalse(store.containsExternalDomain("a.onion", "b" + i + ".onion"));
+    }
+    store.stop();
+  }
+
+  @Test
+  public void testCorruptRecordInEarlierSegment() throws Exception {
+    SegmentStore store = start(256);
+    fill(store, 10);
+    long[] lengths = segmentLengths();
+    corrupt(0, body(0));
+
+    store = start(256);
+    assertEquals(0, segmentLengths()[0]);
+    assertFalse(store.contains("http://a.onion/0"));
+    // Later segments are still read
+    assertEquals(lengths[lengths.length - 1], segmentLengths()[lengths.length - 1]);
+    assertArrayEquals(body(9), store.readData("http://a.onion/9"));
+    store.stop();
+  }
+
+  private SegmentStore start(long maxSegmentBytes) throws Exception {
+    SegmentStore store = new SegmentStore(dir, maxSegmentBytes, 16);
+    store.start();
+    return store;
+  }
+
+  private static void fill(SegmentStore store, int numPages) throws IOException {
+    for (int i = 0; i < numPages; i++) {
+      store.appendData("http://a.onion/" + i, 200, HEADERS, body(i));
+      store.appendExternalDomain("a.onion", "b" + i + ".onion");
+    }
+  }
+
+  private static void check(SegmentStore store, int numPages) throws IOException {
+    for (int i = 0; i < numPages; i++) {
+      assertArrayEquals(body(i), store.readData("http://a.onion/" + i));
+      assertTrue(store.containsExternalDomain("a.onion", "b" + i + ".onion"));
+    }
+  }
+
+  private static String repeat(char c, int n) {
+    char[] chars = new char[n];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  private static byte[] body(int n) {
+    return ("<html><body>Page number " + n + "</body></html>").getBytes(Charsets.UTF_8);
+  }
+
+  /**
+   * Flips a byte of the first occurrence of bytes in a segment.
+   */
+  private void corrupt(int segmentId, byte[] bytes) throws IOException {
+    byte[] segment = FileUtils.readFileToByteArray(segmentFile(segmentId));
+    for (int i = 0; i + bytes.length <= segment.length; i++) {
+      int j = 0;
+      while (j < bytes.length && segment[i + j] == bytes[j]) {
+        j++;
+      }
+      if (j == bytes.length) {
+        try (RandomAccessFile raf = new RandomAccessFile(segmentFile(segmentId), "rw")) {
+          raf.seek(i + bytes.length - 1);
+          raf.write(~bytes[bytes.length - 1]);
+        }
+        return;
+      }
+    }
+    fail("Not found in segment " + segmentId);
+  }
+
+  private void truncateSegment(int segmentId, long length) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(segmentFile(segmentId), "rw")) {
+      raf.setLength(length);
+    }
+  }
+
+  private long[] segmentLengths() {
+    long[] lengths = new long[dir.list().length];
+    int n = 0;
+    while (segmentFile(n).exists()) {
+      lengths[n] = segmentFile(n).length();
+      n++;
+    }
+    long[] result = new long[n];
+    System.arraycopy(lengths, 0, result, 0, n);
+    return result;
+  }
+
+  private File segmentFile(int segmentId) {
+    return new File(dir, String.format("segment-%08d.log", segmentId));
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link StreamingLinkExtractor} finds the same links as {@link JsoupLinkExtractor}.
+ */
+public class StreamingLinkExtractorTest {
+  private static final URI URL = URI.create("http://example.onion/dir/page.html");
+
+  private static final String[] PAGES = {
+      "<html><body><a href=\"a.html\">a</a> <A HREF='/b'>b</A> <a href=c?x=1&amp;y=2>c</a></body></html>",
+      "<a>no href</a><a href=\"\">empty</a><a href=\"#top\">fragment</a><a name=x href=\"?q\">query</a>",
+      "<head><base href=\"http://other.onion/base/\"></head><a href=\"rel\">rel</a><a href=\"/abs\">abs</a>",
+      "<!-- <a href=\"comment\"> --><!DOCTYPE html><?xml version=\"1.0\"?><a href=\"after\">after</a>",
+      "<script>var s = '<a href=\"script\">';</script><a href=\"x\">x</a>",
+      "<style>a { content: '<a href=\"style\">' }</style><textarea><a href=\"textarea\"></textarea>",
+      "<title><a href=\"title\"></title><a href=\"y\">y</a>",
+      "<head><noscript><a href=\"noscript-head\"></noscript></head><a href=\"z\">z</a>",
+      "<body><noscript><a href=\"noscript\">js off</a></noscript><a href=\"1\">1</a></body>",
+      "<noscript><a href=\"noscript-first\"></noscript><p><noscript><a href=\"noscript-p\"></a></noscript>",
+      "<head></head><noscript><a href=\"noscript-after-head\"></a></noscript>",
+      "text <noscript><a href=\"noscript-after-text\"></a></noscript>",
+      "<iframe><a href=\"iframe\"></a></iframe><a href=\"2\">2</a>",
+      "<xmp><a href=\"xmp\"></a></xmp><noembed><a href=\"noembed\"></noembed><a href=\"3\">3</a>",
+      "<noframes><a href=\"noframes\"></a></noframes><a href=\"4\">4</a>",
+      "<a href=\"5\">5</a><plaintext><a href=\"plaintext\"></a></plaintext><a href=\"6\">6</a>",
+      "<SCRIPT type=text/javascript>document.write('</scr' + 'ipt>')</SCRIPT ><a href=\"7\">7</a>",
+      "<a href=\"&#x2F;hex&#47;dec\">refs</a><a href=\"q?a=1&copy=2\">named</a><a href=\"&lt;lt&gt;\">lt</a>",
+      "<a href = \"spaced\" >spaced</a><a/href=\"slash\">slash</a><a href=unquoted>unquoted</a>",
+      "<a href=\"cut off",
+  };
+
+  @Test
+  public void testSameLinksAsJsoup() throws Exception {
+    for (String page : PAGES) {
+      check(page, page.getBytes(Charsets.UTF_8), Charsets.UTF_8);
+      check(page, page.getBytes(Charsets.UTF_8), null);
+    }
+  }
+
+  @Test
+  public void testCharsets() throws Exception {
+    Charset latin1 = Charset.forName("ISO-8859-1");
+    String page = "<meta charset=\"iso-8859-1\"><a href=\"caf\u00e9.html\">caf\u00e9</a>";
+    check(page, page.getBytes(latin1), null);
+
+    page = "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=ISO-8859-1\"><a href=\"\u00e9\">e</a>";
+    check(page, page.getBytes(latin1), null);
+
+    page = "<a href=\"\u00fcber\">u</a>";
+    check(page, page.getBytes(Charsets.UTF_16LE), Charsets.UTF_16LE);
+    // Jsoup 1.8.3 does not detect UTF-16 by its byte order mark
+    assertEquals(Arrays.asList("\u00fcber"),
+        new StreamingLinkExtractor().extractLinks(URL, page.getBytes(Charsets.UTF_16), null));
+
+    byte[] bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    byte[] utf8 = page.getBytes(Charsets.UTF_8);
+    byte[] withBom = new byte[bom.length + utf8.length];
+    System.arraycopy(bom, 0, withBom, 0, bom.length);
+    System.arraycopy(utf8, 0, withBom, bom.length, utf8.length);
+    // Nor does it let a UTF-8 byte order mark override the declared charset
+    assertEquals(Arrays.asList("\u00fcber"), new StreamingLinkExtractor().extractLinks(URL, withBom, latin1));
+  }
+
+  @Test
+  public void testExtractsLinks() throws Exception {
+    List<String> links = new StreamingLinkExtractor().extractLinks(URL, PAGES[0].getBytes(Charsets.UTF_8), null);
+    assertEquals(Arrays.asList("a.html", "/b", "c?x=1&y=2"), links);
+  }
+
+  private static void check(String page, byte[] body, Charset charset) throws Exception {
+    List<String> expected = new JsoupLinkExtractor().extractLinks(URL, body, charset);
+    List<String> actual = new StreamingLinkExtractor().extractLinks(URL, body, charset);
+    assertEquals(page + " (" + charset + ")", expected, actual);
+  }
+}
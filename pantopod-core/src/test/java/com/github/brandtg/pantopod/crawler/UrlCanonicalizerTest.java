@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.crawler;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class UrlCanonicalizerTest {
+  private static final URI PAGE = URI.create("http://example.onion/dir/page.html?b=2&a=1");
+
+  private final UrlCanonicalizer canonicalizer = new UrlCanonicalizer();
+
+  @Test
+  public void testCanonicalize() {
+    assertEquals("http://example.onion/", canonicalize("HTTP://Example.ONION:80"));
+    assertEquals("https://example.onion/a", canonicalize("https://example.onion:443/a"));
+    assertEquals("http://example.onion:8080/a", canonicalize("http://example.onion:8080/a"));
+    assertEquals("http://user@example.onion/", canonicalize("http://user@example.onion/"));
+    assertEquals("http://example.onion/a?a=1&b=2", canonicalize("http://example.onion/a?b=2&a=1#top"));
+    assertEquals("http://example.onion/a/", canonicalize("http://example.onion/./b/..//a/"));
+    assertEquals("http://example.onion/a", canonicalize("http://example.onion/a?&"));
+  }
+
+  @Test
+  public void testDropParams() {
+    assertEquals("http://example.onion/a?id=1",
+        canonicalize("http://example.onion/a?PHPSESSID=abc&id=1&utm_source=x&utm_medium=y"));
+    assertEquals("http://example.onion/a/b;v=1", canonicalize("http://example.onion/a;jsessionid=123/b;v=1"));
+    assertEquals("http://example.onion/a", canonicalize("http://example.onion/a?sessionid"));
+  }
+
+  @Test
+  public void testRules() {
+    UrlCanonicalizer keepAll = new UrlCanonicalizer(false, false, false, ImmutableList.<String>of(), null);
+    URI url = URI.create("http://Example.onion/a/../b//c?b=2&jsessionid=1&a=1#top");
+    assertEquals("http://example.onion/a/../b//c?b=2&jsessionid=1&a=1#top", keepAll.canonicalize(url).toString());
+  }
+
+  @Test
+  public void testInvalid() {
+    MetricRegistry metrics = new MetricRegistry();
+    UrlCanonicalizer counted = new UrlCanonicalizer(true, true, true, UrlCanonicalizer.DEFAULT_DROP_PARAMS, metrics);
+    assertNull(counted.resolve(PAGE, "mailto:someone@example.onion", null));
+    assertNull(counted.resolve(PAGE, "javascript:void(0)", null));
+    assertNull(counted.resolve(PAGE, "ftp://example.onion/file", null));
+    assertNull(counted.resolve(PAGE, "http://exa mple.onion/%", null));
+    assertEquals(4, metrics.meter(MetricRegistry.name(UrlCanonicalizer.class, "discarded-invalid")).getCount());
+  }
+
+  @Test
+  public void testResolve() {
+    assertEquals("http://example.onion/dir/a.html", resolve("a.html", null));
+    assertEquals("http://example.onion/a.html", resolve("../a.html", null));
+    assertEquals("http://example.onion/a.html", resolve("/a.html", null));
+    assertEquals("http://other.onion/", resolve("//other.onion", null));
+    assertEquals("https://other.onion/x", resolve("https://other.onion/x", null));
+    assertEquals("http://example.onion/dir/a+b.html", resolve(" a b.html ", null));
+  }
+
+  @Test
+  public void testResolveSamePage() {
+    assertEquals("http://example.onion/dir/page.html?q=1", resolve("?q=1", null));
+    assertEquals("http://example.onion/dir/page.html?a=1&b=2", resolve("", null));
+    assertEquals("http://example.onion/dir/page.html?a=1&b=2", resolve("  ", null));
+    assertEquals("http://example.onion/dir/page.html?a=1&b=2", resolve("#section", null));
+
+    UrlCanonicalizer keepFragments =
+        new UrlCanonicalizer(false, true, true, UrlCanonicalizer.DEFAULT_DROP_PARAMS, null);
+    assertEquals("http://example.onion/dir/page.html?a=1&b=2#section",
+        keepFragments.resolve(PAGE, "#section", null).toString());
+    assertEquals("http://example.onion/dir/page.html?q=1#section",
+        keepFragments.resolve(PAGE, "?q=1#section", null).toString());
+
+    URI noQuery = URI.create("http://example.onion/dir/");
+    assertEquals("http://example.onion/dir/", canonicalizer.resolve(noQuery, "", null).toString());
+  }
+
+  @Test
+  public void testResolveChroot() {
+    assertEquals("http://example.onion/site/a.html", resolve("/a.html", "/site/"));
+    assertEquals("http://example.onion/site/a.html", resolve("/a.html", "/site"));
+    assertEquals("http://example.onion/site/a.html", resolve("/site/a.html", "/site/"));
+    assertEquals("http://example.onion/dir/a.html", resolve("a.html", "/site/"));
+    assertEquals("http://other.onion/a.html", resolve("http://other.onion/a.html", "/site/"));
+  }
+
+  private String canonicalize(String url) {
+    return canonicalizer.canonicalize(URI.create(url)).toString();
+  }
+
+  private String resolve(String href, String chroot) {
+    return canonicalizer.resolve(PAGE, href, chroot).toString();
+  }
+}
@@ -0,0 +1,388 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.pantopod.tor;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Connects through local SOCKS5 stand-ins for tor instances.
+ */
+public class TorProxyPoolTest {
+  private static final int MAX_CONNECT_FAILURES = 3;
+  private static final InetSocketAddress TARGET = InetSocketAddress.createUnresolved("example.onion", 80);
+
+  private ScheduledExecutorService scheduler;
+  private MetricRegistry metrics;
+  private List<StandIn> standIns;
+
+  @Before
+  public void before() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    metrics = new MetricRegistry();
+    standIns = new ArrayList<>();
+  }
+
+  @After
+  public void after() throws Exception {
+    for (StandIn standIn : standIns) {
+      standIn.stop();
+    }
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testConnects() throws Exception {
+    StandIn proxy = standIn();
+    TorProxyPool pool = pool(proxy);
+
+    Socket socket = pool.createSocket("example.onion");
+    socket.connect(TARGET, 5000);
+    assertEquals("example.onion:80", proxy.takeTarget());
+    assertEquals(1, gauge("open-connections", proxy));
+    socket.close();
+    assertEquals(0, gauge("open-connections", proxy));
+    assertEquals(1, proxy.numConnects);
+    assertEquals(0, proxy.numFailures);
+  }
+
+  @Test
+  public void testUnreachableTargetDoesNotEvict() throws Exception {
+    StandIn proxy = standIn();
+    proxy.reply = 4; // host unreachable
+    TorProxyPool pool = pool(proxy);
+
+    for (int i = 0; i < MAX_CONNECT_FAILURES * 2; i++) {
+      try {
+        pool.createSocket("example.onion").connect(TARGET, 5000);
+        fail("Connected to an unreachable target");
+      } catch (SocketException e) {
+        // Expected
+      }
+    }
+    assertEquals(1, gauge("healthy", null));
+    assertEquals(0, proxy.numRestarts);
+    // Still counts against the circuits
+    assertEquals(MAX_CONNECT_FAILURES * 2, proxy.numFailures);
+  }
+
+  @Test
+  public void testSlowTargetDoesNotEvict() throws Exception {
+    StandIn proxy = standIn();
+    proxy.reply = -1; // never replies to the connect request
+    TorProxyPool pool = pool(proxy);
+
+    for (int i = 0; i < MAX_CONNECT_FAILURES; i++) {
+      try {
+        pool.createSocket("example.onion").connect(TARGET, 200);
+        fail("Connected to a target that never answered");
+      } catch (IOException e) {
+        // Expected
+      }
+    }
+    assertEquals(1, gauge("healthy", null));
+    assertEquals(0, proxy.numRestarts);
+  }
+
+  @Test
+  public void testUnreachableProxyIsEvicted() throws Exception {
+    StandIn down = standIn();
+    StandIn up = standIn();
+    TorProxyPool pool = pool(down, up);
+    down.stop();
+
+    int numFailures = 0;
+    for (int i = 0; i < MAX_CONNECT_FAILURES * 2; i++) {
+      try {
+        Socket socket = pool.createSocket(null);
+        socket.connect(TARGET, 5000);
+        socket.close();
+      } catch (IOException e) {
+        numFailures++;
+      }
+    }
+    assertEquals(MAX_CONNECT_FAILURES, numFailures);
+    assertTrue(down.awaitRestart());
+    assertEquals(0, up.numRestarts);
+    assertEquals(MAX_CONNECT_FAILURES, up.numConnects);
+  }
+
+  @Test
+  public void testNoHealthyProxy() throws Exception {
+    StandIn down = standIn();
+    TorProxyPool pool = pool(down);
+    down.stop();
+    down.restartable = false;
+
+    for (int i = 0; i < MAX_CONNECT_FAILURES; i++) {
+      try {
+        pool.createSocket(null).connect(TARGET, 5000);
+        fail("Connected through a proxy that is down");
+      } catch (IOException e) {
+        // Expected
+      }
+    }
+    assertEquals(0, gauge("healthy", null));
+    try {
+      pool.createSocket(null);
+      fail("Created a socket without a healthy proxy");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testRoundRobin() throws Exception {
+    StandIn a = standIn();
+    StandIn b = standIn();
+    TorProxyPool pool = pool(TorProxyPool.Affinity.REQUEST, TorProxyPool.Strategy.ROUND_ROBIN, a, b);
+    for (int i = 0; i < 4; i++) {
+      pool.createSocket("example.onion").connect(TARGET, 5000);
+    }
+    assertEquals(2, a.numConnects);
+    assertEquals(2, b.numConnects);
+  }
+
+  @Test
+  public void testLeastLoaded() throws Exception {
+    StandIn a = standIn();
+    StandIn b = standIn();
+    TorProxyPool pool = pool(TorProxyPool.Affinity.REQUEST, TorProxyPool.Strategy.LEAST_LOADED, a, b);
+    List<Socket> open = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      Socket socket = pool.createSocket(null);
+      socket.connect(TARGET, 5000);
+      open.add(socket);
+    }
+    // One closed, so the next goes to its proxy, which has the fewest open
+    open.get(0).close();
+    StandIn idle = gauge("open-connections", a) == 0 ? a : b;
+    pool.createSocket(null).connect(TARGET, 5000);
+    assertEquals(2, idle.numConnects);
+  }
+
+  @Test
+  public void testAuthorityAffinity() throws Exception {
+    StandIn a = standIn();
+    StandIn b = standIn();
+    TorProxyPool pool = pool(TorProxyPool.Affinity.AUTHORITY, TorProxyPool.Strategy.ROUND_ROBIN, a, b);
+    for (int i = 0; i < 3; i++) {
+      pool.createSocket("one.onion").connect(TARGET, 5000);
+    }
+    pool.createSocket("two.onion").connect(TARGET, 5000);
+    assertEquals(Arrays.asList(1, 3), Arrays.asList(Math.min(a.numConnects, b.numConnects),
+        Math.max(a.numConnects, b.numConnects)));
+  }
+
+  private TorProxyPool pool(StandIn... proxies) throws Exception {
+    return pool(TorProxyPool.Affinity.REQUEST, TorProxyPool.Strategy.ROUND_ROBIN, proxies);
+  }
+
+  private TorProxyPool pool(TorProxyPool.Affinity affinity, TorProxyPool.Strategy strategy, StandIn... proxies)
+      throws Exception {
+    TorProxyPool pool = new TorProxyPool(
+        Arrays.asList(proxies), affinity, strategy, MAX_CONNECT_FAILURES, scheduler, metrics);
+    pool.start();
+    return pool;
+  }
+
+  private StandIn standIn() throws IOException {
+    StandIn standIn = new StandIn();
+    standIns.add(standIn);
+    return standIn;
+  }
+
+  private int gauge(String name, StandIn proxy) {
+    String metric = proxy == null
+        ? MetricRegistry.name(TorProxyPool.class, name)
+        : MetricRegistry.name(TorProxyPool.class, String.valueOf(proxy.getSocksAddress().getPort()), name);
+    return (Integer) metrics.getGauges().get(metric).getValue();
+  }
+
+  /**
+   * A SOCKS5 server that answers every connect request with reply (0 for success, -1 for never), and connects
+   * nowhere.
+   */
+  private static class StandIn implements SocksProxy {
+    private final InetSocketAddress address;
+    private final List<Socket> accepted = new ArrayList<>();
+    private final List<String> targets = new ArrayList<>();
+    private final CountDownLatch restarted = new CountDownLatch(1);
+    private volatile int reply;
+    private volatile boolean restartable = true;
+    private volatile int numConnects;
+    private volatile int numFailures;
+    private volatile int numRestarts;
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private boolean started;
+
+    StandIn() throws IOException {
+      this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+      this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+      listen();
+    }
+
+    @Override
+    public InetSocketAddress getSocksAddress() {
+      return address;
+    }
+
+    @Override
+    public synchronized void recordConnect(long latencyMillis, boolean failed) {
+      numConnects++;
+      if (failed) {
+        numFailures++;
+      }
+    }
+
+    @Override
+    public synchronized void start() throws Exception {
+      if (!started) {
+        started = true; // by the pool
+        return;
+      }
+      if (!restartable) {
+        throw new IOException("Cannot restart");
+      }
+      numRestarts++;
+      if (serverSocket.isClosed()) {
+        serverSocket = new ServerSocket(address.getPort(), 50, address.getAddress());
+        listen();
+      }
+      restarted.countDown();
+    }
+
+    @Override
+    public void stop() throws Exception {
+      Thread stopped;
+      synchronized (this) {
+        serverSocket.close();
+        for (Socket socket : accepted) {
+          socket.close();
+        }
+        stopped = acceptor;
+      }
+      // The port only stops accepting once the thread in accept() has left it
+      stopped.join();
+    }
+
+    synchronized String takeTarget() {
+      return targets.remove(0);
+    }
+
+    boolean awaitRestart() throws InterruptedException {
+      return restarted.await(10, TimeUnit.SECONDS);
+    }
+
+    private void listen() {
+      final ServerSocket listening = serverSocket;
+      acceptor = startThread(new Runnable() {
+        @Override
+        public void run() {
+          while (!listening.isClosed()) {
+            try {
+              final Socket socket = listening.accept();
+              synchronized (StandIn.this) {
+                accepted.add(socket);
+              }
+              startThread(new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    handle(socket);
+                  } catch (IOException e) {
+                    // The client went away
+                  }
+                }
+              });
+            } catch (IOException e) {
+              // Closed
+            }
+          }
+        }
+      });
+    }
+
+    private static Thread startThread(Runnable runnable) {
+      Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      thread.start();
+      return thread;
+    }
+
+    private void handle(Socket socket) throws IOException {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+
+      // Greeting: version, methods
+      if (in.readUnsignedByte() != 5) {
+        socket.close();
+        return;
+      }
+      in.readFully(new byte[in.readUnsignedByte()]);
+      out.write(new byte[] {5, 0});
+      out.flush();
+
+      // Request: version, command, reserved, address type, address, port (a probe closes before it)
+      int version = in.readUnsignedByte();
+      in.readUnsignedByte();
+      in.readUnsignedByte();
+      int addressType = in.readUnsignedByte();
+      String host;
+      if (addressType == 3) {
+        byte[] name = new byte[in.readUnsignedByte()];
+        in.readFully(name);
+        host = new String(name, "US-ASCII");
+      } else {
+        byte[] ip = new byte[addressType == 4 ? 16 : 4];
+        in.readFully(ip);
+        host = InetAddress.getByAddress(ip).getHostAddress();
+      }
+      int port = in.readUnsignedShort();
+      synchronized (this) {
+        targets.add(host + ":" + port);
+      }
+      if (version != 5 || reply < 0) {
+        return;
+      }
+      out.write(new byte[] {5, (byte) reply, 0, 1, 127, 0, 0, 1, 0, 80});
+      out.flush();
+    }
+  }
+}